@@ -0,0 +1,77 @@
+package se.miun.ant;
+
+import com.dsi.ant.message.ChannelId;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.miun.ant.ChannelConfig.InvalidChannelConfigException;
+
+/**
+ * Benchmarks the duplicate filtering of ListItemState.onChannelDataReceived() for N connected
+ * lights. The lights are in a ChannelList, and the payloads are passed to their ListItemStates in
+ * turn on the benchmark thread, which stands in for the channel actors and, once per round of the
+ * lights, for the UI thread. The payload of a light changes every fourth message, so most messages
+ * are duplicates, as when the lights are not faded.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DuplicateFilterBenchmark {
+
+    private static final int DEVICE_TYPE = 16;
+    private static final int TRANSMISSION_TYPE = 0;
+    private static final int FREQUENCY = 57;
+    private static final int PERIOD = 8192;
+
+    @Param({ "8", "64", "512" })
+    public int channels;
+
+    private ManualUiExecutor uiExecutor;
+    private ListItemState[] states;
+    private long[] payloads;
+    private int index;
+
+    @Setup
+    public void setUp() throws InvalidChannelConfigException {
+        ChannelConfig profile = new ChannelConfig(DEVICE_TYPE, TRANSMISSION_TYPE, FREQUENCY, PERIOD);
+        uiExecutor = new ManualUiExecutor();
+        ChannelList channelList = new CountingListView(uiExecutor).getChannelList();
+
+        for (int i = 0; i < channels; i++) {
+            channelList.addChannelWrapper(new ChannelWrapper(
+                    new PassiveRadioChannel(new ChannelId(i + 1, DEVICE_TYPE, TRANSMISSION_TYPE)), 0, profile));
+        }
+        states = channelList.getListItemStates().toArray(new ListItemState[channels]);
+
+        payloads = new long[4];
+        for (int i = 0; i < payloads.length; i++) {
+            byte[] content = {
+                0, 1, (byte)(i * 25), (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF
+            };
+            payloads[i] = AntProtocolHelper.packPayload(content, 1);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (ListItemState state : states) state.channelWrapper.releaseChannel();
+    }
+
+    @Benchmark
+    public int onChannelDataReceived() {
+        index++;
+        ListItemState state = states[index % channels];
+        state.onChannelDataReceived(payloads[(index / channels / 4) & 3], state.channelWrapper);
+        if (index % channels == 0) uiExecutor.runPending();
+        return state.lightIntensity;
+    }
+}
@@ -0,0 +1,69 @@
+package se.miun.ant;
+
+import com.dsi.ant.message.ChannelId;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.miun.ant.ChannelConfig.InvalidChannelConfigException;
+
+/**
+ * Benchmarks the list updates of N connected lights for one channel period: every light of a
+ * ChannelList reports a changed intensity (ChannelList.onLightIntensityChanged()), and then the one
+ * intensity update that they posted is run, in which a CountingListView clears the changed rows the
+ * way ChannelListFragment does.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class IntensityUpdateBenchmark {
+
+    private static final int DEVICE_TYPE = 16;
+    private static final int TRANSMISSION_TYPE = 0;
+    private static final int FREQUENCY = 57;
+    private static final int PERIOD = 8192;
+
+    @Param({ "8", "64", "512" })
+    public int channels;
+
+    private ManualUiExecutor uiExecutor;
+    private CountingListView view;
+    private ChannelList channelList;
+    private ListItemState[] states;
+
+    @Setup
+    public void setUp() throws InvalidChannelConfigException {
+        ChannelConfig profile = new ChannelConfig(DEVICE_TYPE, TRANSMISSION_TYPE, FREQUENCY, PERIOD);
+        uiExecutor = new ManualUiExecutor();
+        view = new CountingListView(uiExecutor);
+        channelList = view.getChannelList();
+
+        for (int i = 0; i < channels; i++) {
+            channelList.addChannelWrapper(new ChannelWrapper(
+                    new PassiveRadioChannel(new ChannelId(i + 1, DEVICE_TYPE, TRANSMISSION_TYPE)), 0, profile));
+        }
+        states = channelList.getListItemStates().toArray(new ListItemState[channels]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (ListItemState state : states) state.channelWrapper.releaseChannel();
+    }
+
+    @Benchmark
+    public long markAndFlush() {
+        for (int i = 0; i < states.length; i++) {
+            channelList.onLightIntensityChanged(states[i]);
+        }
+        uiExecutor.runPending();
+        return view.rowsUpdated.get();
+    }
+}
@@ -0,0 +1,38 @@
+package se.miun.ant;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stands in for the UI thread in the benchmarks: the posted tasks are kept, delayed or not, until
+ * the benchmark runs them with runPending() on its own thread.
+ */
+class ManualUiExecutor implements ChannelExecutors.DelayedExecutor {
+
+    private final List<Runnable> pending = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable task) {
+        pending.add(task);
+    }
+
+    @Override
+    public void executeDelayed(Runnable task, long delayMs) {
+        pending.add(task);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        pending.remove(task);
+    }
+
+    /**
+     * Runs the tasks that have been posted so far, in order.
+     */
+    public void runPending() {
+        for (int i = 0; i < pending.size(); i++) {
+            pending.get(i).run();
+        }
+        pending.clear();
+    }
+}
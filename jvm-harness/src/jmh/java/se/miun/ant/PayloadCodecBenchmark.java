@@ -0,0 +1,80 @@
+package se.miun.ant;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the codecs that run for every sent and received message: making the payload of an
+ * intensity command (AntProtocolHelper.makeIntensityPayload()), and packing a received broadcast
+ * and decoding its data page (AntProtocolHelper.packPayload() and DataPageCodecs.decode()), for
+ * audio update pages and, every fourth message, battery status pages.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PayloadCodecBenchmark {
+
+    private static final int CONTENTS = 256;
+
+    private byte[][] contents;
+    private DecodedFields fields;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        contents = new byte[CONTENTS][];
+        for (int i = 0; i < CONTENTS; i++) {
+            if (i % 4 == 3) {
+                contents[i] = new byte[] {
+                    0, 82, (byte)0xFF, (byte)0xFF, (byte)i, 0, 0, (byte)(i * 7), (byte)0xA3
+                };
+            } else {
+                contents[i] = new byte[] {
+                    0, 1, (byte)(i % 101), (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF
+                };
+            }
+        }
+        fields = new DecodedFields();
+    }
+
+    @Benchmark
+    public byte[] makeIntensityPayload() {
+        index = (index + 1) % 101;
+        return AntProtocolHelper.makeIntensityPayload(index);
+    }
+
+    @Benchmark
+    public void packPayloadAndDecode(Blackhole blackhole) {
+        index = (index + 1) % CONTENTS;
+        long payload = AntProtocolHelper.packPayload(contents[index], 1);
+        blackhole.consume(DataPageCodecs.decode(payload, fields));
+        blackhole.consume(fields.volume + fields.voltageMillivolts);
+    }
+
+
+    //
+    // Keeps the decoded fields.
+    //
+    private static class DecodedFields extends DataPageCodecs.DataPageHandler {
+        int volume;
+        int voltageMillivolts;
+
+        @Override
+        public void onAudioUpdate(int volume) {
+            this.volume = volume;
+        }
+
+        @Override
+        public void onBatteryStatus(int batteryId, long operatingTimeSeconds, int voltageMillivolts,
+                                    int status) {
+            this.voltageMillivolts = voltageMillivolts;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package se.miun.ant;
+
+import com.dsi.ant.message.ChannelId;
+import com.dsi.ant.message.fromant.MessageFromAntType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.miun.ant.ChannelConfig.InvalidChannelConfigException;
+
+/**
+ * Benchmarks a received broadcast from the callback to the last of N listeners: the message is
+ * delivered to a ChannelWrapper on a PassiveRadioChannel, which hands it to the channel actor, where
+ * it is passed on to N ListItemStates and a counting listener. Every operation waits until the
+ * message has reached the counting listener, so the result is the time of one hand-off and fan-out.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ReceiveFanOutBenchmark {
+
+    private static final int DEVICE_TYPE = 16;
+    private static final int TRANSMISSION_TYPE = 0;
+    private static final int FREQUENCY = 57;
+    private static final int PERIOD = 8192;
+
+    @Param({ "8", "64", "512" })
+    public int listeners;
+
+    private PassiveRadioChannel channel;
+    private ChannelWrapper wrapper;
+    private DeliveryCounter counter;
+    private byte[][] contents;
+    private int index;
+
+    @Setup
+    public void setUp() throws InvalidChannelConfigException {
+        channel = new PassiveRadioChannel(new ChannelId(1, DEVICE_TYPE, TRANSMISSION_TYPE));
+        wrapper = new ChannelWrapper(channel, 0,
+                                     new ChannelConfig(DEVICE_TYPE, TRANSMISSION_TYPE, FREQUENCY, PERIOD));
+        ListItemState.ListItemStateListener stateListener = new IgnoringStateListener();
+        for (int i = 0; i < listeners; i++) {
+            new ListItemState(wrapper, stateListener);
+        }
+        counter = new DeliveryCounter();
+        wrapper.addChannelDataListener(counter);
+
+        contents = new byte[101][];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = new byte[] {
+                0, 1, (byte)i, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF
+            };
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        wrapper.releaseChannel();
+    }
+
+    @Benchmark
+    public long receive() {
+        index = (index + 1) % contents.length;
+        long delivered = counter.deliveries.get();
+        channel.deliver(MessageFromAntType.BROADCAST_DATA, AntProtocolHelper.MESSAGE_ID_BROADCAST_DATA,
+                        contents[index]);
+
+        long deliveries;
+        while ((deliveries = counter.deliveries.get()) == delivered) {
+            // Spins until the channel actor has delivered the message.
+        }
+        return deliveries;
+    }
+
+
+    private static class IgnoringStateListener implements ListItemState.ListItemStateListener {
+
+        @Override
+        public void onChannelConnectionClosed(ListItemState listItemState) {}
+
+        @Override
+        public void onChannelButtonClicked(ListItemState listItemState) {}
+
+        @Override
+        public void onLightIntensityChanged(ListItemState listItemState) {}
+
+        @Override
+        public void onHasReceivedLightIntensityData() {}
+    }
+
+    private static class DeliveryCounter implements ChannelWrapper.ChannelDataListener {
+        final AtomicLong deliveries = new AtomicLong();
+
+        @Override
+        public void onChannelDataReceived(long payload, ChannelWrapper channelWrapper) {
+            deliveries.incrementAndGet();
+        }
+
+        @Override
+        public void onChannelConnectionLost() {}
+
+        @Override
+        public void onChannelReconnected() {}
+
+        @Override
+        public void onChannelConnectionClosed() {}
+    }
+}
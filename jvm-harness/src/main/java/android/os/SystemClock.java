@@ -0,0 +1,19 @@
+package android.os;
+
+/**
+ * Stands in for android.os.SystemClock on a plain JVM, where the SystemClock of android.jar throws.
+ * Both clocks are the monotonic clock of the JVM, which does not count deep sleep, since a JVM
+ * does not sleep.
+ */
+public final class SystemClock {
+
+    private SystemClock() {}
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000L;
+    }
+}
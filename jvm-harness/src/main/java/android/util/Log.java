@@ -0,0 +1,40 @@
+package android.util;
+
+/**
+ * Stands in for android.util.Log on a plain JVM, where the Log of android.jar throws. The messages
+ * are written to the standard output; debug and verbose messages are dropped.
+ */
+public final class Log {
+
+    private Log() {}
+
+    public static int v(String tag, String message) {
+        return 0;
+    }
+
+    public static int d(String tag, String message) {
+        return 0;
+    }
+
+    public static int i(String tag, String message) {
+        return println("I", tag, message);
+    }
+
+    public static int w(String tag, String message) {
+        return println("W", tag, message);
+    }
+
+    public static int e(String tag, String message) {
+        return println("E", tag, message);
+    }
+
+    public static int e(String tag, String message, Throwable throwable) {
+        return println("E", tag, message + ": " + throwable);
+    }
+
+    private static int println(String level, String tag, String message) {
+        String line = level + "/" + tag + ": " + message;
+        System.out.println(line);
+        return line.length();
+    }
+}
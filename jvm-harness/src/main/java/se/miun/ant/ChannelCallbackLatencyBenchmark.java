@@ -0,0 +1,180 @@
+package se.miun.ant;
+
+import com.dsi.ant.message.ChannelId;
+import com.dsi.ant.message.fromant.MessageFromAntType;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.miun.ant.ChannelConfig.InvalidChannelConfigException;
+
+/**
+ * Measures the latency from the moment the ANT service delivers a broadcast message to a channel
+ * (the onReceiveMessage() callback on a binder thread) until the message reaches the channel's
+ * listeners on the channel actor (see ChannelWrapper and ChannelExecutors). It runs on a plain JVM.
+ *
+ * Every channel receives one broadcast per channel period, with the channels spread evenly over the
+ * period. The callbacks are made from a small pool of threads that stands in for the binder threads.
+ * The callbacks are made on real ChannelWrappers over PassiveRadioChannels, so the hand-off is the
+ * one of the app: the payload is stored, the delivery is coalesced and run on the channel's
+ * SerialExecutor on the actor pool.
+ *
+ * For every channel count the benchmark prints the delivery rate, the latency percentiles and the
+ * number of live threads, which must not grow with the number of channels.
+ *
+ * Usage: ChannelCallbackLatencyBenchmark [seconds per channel count] [channel period]
+ */
+public class ChannelCallbackLatencyBenchmark {
+
+    private static final int[] CHANNEL_COUNTS = { 8, 64, 512 };
+
+    // The number of threads that make the callbacks, standing in for the ANT service binder threads.
+    private static final int BINDER_THREADS = 4;
+
+    // The callbacks of the first second are not measured.
+    private static final int WARM_UP_MS = 1000;
+
+    // The maximum number of latency samples kept per channel.
+    private static final int MAX_SAMPLES = 4096;
+
+    private static final int DEVICE_TYPE = 16;
+    private static final int TRANSMISSION_TYPE = 0;
+    private static final int FREQUENCY = 57;
+
+    public static void main(String[] args) throws InterruptedException, InvalidChannelConfigException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int period = args.length > 1 ? Integer.parseInt(args[1]) : 8192;
+        ChannelConfig profile = new ChannelConfig(DEVICE_TYPE, TRANSMISSION_TYPE, FREQUENCY, period);
+
+        for (int channels : CHANNEL_COUNTS) {
+            run(channels, seconds, profile);
+        }
+    }
+
+    private static void run(int channelCount, int seconds, ChannelConfig profile) throws InterruptedException {
+        long periodNs = AntProtocolHelper.periodToMilliseconds(profile.getPeriod()) * 1000000L;
+        ScheduledExecutorService binderThreads = new ScheduledThreadPoolExecutor(BINDER_THREADS);
+        SimulatedUiThread uiThread = new SimulatedUiThread();
+        CountingListView view = new CountingListView(uiThread);
+        final ChannelWrapper[] wrappers = new ChannelWrapper[channelCount];
+        final LatencyProbe[] probes = new LatencyProbe[channelCount];
+        final Random random = new Random(channelCount);
+
+        for (int i = 0; i < channelCount; i++) {
+            final PassiveRadioChannel channel =
+                    new PassiveRadioChannel(new ChannelId(i + 1, DEVICE_TYPE, TRANSMISSION_TYPE));
+            final LatencyProbe probe = new LatencyProbe();
+            wrappers[i] = new ChannelWrapper(channel, 0, profile);
+            view.getChannelList().addChannelWrapper(wrappers[i]);
+            wrappers[i].addChannelDataListener(probe);
+            probes[i] = probe;
+
+            binderThreads.scheduleAtFixedRate(new Runnable() {
+
+                @Override
+                public void run() {
+                    // The ANT service unparcels a new content array for every message.
+                    byte[] content = {
+                        0, 1, (byte)random.nextInt(101), (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF,
+                        (byte)0xFF, (byte)0xFF
+                    };
+                    probe.onCallback();
+                    channel.deliver(MessageFromAntType.BROADCAST_DATA,
+                                    AntProtocolHelper.MESSAGE_ID_BROADCAST_DATA, content);
+                }
+            }, periodNs * i / channelCount, periodNs, TimeUnit.NANOSECONDS);
+        }
+
+        Thread.sleep(WARM_UP_MS);
+        for (LatencyProbe probe : probes) probe.measuring = true;
+
+        Thread.sleep(seconds * 1000L);
+        for (LatencyProbe probe : probes) probe.measuring = false;
+        int liveThreads = Thread.activeCount();
+
+        binderThreads.shutdownNow();
+        binderThreads.awaitTermination(1, TimeUnit.SECONDS);
+        for (ChannelWrapper wrapper : wrappers) wrapper.releaseChannel();
+        uiThread.shutdown();
+
+        long callbacks = 0, deliveries = 0;
+        int samples = 0;
+        int[] sampleCounts = new int[channelCount];
+        for (int i = 0; i < channelCount; i++) {
+            callbacks += probes[i].callbacks.get();
+            deliveries += probes[i].deliveries.get();
+            // Read once: a sample is visible once the count that includes it has been written.
+            sampleCounts[i] = probes[i].sampleCount;
+            samples += sampleCounts[i];
+        }
+
+        long[] latencies = new long[samples];
+        int offset = 0;
+        for (int i = 0; i < channelCount; i++) {
+            System.arraycopy(probes[i].samples, 0, latencies, offset, sampleCounts[i]);
+            offset += sampleCounts[i];
+        }
+        Arrays.sort(latencies);
+
+        System.out.println(String.format("%4d channels: %6d callbacks/s %6d deliveries/s  latency %s  " +
+                                         "%d live threads, %d list updates",
+                                         channelCount, callbacks / seconds, deliveries / seconds,
+                                         formatPercentiles(latencies), liveThreads,
+                                         view.intensityUpdates.get()));
+    }
+
+    private static String formatPercentiles(long[] sorted) {
+        if (sorted.length == 0) return "n/a";
+
+        return String.format("p50 %5d us, p99 %6d us, max %6d us",
+                sorted[sorted.length / 2] / 1000,
+                sorted[(int)(sorted.length * 0.99)] / 1000,
+                sorted[sorted.length - 1] / 1000);
+    }
+
+
+    //
+    // The last listener of a channel: measures the time from the newest callback to the delivery.
+    //
+    private static class LatencyProbe implements ChannelWrapper.ChannelDataListener {
+        final AtomicLong lastCallbackNs = new AtomicLong();
+        final AtomicLong callbacks = new AtomicLong();
+        final AtomicLong deliveries = new AtomicLong();
+        volatile boolean measuring;
+
+        // Written on the channel actor only.
+        final long[] samples = new long[MAX_SAMPLES];
+        volatile int sampleCount;
+
+        // Called on a "binder" thread, just before the message is delivered to the channel.
+        void onCallback() {
+            lastCallbackNs.set(System.nanoTime());
+            if (measuring) callbacks.incrementAndGet();
+        }
+
+        @Override
+        public void onChannelDataReceived(long payload, ChannelWrapper channelWrapper) {
+            if (!measuring) return;
+
+            deliveries.incrementAndGet();
+            int count = sampleCount;
+            if (count < MAX_SAMPLES) {
+                samples[count] = System.nanoTime() - lastCallbackNs.get();
+                sampleCount = count + 1;
+            }
+        }
+
+        @Override
+        public void onChannelConnectionLost() {}
+
+        @Override
+        public void onChannelReconnected() {}
+
+        @Override
+        public void onChannelConnectionClosed() {}
+    }
+}
@@ -0,0 +1,59 @@
+package se.miun.ant;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for the ListView of the app on a plain JVM: counts the list and intensity updates of a
+ * ChannelList, and clears the changed rows the way ChannelListFragment does. Called on the executor
+ * that stands in for the UI thread, for example a SimulatedUiThread.
+ */
+class CountingListView implements ChannelList.SnapshotView, ChannelList.ChannelListener {
+
+    final AtomicLong snapshots = new AtomicLong();
+    final AtomicLong intensityUpdates = new AtomicLong();
+    final AtomicLong rowsUpdated = new AtomicLong();
+
+    private final ChannelList channelList;
+
+    /**
+     * Constructor. Makes a ChannelList that is shown by this view.
+     * @param uiExecutor runs the updates of the list, in place of the UI thread.
+     */
+    CountingListView(ChannelExecutors.DelayedExecutor uiExecutor) {
+        channelList = new ChannelList(this, uiExecutor);
+        channelList.setChannelListener(this);
+    }
+
+    public ChannelList getChannelList() {
+        return channelList;
+    }
+
+    /**
+     * Sets the counters to zero.
+     */
+    public void reset() {
+        snapshots.set(0);
+        intensityUpdates.set(0);
+        rowsUpdated.set(0);
+    }
+
+    @Override
+    public void showSnapshot(ChannelStateStore.Snapshot snapshot) {
+        snapshots.incrementAndGet();
+    }
+
+    @Override
+    public void onChannelSelected(ChannelWrapper channelWrapper, int lightIntensity) {}
+
+    @Override
+    public void onLightIntensityDataUpdated() {
+        intensityUpdates.incrementAndGet();
+        // Indexed, like the loop over the visible rows of ChannelListFragment, so that the update
+        // does not allocate an iterator.
+        List<ListItemState> states = channelList.getListItemStates();
+        for (int i = 0; i < states.size(); i++) {
+            if (states.get(i).clearIntensityDirty()) rowsUpdated.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package se.miun.ant;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A stress test of ListenerRegistry that runs on a plain JVM. Dispatcher threads loop over the
+ * registered listeners (as ChannelWrapper.notifyBroadcastData() does) while writer threads add and
+ * remove listeners as fast as they can. The test fails if:
+ *
+ * 1) a dispatch throws, or sees a null or duplicated listener,
+ * 2) a listener that was registered for the whole test misses a dispatch, or
+ * 3) the registered listeners at the end are not the ones the writers last added.
+ *
+ * Usage: ListenerRegistryStressTest [seconds] [dispatcher threads] [writer threads]
+ * The exit code is 0 if the test passed, otherwise 1.
+ */
+public class ListenerRegistryStressTest {
+
+    // The number of listeners that stay registered for the whole test.
+    private static final int STABLE_LISTENERS = 4;
+    // The number of listeners that each writer thread adds and removes.
+    private static final int LISTENERS_PER_WRITER = 16;
+
+    private static class CountingListener {
+        final AtomicLong calls = new AtomicLong();
+        // The number of the last dispatch of each dispatcher that called the listener, used to find
+        // duplicates. Each element is only accessed by its own dispatcher.
+        final long[] lastDispatch;
+
+        CountingListener(int dispatcherCount) {
+            lastDispatch = new long[dispatcherCount];
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int dispatcherCount = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int writerCount = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        final ListenerRegistry<CountingListener> registry =
+                new ListenerRegistry<CountingListener>(new CountingListener[0]);
+        final CountingListener[] stableListeners = new CountingListener[STABLE_LISTENERS];
+        for (int i = 0; i < STABLE_LISTENERS; i++) {
+            stableListeners[i] = new CountingListener(dispatcherCount);
+            registry.add(stableListeners[i]);
+        }
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final AtomicLong dispatches = new AtomicLong();
+        final AtomicLong changes = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Set<CountingListener> expectedListeners = new HashSet<CountingListener>();
+
+        Thread[] threads = new Thread[dispatcherCount + writerCount];
+
+        for (int d = 0; d < dispatcherCount; d++) {
+            final int dispatcher = d;
+            threads[d] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    awaitStart(start);
+                    long count = 0;
+                    try {
+                        while (running.get()) {
+                            String error = dispatch(registry, dispatcher, count + 1);
+                            if (error != null) failure.compareAndSet(null, error);
+                            count++;
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, "dispatch threw " + t);
+                    }
+                    dispatches.addAndGet(count);
+                }
+            }, "Dispatcher-" + d);
+        }
+
+        final CountingListener[][] writerListeners = new CountingListener[writerCount][];
+        final boolean[][] writerRegistered = new boolean[writerCount][];
+
+        for (int w = 0; w < writerCount; w++) {
+            final CountingListener[] own = new CountingListener[LISTENERS_PER_WRITER];
+            final boolean[] registered = new boolean[LISTENERS_PER_WRITER];
+            for (int i = 0; i < own.length; i++) own[i] = new CountingListener(dispatcherCount);
+            writerListeners[w] = own;
+            writerRegistered[w] = registered;
+            final Random random = new Random(w);
+
+            threads[dispatcherCount + w] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    awaitStart(start);
+                    long count = 0;
+                    while (running.get()) {
+                        int i = random.nextInt(own.length);
+                        if (registered[i]) {
+                            registry.remove(own[i]);
+                        } else {
+                            registry.add(own[i]);
+                        }
+                        registered[i] = !registered[i];
+                        count++;
+                    }
+                    changes.addAndGet(count);
+                }
+            }, "Writer-" + w);
+        }
+
+        for (Thread thread : threads) thread.start();
+        start.countDown();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread thread : threads) thread.join();
+
+        // Every stable listener must have been called exactly once per dispatch.
+        for (CountingListener listener : stableListeners) {
+            if (listener.calls.get() != dispatches.get()) {
+                failure.compareAndSet(null, "a stable listener got " + listener.calls.get() +
+                                            " of " + dispatches.get() + " dispatches");
+            }
+        }
+
+        // The registry must hold exactly the stable listeners and the listeners the writers left added.
+        for (CountingListener listener : stableListeners) expectedListeners.add(listener);
+        for (int w = 0; w < writerCount; w++) {
+            for (int i = 0; i < LISTENERS_PER_WRITER; i++) {
+                if (writerRegistered[w][i]) expectedListeners.add(writerListeners[w][i]);
+            }
+        }
+
+        Set<CountingListener> actualListeners = new HashSet<CountingListener>();
+        for (CountingListener listener : registry.getListeners()) actualListeners.add(listener);
+        if (!actualListeners.equals(expectedListeners)) {
+            failure.compareAndSet(null, "the registry holds " + actualListeners.size() +
+                                        " listeners, expected " + expectedListeners.size());
+        }
+
+        System.out.println(String.format("%d dispatchers, %d writers: %,d dispatches/s, " +
+                                         "%,d adds and removes/s",
+                                         dispatcherCount, writerCount,
+                                         dispatches.get() / seconds, changes.get() / seconds));
+
+        if (failure.get() == null) {
+            System.out.println("PASSED");
+        } else {
+            System.out.println("FAILED: " + failure.get());
+            System.exit(1);
+        }
+    }
+
+    //
+    // One dispatch, as in ChannelWrapper.notifyBroadcastData(). Returns an error message, or null.
+    //
+    private static String dispatch(ListenerRegistry<CountingListener> registry, int dispatcher,
+                                   long dispatchNumber) {
+        CountingListener[] snapshot = registry.getListeners();
+
+        for (int i = 0; i < snapshot.length; i++) {
+            CountingListener listener = snapshot[i];
+            if (listener == null) return "dispatch saw a null listener";
+            if (listener.lastDispatch[dispatcher] == dispatchNumber) return "dispatch saw a listener twice";
+
+            listener.lastDispatch[dispatcher] = dispatchNumber;
+            listener.calls.incrementAndGet();
+        }
+
+        return null;
+    }
+
+    private static void awaitStart(CountDownLatch start) {
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package se.miun.ant;
+
+import com.dsi.ant.message.ChannelId;
+import com.dsi.ant.message.ChannelType;
+import com.dsi.ant.message.fromant.MessageFromAntType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+import se.miun.ant.ChannelConfig.InvalidChannelConfigException;
+import se.miun.ant.MessageTraceReader.TraceRecord;
+
+/**
+ * Replays a message trace (see MessageTraceRecorder) on a plain JVM, at the recorded speed or
+ * faster, into the app's own receive pipeline. Every ANT channel of the trace gets a
+ * PassiveRadioChannel that delivers the recorded messages, which is wrapped in a ChannelWrapper and
+ * added to a ChannelList, as a channel that a search has connected:
+ *
+ * 1) ChannelWrapper: broadcasts are coalesced and handed to the channel's actor, the reconnect
+ *    logic reacts to the recorded RX_FAIL and CHANNEL_CLOSED events, and everything is counted in
+ *    the ChannelMetrics of the channel.
+ * 2) ListItemState: duplicate broadcasts are filtered and changed lights are marked dirty.
+ * 3) ChannelList: dirty lights are flushed to a CountingListView at most once per frame.
+ *
+ * The metrics are measured on the clock of the trace, so the rates are the rates of the recording,
+ * whatever the replay speed. Only the messages that the connected channels received
+ * (MessageTraceRecorder.SOURCE_CHANNEL) are replayed. The trace does not hold the channel IDs of the
+ * masters, so the light on channel n is given device number n + 1.
+ *
+ * The driver can also make a trace from a SimulatedAntRadio, to try out the recorder without a phone.
+ *
+ * Usage: MessageTraceReplay replay <trace file> [speed, 0 = as fast as possible]
+ *        MessageTraceReplay record <trace file> [lights] [seconds]
+ */
+public class MessageTraceReplay {
+
+    private static final int DEVICE_TYPE = 16;
+    private static final int TRANSMISSION_TYPE = 0;
+    private static final int FREQUENCY = 57;
+    private static final int PERIOD = 8192;
+
+    // The time the channel actors and the UI thread are given to finish the last messages.
+    private static final int SETTLE_MS = 200;
+
+    public static void main(String[] args) throws IOException, InterruptedException,
+                                                  InvalidChannelConfigException {
+        if (args.length < 2) {
+            System.out.println("Usage: MessageTraceReplay replay <trace file> [speed]\n" +
+                               "       MessageTraceReplay record <trace file> [lights] [seconds]");
+            return;
+        }
+        File file = new File(args[1]);
+
+        if (args[0].equals("record")) {
+            int lights = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+            int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+            recordSimulatedTrace(file, lights, seconds);
+        } else {
+            double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+            replay(MessageTraceReader.readAll(file), speed);
+        }
+    }
+
+    //
+    // Feeds the records to the pipeline from one thread, each at its recorded time divided by the
+    // speed, and prints how far behind schedule the feeding fell and what the pipeline saw.
+    //
+    private static void replay(List<TraceRecord> records, double speed) throws InterruptedException,
+                                                                             InvalidChannelConfigException {
+        ChannelConfig profile = new ChannelConfig(DEVICE_TYPE, TRANSMISSION_TYPE, FREQUENCY, PERIOD);
+        ChannelMetricsRegistry registry = new ChannelMetricsRegistry();
+        SimulatedUiThread uiThread = new SimulatedUiThread();
+        CountingListView view = new CountingListView(uiThread);
+        ChannelList channelList = view.getChannelList();
+
+        TraceClock traceClock = new TraceClock();
+        Map<Integer, PassiveRadioChannel> channels = new TreeMap<Integer, PassiveRadioChannel>();
+
+        long start = System.nanoTime();
+        long maxLagNs = 0;
+        int replayed = 0;
+
+        for (TraceRecord record : records) {
+            if (record.source != MessageTraceRecorder.SOURCE_CHANNEL) continue;
+
+            if (speed > 0) {
+                long due = start + (long)(record.timestampNanos / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+                maxLagNs = Math.max(maxLagNs, System.nanoTime() - due);
+            }
+            traceClock.timeNanos = record.timestampNanos;
+
+            MessageFromAntType messageType;
+            if (record.messageId == AntProtocolHelper.MESSAGE_ID_BROADCAST_DATA) {
+                messageType = MessageFromAntType.BROADCAST_DATA;
+            } else if (record.messageId == AntProtocolHelper.MESSAGE_ID_CHANNEL_EVENT) {
+                messageType = MessageFromAntType.CHANNEL_EVENT;
+            } else {
+                continue;
+            }
+
+            PassiveRadioChannel channel = channels.get(record.channelNumber);
+            if (channel == null) {
+                channel = new PassiveRadioChannel(new ChannelId(record.channelNumber + 1, DEVICE_TYPE,
+                                                                TRANSMISSION_TYPE));
+                channels.put(record.channelNumber, channel);
+
+                ChannelWrapper wrapper = new ChannelWrapper(channel, 0, profile, traceClock);
+                wrapper.getMetrics().setLabel("Channel " + record.channelNumber);
+                registry.register(wrapper.getMetrics());
+                channelList.addChannelWrapper(wrapper);
+            }
+            channel.deliver(messageType, record.messageId, record.content);
+            replayed++;
+        }
+
+        long elapsedNs = System.nanoTime() - start;
+        // The channel actors and the UI thread finish the last messages.
+        Thread.sleep(SETTLE_MS);
+        uiThread.awaitIdle();
+
+        long recordedNs = records.isEmpty() ? 0 : records.get(records.size() - 1).timestampNanos;
+        System.out.println("Replayed " + replayed + " messages on " + channels.size() + " channels in " +
+                           elapsedNs / 1000000L + " ms (recorded " + recordedNs / 1000000L + " ms, speed " +
+                           (speed > 0 ? speed + "x" : "max") + ", " +
+                           (elapsedNs > 0 ? replayed * 1000000000L / elapsedNs : 0) + " msgs/s)");
+        if (speed > 0) System.out.println("Max feed lag: " + maxLagNs / 1000L + " us");
+        System.out.println("UI: " + view.snapshots.get() + " list updates, " + view.intensityUpdates.get() +
+                           " intensity updates, " + view.rowsUpdated.get() + " rows updated");
+        System.out.print(registry.dumpText());
+
+        channelList.closeChannels();
+        uiThread.shutdown();
+    }
+
+    //
+    // Records a trace of simulated lights, each one tracked by its own channel, for the given time.
+    //
+    private static void recordSimulatedTrace(File file, int lights, int seconds) throws IOException,
+                                                                                        InterruptedException {
+        SimulatedAntRadio radio = new SimulatedAntRadio(lights, 42);
+        radio.setRxFailProbability(0.02);
+        final MessageTraceRecorder recorder = MessageTraceRecorder.start(file);
+
+        for (int i = 0; i < lights; i++) {
+            radio.addMaster(i + 1, DEVICE_TYPE, TRANSMISSION_TYPE, FREQUENCY, PERIOD);
+            try {
+                RadioChannel channel = radio.acquireChannel(false);
+                channel.assign(ChannelType.BIDIRECTIONAL_SLAVE);
+                channel.setChannelId(new ChannelId(i + 1, DEVICE_TYPE, TRANSMISSION_TYPE));
+                channel.setRfFrequency(FREQUENCY);
+                channel.setPeriod(PERIOD);
+                channel.setEventHandler(new RecordingEventHandler(recorder));
+                channel.open();
+            } catch (Exception e) {
+                System.out.println("Unable to open channel: " + e.getMessage());
+            }
+        }
+
+        Thread.sleep(seconds * 1000L);
+        radio.shutdown();
+        MessageTraceRecorder.stop();
+
+        if (recorder.getFailure() != null) {
+            System.out.println("Recording failed: " + recorder.getFailure().getMessage());
+        } else {
+            System.out.println("Recorded " + lights + " lights for " + seconds + " s to " + file +
+                               " (" + file.length() + " bytes)");
+        }
+    }
+
+    //
+    // Records the messages of a simulated channel, as a connected ChannelWrapper does.
+    //
+    private static class RecordingEventHandler implements RadioChannel.EventHandler {
+
+        private final MessageTraceRecorder recorder;
+
+        RecordingEventHandler(MessageTraceRecorder recorder) {
+            this.recorder = recorder;
+        }
+
+        @Override
+        public void onReceiveMessage(MessageFromAntType messageType, int messageId, byte[] content) {
+            recorder.record(MessageTraceRecorder.SOURCE_CHANNEL, messageId, content);
+        }
+
+        @Override
+        public void onChannelDeath() {}
+    }
+
+    //
+    // The time of the record being replayed, as the clock of the metrics.
+    //
+    private static class TraceClock implements ChannelMetrics.Clock {
+        volatile long timeNanos;
+
+        @Override
+        public long now() {
+            return timeNanos / 1000000L;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package se.miun.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import se.miun.ant.ChannelConfig.InvalidChannelConfigException;
+import se.miun.ant.SimulatedAntRadio.SimulatedMaster;
+
+/**
+ * A load test of the ChannelMultiplexer: more known lights than radio channels, on a
+ * SimulatedAntRadio. All lights are in the PairedDeviceCache, so a channel search directs its
+ * channels to as many of them as it can and hands the rest to the multiplexer, exactly as in the
+ * app. Every light gets a ChannelWrapper in a ChannelList, whether it has a channel of its own or
+ * shares one.
+ *
+ * 1) Search: a search is started, and the time until every light is in the list is measured.
+ * 2) Control: a simulated user changes a random light now and then, and one shared light is pinned,
+ *    as if its details were shown.
+ * 3) Final state: every light is sent its own intensity, and the time until every master has it is
+ *    measured.
+ *
+ * At the end the update interval (the time between two updates of a light) and the acknowledged
+ * message latency are printed per light, and summed up for the lights with their own channel, the
+ * shared lights and the pinned light.
+ *
+ * Usage: MultiplexerLoadTest [lights] [radio channels] [seconds] [max staleness ms] [period]
+ */
+public class MultiplexerLoadTest {
+
+    private static final int DEVICE_TYPE = 16;
+    private static final int TRANSMISSION_TYPE = 0;
+    private static final int FREQUENCY = 57;
+
+    // The time between two changes of a random light by the simulated user.
+    private static final int USER_TICK_MS = 500;
+    // The longest time that all lights are waited for, in the search and the final state.
+    private static final int WAIT_MS = 60000;
+    // The time after which the final intensity is sent again to the lights that do not have it yet,
+    // since a failed acknowledged message is not sent again by the app.
+    private static final int RESEND_MS = 2000;
+
+    public static void main(String[] args) throws InterruptedException, IOException,
+                                                  InvalidChannelConfigException {
+        int lights = args.length > 0 ? Integer.parseInt(args[0]) : 24;
+        int radioChannels = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int maxStalenessMs = args.length > 3 ? Integer.parseInt(args[3]) : ChannelMultiplexer.DEFAULT_MAX_STALENESS_MS;
+        int period = args.length > 4 ? Integer.parseInt(args[4]) : 8192;
+
+        SimulatedAntRadio radio = new SimulatedAntRadio(radioChannels, 42);
+        radio.setRxFailProbability(0.02);
+        radio.setMaxSearchLockMs(100);
+
+        List<SimulatedMaster> masters = new ArrayList<SimulatedMaster>();
+        for (int i = 0; i < lights; i++) {
+            masters.add(radio.addMaster(i + 1, DEVICE_TYPE, TRANSMISSION_TYPE, FREQUENCY, period));
+        }
+
+        System.out.println("Multiplexing " + lights + " lights on " + radioChannels + " radio channels, " +
+                           "period " + period + ", max staleness " + maxStalenessMs + " ms");
+
+        ChannelConfig profile = new ChannelConfig(DEVICE_TYPE, TRANSMISSION_TYPE, FREQUENCY, period);
+        ChannelConfigStore configStore = new ChannelConfigStore(Collections.singletonList(profile));
+
+        File cacheFile = File.createTempFile("paired_devices", ".bin");
+        cacheFile.deleteOnExit();
+        PairedDeviceCache pairedDeviceCache = new PairedDeviceCache(cacheFile);
+        for (int i = lights; i >= 1; i--) {
+            pairedDeviceCache.addDevice(i, TRANSMISSION_TYPE, 0);
+        }
+
+        SimulatedUiThread uiThread = new SimulatedUiThread();
+        CountingListView view = new CountingListView(uiThread);
+        ChannelList channelList = view.getChannelList();
+
+        ChannelRetriever channelRetriever = new ChannelRetriever(radio, configStore);
+        ChannelMultiplexer multiplexer = new ChannelMultiplexer(channelRetriever);
+        multiplexer.setMaxStalenessMs(maxStalenessMs);
+
+        SearchListener searchListener = new SearchListener(channelList, pairedDeviceCache);
+        ChannelSearcher channelSearcher = new ChannelSearcher(channelRetriever, configStore, pairedDeviceCache,
+                                                              channelList, multiplexer, searchListener);
+
+        long start = System.nanoTime();
+        CountDownLatch finished = searchListener.prepareSearch();
+        channelSearcher.startChannelSearch();
+        finished.await(WAIT_MS, TimeUnit.MILLISECONDS);
+        System.out.println("Search: finished after " + toMs(System.nanoTime() - start) + " ms, " +
+                           channelList.getListItemStates().size() + " lights connected, " +
+                           multiplexer.getChannelCount() + " channels shared");
+
+        boolean allConnected = waitForLights(channelList, lights);
+        System.out.println("Search: " + channelList.getListItemStates().size() + " of " + lights +
+                           " lights in the list after " + toMs(System.nanoTime() - start) + " ms");
+
+        int pinned = pickSharedLight(searchListener.sharedLights);
+        if (pinned != 0) {
+            multiplexer.setPinned(pinned, TRANSMISSION_TYPE, true);
+            System.out.println("Control: light " + pinned + " is pinned");
+        }
+        runControl(channelList, masters, seconds);
+
+        boolean allSet = runFinalState(channelList, masters);
+
+        System.out.println();
+        printLatencies(channelList, searchListener.sharedLights, pinned);
+
+        channelList.closeChannels();
+        radio.shutdown();
+        uiThread.shutdown();
+
+        if (!allConnected || !allSet) System.exit(1);
+    }
+
+    //
+    // Waits until every light is in the list.
+    //
+    private static boolean waitForLights(ChannelList channelList, int lights) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+
+        while (channelList.getListItemStates().size() < lights) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    private static int pickSharedLight(Set<Integer> sharedLights) {
+        int pinned = 0;
+        for (int deviceNumber : sharedLights) {
+            if (pinned == 0 || deviceNumber < pinned) pinned = deviceNumber;
+        }
+        return pinned;
+    }
+
+    //
+    // Changes a random light, through its ChannelWrapper, every USER_TICK_MS, and a random light on
+    // the fixture itself now and then.
+    //
+    private static void runControl(ChannelList channelList, List<SimulatedMaster> masters, int seconds)
+            throws InterruptedException {
+        Random random = new Random(7);
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        int changes = 0;
+
+        while (System.currentTimeMillis() < end) {
+            List<ListItemState> states = channelList.getListItemStates();
+            if (!states.isEmpty()) {
+                states.get(random.nextInt(states.size())).channelWrapper.sendIntensity(random.nextInt(101));
+                changes++;
+            }
+            if (random.nextInt(4) == 0) masters.get(random.nextInt(masters.size())).setVolume(random.nextInt(101));
+            Thread.sleep(USER_TICK_MS);
+        }
+
+        System.out.println("Control: " + changes + " changes in " + seconds + " s");
+    }
+
+    //
+    // Sends every light its own intensity, as often as needed, and waits until every master has it.
+    //
+    private static boolean runFinalState(ChannelList channelList, List<SimulatedMaster> masters)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        long nextSend = 0;
+        int sends = 0;
+        int reached = 0;
+
+        while (System.currentTimeMillis() <= deadline) {
+            if (System.currentTimeMillis() >= nextSend) {
+                sends += sendFinalIntensities(channelList, masters);
+                nextSend = System.currentTimeMillis() + RESEND_MS;
+            }
+
+            reached = 0;
+            for (SimulatedMaster master : masters) {
+                if (master.getVolume() == getFinalIntensity(master.getDeviceNumber())) reached++;
+            }
+            if (reached == masters.size()) break;
+            Thread.sleep(50);
+        }
+
+        System.out.println("Final state: " + reached + " of " + masters.size() + " lights set after " +
+                           toMs(System.nanoTime() - start) + " ms, with " + sends + " sends");
+        return reached == masters.size();
+    }
+
+    private static int sendFinalIntensities(ChannelList channelList, List<SimulatedMaster> masters) {
+        int sends = 0;
+
+        for (ListItemState state : channelList.getListItemStates()) {
+            int deviceNumber = state.channelWrapper.getDeviceNumber();
+            if (masters.get(deviceNumber - 1).getVolume() != getFinalIntensity(deviceNumber)) {
+                state.channelWrapper.sendIntensity(getFinalIntensity(deviceNumber));
+                sends++;
+            }
+        }
+        return sends;
+    }
+
+    private static int getFinalIntensity(int deviceNumber) {
+        return deviceNumber * 7 % 101;
+    }
+
+    private static void printLatencies(ChannelList channelList, Set<Integer> sharedLights, int pinned) {
+        List<ListItemState> states = new ArrayList<ListItemState>(channelList.getListItemStates());
+        Collections.sort(states, new Comparator<ListItemState>() {
+
+            @Override
+            public int compare(ListItemState a, ListItemState b) {
+                return a.channelWrapper.getDeviceNumber() - b.channelWrapper.getDeviceNumber();
+            }
+        });
+
+        // The sums of the mean update intervals of the lights with their own channel [0] and of the
+        // shared lights [1], and the numbers of lights.
+        long[] meanSums = new long[2];
+        int[] lightCounts = new int[2];
+
+        System.out.println("light  channel  update mean/p99/max (ms)   tx ack mean/max (ms)  acked/failed");
+        for (ListItemState state : states) {
+            int deviceNumber = state.channelWrapper.getDeviceNumber();
+            boolean shared = sharedLights.contains(deviceNumber);
+            ChannelMetrics metrics = state.channelWrapper.getMetrics();
+            ChannelMetrics.Histogram update = metrics.getUpdateInterval();
+            ChannelMetrics.Histogram ack = metrics.getTxAckLatency();
+
+            System.out.println(String.format(Locale.US, "%5d  %-7s  %6d %6d %6d          %6d %6d         %d/%d",
+                    deviceNumber, deviceNumber == pinned ? "pinned" : shared ? "shared" : "own",
+                    update.getMeanMicros() / 1000, update.getPercentileMicros(99) / 1000,
+                    update.getMaxMicros() / 1000, ack.getMeanMicros() / 1000, ack.getMaxMicros() / 1000,
+                    metrics.getTxCompleted(), metrics.getTxFailed()));
+
+            if (deviceNumber == pinned) continue;
+            meanSums[shared ? 1 : 0] += update.getMeanMicros() / 1000;
+            lightCounts[shared ? 1 : 0]++;
+        }
+
+        System.out.println(String.format(Locale.US, "Mean update interval: own channel %d ms, shared %d ms",
+                meanSums[0] / Math.max(1, lightCounts[0]), meanSums[1] / Math.max(1, lightCounts[1])));
+    }
+
+    private static long toMs(long nanos) {
+        return nanos / 1000000L;
+    }
+
+
+    //
+    // Does what LightControllerActivity does with the connected channels, and remembers which
+    // lights share a channel.
+    //
+    private static class SearchListener implements ChannelSearcher.OnChannelSearchStatusListener {
+        final ChannelList channelList;
+        final PairedDeviceCache pairedDeviceCache;
+        final Set<Integer> sharedLights = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+        volatile CountDownLatch searchFinished;
+
+        SearchListener(ChannelList channelList, PairedDeviceCache pairedDeviceCache) {
+            this.channelList = channelList;
+            this.pairedDeviceCache = pairedDeviceCache;
+        }
+
+        CountDownLatch prepareSearch() {
+            searchFinished = new CountDownLatch(1);
+            return searchFinished;
+        }
+
+        @Override
+        public void onChannelSearcherInitialized() {}
+
+        @Override
+        public void onChannelConnected(RadioChannel channel, int profileNumber, ChannelConfig profile) {
+            ChannelWrapper wrapper = new ChannelWrapper(channel, profileNumber, profile);
+            if (!channelList.addChannelWrapper(wrapper)) return;
+            pairedDeviceCache.addDevice(wrapper.getDeviceNumber(), wrapper.getTransmissionType(), profileNumber);
+
+            // The channels of the multiplexer are its own RadioChannel class.
+            if (channel.getClass().getEnclosingClass() == ChannelMultiplexer.class) {
+                sharedLights.add(wrapper.getDeviceNumber());
+            }
+        }
+
+        @Override
+        public void onChannelSearchStarted() {}
+
+        @Override
+        public void onChannelSearchFinished() {
+            searchFinished.countDown();
+        }
+
+        @Override
+        public void onNoChannelsAvailable() {
+            System.out.println("No channels available");
+        }
+
+        @Override
+        public void onChannelSearchFailed(Exception e) {
+            System.out.println("Channel search failed: " + e.getMessage());
+        }
+    }
+}
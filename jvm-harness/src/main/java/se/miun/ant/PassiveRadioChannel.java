@@ -0,0 +1,115 @@
+package se.miun.ant;
+
+import com.dsi.ant.channel.ExtendedAssignment;
+import com.dsi.ant.message.ChannelId;
+import com.dsi.ant.message.ChannelState;
+import com.dsi.ant.message.ChannelType;
+import com.dsi.ant.message.EventCode;
+import com.dsi.ant.message.LibConfig;
+import com.dsi.ant.message.fromant.MessageFromAntType;
+
+/**
+ * A connected RadioChannel that the harness delivers messages to, as the ANT service delivers them
+ * to the event handler of an AntRadioChannel. The commands of the app succeed without doing
+ * anything, and the channel state follows the open(), close() and release() calls and the
+ * delivered broadcasts and CHANNEL_CLOSED events.
+ */
+class PassiveRadioChannel implements RadioChannel {
+
+    private final ChannelId channelId;
+    private volatile EventHandler eventHandler;
+    private volatile ChannelState state;
+
+    /**
+     * Constructor. The channel starts out tracking its master.
+     * @param channelId the channel ID of the master, returned by requestChannelId().
+     */
+    PassiveRadioChannel(ChannelId channelId) {
+        this.channelId = channelId;
+        state = ChannelState.TRACKING;
+    }
+
+    /**
+     * Delivers a message to the event handler on the calling thread, which stands in for an ANT
+     * binder thread.
+     * @param messageType BROADCAST_DATA or CHANNEL_EVENT.
+     * @param messageId the message ID (see AntProtocolHelper).
+     * @param content the message content.
+     */
+    void deliver(MessageFromAntType messageType, int messageId, byte[] content) {
+        if (state != ChannelState.INVALID) {
+            if (messageType == MessageFromAntType.BROADCAST_DATA) {
+                state = ChannelState.TRACKING;
+            } else if (messageType == MessageFromAntType.CHANNEL_EVENT &&
+                       AntProtocolHelper.getEventCode(content) == EventCode.CHANNEL_CLOSED) {
+                state = ChannelState.ASSIGNED;
+            }
+        }
+
+        EventHandler handler = eventHandler;
+        if (handler != null) handler.onReceiveMessage(messageType, messageId, content);
+    }
+
+    @Override
+    public void assign(ChannelType channelType) {}
+
+    @Override
+    public void assign(ChannelType channelType, ExtendedAssignment extendedAssignment) {}
+
+    @Override
+    public void setChannelId(ChannelId channelId) {}
+
+    @Override
+    public void setRfFrequency(int frequency) {}
+
+    @Override
+    public void setPeriod(int period) {}
+
+    @Override
+    public void setAdapterWideLibConfig(LibConfig libConfig) {}
+
+    @Override
+    public void open() {
+        if (state != ChannelState.INVALID) state = ChannelState.SEARCHING;
+    }
+
+    @Override
+    public void close() {
+        if (state != ChannelState.INVALID) state = ChannelState.ASSIGNED;
+    }
+
+    @Override
+    public void release() {
+        state = ChannelState.INVALID;
+        eventHandler = null;
+    }
+
+    @Override
+    public void setEventHandler(EventHandler eventHandler) {
+        this.eventHandler = eventHandler;
+    }
+
+    @Override
+    public void clearEventHandler() {
+        eventHandler = null;
+    }
+
+    @Override
+    public void setBroadcastData(byte[] data) {}
+
+    @Override
+    public void startSendAcknowledgedData(byte[] data) {}
+
+    @Override
+    public void burstTransfer(byte[] data) {}
+
+    @Override
+    public ChannelId requestChannelId() {
+        return channelId;
+    }
+
+    @Override
+    public ChannelState requestChannelState() {
+        return state;
+    }
+}
@@ -0,0 +1,209 @@
+package se.miun.ant;
+
+import com.dsi.ant.message.ChannelId;
+import com.dsi.ant.message.fromant.MessageFromAntType;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.miun.ant.ChannelConfig.InvalidChannelConfigException;
+
+/**
+ * Checks that the steady-state receive path of the app allocates nothing: broadcasts are delivered
+ * to ChannelWrappers on PassiveRadioChannels, which hand them to their channel actors, where
+ * ListItemState filters the duplicates, decodes the pages and marks the changed lights for the next
+ * list update of the ChannelList on a SimulatedUiThread.
+ *
+ * The message contents are made up front, as the ANT service makes them before the callback. After
+ * a warm up, the bytes allocated by the threads of the JVM are measured over a number of messages,
+ * in two ways:
+ * - paced: every message is delivered to the listeners before the next one is received, as when
+ *   the channels are spread over the channel period.
+ * - burst: the messages are received as fast as possible, so most of them are coalesced.
+ *
+ * The check passes if no bytes at all are allocated over the measured messages, including by the
+ * hand-off to the channel actors (see SerialExecutor.Task) and by the threads of the actor pool while
+ * they wait for work. The list updates of the UI thread are made once per frame and not per
+ * message, so the UI thread is not measured.
+ *
+ * Allocation is measured with com.sun.management.ThreadMXBean, one thread at a time, so that the
+ * measurement does not allocate either. The check fails (exit status 1) if the JVM can not measure
+ * allocation.
+ *
+ * Usage: ReceivePathAllocationCheck [messages per measurement] [channels]
+ */
+public class ReceivePathAllocationCheck {
+
+    private static final int DEVICE_TYPE = 16;
+    private static final int TRANSMISSION_TYPE = 0;
+    private static final int FREQUENCY = 57;
+    private static final int PERIOD = 8192;
+
+    // The number of different payloads that every channel receives, each repeated a few times.
+    private static final int CONTENTS = 64;
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws InterruptedException, InvalidChannelConfigException {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int channelCount = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+        ChannelConfig profile = new ChannelConfig(DEVICE_TYPE, TRANSMISSION_TYPE, FREQUENCY, PERIOD);
+        SimulatedUiThread uiThread = new SimulatedUiThread();
+        CountingListView view = new CountingListView(uiThread);
+        PassiveRadioChannel[] channels = new PassiveRadioChannel[channelCount];
+        ChannelWrapper[] wrappers = new ChannelWrapper[channelCount];
+        DeliveryCounter counter = new DeliveryCounter();
+
+        for (int i = 0; i < channelCount; i++) {
+            channels[i] = new PassiveRadioChannel(new ChannelId(i + 1, DEVICE_TYPE, TRANSMISSION_TYPE));
+            wrappers[i] = new ChannelWrapper(channels[i], 0, profile);
+            view.getChannelList().addChannelWrapper(wrappers[i]);
+            wrappers[i].addChannelDataListener(counter);
+        }
+        byte[][] contents = makeBroadcastContents(CONTENTS);
+        long uiThreadId = getThreadId(uiThread);
+
+        // Warm up, so that the JIT has compiled the path and the lazily made objects exist.
+        receive(channels, contents, counter, messages, true);
+        receive(channels, contents, counter, messages, false);
+        uiThread.awaitIdle();
+
+        // The calling thread, which receives the messages, is measured before it waits for the UI
+        // thread, since the wait allocates. The other threads are measured when they are done.
+        long[] callingThreadId = { Thread.currentThread().getId() };
+        long[] threadIds = getThreadIdsExcept(uiThreadId, callingThreadId[0]);
+        if (getAllocatedBytes(threadIds) < 0) {
+            System.out.println("Allocation can not be measured on this JVM");
+            System.exit(1);
+        }
+
+        boolean passed = true;
+        for (boolean paced : new boolean[] { true, false }) {
+            long allocatedBefore = getAllocatedBytes(threadIds) + getAllocatedBytes(callingThreadId);
+            long deliveriesBefore = counter.deliveries.get();
+            receive(channels, contents, counter, messages, paced);
+            long allocated = getAllocatedBytes(callingThreadId);
+            uiThread.awaitIdle();
+            allocated += getAllocatedBytes(threadIds) - allocatedBefore;
+            long deliveries = counter.deliveries.get() - deliveriesBefore;
+
+            double bytesPerDelivery = (double)allocated / deliveries;
+            boolean ok = allocated == 0;
+            passed &= ok;
+            System.out.println(String.format("%s: %d messages on %d channels, %d delivered to the listeners, " +
+                                             "%d B allocated, %.1f B/delivery %s",
+                                             paced ? "paced" : "burst", messages, channelCount, deliveries,
+                                             allocated, bytesPerDelivery,
+                                             ok ? "OK" : "FAILED"));
+        }
+
+        for (ChannelWrapper wrapper : wrappers) wrapper.releaseChannel();
+        uiThread.shutdown();
+        System.exit(passed ? 0 : 1);
+    }
+
+    //
+    // Delivers the messages to the channels in turn from the calling thread, which stands in for an
+    // ANT binder thread. When paced, every message is delivered to the listeners before the next
+    // one is received; the wait spins, so that it does not allocate.
+    //
+    private static void receive(PassiveRadioChannel[] channels, byte[][] contents, DeliveryCounter counter,
+                                int messages, boolean paced) {
+        for (int i = 0; i < messages; i++) {
+            long delivered = counter.deliveries.get();
+            // Every payload is received four times in a row by a channel, the rest are duplicates.
+            byte[] content = contents[(i / channels.length / 4) % contents.length];
+            channels[i % channels.length].deliver(MessageFromAntType.BROADCAST_DATA,
+                                                  AntProtocolHelper.MESSAGE_ID_BROADCAST_DATA, content);
+
+            if (paced) {
+                while (counter.deliveries.get() == delivered) {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+
+    //
+    // Makes audio update page contents with varying volume values.
+    //
+    private static byte[][] makeBroadcastContents(int count) {
+        byte[][] contents = new byte[count][];
+
+        for (int i = 0; i < count; i++) {
+            contents[i] = new byte[] {
+                0, 1, (byte)(i % 101), (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF
+            };
+        }
+
+        return contents;
+    }
+
+    private static long getThreadId(SimulatedUiThread uiThread) throws InterruptedException {
+        final AtomicLong threadId = new AtomicLong();
+        uiThread.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                threadId.set(Thread.currentThread().getId());
+            }
+        });
+        uiThread.awaitIdle();
+        return threadId.get();
+    }
+
+    private static long[] getThreadIdsExcept(long excludedThreadId, long otherExcludedThreadId) {
+        long[] threadIds = threadBean.getAllThreadIds();
+        long[] result = new long[threadIds.length - 2];
+        int count = 0;
+
+        for (long threadId : threadIds) {
+            if (threadId != excludedThreadId && threadId != otherExcludedThreadId && count < result.length) {
+                result[count++] = threadId;
+            }
+        }
+        return result;
+    }
+
+    //
+    // Returns the number of bytes allocated so far by the threads, or -1 if unknown. The threads are
+    // measured one at a time, since the method that measures several returns a new array.
+    //
+    private static long getAllocatedBytes(long[] threadIds) {
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean)threadBean;
+        if (!sunThreadBean.isThreadAllocatedMemoryEnabled()) return -1;
+
+        long total = 0;
+        for (long threadId : threadIds) {
+            long bytes = sunThreadBean.getThreadAllocatedBytes(threadId);
+            // -1 for a thread that has ended.
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+
+
+    //
+    // The last listener of every channel: counts the deliveries.
+    //
+    private static class DeliveryCounter implements ChannelWrapper.ChannelDataListener {
+        final AtomicLong deliveries = new AtomicLong();
+
+        @Override
+        public void onChannelDataReceived(long payload, ChannelWrapper channelWrapper) {
+            deliveries.incrementAndGet();
+        }
+
+        @Override
+        public void onChannelConnectionLost() {}
+
+        @Override
+        public void onChannelReconnected() {}
+
+        @Override
+        public void onChannelConnectionClosed() {}
+    }
+}
@@ -0,0 +1,667 @@
+package se.miun.ant;
+
+import android.os.SystemClock;
+
+import com.dsi.ant.channel.ExtendedAssignment;
+import com.dsi.ant.message.ChannelId;
+import com.dsi.ant.message.ChannelState;
+import com.dsi.ant.message.ChannelType;
+import com.dsi.ant.message.LibConfig;
+import com.dsi.ant.message.fromant.MessageFromAntType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SimulatedAntRadio is an in-process model of an ANT radio and of the master devices (lights)
+ * around it. It is a RadioChannelProvider, so the app's own ChannelRetriever, ChannelSearcher,
+ * ChannelWrapper and ChannelList can be load tested against hundreds of virtual lights on a plain
+ * JVM, without a phone or ANT hardware (see SimulatedNetworkLoadTest). The number of radio channels
+ * is set independently of the number of lights, just like a real radio has a few channels that the
+ * lights in range compete for.
+ *
+ * The model covers the parts of the ANT channel life cycle that the app uses:
+ *
+ * acquire (limited by the number of radio channels) -> assign (channel ID, RF frequency, period)
+ * -> open -> search -> tracking (broadcast data every period, acknowledged and burst transfers,
+ * RX_FAIL) -> RX_SEARCH_TIMEOUT / CHANNEL_CLOSED -> release.
+ *
+ * Messages are delivered to the RadioChannel.EventHandler with the same message IDs and content as
+ * the messages of the ANT Radio Service: broadcast data is the channel number followed by the
+ * payload, and a channel event is the channel number, 1 (an RF event) and the event code. All events
+ * are delivered on a single radio thread, just like the ANT Radio Service delivers the events for a
+ * channel in order. Background scanning is not simulated.
+ */
+public class SimulatedAntRadio implements RadioChannelProvider {
+
+    // ANT channel event codes (see the ANT Message Protocol and Usage document).
+    public static final int EVENT_RX_SEARCH_TIMEOUT      = 0x01;
+    public static final int EVENT_RX_FAIL                = 0x02;
+    public static final int EVENT_TRANSFER_TX_COMPLETED  = 0x05;
+    public static final int EVENT_TRANSFER_TX_FAILED     = 0x06;
+    public static final int EVENT_CHANNEL_CLOSED         = 0x07;
+    public static final int EVENT_TRANSFER_TX_START      = 0x0A;
+
+    // The ID of the message that a channel event responds to; 1 for an RF event.
+    private static final int RF_EVENT = 0x01;
+
+    // The number of channel period units per second (the period is expressed in units of 1/32768 s).
+    private static final int PERIOD_UNITS_PER_SECOND = 32768;
+
+    // A tracking channel goes back to search and is closed after this many RX_FAILs in a row.
+    private static final int RX_FAILS_BEFORE_CLOSE = 20;
+
+    private final int numChannels;
+    private final Random random;
+    private final ScheduledExecutorService radioThread;
+
+    private final List<SimulatedMaster> masters;
+    private final List<SimulatedChannel> acquiredChannels;
+
+    private volatile double rxFailProbability;
+    private volatile int searchTimeoutMs;
+    private volatile int maxSearchLockMs;
+
+    /**
+     * Constructor.
+     * @param numChannels the number of channels of the simulated radio (a real radio usually has 8).
+     * @param seed the seed of the random generator, so that a simulation can be repeated.
+     */
+    public SimulatedAntRadio(int numChannels, long seed) {
+        this.numChannels = numChannels;
+        random = new Random(seed);
+
+        radioThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SimulatedAntRadio");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        masters = new CopyOnWriteArrayList<SimulatedMaster>();
+        acquiredChannels = new ArrayList<SimulatedChannel>();
+
+        rxFailProbability = 0.0;
+        searchTimeoutMs = 10000;
+        maxSearchLockMs = 2500;
+    }
+
+    /**
+     * Adds a master device (a light) that sends audio update pages with its current volume
+     * every channel period.
+     * @param deviceNumber the device number of the master (1 - 65535).
+     * @param deviceType the device type of the master.
+     * @param transmissionType the transmission type of the master.
+     * @param frequency the RF frequency offset (from 2400 MHz) of the master.
+     * @param period the channel period of the master (in units of 1/32768 s).
+     * @return the added master.
+     */
+    public SimulatedMaster addMaster(int deviceNumber, int deviceType, int transmissionType,
+                                     int frequency, int period) {
+        SimulatedMaster master = new SimulatedMaster(deviceNumber, deviceType, transmissionType,
+                                                     frequency, period);
+        masters.add(master);
+        return master;
+    }
+
+    /**
+     * Sets the probability that a message from a master (or a transfer to it) is lost, which
+     * results in an RX_FAIL (or TRANSFER_TX_FAILED) event.
+     * @param probability the probability, between 0 and 1.
+     */
+    public void setRxFailProbability(double probability) {
+        rxFailProbability = probability;
+    }
+
+    /**
+     * Sets the time after which a searching channel that has not found a master times out.
+     * @param timeoutMs the search timeout in milliseconds.
+     */
+    public void setSearchTimeoutMs(int timeoutMs) {
+        searchTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Sets the longest time it takes a searching channel to lock on to a master that is in range.
+     * The actual time is random, between one channel period and this value.
+     * @param lockMs the longest lock on time in milliseconds.
+     */
+    public void setMaxSearchLockMs(int lockMs) {
+        maxSearchLockMs = lockMs;
+    }
+
+    /**
+     * Returns the number of channels that can still be acquired.
+     * @return the number of free channels.
+     */
+    @Override
+    public int getNumChannelsAvailable() {
+        synchronized (acquiredChannels) {
+            return numChannels - acquiredChannels.size();
+        }
+    }
+
+    /**
+     * Acquires a channel from the radio.
+     * @param backgroundScanning true if the channel must support background scanning, which the
+     *                           simulated radio does not.
+     * @return an unassigned channel.
+     * @throws NoChannelAvailableException if all channels are in use, or background scanning was
+     *                                     asked for.
+     */
+    @Override
+    public RadioChannel acquireChannel(boolean backgroundScanning) throws NoChannelAvailableException {
+        if (backgroundScanning) {
+            throw new NoChannelAvailableException("Background scanning is not simulated", false, null);
+        }
+
+        synchronized (acquiredChannels) {
+            if (acquiredChannels.size() >= numChannels) {
+                throw new NoChannelAvailableException("All channels in use", true, null);
+            }
+            SimulatedChannel channel = new SimulatedChannel(nextChannelNumber());
+            acquiredChannels.add(channel);
+            return channel;
+        }
+    }
+
+    /**
+     * Stops the radio thread. No events are delivered after this call.
+     */
+    public void shutdown() {
+        radioThread.shutdownNow();
+    }
+
+    //
+    // Returns the lowest channel number that is not in use. Called with acquiredChannels locked.
+    //
+    private int nextChannelNumber() {
+        for (int number = 0; ; number++) {
+            boolean inUse = false;
+            for (SimulatedChannel channel : acquiredChannels) {
+                if (channel.channelNumber == number) inUse = true;
+            }
+            if (!inUse) return number;
+        }
+    }
+
+    private static long toMilliseconds(int period) {
+        return Math.max(1, (period * 1000L) / PERIOD_UNITS_PER_SECOND);
+    }
+
+    //
+    // Called on the radio thread only, so the Random does not need to be shared between threads.
+    //
+    private boolean isMessageLost() {
+        return random.nextDouble() < rxFailProbability;
+    }
+
+    private long randomSearchLockMs(long periodMs) {
+        long max = Math.max(periodMs, maxSearchLockMs);
+        return periodMs + (long)(random.nextDouble() * (max - periodMs));
+    }
+
+
+    /**
+     * A simulated master device, which is the part of a light that the app talks to. A master sends
+     * an audio update page with its volume (the light intensity) every period, and sets its volume
+     * when it receives an intensity command (see AntProtocolHelper.makeIntensityPayload()).
+     */
+    public static class SimulatedMaster {
+
+        private final int deviceNumber;
+        private final int deviceType;
+        private final int transmissionType;
+        private final int frequency;
+        private final int period;
+
+        private volatile int volume;
+        private volatile boolean online;
+
+        // Receives the pages decoded from the acknowledged data sent to the master.
+        private final DataPageCodecs.DataPageHandler commandHandler = new DataPageCodecs.DataPageHandler() {
+
+            @Override
+            public void onAudioCommand(int commandNumber, int volume) {
+                if (commandNumber == AntProtocolHelper.INTENSITY_COMMAND_NUMBER) {
+                    SimulatedMaster.this.volume = volume;
+                }
+            }
+        };
+
+        // The slave channel that is tracking this master, if any.
+        private SimulatedChannel trackedBy;
+
+        private SimulatedMaster(int deviceNumber, int deviceType, int transmissionType,
+                                int frequency, int period) {
+            this.deviceNumber = deviceNumber;
+            this.deviceType = deviceType;
+            this.transmissionType = transmissionType;
+            this.frequency = frequency;
+            this.period = period;
+            volume = 0;
+            online = true;
+        }
+
+        public int getDeviceNumber() { return deviceNumber; }
+        public int getVolume() { return volume; }
+
+        /**
+         * Sets the volume, as if it was changed on the light itself.
+         * @param volume the volume (0 - 100).
+         */
+        public void setVolume(int volume) {
+            this.volume = volume;
+        }
+
+        /**
+         * Turns the master on or off. While off, the channel tracking it receives RX_FAIL events
+         * and is eventually closed.
+         * @param online true to turn the master on, false to turn it off.
+         */
+        public void setOnline(boolean online) {
+            this.online = online;
+        }
+
+        public boolean isOnline() {
+            return online;
+        }
+
+        /**
+         * Writes the audio update page that the master currently broadcasts.
+         * @param buffer the buffer to write the payload to.
+         * @param offset the index in the buffer of the first payload byte.
+         */
+        public void writeAudioUpdatePayload(byte[] buffer, int offset) {
+            buffer[offset] = (byte)DataPageCodecs.PAGE_AUDIO_UPDATE;
+            buffer[offset + 1] = (byte)volume;
+            for (int i = 2; i < AntProtocolHelper.PAYLOAD_LENGTH; i++) {
+                buffer[offset + i] = (byte)0xFF;
+            }
+        }
+
+        private ChannelId getChannelId() {
+            return new ChannelId(deviceNumber, deviceType, transmissionType);
+        }
+
+        private void onAcknowledgedData(byte[] payload) {
+            DataPageCodecs.decode(AntProtocolHelper.packPayload(payload, 0), commandHandler);
+        }
+
+        private boolean matches(SimulatedChannel channel) {
+            return online &&
+                   frequency == channel.frequency &&
+                   period == channel.period &&
+                   deviceType == channel.deviceType &&
+                   transmissionType == channel.transmissionType &&
+                   (channel.deviceNumber == 0 || deviceNumber == channel.deviceNumber);
+        }
+    }
+
+
+    //
+    // A simulated slave channel. The methods fail in the same channel states as the AntChannel
+    // methods with the same names.
+    //
+    private class SimulatedChannel implements RadioChannel {
+
+        private static final int STATE_UNASSIGNED = 0;
+        private static final int STATE_ASSIGNED   = 1;
+        private static final int STATE_SEARCHING  = 2;
+        private static final int STATE_TRACKING   = 3;
+        private static final int STATE_RELEASED   = 4;
+
+        private final int channelNumber;
+
+        private int state;
+        private int deviceNumber;
+        private int deviceType;
+        private int transmissionType;
+        private int frequency;
+        private int period;
+
+        private volatile EventHandler eventHandler;
+
+        private SimulatedMaster master;
+        private int rxFailsInRow;
+        // The data of the transfer that is made in the next period, or null.
+        private byte[] pendingTransfer;
+        private boolean pendingTransferIsBurst;
+        private ScheduledFuture<?> scheduledTask;
+
+        private SimulatedChannel(int channelNumber) {
+            this.channelNumber = channelNumber;
+            state = STATE_UNASSIGNED;
+            period = 8192;
+            frequency = 66;
+        }
+
+        @Override
+        public synchronized void assign(ChannelType channelType) throws RadioChannelException {
+            checkState(STATE_UNASSIGNED, "assign");
+            state = STATE_ASSIGNED;
+        }
+
+        @Override
+        public void assign(ChannelType channelType, ExtendedAssignment extendedAssignment)
+                throws RadioChannelException {
+            throw new RadioChannelException("assign: extended assignment is not simulated");
+        }
+
+        @Override
+        public synchronized void setChannelId(ChannelId channelId) throws RadioChannelException {
+            checkState(STATE_ASSIGNED, "setChannelId");
+            deviceNumber = channelId.getDeviceNumber();
+            deviceType = channelId.getDeviceType();
+            transmissionType = channelId.getTransmissionType();
+        }
+
+        @Override
+        public synchronized void setRfFrequency(int frequency) throws RadioChannelException {
+            checkState(STATE_ASSIGNED, "setRfFrequency");
+            this.frequency = frequency;
+        }
+
+        @Override
+        public synchronized void setPeriod(int period) throws RadioChannelException {
+            checkState(STATE_ASSIGNED, "setPeriod");
+            this.period = period;
+        }
+
+        @Override
+        public synchronized void setAdapterWideLibConfig(LibConfig libConfig) throws RadioChannelException {
+            checkNotReleased("setAdapterWideLibConfig");
+        }
+
+        @Override
+        public synchronized void setEventHandler(EventHandler eventHandler) throws RadioChannelException {
+            checkNotReleased("setEventHandler");
+            this.eventHandler = eventHandler;
+        }
+
+        @Override
+        public void clearEventHandler() {
+            eventHandler = null;
+        }
+
+        /**
+         * Opens the channel, which starts a search for a matching master.
+         * @throws RadioChannelException if the channel is not assigned.
+         */
+        @Override
+        public synchronized void open() throws RadioChannelException {
+            checkState(STATE_ASSIGNED, "open");
+            state = STATE_SEARCHING;
+            rxFailsInRow = 0;
+
+            scheduledTask = radioThread.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    search(SystemClock.uptimeMillis() + searchTimeoutMs);
+                }
+            }, 0, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Closes the channel. A CHANNEL_CLOSED event is sent when the channel has closed.
+         * @throws RadioChannelException if the channel is not open.
+         */
+        @Override
+        public synchronized void close() throws RadioChannelException {
+            if (state != STATE_SEARCHING && state != STATE_TRACKING) {
+                throw new RadioChannelException("close: channel is not open");
+            }
+            closeChannel();
+        }
+
+        @Override
+        public synchronized void release() {
+            if (state == STATE_RELEASED) return;
+
+            cancelScheduledTask();
+            untrackMaster();
+            eventHandler = null;
+            state = STATE_RELEASED;
+
+            synchronized (acquiredChannels) {
+                acquiredChannels.remove(this);
+            }
+        }
+
+        /**
+         * The broadcast data of a slave channel is only sent back to the master as a reply, which
+         * the simulated masters ignore.
+         * @param data the 8 byte payload.
+         */
+        @Override
+        public synchronized void setBroadcastData(byte[] data) throws RadioChannelException {
+            if (data == null) throw new NullPointerException("data must not be null");
+            checkNotReleased("setBroadcastData");
+        }
+
+        /**
+         * Starts an acknowledged transfer to the master. The transfer is made in the next channel
+         * period and results in a TRANSFER_TX_COMPLETED or TRANSFER_TX_FAILED event.
+         * @param data the 8 byte payload.
+         * @throws RadioChannelException if the channel is not tracking a master or if a transfer is
+         *                               already in progress.
+         */
+        @Override
+        public synchronized void startSendAcknowledgedData(byte[] data) throws RadioChannelException {
+            startTransfer(data, false, "startSendAcknowledgedData");
+        }
+
+        /**
+         * Starts a burst transfer to the master. A TRANSFER_TX_START event is sent right away, and
+         * the whole burst is made in the next channel period, which results in a
+         * TRANSFER_TX_COMPLETED or TRANSFER_TX_FAILED event.
+         * @param data the payload.
+         * @throws RadioChannelException if the channel is not tracking a master or if a transfer is
+         *                               already in progress.
+         */
+        @Override
+        public synchronized void burstTransfer(byte[] data) throws RadioChannelException {
+            startTransfer(data, true, "burstTransfer");
+
+            radioThread.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    deliverEvent(EVENT_TRANSFER_TX_START);
+                }
+            });
+        }
+
+        @Override
+        public synchronized ChannelId requestChannelId() throws RadioChannelException {
+            checkNotReleased("requestChannelId");
+            if (master != null && state == STATE_TRACKING) return master.getChannelId();
+            return new ChannelId(deviceNumber, deviceType, transmissionType);
+        }
+
+        @Override
+        public synchronized ChannelState requestChannelState() throws RadioChannelException {
+            switch (state) {
+            case STATE_UNASSIGNED: return ChannelState.UNASSIGNED;
+            case STATE_ASSIGNED:   return ChannelState.ASSIGNED;
+            case STATE_SEARCHING:  return ChannelState.SEARCHING;
+            case STATE_TRACKING:   return ChannelState.TRACKING;
+            default:               throw new RadioChannelException("requestChannelState: channel released");
+            }
+        }
+
+        private void startTransfer(byte[] data, boolean isBurst, String command)
+                throws RadioChannelException {
+            if (data == null) throw new NullPointerException("data must not be null");
+
+            if (state != STATE_TRACKING) {
+                throw new RadioChannelException(command + ": channel is not tracking");
+            }
+            if (pendingTransfer != null) {
+                throw new RadioChannelException(command + ": transfer in progress");
+            }
+            pendingTransfer = data.clone();
+            pendingTransferIsBurst = isBurst;
+        }
+
+        //
+        // Runs on the radio thread while the channel is searching. Tries to find a master that
+        // matches the channel ID, frequency and period, and otherwise checks again in one period
+        // until the search times out.
+        //
+        private synchronized void search(final long deadline) {
+            if (state != STATE_SEARCHING) return;
+
+            SimulatedMaster found = trackUntrackedMaster();
+            long periodMs = toMilliseconds(period);
+
+            if (found != null) {
+                master = found;
+                scheduleTracking(randomSearchLockMs(periodMs));
+            } else if (SystemClock.uptimeMillis() >= deadline) {
+                deliverEvent(EVENT_RX_SEARCH_TIMEOUT);
+                closeChannel();
+            } else {
+                scheduledTask = radioThread.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        search(deadline);
+                    }
+                }, periodMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private SimulatedMaster trackUntrackedMaster() {
+            for (SimulatedMaster candidate : masters) {
+                synchronized (SimulatedAntRadio.this) {
+                    if (candidate.trackedBy == null && candidate.matches(this)) {
+                        candidate.trackedBy = this;
+                        return candidate;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void scheduleTracking(long lockDelayMs) {
+            scheduledTask = radioThread.scheduleAtFixedRate(new Runnable() {
+
+                @Override
+                public void run() {
+                    track();
+                }
+            }, lockDelayMs, toMilliseconds(period), TimeUnit.MILLISECONDS);
+        }
+
+        //
+        // Runs on the radio thread once every channel period while the channel is tracking.
+        //
+        private synchronized void track() {
+            if (state == STATE_SEARCHING) state = STATE_TRACKING;
+            if (state != STATE_TRACKING) return;
+
+            if (!master.isOnline() || isMessageLost()) {
+                rxFailsInRow += 1;
+                deliverEvent(EVENT_RX_FAIL);
+                failPendingTransfer();
+
+                if (rxFailsInRow >= RX_FAILS_BEFORE_CLOSE) closeChannel();
+                return;
+            }
+
+            // A transfer started during the previous period is made before the broadcast of
+            // this period is delivered.
+            rxFailsInRow = 0;
+            completePendingTransfer();
+            deliverBroadcast();
+        }
+
+        private void completePendingTransfer() {
+            if (pendingTransfer == null) return;
+
+            if (isMessageLost()) {
+                failPendingTransfer();
+            } else {
+                if (!pendingTransferIsBurst) master.onAcknowledgedData(pendingTransfer);
+                pendingTransfer = null;
+                deliverEvent(EVENT_TRANSFER_TX_COMPLETED);
+            }
+        }
+
+        private void failPendingTransfer() {
+            if (pendingTransfer == null) return;
+
+            pendingTransfer = null;
+            deliverEvent(EVENT_TRANSFER_TX_FAILED);
+        }
+
+        private void closeChannel() {
+            cancelScheduledTask();
+            untrackMaster();
+            failPendingTransfer();
+            state = STATE_ASSIGNED;
+            deliverEvent(EVENT_CHANNEL_CLOSED);
+        }
+
+        private void untrackMaster() {
+            if (master != null) {
+                synchronized (SimulatedAntRadio.this) {
+                    master.trackedBy = null;
+                }
+                master = null;
+            }
+        }
+
+        private void cancelScheduledTask() {
+            if (scheduledTask != null) {
+                scheduledTask.cancel(false);
+                scheduledTask = null;
+            }
+        }
+
+        private void checkState(int expected, String command) throws RadioChannelException {
+            if (state != expected) {
+                throw new RadioChannelException(command + ": invalid channel state " + state);
+            }
+        }
+
+        private void checkNotReleased(String command) throws RadioChannelException {
+            if (state == STATE_RELEASED) {
+                throw new RadioChannelException(command + ": channel released");
+            }
+        }
+
+        // A new content array is delivered with every message, as the ANT Radio Service does.
+        private void deliverBroadcast() {
+            EventHandler handler = eventHandler;
+            if (handler == null) return;
+
+            byte[] content = new byte[1 + AntProtocolHelper.PAYLOAD_LENGTH];
+            content[0] = (byte)channelNumber;
+            master.writeAudioUpdatePayload(content, 1);
+            handler.onReceiveMessage(MessageFromAntType.BROADCAST_DATA,
+                                     AntProtocolHelper.MESSAGE_ID_BROADCAST_DATA, content);
+        }
+
+        private void deliverEvent(int eventCode) {
+            EventHandler handler = eventHandler;
+            if (handler == null) return;
+
+            byte[] content = new byte[] { (byte)channelNumber, (byte)RF_EVENT, (byte)eventCode };
+            handler.onReceiveMessage(MessageFromAntType.CHANNEL_EVENT,
+                                     AntProtocolHelper.MESSAGE_ID_CHANNEL_EVENT, content);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package se.miun.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.miun.ant.ChannelConfig.InvalidChannelConfigException;
+import se.miun.ant.SimulatedAntRadio.SimulatedMaster;
+
+/**
+ * A load test that runs the app's own channel classes on a plain JVM against a SimulatedAntRadio
+ * with many virtual lights and a few radio channels. The lights are found by a ChannelSearcher
+ * that gets its channels from a ChannelRetriever, every connected channel is wrapped in a
+ * ChannelWrapper and added to a ChannelList, exactly as LightControllerActivity does, and the list
+ * is "shown" by a view that counts the updates, on a single thread that stands in for the UI thread.
+ *
+ * 1) Search: a channel search is run and timed until it has finished.
+ * 2) Control: a simulated user drags the sliders of random connected lights (through
+ *    ChannelWrapper.sendIntensity(), so every send goes through IntensityCommandQueue), and someone
+ *    changes a light on the fixture now and then.
+ * 3) Churn: every few seconds the user closes the channel of one light and starts a new search,
+ *    which has only the freed channel to work with.
+ *
+ * The metrics of every channel (see ChannelMetrics) are printed at the end.
+ *
+ * Usage: SimulatedNetworkLoadTest [lights] [radio channels] [seconds] [rx fail probability] [period]
+ */
+public class SimulatedNetworkLoadTest {
+
+    private static final int DEVICE_TYPE = 16;
+    private static final int TRANSMISSION_TYPE = 0;
+    private static final int FREQUENCY = 57;
+
+    // The time between two simulated slider changes for one light while it is being dragged.
+    private static final int SLIDER_TICK_MS = 20;
+    // The number of lights that are dragged at the same time.
+    private static final int LIGHTS_DRAGGED = 4;
+    // The time between two lights being closed and searched for again.
+    private static final int CHURN_INTERVAL_MS = 3000;
+    // The longest time a search is waited for.
+    private static final int SEARCH_WAIT_MS = 20000;
+
+    public static void main(String[] args) throws InterruptedException, IOException,
+                                                  InvalidChannelConfigException {
+        int lights = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int radioChannels = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        double rxFailProbability = args.length > 3 ? Double.parseDouble(args[3]) : 0.02;
+        int period = args.length > 4 ? Integer.parseInt(args[4]) : 8192;
+
+        SimulatedAntRadio radio = new SimulatedAntRadio(radioChannels, 42);
+        radio.setRxFailProbability(rxFailProbability);
+
+        List<SimulatedMaster> masters = new ArrayList<SimulatedMaster>();
+        for (int i = 0; i < lights; i++) {
+            masters.add(radio.addMaster(i + 1, DEVICE_TYPE, TRANSMISSION_TYPE, FREQUENCY, period));
+        }
+
+        System.out.println("Simulating " + lights + " lights on " + radioChannels + " radio channels, " +
+                           "period " + period + ", RX fail probability " + rxFailProbability);
+
+        ChannelConfig profile = new ChannelConfig(DEVICE_TYPE, TRANSMISSION_TYPE, FREQUENCY, period);
+        ChannelConfigStore configStore = new ChannelConfigStore(Collections.singletonList(profile));
+
+        File cacheFile = File.createTempFile("paired_devices", ".bin");
+        cacheFile.deleteOnExit();
+
+        SimulatedUiThread uiThread = new SimulatedUiThread();
+        CountingListView view = new CountingListView(uiThread);
+        ChannelList channelList = view.getChannelList();
+
+        ChannelMetricsRegistry metricsRegistry = new ChannelMetricsRegistry();
+        SearchListener searchListener = new SearchListener(channelList, new PairedDeviceCache(cacheFile),
+                                                           metricsRegistry);
+        ChannelRetriever channelRetriever = new ChannelRetriever(radio, configStore);
+        ChannelSearcher channelSearcher = new ChannelSearcher(channelRetriever, configStore,
+                                                              searchListener.pairedDeviceCache,
+                                                              channelList,
+                                                              new ChannelMultiplexer(channelRetriever),
+                                                              searchListener);
+
+        runSearch(channelSearcher, searchListener, "Search");
+        runControlAndChurn(channelList, channelSearcher, searchListener, masters, view, seconds);
+
+        channelList.closeChannels();
+        radio.shutdown();
+        uiThread.shutdown();
+
+        System.out.println();
+        System.out.print(metricsRegistry.dumpText());
+    }
+
+    //
+    // Starts a search and waits for it to finish.
+    //
+    private static void runSearch(ChannelSearcher channelSearcher, SearchListener searchListener,
+                                  String name) throws InterruptedException {
+        CountDownLatch finished = searchListener.prepareSearch();
+        int connectedBefore = searchListener.connected.get();
+        long start = System.nanoTime();
+
+        channelSearcher.startChannelSearch();
+        if (!finished.await(SEARCH_WAIT_MS, TimeUnit.MILLISECONDS)) {
+            System.out.println(name + ": did not finish within " + SEARCH_WAIT_MS + " ms");
+            return;
+        }
+
+        System.out.println(name + ": " + (searchListener.connected.get() - connectedBefore) +
+                           " channels connected, first after " + toMs(searchListener.firstConnectNs - start) +
+                           " ms, finished after " + toMs(System.nanoTime() - start) + " ms");
+    }
+
+    //
+    // Drags random sliders and changes random master volumes for the given time, and closes a light
+    // and searches again every CHURN_INTERVAL_MS.
+    //
+    private static void runControlAndChurn(final ChannelList channelList, ChannelSearcher channelSearcher,
+                                           SearchListener searchListener, final List<SimulatedMaster> masters,
+                                           CountingListView view, int seconds) throws InterruptedException {
+        final ScheduledExecutorService user = Executors.newSingleThreadScheduledExecutor();
+        final Random random = new Random(7);
+        final AtomicLong sliderChanges = new AtomicLong();
+
+        view.reset();
+
+        user.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                List<ListItemState> states = channelList.getListItemStates();
+                if (states.isEmpty()) return;
+
+                for (int i = 0; i < LIGHTS_DRAGGED; i++) {
+                    states.get(random.nextInt(states.size())).channelWrapper.sendIntensity(random.nextInt(101));
+                    sliderChanges.incrementAndGet();
+                }
+                // Someone changes a light directly on the fixture now and then.
+                masters.get(random.nextInt(masters.size())).setVolume(random.nextInt(101));
+            }
+        }, 0, SLIDER_TICK_MS, TimeUnit.MILLISECONDS);
+
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        int churn = 0;
+
+        while (System.currentTimeMillis() + CHURN_INTERVAL_MS < end) {
+            Thread.sleep(CHURN_INTERVAL_MS);
+
+            List<ListItemState> states = channelList.getListItemStates();
+            if (!states.isEmpty()) {
+                states.get(churn % states.size()).channelWrapper.releaseChannel();
+                channelList.validateChannels();
+            }
+            runSearch(channelSearcher, searchListener, "Search after close " + (++churn));
+        }
+
+        Thread.sleep(Math.max(0, end - System.currentTimeMillis()));
+        user.shutdownNow();
+
+        System.out.println("Control: " + sliderChanges.get() + " slider changes in " + seconds + " s");
+        System.out.println("UI: " + view.snapshots.get() + " list updates, " +
+                           view.intensityUpdates.get() / seconds + " intensity updates/s, " +
+                           view.rowsUpdated.get() / seconds + " rows updated/s");
+    }
+
+    private static long toMs(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1000000L;
+    }
+
+
+    //
+    // Does what LightControllerActivity does with the channels that a search connects, and times
+    // the searches.
+    //
+    private static class SearchListener implements ChannelSearcher.OnChannelSearchStatusListener {
+        final ChannelList channelList;
+        final PairedDeviceCache pairedDeviceCache;
+        final ChannelMetricsRegistry metricsRegistry;
+
+        final AtomicInteger connected = new AtomicInteger();
+        volatile long firstConnectNs;
+        volatile CountDownLatch searchFinished;
+
+        SearchListener(ChannelList channelList, PairedDeviceCache pairedDeviceCache,
+                       ChannelMetricsRegistry metricsRegistry) {
+            this.channelList = channelList;
+            this.pairedDeviceCache = pairedDeviceCache;
+            this.metricsRegistry = metricsRegistry;
+        }
+
+        CountDownLatch prepareSearch() {
+            firstConnectNs = -1;
+            searchFinished = new CountDownLatch(1);
+            return searchFinished;
+        }
+
+        @Override
+        public void onChannelSearcherInitialized() {}
+
+        @Override
+        public void onChannelConnected(RadioChannel channel, int profileNumber, ChannelConfig profile) {
+            if (firstConnectNs == -1) firstConnectNs = System.nanoTime();
+            connected.incrementAndGet();
+
+            ChannelWrapper wrapper = new ChannelWrapper(channel, profileNumber, profile);
+            if (!channelList.addChannelWrapper(wrapper)) return;
+            pairedDeviceCache.addDevice(wrapper.getDeviceNumber(), wrapper.getTransmissionType(), profileNumber);
+
+            ChannelMetrics metrics = wrapper.getMetrics();
+            metrics.setLabel("Light " + wrapper.getDeviceNumber());
+            metricsRegistry.register(metrics);
+        }
+
+        @Override
+        public void onChannelSearchStarted() {}
+
+        @Override
+        public void onChannelSearchFinished() {
+            searchFinished.countDown();
+        }
+
+        @Override
+        public void onNoChannelsAvailable() {
+            System.out.println("No channels available");
+        }
+
+        @Override
+        public void onChannelSearchFailed(Exception e) {
+            System.out.println("Channel search failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package se.miun.ant;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single thread that stands in for the UI thread of the app (see
+ * ChannelExecutors.getMainThreadExecutor()), for a ChannelList that runs on a plain JVM.
+ *
+ * Like the message queue of an Android Looper, the posted tasks are kept in a list ordered by the
+ * time they are due, and the list nodes are recycled, so posting a task does not allocate once a
+ * few nodes exist (see ReceivePathAllocationCheck).
+ */
+class SimulatedUiThread implements ChannelExecutors.DelayedExecutor {
+
+    private final Object lock = new Object();
+    private final Thread thread;
+
+    // The posted tasks, in the order they are due, and the recycled nodes. Guarded by lock.
+    private Message queue;
+    private Message pool;
+    private boolean stopped;
+
+    public SimulatedUiThread() {
+        thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "SimulatedUiThread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        executeDelayed(task, 0);
+    }
+
+    @Override
+    public void executeDelayed(Runnable task, long delayMs) {
+        long when = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+
+        synchronized (lock) {
+            if (stopped) return;
+
+            Message message = pool;
+            if (message != null) {
+                pool = message.next;
+            } else {
+                message = new Message();
+            }
+            message.task = task;
+            message.when = when;
+
+            // After the tasks that are due at the same time or earlier, as Handler does.
+            Message previous = null;
+            Message next = queue;
+            while (next != null && next.when - when <= 0) {
+                previous = next;
+                next = next.next;
+            }
+            message.next = next;
+            if (previous == null) {
+                queue = message;
+                lock.notify();
+            } else {
+                previous.next = message;
+            }
+        }
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        synchronized (lock) {
+            Message previous = null;
+            Message message = queue;
+
+            while (message != null) {
+                Message next = message.next;
+                if (message.task == task) {
+                    if (previous == null) {
+                        queue = next;
+                    } else {
+                        previous.next = next;
+                    }
+                    recycle(message);
+                } else {
+                    previous = message;
+                }
+                message = next;
+            }
+        }
+    }
+
+    /**
+     * Waits until the tasks that have been posted so far, and not delayed, have run.
+     * @throws InterruptedException if the wait was interrupted.
+     */
+    public void awaitIdle() throws InterruptedException {
+        final CountDownLatch idle = new CountDownLatch(1);
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+                idle.countDown();
+            }
+        });
+        idle.await();
+    }
+
+    /**
+     * Stops the thread. The tasks that have not run are dropped.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            stopped = true;
+            queue = null;
+            lock.notify();
+        }
+    }
+
+    //
+    // Runs the tasks as they become due, until the thread is stopped.
+    //
+    private void loop() {
+        while (true) {
+            Runnable task;
+
+            synchronized (lock) {
+                while (true) {
+                    if (stopped) return;
+                    if (queue != null) {
+                        long waitNanos = queue.when - System.nanoTime();
+                        if (waitNanos <= 0) break;
+                        waitQuietly(TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+                    } else {
+                        waitQuietly(0);
+                    }
+                }
+
+                Message message = queue;
+                queue = message.next;
+                task = message.task;
+                recycle(message);
+            }
+
+            task.run();
+        }
+    }
+
+    //
+    // Called with the lock held.
+    //
+    private void waitQuietly(long timeoutMs) {
+        try {
+            lock.wait(timeoutMs);
+        } catch (InterruptedException e) {
+            stopped = true;
+        }
+    }
+
+    //
+    // Called with the lock held.
+    //
+    private void recycle(Message message) {
+        message.task = null;
+        message.next = pool;
+        pool = message;
+    }
+
+    private static class Message {
+        Runnable task;
+        long when;
+        Message next;
+    }
+}
@@ -1,18 +1,44 @@
 package se.miun.ant;
 
+import com.dsi.ant.message.EventCode;
+
 /**
- * A class that knows how to decode and encode the proper ANT messages.
+ * A class that knows how to decode and encode the proper ANT messages. The data pages in the
+ * payloads are decoded by DataPageCodecs.
  */
 public class AntProtocolHelper {
 
-    /** Thrown if the master has set the volume to VOLUME_VALUE_UNKNOWN */
-    public static class VolumeValueUnknownException extends Exception {}
+    /** The length in bytes of the data payload of an ANT message. */
+    public static final int PAYLOAD_LENGTH = 8;
+
+    /** The ANT message ID of a channel event (or channel response) message. */
+    public static final int MESSAGE_ID_CHANNEL_EVENT = 0x40;
+
+    /** The ANT message ID of a broadcast data message. */
+    public static final int MESSAGE_ID_BROADCAST_DATA = 0x4E;
+
+    // The number of channel period units per second (the period is expressed in units of 1/32768 s).
+    private static final int PERIOD_UNITS_PER_SECOND = 32768;
+
+    /** The custom audio command number (see makeIntensityPayload()) that sets the intensity. */
+    public static final int INTENSITY_COMMAND_NUMBER = 99;
 
-    private static final int AUDIO_COMMAND_DATA_PAGE = 16;
-    private static final int INTENSITY_COMMAND_NUMBER = 99;
+    // The flag byte that follows the payload of a data message with extended data, and the flag that
+    // marks that the extended data contains the channel ID of the sender (see LibConfig).
+    private static final int EXTENDED_FLAG_OFFSET = PAYLOAD_LENGTH;
+    private static final int EXTENDED_FLAG_CHANNEL_ID = 0x80;
+    private static final int EXTENDED_CHANNEL_ID_LENGTH = 4;
 
-    private static final int AUDIO_UPDATE_DATA_PAGE = 1;
-    private static final int VOLUME_VALUE_UNKNOWN = 255;
+    /** Returned by getExtendedChannelIdKey() when a message has no channel ID. */
+    public static final long NO_CHANNEL_ID = -1;
+
+    // The index of the event code in the content of a channel event message. It follows the channel
+    // number and the ID of the message that the event responds to (1 for an RF event).
+    private static final int EVENT_CODE_OFFSET = 2;
+
+    // The event codes, indexed by raw value, so that looking up the code of an event does not
+    // allocate (EventCode.values() copies the array).
+    private static final EventCode[] EVENT_CODES = makeEventCodeTable();
 
     /**
      * Makes the 8 byte sized byte array that is used for the data portion when sending an ANT
@@ -24,7 +50,7 @@ public class AntProtocolHelper {
     public static byte[] makeIntensityPayload(int toVolumePercent) {
 
         return new byte[] {
-            AUDIO_COMMAND_DATA_PAGE,
+            DataPageCodecs.PAGE_AUDIO_COMMAND,
             (byte)0xFF,
             (byte)0xFF,
             (byte)0xFF,
@@ -36,27 +62,103 @@ public class AntProtocolHelper {
     }
 
     /**
-     * Checks if the parameter is an ANT+ audio update data payload.
-     * @param payload the byte array to check.
-     * @return true or false.
+     * Converts an ANT channel period to milliseconds, rounded up.
+     * @param channelPeriod the channel period in units of 1/32768 s.
+     * @return the channel period in milliseconds.
+     */
+    public static long periodToMilliseconds(int channelPeriod) {
+        return (channelPeriod * 1000L + PERIOD_UNITS_PER_SECOND - 1) / PERIOD_UNITS_PER_SECOND;
+    }
+
+    /**
+     * Packs the 8 byte data payload of an ANT message into a long, without copying the payload
+     * into a new array. Byte i of the payload is stored in bits 8*i to 8*i+7 of the long, so the
+     * data page number ends up in the lowest byte. Two payloads are equal if and only if their
+     * packed values are equal.
+     * @param buffer the byte array that contains the payload.
+     * @param offset the index in the buffer of the first payload byte.
+     * @return the packed payload.
+     */
+    public static long packPayload(byte[] buffer, int offset) {
+        long payload = 0;
+
+        for (int i = PAYLOAD_LENGTH - 1; i >= 0; i--) {
+            payload = (payload << 8) | (buffer[offset + i] & 0xFF);
+        }
+
+        return payload;
+    }
+
+    /**
+     * Returns the channel ID of the sender of a data message received with extended data (for
+     * example on a background scanning channel), read straight from the message content. The
+     * extended data follows the payload: a flag byte, and if the channel ID flag is set the device
+     * number (two bytes, least significant first), the device type and the transmission type.
+     * @param buffer the byte array that contains the message.
+     * @param offset the index in the buffer of the first payload byte.
+     * @return the key of the sender (see ChannelStateStore.makeKey()), or NO_CHANNEL_ID if the
+     *         message has no channel ID.
      */
-    public static boolean isAudioUpdatePayload(byte[] payload) {
-        return (payload != null && payload[0] == AUDIO_UPDATE_DATA_PAGE);
+    public static long getExtendedChannelIdKey(byte[] buffer, int offset) {
+        int flagIndex = offset + EXTENDED_FLAG_OFFSET;
+        if (buffer.length < flagIndex + 1 + EXTENDED_CHANNEL_ID_LENGTH) return NO_CHANNEL_ID;
+        if ((buffer[flagIndex] & EXTENDED_FLAG_CHANNEL_ID) == 0) return NO_CHANNEL_ID;
+
+        int deviceNumber = (buffer[flagIndex + 1] & 0xFF) | ((buffer[flagIndex + 2] & 0xFF) << 8);
+        int transmissionType = buffer[flagIndex + 4] & 0xFF;
+        return ChannelStateStore.makeKey(deviceNumber, transmissionType);
     }
 
     /**
-     * Used to decode the volume value from an ANT+ audio update data payload.
-     * @param payload the byte array data payload.
-     * @return the volume value (between 0 and 100).
-     * @throws VolumeValueUnknownException if the master has set the volume to VOLUME_VALUE_UNKNOWN.
+     * Returns the event code of a channel event message. The code is read straight from the message
+     * content instead of through a ChannelEventMessage, which would allocate a new object for every
+     * event.
+     * @param content the content of the channel event message (see AntMessageParcel.getMessageContent()).
+     * @return the event code, or null if the content is too short or the code is unknown.
      */
-    public static int decodeVolumeValue(byte[] payload) throws VolumeValueUnknownException {
-        byte value = payload[1];
+    public static EventCode getEventCode(byte[] content) {
+        if (content == null || content.length <= EVENT_CODE_OFFSET) return null;
+        return EVENT_CODES[content[EVENT_CODE_OFFSET] & 0xFF];
+    }
 
-        if (value == VOLUME_VALUE_UNKNOWN) {
-            throw new VolumeValueUnknownException();
-        } else {
-            return value;
+    private static EventCode[] makeEventCodeTable() {
+        EventCode[] table = new EventCode[256];
+
+        for (EventCode code : EventCode.values()) {
+            int rawValue = code.getRawValue();
+            if (rawValue >= 0 && rawValue < table.length) table[rawValue] = code;
         }
+
+        return table;
+    }
+
+    /**
+     * Returns the data page number of a packed payload.
+     * @param payload the packed payload (see packPayload()).
+     * @return the data page number (between 0 and 255).
+     */
+    public static int getDataPage(long payload) {
+        return getPayloadByte(payload, 0);
+    }
+
+    /**
+     * Returns an unsigned byte of a packed payload.
+     * @param payload the packed payload (see packPayload()).
+     * @param index the index of the byte in the payload (between 0 and 7).
+     * @return the byte (between 0 and 255).
+     */
+    public static int getPayloadByte(long payload, int index) {
+        return (int)(payload >>> (8 * index)) & 0xFF;
+    }
+
+    /**
+     * Returns an unsigned little endian field of a packed payload, as used by the ANT+ data pages.
+     * @param payload the packed payload (see packPayload()).
+     * @param index the index of the least significant byte of the field in the payload.
+     * @param length the number of bytes of the field (between 1 and 4).
+     * @return the field.
+     */
+    public static long getPayloadField(long payload, int index, int length) {
+        return (payload >>> (8 * index)) & ((1L << (8 * length)) - 1);
     }
 }
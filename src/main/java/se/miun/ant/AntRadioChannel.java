@@ -0,0 +1,208 @@
+package se.miun.ant;
+
+import android.os.RemoteException;
+
+import com.dsi.ant.channel.AntChannel;
+import com.dsi.ant.channel.AntCommandFailedException;
+import com.dsi.ant.channel.ExtendedAssignment;
+import com.dsi.ant.channel.IAntChannelEventHandler;
+import com.dsi.ant.message.ChannelId;
+import com.dsi.ant.message.ChannelState;
+import com.dsi.ant.message.ChannelType;
+import com.dsi.ant.message.LibConfig;
+import com.dsi.ant.message.fromant.MessageFromAntType;
+import com.dsi.ant.message.ipc.AntMessageParcel;
+
+/**
+ * A RadioChannel on a channel of the ANT Radio Service. Every call is passed on to the AntChannel,
+ * and its RemoteExceptions and AntCommandFailedExceptions are turned into RadioChannelExceptions.
+ */
+public class AntRadioChannel implements RadioChannel {
+
+    private final AntChannel antChannel;
+
+    /**
+     * Constructor.
+     * @param antChannel the acquired AntChannel.
+     */
+    public AntRadioChannel(AntChannel antChannel) {
+        this.antChannel = antChannel;
+    }
+
+    @Override
+    public void assign(ChannelType channelType) throws RadioChannelException {
+        try {
+            antChannel.assign(channelType);
+        } catch (RemoteException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        } catch (AntCommandFailedException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void assign(ChannelType channelType, ExtendedAssignment extendedAssignment)
+            throws RadioChannelException {
+        try {
+            antChannel.assign(channelType, extendedAssignment);
+        } catch (RemoteException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        } catch (AntCommandFailedException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void setChannelId(ChannelId channelId) throws RadioChannelException {
+        try {
+            antChannel.setChannelId(channelId);
+        } catch (RemoteException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        } catch (AntCommandFailedException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void setRfFrequency(int frequency) throws RadioChannelException {
+        try {
+            antChannel.setRfFrequency(frequency);
+        } catch (RemoteException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        } catch (AntCommandFailedException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void setPeriod(int period) throws RadioChannelException {
+        try {
+            antChannel.setPeriod(period);
+        } catch (RemoteException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        } catch (AntCommandFailedException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void setAdapterWideLibConfig(LibConfig libConfig) throws RadioChannelException {
+        try {
+            antChannel.setAdapterWideLibConfig(libConfig);
+        } catch (RemoteException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        } catch (AntCommandFailedException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void open() throws RadioChannelException {
+        try {
+            antChannel.open();
+        } catch (RemoteException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        } catch (AntCommandFailedException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() throws RadioChannelException {
+        try {
+            antChannel.close();
+        } catch (RemoteException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        } catch (AntCommandFailedException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void release() {
+        antChannel.release();
+    }
+
+    @Override
+    public void setEventHandler(final EventHandler eventHandler) throws RadioChannelException {
+        try {
+            antChannel.setChannelEventHandler(new IAntChannelEventHandler() {
+
+                @Override
+                public void onReceiveMessage(MessageFromAntType messageType, AntMessageParcel messageParcel) {
+                    eventHandler.onReceiveMessage(messageType, messageParcel.getMessageId(),
+                                                  messageParcel.getMessageContent());
+                }
+
+                @Override
+                public void onChannelDeath() {
+                    eventHandler.onChannelDeath();
+                }
+            });
+        } catch (RemoteException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void clearEventHandler() throws RadioChannelException {
+        try {
+            antChannel.clearChannelEventHandler();
+        } catch (RemoteException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void setBroadcastData(byte[] data) throws RadioChannelException {
+        try {
+            antChannel.setBroadcastData(data);
+        } catch (RemoteException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void startSendAcknowledgedData(byte[] data) throws RadioChannelException {
+        try {
+            antChannel.startSendAcknowledgedData(data);
+        } catch (RemoteException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        } catch (AntCommandFailedException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void burstTransfer(byte[] data) throws RadioChannelException {
+        try {
+            antChannel.burstTransfer(data);
+        } catch (RemoteException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        } catch (AntCommandFailedException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public ChannelId requestChannelId() throws RadioChannelException {
+        try {
+            return antChannel.requestChannelId().getChannelId();
+        } catch (RemoteException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        } catch (AntCommandFailedException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public ChannelState requestChannelState() throws RadioChannelException {
+        try {
+            return antChannel.requestChannelStatus().getChannelState();
+        } catch (RemoteException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        } catch (AntCommandFailedException e) {
+            throw new RadioChannelException(e.getMessage(), e);
+        }
+    }
+}
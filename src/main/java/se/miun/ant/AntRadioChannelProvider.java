@@ -0,0 +1,58 @@
+package se.miun.ant;
+
+import android.content.Context;
+import android.os.RemoteException;
+
+import com.dsi.ant.channel.AntChannelProvider;
+import com.dsi.ant.channel.Capabilities;
+import com.dsi.ant.channel.ChannelNotAvailableException;
+import com.dsi.ant.channel.ChannelNotAvailableReason;
+import com.dsi.ant.channel.PredefinedNetwork;
+
+/**
+ * A RadioChannelProvider on the AntChannelProvider of the ANT Radio Service (see ChannelRetriever).
+ * The acquired channels are wrapped in AntRadioChannels.
+ */
+public class AntRadioChannelProvider implements RadioChannelProvider {
+
+    private final Context context;
+    private final AntChannelProvider channelProvider;
+
+    /**
+     * Constructor.
+     * @param context the context that the channels are acquired for.
+     * @param channelProvider the channel provider of the connected ANT service.
+     */
+    public AntRadioChannelProvider(Context context, AntChannelProvider channelProvider) {
+        this.context = context;
+        this.channelProvider = channelProvider;
+    }
+
+    @Override
+    public RadioChannel acquireChannel(boolean backgroundScanning) throws RadioChannel.RadioChannelException {
+        try {
+            if (!backgroundScanning) {
+                return new AntRadioChannel(channelProvider.acquireChannel(context, PredefinedNetwork.ANT_PLUS));
+            }
+
+            Capabilities requiredCapabilities = new Capabilities();
+            requiredCapabilities.supportBackgroundScanning(true);
+            return new AntRadioChannel(channelProvider.acquireChannel(context, PredefinedNetwork.ANT_PLUS,
+                                                                      requiredCapabilities, null));
+        } catch (ChannelNotAvailableException e) {
+            throw new NoChannelAvailableException(e.getMessage(),
+                    e.reasonCode == ChannelNotAvailableReason.ALL_CHANNELS_IN_USE, e);
+        } catch (RemoteException e) {
+            throw new RadioChannel.RadioChannelException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public int getNumChannelsAvailable() throws RadioChannel.RadioChannelException {
+        try {
+            return channelProvider.getNumChannelsAvailable();
+        } catch (RemoteException e) {
+            throw new RadioChannel.RadioChannelException(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package se.miun.ant;
+
+import android.util.Log;
+
+import com.dsi.ant.message.EventCode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BurstTransfer streams a payload of any size to the master of a ChannelWrapper as a series of ANT
+ * burst transfers (see ChannelWrapper.sendBurst()). A multi-step lighting program or a configuration
+ * block can then be sent in one transfer, instead of as dozens of 8 byte acknowledged messages that
+ * each need a round trip.
+ *
+ * The payload is read from an InputStream one chunk (at most chunkSize bytes) at a time, so it never
+ * has to be held in memory as a whole. Each chunk is sent as one burst, and the burst events of the
+ * channel decide what happens next:
+ *
+ * 1) TRANSFER_TX_START: the radio has started sending the chunk.
+ * 2) TRANSFER_TX_COMPLETED: the master has received the whole chunk. The progress is reported and
+ *    the next chunk is sent.
+ * 3) TRANSFER_TX_FAILED, CHANNEL_CLOSED, a failed burst call or no event within CHUNK_TIMEOUT_MS:
+ *    the chunk is sent again after a delay that doubles for every attempt, at most
+ *    MAX_CHUNK_RETRIES times. After that the transfer has failed.
+ *
+ * An acknowledged transfer that was started before the burst ends with the same TRANSFER_TX_COMPLETED
+ * and TRANSFER_TX_FAILED events, so the events of a chunk are only taken into account after its
+ * TRANSFER_TX_START event.
+ *
+ * When the transfer has ended, the listener is told the outcome and the throughput in bytes per
+ * second (the bytes delivered divided by the time from the first chunk until the end). The chunks
+ * are also counted in the channel's ChannelMetrics.
+ *
+ * The radio can not stop a burst that it has already started, so when the transfer ends while a
+ * chunk is in flight (it is cancelled, see cancel()), the channel is only handed back to
+ * acknowledged transfers (see ChannelWrapper.onBurstFinished()) when that chunk has completed,
+ * failed or timed out.
+ *
+ * Each transfer is an actor (see ChannelExecutors): the burst calls, the events from the ANT binder
+ * threads and the timeouts are all handled on its SerialExecutor.
+ */
+public class BurstTransfer {
+
+    /**
+     * Listens for the progress of a burst transfer. Called on a background thread.
+     */
+    public interface OnBurstProgressListener {
+        /**
+         * Called every time a chunk has been received by the master.
+         * @param transfer the transfer.
+         * @param bytesSent the number of bytes received by the master so far.
+         * @param totalBytes the size of the payload.
+         */
+        public void onBurstProgress(BurstTransfer transfer, int bytesSent, int totalBytes);
+
+        /**
+         * Called once, when the transfer has ended.
+         * @param transfer the transfer.
+         * @param success true if the whole payload was received by the master.
+         * @param bytesPerSecond the throughput of the transfer.
+         */
+        public void onBurstFinished(BurstTransfer transfer, boolean success, long bytesPerSecond);
+    }
+
+    /** The default chunk size: 64 burst packets of 8 bytes. */
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 64;
+
+    // The number of times a chunk is sent again before the transfer has failed.
+    private static final int MAX_CHUNK_RETRIES = 3;
+
+    // The delay before the first retry of a chunk. Doubled for every retry.
+    private static final int RETRY_INITIAL_DELAY_MS = 250;
+
+    // The time a chunk gets to complete or fail before it is taken as failed.
+    private static final int CHUNK_TIMEOUT_MS = 1000 * 5;
+
+    private final ChannelWrapper channelWrapper;
+    private final InputStream data;
+    private final int totalBytes;
+    private final int chunkSize;
+    private final OnBurstProgressListener listener;
+    private final SerialExecutor transferActor;
+
+    // Only accessed on the transfer actor.
+    private byte[] chunk;
+    private int chunkNumber;
+    private int chunkAttempts;
+    private boolean chunkInFlight;      // Sent, and waiting for its events.
+    private boolean chunkStarted;       // TRANSFER_TX_START has been received.
+    private long chunkSendTime;
+    private ScheduledFuture<?> chunkTimeout;
+    private int bytesSent;
+    private long startTime;
+    private boolean finished;
+    private boolean succeeded;
+
+    /**
+     * Constructor. The transfer is started by ChannelWrapper.sendBurst().
+     * @param channelWrapper the channel that the payload is sent on.
+     * @param data the payload.
+     * @param length the number of bytes of the payload.
+     * @param chunkSize the largest number of bytes sent in one burst.
+     * @param listener notified of the progress of the transfer, or null.
+     */
+    BurstTransfer(ChannelWrapper channelWrapper, InputStream data, int length, int chunkSize,
+                  OnBurstProgressListener listener) {
+        if (length < 0) throw new IllegalArgumentException("length must not be negative");
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be positive");
+
+        this.channelWrapper = channelWrapper;
+        this.data = data;
+        this.totalBytes = length;
+        this.chunkSize = chunkSize;
+        this.listener = listener;
+        transferActor = ChannelExecutors.newRadioSerialExecutor();
+    }
+
+    public int getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Stops the transfer after the chunk that is being sent, and reports it as failed. The radio
+     * can not stop a burst that it has already started, so the channel stays busy until the chunk
+     * in flight has ended. Can be called from any thread.
+     */
+    public void cancel() {
+        transferActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                finish(false);
+            }
+        });
+    }
+
+    //
+    // Sends the first chunk. Called by ChannelWrapper.sendBurst().
+    //
+    void start() {
+        transferActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                startTime = System.nanoTime();
+                sendNextChunk();
+            }
+        });
+    }
+
+    //
+    // Called on an ANT binder thread with the burst events of the channel, and with CHANNEL_CLOSED.
+    //
+    void onTransferEvent(final EventCode code) {
+        transferActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleTransferEvent(code);
+            }
+        });
+    }
+
+    // All of the following methods are called on the transfer actor.
+
+    private void handleTransferEvent(EventCode code) {
+        if (!chunkInFlight) return;
+
+        if (code == EventCode.TRANSFER_TX_START) {
+            chunkStarted = true;
+        } else if (code == EventCode.CHANNEL_CLOSED) {
+            onChunkFailed("channel closed");
+        } else if (chunkStarted && code == EventCode.TRANSFER_TX_COMPLETED) {
+            onChunkCompleted();
+        } else if (chunkStarted && code == EventCode.TRANSFER_TX_FAILED) {
+            onChunkFailed("transfer failed");
+        }
+    }
+
+    private void sendNextChunk() {
+        if (finished) return;
+
+        if (bytesSent == totalBytes) {
+            finish(true);
+            return;
+        }
+
+        try {
+            chunk = readChunk(Math.min(chunkSize, totalBytes - bytesSent));
+        } catch (IOException e) {
+            Log.e(GlobalState.LOG_TAG, "Could not read burst data: " + e.getMessage());
+            finish(false);
+            return;
+        }
+
+        chunkNumber++;
+        chunkAttempts = 0;
+        sendChunk();
+    }
+
+    private void sendChunk() {
+        if (finished) return;
+
+        chunkAttempts++;
+        chunkInFlight = true;
+        chunkStarted = false;
+        chunkSendTime = System.nanoTime();
+        chunkTimeout = ChannelExecutors.getWorkerExecutor().schedule(
+                ChannelExecutors.onActor(transferActor, new ChunkTimeout(chunkNumber, chunkAttempts)),
+                CHUNK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        try {
+            channelWrapper.startBurstChunk(chunk);
+        } catch (ChannelWrapper.ChannelDataSendException e) {
+            onChunkFailed(e.getMessage());
+        }
+    }
+
+    private void onChunkCompleted() {
+        chunkInFlight = false;
+        chunkTimeout.cancel(false);
+        channelWrapper.getMetrics().recordBurstChunk(chunk.length, System.nanoTime() - chunkSendTime);
+
+        if (finished) {
+            releaseChannel();
+            return;
+        }
+
+        bytesSent += chunk.length;
+        chunk = null;
+        if (listener != null) listener.onBurstProgress(this, bytesSent, totalBytes);
+
+        sendNextChunk();
+    }
+
+    private void onChunkFailed(String reason) {
+        chunkInFlight = false;
+        chunkTimeout.cancel(false);
+        channelWrapper.getMetrics().recordBurstChunkFailed();
+
+        if (finished) {
+            releaseChannel();
+            return;
+        }
+
+        if (chunkAttempts > MAX_CHUNK_RETRIES) {
+            Log.e(GlobalState.LOG_TAG, "Burst transfer failed after " + bytesSent + " of " + totalBytes +
+                                       " bytes: " + reason);
+            finish(false);
+            return;
+        }
+
+        // Late events of the failed attempt are ignored until the chunk is sent again.
+        long delay = (long)RETRY_INITIAL_DELAY_MS << (chunkAttempts - 1);
+        ChannelExecutors.getWorkerExecutor().schedule(ChannelExecutors.onActor(transferActor, new Runnable() {
+
+            @Override
+            public void run() {
+                sendChunk();
+            }
+        }), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void finish(boolean success) {
+        if (finished) return;
+        finished = true;
+        succeeded = success;
+
+        // Otherwise the channel is released when the chunk in flight has ended.
+        if (!chunkInFlight) releaseChannel();
+
+        long elapsed = startTime != 0 ? System.nanoTime() - startTime : 0;
+        long bytesPerSecond = elapsed > 0 ? bytesSent * 1000000000L / elapsed : 0;
+        Log.i(GlobalState.LOG_TAG, "Burst transfer " + (success ? "completed: " : "ended: ") + bytesSent +
+                                   " of " + totalBytes + " bytes, " + bytesPerSecond + " bytes/s");
+
+        if (listener != null) listener.onBurstFinished(this, success, bytesPerSecond);
+    }
+
+    //
+    // Lets the channel start acknowledged transfers again. Called once the transfer has finished
+    // and no chunk is in flight.
+    //
+    private void releaseChannel() {
+        chunk = null;
+        channelWrapper.onBurstFinished(this, succeeded);
+    }
+
+    private byte[] readChunk(int length) throws IOException {
+        byte[] buffer = new byte[length];
+        int read = 0;
+
+        while (read < length) {
+            int count = data.read(buffer, read, length - read);
+            if (count < 0) throw new IOException("The data ended after " + (bytesSent + read) + " bytes");
+            read += count;
+        }
+        return buffer;
+    }
+
+    //
+    // Fails the chunk if the attempt it was scheduled for is still waiting for its events.
+    //
+    private class ChunkTimeout implements Runnable {
+        private final int chunkNumber;
+        private final int attempt;
+
+        public ChunkTimeout(int chunkNumber, int attempt) {
+            this.chunkNumber = chunkNumber;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public void run() {
+            if (chunkInFlight && chunkNumber == BurstTransfer.this.chunkNumber &&
+                attempt == chunkAttempts) {
+                onChunkFailed("no burst event within " + CHUNK_TIMEOUT_MS + " ms");
+            }
+        }
+    }
+}
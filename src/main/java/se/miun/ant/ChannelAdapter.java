@@ -4,34 +4,64 @@ import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ImageButton;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
-import java.util.List;
-
 /**
  * It is necessary to use a ListAdapter in order to get something to display on an Android ListView.
- * This class implements a ListAdapter which extends ArrayAdapter. Each element in the backing array
- * (actually a list) will be rendered on the ListView in the ChannelListFragment class.
+ * This class implements a ListAdapter which extends BaseAdapter. Each ListItemState in the shown
+ * ChannelStateStore.Snapshot will be rendered on the ListView in the ChannelListFragment class.
+ *
+ * The adapter only ever reads from the snapshot it was last given with showSnapshot(), which never
+ * changes, so the count and the items that the ListView sees are always consistent with each other.
  */
-public class ChannelAdapter extends ArrayAdapter<ListItemState> {
+public class ChannelAdapter extends BaseAdapter implements ChannelList.SnapshotView {
 
-    // The list of ListItemState objects. This is the list that is used when rendering the UI list.
-    private List<ListItemState> itemStates;
+    // The snapshot that is used when rendering the UI list. Only accessed on the UI thread.
+    private ChannelStateStore.Snapshot shownSnapshot;
     // A LayoutInflater object is needed to create View objects from an XML file.
     private LayoutInflater inflater;
+    // Shown instead of the light intensity while a channel is reconnecting.
+    private String reconnectingText;
 
     /**
      * Constructor.
-     * @param context the context needed by the ArrayAdapter.
-     * @param itemStates the list of ListItemState objects used to create views from.
+     * @param context the context needed to inflate the views.
+     * @param snapshot the snapshot of ListItemState objects used to create views from.
      */
-    public ChannelAdapter(Context context, List<ListItemState> itemStates) {
-        super(context, R.layout.channel_list_view, itemStates);
-        this.itemStates = itemStates;
+    public ChannelAdapter(Context context, ChannelStateStore.Snapshot snapshot) {
+        shownSnapshot = snapshot;
         inflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        reconnectingText = context.getString(R.string.channel_reconnecting_text);
+    }
+
+    /**
+     * Shows a new snapshot in the list. Must be called on the UI thread.
+     * @param snapshot the snapshot to show.
+     */
+    @Override
+    public void showSnapshot(ChannelStateStore.Snapshot snapshot) {
+        if (snapshot.getVersion() == shownSnapshot.getVersion()) return;
+
+        shownSnapshot = snapshot;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return shownSnapshot.size();
+    }
+
+    @Override
+    public ListItemState getItem(int position) {
+        return shownSnapshot.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
     }
 
     /**
@@ -58,14 +88,7 @@ public class ChannelAdapter extends ArrayAdapter<ListItemState> {
     public View getView(int position, View convertView, ViewGroup parent) {
         if (convertView == null) convertView = inflater.inflate(R.layout.channel_list_view, null);
 
-        try {
-            ListItemState stateAtPosition = itemStates.get(position);
-            return setViewState(convertView, stateAtPosition);
-        } catch (IndexOutOfBoundsException e) {
-            // This can happen if a ListItemState gets removed from itemStates after
-            // the start of this method but before the start of the try block.
-            return convertView;
-        }
+        return setViewState(convertView, shownSnapshot.get(position));
     }
 
     //
@@ -91,22 +114,54 @@ public class ChannelAdapter extends ArrayAdapter<ListItemState> {
             intensityView = (TextView)channelView.findViewById(R.id.channel_intensity_view);
             openButton = (ImageButton)channelView.findViewById(R.id.channel_open_imagebutton);
             intensityBar = (SeekBar)channelView.findViewById(R.id.channel_intensity_seekbar);
-            channelView.setTag(new ViewHolder(intensityView, intensityBar, openButton));
+            holder = new ViewHolder(intensityView, intensityBar, openButton);
+            channelView.setTag(holder);
         }
 
+        holder.itemState = stateAtPosition;
+
         stateAtPosition.setIntensityBar(intensityBar);
         stateAtPosition.setOpenButton(openButton);
 
+        // The current value is shown below, so there is no need to update it again.
+        stateAtPosition.clearIntensityDirty();
+
         intensityBar.setProgress(stateAtPosition.lightIntensity);
-        intensityView.setText(String.valueOf(stateAtPosition.lightIntensity));
+        showIntensity(intensityView, intensityBar, stateAtPosition);
 
         return channelView;
     }
 
+    /**
+     * Updates the light intensity text of a channel list row if the light intensity (or the
+     * reconnecting state) of the channel shown in the row has changed since the row was last updated.
+     * @param channelView a channel list view created by getView().
+     */
+    public void updateChangedIntensityView(View channelView) {
+        ViewHolder holder = (ViewHolder)channelView.getTag();
+        if (holder == null || holder.itemState == null) return;
+
+        if (holder.itemState.clearIntensityDirty()) {
+            showIntensity(holder.intensityView, holder.intensityBar, holder.itemState);
+        }
+    }
+
+    //
+    // A reconnecting light keeps its row, but can not be controlled until it has reconnected.
+    //
+    private void showIntensity(TextView intensityView, SeekBar intensityBar, ListItemState state) {
+        boolean reconnecting = state.reconnecting;
+
+        intensityView.setText(reconnecting ? reconnectingText : String.valueOf(state.lightIntensity));
+        intensityBar.setEnabled(!reconnecting);
+    }
+
     private class ViewHolder {
         protected TextView intensityView;
         protected SeekBar intensityBar;
         protected ImageButton openButton;
+        // The ListItemState currently shown in the row (rows are reused for different states).
+        protected ListItemState itemState;
 
         public ViewHolder(TextView intensityView, SeekBar intensityBar, ImageButton openButton) {
             this.intensityView = intensityView;
@@ -0,0 +1,178 @@
+package se.miun.ant;
+
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ChannelConfig is an immutable snapshot of the channel parameters that the user sets in the
+ * SettingsActivity. The preference strings are parsed and validated once, when the snapshot is
+ * made (see ChannelConfigStore), so a snapshot that exists is always valid and can be shared by
+ * any number of threads.
+ *
+ * Each ChannelConfig is one channel profile. A site with different kinds of lights (for example
+ * lights on different frequencies) can have several profiles: the primary profile is made of the
+ * four channel settings, and the extra profiles are written in the extra profiles setting, one per
+ * line (or separated by semicolons), as "device type/transmission type/frequency/period". Profiles
+ * are numbered by their position, the primary profile being profile 0.
+ */
+public final class ChannelConfig {
+
+    /** Thrown when a channel parameter in SharedPreferences is missing, not a number or out of range. */
+    public static class InvalidChannelConfigException extends Exception {
+        public InvalidChannelConfigException(String message) { super(message); }
+    }
+
+    // The valid ranges of the channel parameters.
+    private static final int MAX_DEVICE_TYPE = 127;          // The top bit is the pairing bit.
+    private static final int MAX_TRANSMISSION_TYPE = 255;
+    private static final int MAX_FREQUENCY = 124;            // 2400 - 2524 MHz.
+    private static final int MIN_PERIOD = 1;
+    private static final int MAX_PERIOD = 65535;
+
+    private final int deviceType;
+    private final int transmissionType;
+    private final int frequency;
+    private final int period;
+
+    /**
+     * Constructor.
+     * @param deviceType the device type (0 - 127).
+     * @param transmissionType the transmission type (0 - 255).
+     * @param frequency the RF frequency offset from 2400 MHz (0 - 124).
+     * @param period the channel period, in units of 1/32768 s (1 - 65535).
+     * @throws InvalidChannelConfigException if a parameter is out of range.
+     */
+    public ChannelConfig(int deviceType, int transmissionType, int frequency, int period)
+            throws InvalidChannelConfigException {
+        this.deviceType = checkRange("Device type", deviceType, 0, MAX_DEVICE_TYPE);
+        this.transmissionType = checkRange("Transmission type", transmissionType, 0, MAX_TRANSMISSION_TYPE);
+        this.frequency = checkRange("Frequency", frequency, 0, MAX_FREQUENCY);
+        this.period = checkRange("Period", period, MIN_PERIOD, MAX_PERIOD);
+    }
+
+    /**
+     * Parses the channel parameters in SharedPreferences.
+     * @param sharedPrefs the SharedPreferences that the SettingsActivity writes to.
+     * @param res the resources that hold the preference keys.
+     * @return the snapshot.
+     * @throws InvalidChannelConfigException if a parameter is missing, not a number or out of range.
+     */
+    public static ChannelConfig fromPreferences(SharedPreferences sharedPrefs, Resources res)
+            throws InvalidChannelConfigException {
+        return new ChannelConfig(
+                parse(sharedPrefs, res.getString(R.string.pref_device_type_key), "Device type"),
+                parse(sharedPrefs, res.getString(R.string.pref_transmission_type_key), "Transmission type"),
+                parse(sharedPrefs, res.getString(R.string.pref_frequency_key), "Frequency"),
+                parse(sharedPrefs, res.getString(R.string.pref_period_key), "Period"));
+    }
+
+    /**
+     * Parses the primary profile and the extra profiles in SharedPreferences.
+     * @param sharedPrefs the SharedPreferences that the SettingsActivity writes to.
+     * @param res the resources that hold the preference keys.
+     * @return the profiles, the primary profile first. The list can not be modified.
+     * @throws InvalidChannelConfigException if a parameter is missing, not a number or out of range.
+     */
+    public static List<ChannelConfig> profilesFromPreferences(SharedPreferences sharedPrefs, Resources res)
+            throws InvalidChannelConfigException {
+        List<ChannelConfig> profiles = new ArrayList<ChannelConfig>();
+        profiles.add(fromPreferences(sharedPrefs, res));
+
+        String extraProfiles = sharedPrefs.getString(res.getString(R.string.pref_extra_profiles_key), "");
+        String[] lines = extraProfiles.split("[\\n;]");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.length() > 0) profiles.add(parseProfile(line, profiles.size()));
+        }
+
+        return Collections.unmodifiableList(profiles);
+    }
+
+    public int getDeviceType() {
+        return deviceType;
+    }
+
+    public int getTransmissionType() {
+        return transmissionType;
+    }
+
+    public int getFrequency() {
+        return frequency;
+    }
+
+    /**
+     * Returns the channel period.
+     * @return the channel period, in units of 1/32768 s.
+     */
+    public int getPeriod() {
+        return period;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ChannelConfig)) return false;
+
+        ChannelConfig config = (ChannelConfig)other;
+        return deviceType == config.deviceType && transmissionType == config.transmissionType &&
+               frequency == config.frequency && period == config.period;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((deviceType * 31 + transmissionType) * 31 + frequency) * 31 + period;
+    }
+
+    @Override
+    public String toString() {
+        return "device type " + deviceType + ", transmission type " + transmissionType +
+               ", frequency " + frequency + ", period " + period;
+    }
+
+    private static int parse(SharedPreferences sharedPrefs, String key, String name)
+            throws InvalidChannelConfigException {
+        String value = sharedPrefs.getString(key, null);
+        if (value == null) throw new InvalidChannelConfigException(name + " is not set");
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new InvalidChannelConfigException(name + " is not a number: \"" + value + "\"");
+        }
+    }
+
+    //
+    // Parses one "device type/transmission type/frequency/period" line of the extra profiles setting.
+    //
+    private static ChannelConfig parseProfile(String line, int profileNumber)
+            throws InvalidChannelConfigException {
+        String[] values = line.split("/");
+        if (values.length != 4) {
+            throw new InvalidChannelConfigException("Profile " + profileNumber + " must be written as " +
+                                                    "device type/transmission type/frequency/period, not \"" +
+                                                    line + "\"");
+        }
+
+        try {
+            return new ChannelConfig(Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()),
+                                     Integer.parseInt(values[2].trim()), Integer.parseInt(values[3].trim()));
+        } catch (NumberFormatException e) {
+            throw new InvalidChannelConfigException("Profile " + profileNumber + " is not a number: \"" +
+                                                    line + "\"");
+        } catch (InvalidChannelConfigException e) {
+            throw new InvalidChannelConfigException("Profile " + profileNumber + ": " + e.getMessage());
+        }
+    }
+
+    private static int checkRange(String name, int value, int min, int max)
+            throws InvalidChannelConfigException {
+        if (value < min || value > max) {
+            throw new InvalidChannelConfigException(name + " must be between " + min + " and " + max +
+                                                    ", not " + value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,158 @@
+package se.miun.ant;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import se.miun.ant.ChannelConfig.InvalidChannelConfigException;
+
+/**
+ * ChannelConfigStore holds the current channel profiles (see ChannelConfig) of the application. The
+ * snapshot is parsed once, and parsed again only when one of the channel parameters changes in
+ * SharedPreferences.
+ * The snapshot holds either the parsed profiles or the error that made the parameters invalid, and
+ * it is immutable and published through a single volatile field. Reading it is a single volatile
+ * read that always sees a consistent snapshot, so the search workers and the channel pool can read
+ * it as often as they like.
+ *
+ * When the parameters change, the new snapshot is made first and the OnChannelConfigChangedListeners
+ * are notified after that, so a listener always sees the new snapshot. If the new parameters are
+ * invalid, getChannelConfig() throws until they are fixed, and the listeners are not notified.
+ */
+public class ChannelConfigStore implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    public interface OnChannelConfigChangedListener {
+        /**
+         * Called on the thread that changed the SharedPreferences (normally the UI thread) when
+         * the channel parameters have changed to new valid values.
+         * @param profiles the new channel profiles, the primary profile first.
+         */
+        public void onChannelConfigChanged(List<ChannelConfig> profiles);
+    }
+
+    private final SharedPreferences sharedPrefs;
+    private final Resources resources;
+
+    // The current snapshot. Only replaced under the lock, never modified.
+    private volatile Snapshot snapshot;
+
+    private final ListenerRegistry<OnChannelConfigChangedListener> listeners;
+
+    /**
+     * Constructor. Parses the current channel parameters.
+     * @param context the context needed to access the SharedPreferences.
+     */
+    public ChannelConfigStore(Context context) {
+        sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        resources = context.getResources();
+        listeners = new ListenerRegistry<OnChannelConfigChangedListener>(new OnChannelConfigChangedListener[0]);
+
+        rebuild();
+        sharedPrefs.registerOnSharedPreferenceChangeListener(this);
+    }
+
+    /**
+     * Constructor for fixed channel profiles that are not read from SharedPreferences, for example
+     * in a load test. The profiles never change.
+     * @param profiles the channel profiles, the primary profile first.
+     */
+    ChannelConfigStore(List<ChannelConfig> profiles) {
+        sharedPrefs = null;
+        resources = null;
+        listeners = new ListenerRegistry<OnChannelConfigChangedListener>(new OnChannelConfigChangedListener[0]);
+
+        snapshot = new Snapshot(Collections.unmodifiableList(new ArrayList<ChannelConfig>(profiles)), null);
+    }
+
+    /**
+     * Returns the current primary profile. Never blocks and can be called from any thread.
+     * @return the channel parameters of the primary profile.
+     * @throws InvalidChannelConfigException if the parameters in SharedPreferences are invalid.
+     */
+    public ChannelConfig getChannelConfig() throws InvalidChannelConfigException {
+        return getChannelProfiles().get(0);
+    }
+
+    /**
+     * Returns the current channel profiles. Never blocks and can be called from any thread.
+     * @return the profiles, the primary profile first. The list can not be modified.
+     * @throws InvalidChannelConfigException if the parameters in SharedPreferences are invalid.
+     */
+    public List<ChannelConfig> getChannelProfiles() throws InvalidChannelConfigException {
+        Snapshot current = snapshot;
+        if (current.profiles == null) throw current.error;
+        return current.profiles;
+    }
+
+    public void addOnChannelConfigChangedListener(OnChannelConfigChangedListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeOnChannelConfigChangedListener(OnChannelConfigChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Rebuilds the snapshot when a channel parameter has changed. Other preferences are ignored.
+     * @param sharedPreferences the SharedPreferences that changed.
+     * @param key the key of the changed value, or null if the preferences were cleared.
+     */
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (key != null && !isChannelParameterKey(key)) return;
+
+        List<ChannelConfig> previous = snapshot.profiles;
+        List<ChannelConfig> current = rebuild();
+
+        if (current != null && !current.equals(previous)) {
+            OnChannelConfigChangedListener[] listenerSnapshot = listeners.getListeners();
+            for (int i = 0; i < listenerSnapshot.length; i++) {
+                listenerSnapshot[i].onChannelConfigChanged(current);
+            }
+        }
+    }
+
+    //
+    // Parses the preferences into a new snapshot. Returns the snapshot, or null if the
+    // preferences are invalid.
+    //
+    private synchronized List<ChannelConfig> rebuild() {
+        try {
+            List<ChannelConfig> current = ChannelConfig.profilesFromPreferences(sharedPrefs, resources);
+            snapshot = new Snapshot(current, null);
+            Log.i(GlobalState.LOG_TAG, "Channel profiles: " + current);
+            return current;
+        } catch (InvalidChannelConfigException e) {
+            snapshot = new Snapshot(null, e);
+            Log.e(GlobalState.LOG_TAG, "Invalid channel parameters: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean isChannelParameterKey(String key) {
+        return key.equals(resources.getString(R.string.pref_device_type_key)) ||
+               key.equals(resources.getString(R.string.pref_transmission_type_key)) ||
+               key.equals(resources.getString(R.string.pref_frequency_key)) ||
+               key.equals(resources.getString(R.string.pref_period_key)) ||
+               key.equals(resources.getString(R.string.pref_extra_profiles_key));
+    }
+
+    //
+    // The parsed profiles, or the error if the parameters are invalid. Exactly one of them is set.
+    //
+    private static class Snapshot {
+        final List<ChannelConfig> profiles;
+        final InvalidChannelConfigException error;
+
+        Snapshot(List<ChannelConfig> profiles, InvalidChannelConfigException error) {
+            this.profiles = profiles;
+            this.error = error;
+        }
+    }
+}
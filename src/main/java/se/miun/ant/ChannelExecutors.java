@@ -0,0 +1,269 @@
+package se.miun.ant;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ChannelExecutors owns the threads of the application. All background work runs on three bounded
+ * pools that are created once for the process, and all work for the UI runs on the main thread:
+ *
+ * 1) Blocking ANT service calls (retrieving, initializing and opening channels, sending
+ *    acknowledged messages and bursts, requesting channel IDs and channel status) run on the radio
+ *    pool, so a slow binder call never holds up the delivery of channel events.
+ * 2) Every ANT channel is an actor with its own SerialExecutor on the actor pool (see
+ *    ChannelWrapper). The ANT service delivers channel events on its binder threads; they are
+ *    handed to the channel's SerialExecutor right away, and the channel's listeners are called
+ *    from there, one event at a time and in order. The few tasks of a channel actor that make
+ *    blocking calls (reopening and retuning the channel) are run on the radio pool instead, still in
+ *    order with the actor's other tasks (see SerialExecutor.executeBlocking()).
+ * 3) Components with state that is touched from several threads (FadeEngine, ChannelRetuner) are
+ *    actors as well, with their own SerialExecutor. Actors whose tasks are mostly blocking calls
+ *    (ChannelSearcher, ChannelMultiplexer, LightScanner, BurstTransfer and ChannelRetriever's
+ *    channel pool) run on the radio pool, and so do the file writes of PairedDeviceCache.
+ * 4) Delayed work (search deadlines, fade steps, spaced sends) is scheduled on the worker pool, which
+ *    hands it to the actor or the radio pool that runs it.
+ * 5) Results that must reach the UI are handed to the main thread executor (see
+ *    getMainThreadExecutor()), never run on the background threads.
+ *
+ * The actor pool queues the drains of the SerialExecutors by the links in the drain tasks, and its
+ * idle threads wait on a monitor, so handing a message to a channel actor does not allocate (see
+ * SerialExecutor.Task). The worker pool, a ScheduledThreadPoolExecutor, allocates a future for every
+ * task, which is why the actors do not run on it.
+ *
+ * No threads are created after the pools have started, regardless of the number of channels or
+ * searches.
+ */
+public final class ChannelExecutors {
+
+    /**
+     * An Executor that can also run a task after a delay, like the main thread executor.
+     */
+    public interface DelayedExecutor extends Executor {
+        /**
+         * Runs a task after a delay. Can be called from any thread.
+         * @param task the task to run.
+         * @param delayMs the delay in milliseconds.
+         */
+        public void executeDelayed(Runnable task, long delayMs);
+
+        /**
+         * Removes a task that has not run yet. Can be called from any thread.
+         * @param task the task to remove.
+         */
+        public void cancel(Runnable task);
+    }
+
+    // The number of actor threads. The actor tasks never block, so a few threads are enough to keep
+    // many channels busy.
+    private static final int ACTOR_THREADS = 4;
+
+    // The number of worker threads. The worker tasks only hand delayed work on.
+    private static final int WORKER_THREADS = 2;
+
+    // The number of radio threads, which is the number of binder calls that can wait at a time.
+    private static final int RADIO_THREADS = 4;
+
+    private static final ScheduledExecutorService workers =
+            new ScheduledThreadPoolExecutor(WORKER_THREADS, new DaemonThreadFactory("ChannelWorker-"));
+
+    private static final Executor actors = new ActorPool(ACTOR_THREADS, new DaemonThreadFactory("ChannelActor-"));
+
+    private static final ExecutorService radio =
+            Executors.newFixedThreadPool(RADIO_THREADS, new DaemonThreadFactory("RadioCall-"));
+
+    private ChannelExecutors() {}
+
+    /**
+     * Returns the shared worker pool, for delayed work.
+     * @return the worker pool.
+     */
+    public static ScheduledExecutorService getWorkerExecutor() {
+        return workers;
+    }
+
+    /**
+     * Returns the shared radio pool, for blocking ANT service calls.
+     * @return the radio pool.
+     */
+    public static Executor getRadioExecutor() {
+        return radio;
+    }
+
+    /**
+     * Returns the executor that runs tasks on the main (UI) thread. Every hand-off from a background
+     * thread to the UI goes through it.
+     * @return the main thread executor.
+     */
+    public static DelayedExecutor getMainThreadExecutor() {
+        return MainThreadExecutorHolder.INSTANCE;
+    }
+
+    /**
+     * Creates a new actor mailbox that runs its tasks one at a time on the actor pool, and its
+     * blocking tasks on the radio pool.
+     * @return the new SerialExecutor.
+     */
+    public static SerialExecutor newSerialExecutor() {
+        return new SerialExecutor(actors, radio);
+    }
+
+    /**
+     * Creates a new actor mailbox that runs all of its tasks one at a time on the radio pool, for
+     * actors whose tasks are mostly blocking ANT service calls.
+     * @return the new SerialExecutor.
+     */
+    public static SerialExecutor newRadioSerialExecutor() {
+        return new SerialExecutor(radio, radio);
+    }
+
+    /**
+     * Returns a task that, when run, hands the given task to an actor. Used by actors that schedule
+     * delayed work for themselves on the worker pool, so that the work still runs on the actor.
+     * @param actor the SerialExecutor of the actor.
+     * @param task the task to run on the actor.
+     * @return the task to schedule on the worker pool.
+     */
+    public static Runnable onActor(final Executor actor, final Runnable task) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                actor.execute(task);
+            }
+        };
+    }
+
+    //
+    // The main thread executor is created the first time it is used, since a Handler can only be
+    // created on a device.
+    //
+    private static class MainThreadExecutorHolder {
+        static final DelayedExecutor INSTANCE = new HandlerExecutor(new Handler(Looper.getMainLooper()));
+    }
+
+    private static class HandlerExecutor implements DelayedExecutor {
+        private final Handler handler;
+
+        public HandlerExecutor(Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            handler.post(task);
+        }
+
+        @Override
+        public void executeDelayed(Runnable task, long delayMs) {
+            handler.postDelayed(task, delayMs);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            handler.removeCallbacks(task);
+        }
+    }
+
+    //
+    // A fixed pool of threads that runs tasks in the order they were submitted. A SerialExecutor.Task
+    // is queued by its own link, other tasks are wrapped. The queue is guarded by a monitor, which
+    // is held only to link or unlink a task, and the idle threads wait on it.
+    //
+    private static class ActorPool implements Executor {
+        private final Object lock = new Object();
+
+        // The queued tasks, oldest first. Guarded by lock.
+        private SerialExecutor.Task first;
+        private SerialExecutor.Task last;
+        private int idleThreads;
+
+        public ActorPool(int threadCount, ThreadFactory threadFactory) {
+            Runnable runTasks = new Runnable() {
+
+                @Override
+                public void run() {
+                    runTasks();
+                }
+            };
+
+            for (int i = 0; i < threadCount; i++) {
+                threadFactory.newThread(runTasks).start();
+            }
+        }
+
+        @Override
+        public void execute(Runnable runnable) {
+            SerialExecutor.Task task = runnable instanceof SerialExecutor.Task ?
+                    (SerialExecutor.Task)runnable : new SerialExecutor.RunnableTask(runnable);
+            task.next = null;
+
+            synchronized (lock) {
+                if (last == null) {
+                    first = task;
+                } else {
+                    last.next = task;
+                }
+                last = task;
+                if (idleThreads > 0) lock.notify();
+            }
+        }
+
+        //
+        // Run by every thread of the pool.
+        //
+        private void runTasks() {
+            while (true) {
+                SerialExecutor.Task task;
+
+                synchronized (lock) {
+                    while (first == null) {
+                        idleThreads++;
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        } finally {
+                            idleThreads--;
+                        }
+                    }
+                    task = first;
+                    first = task.next;
+                    if (first == null) last = null;
+                    task.next = null;
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // As on the other pools, a failed task does not stop the thread.
+                    Log.e(GlobalState.LOG_TAG, "Task failed on the actor pool", e);
+                }
+            }
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        public DaemonThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, namePrefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
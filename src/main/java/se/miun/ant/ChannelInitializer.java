@@ -1,21 +1,19 @@
 package se.miun.ant;
 
-import android.content.Context;
-import android.content.SharedPreferences;
-import android.content.res.Resources;
-import android.os.RemoteException;
-import android.preference.PreferenceManager;
-
-import com.dsi.ant.channel.AntChannel;
-import com.dsi.ant.channel.AntCommandFailedException;
+import com.dsi.ant.channel.ExtendedAssignment;
 import com.dsi.ant.message.ChannelId;
 import com.dsi.ant.message.ChannelType;
+import com.dsi.ant.message.LibConfig;
+
+import se.miun.ant.ChannelConfig.InvalidChannelConfigException;
+import se.miun.ant.RadioChannel.RadioChannelException;
 
 /**
- * ChannelInitializer takes an non-initialized ("empty") AntChannel object and sets its channel parameters.
- * The channel parameters are fetched from the SharedPreference object for the application. This is the
- * object that is used when the user saves preference values in the SettingsActivity class.
- * For the default parameters, see the file res/xml/preferences.xml
+ * ChannelInitializer takes an non-initialized ("empty") RadioChannel object and sets its channel parameters.
+ * The channel parameters are taken from the current ChannelConfig snapshot (see ChannelConfigStore),
+ * which is parsed from the values that the user saves in the SettingsActivity class. Initializing
+ * a channel therefore only makes the radio calls; invalid parameters are reported before any call
+ * is made. For the default parameters, see the file res/xml/preferences.xml
  */
 public class ChannelInitializer {
 
@@ -28,73 +26,150 @@ public class ChannelInitializer {
     /** The type of the ANT channel. This should be set to bidirectional slave. */
     public static final ChannelType TYPE = ChannelType.BIDIRECTIONAL_SLAVE;
 
-    // The context needed to access the SharedPreferences.
-    private Context context;
+    // Holds the parsed channel parameters.
+    private ChannelConfigStore configStore;
 
     /**
      * Constructor.
-     * @param context the Context needed to access the SharedPreferences.
+     * @param configStore the ChannelConfigStore that holds the channel parameters.
      */
-    public ChannelInitializer(Context context) {
-        this.context = context;
+    public ChannelInitializer(ChannelConfigStore configStore) {
+        this.configStore = configStore;
     }
 
     /**
-     * Initializes a channel with the channel parameters specified in SharedPreferences.
-     * @param channel the AntChannel to initialize.
+     * Returns the current channel parameters.
+     * @return the channel parameters.
+     * @throws ChannelInitializationException if the parameters in SharedPreferences are invalid.
+     */
+    public ChannelConfig getChannelConfig() throws ChannelInitializationException {
+        try {
+            return configStore.getChannelConfig();
+        } catch (InvalidChannelConfigException e) {
+            throw new ChannelInitializationException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Initializes a channel with the current channel parameters.
+     * @param channel the RadioChannel to initialize.
      * @throws ChannelInitializationException if an error occurs.
      */
-    public void initializeChannel(AntChannel channel) throws ChannelInitializationException {
+    public void initializeChannel(RadioChannel channel) throws ChannelInitializationException {
+        ChannelConfig config = getChannelConfig();
+
         try {
-            setChannelParameters(channel);
-        } catch (RemoteException e) {
+            setChannelParameters(channel, config);
+        } catch (RadioChannelException e) {
             throw new ChannelInitializationException(e.getMessage(), e);
-        } catch (AntCommandFailedException e) {
+        }
+    }
+
+    /**
+     * Gives a channel that was initialized with another profile (see initializeChannel()) the
+     * parameters of a profile. The channel must not be open.
+     * @param channel the initialized RadioChannel.
+     * @param profile the channel profile.
+     * @throws ChannelInitializationException if an error occurs.
+     */
+    public void applyProfile(RadioChannel channel, ChannelConfig profile) throws ChannelInitializationException {
+        try {
+            channel.setChannelId(getChannelId(profile.getDeviceType(), profile.getTransmissionType()));
+            channel.setRfFrequency(profile.getFrequency());
+            channel.setPeriod(profile.getPeriod());
+        } catch (RadioChannelException e) {
             throw new ChannelInitializationException(e.getMessage(), e);
         }
     }
 
-    //
-    // Sets channel parameters for a channel.
-    //
-    private void setChannelParameters(AntChannel channel) throws RemoteException, AntCommandFailedException {
-        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
-        Resources resources = context.getResources();
+    /**
+     * Initializes a channel as a background scanning channel, which receives the broadcasts of
+     * every master in range that matches the current device type and transmission type, together
+     * with the channel ID of the master (see LightScanner). The channel must have been acquired
+     * with the background scanning capability.
+     * @param channel the RadioChannel to initialize.
+     * @throws ChannelInitializationException if an error occurs.
+     */
+    public void initializeScanningChannel(RadioChannel channel) throws ChannelInitializationException {
+        ChannelConfig config = getChannelConfig();
 
-        int deviceType = getDeviceTypeFromPreferences(sharedPrefs, resources);
-        int transType  = getTransmissionTypeFromPreferences(sharedPrefs, resources);
-        int frequency  = getFrequencyFromPreferences(sharedPrefs, resources);
-        int period     = getPeriodFromPreferences(sharedPrefs, resources);
+        ExtendedAssignment extendedAssignment = new ExtendedAssignment();
+        extendedAssignment.enableBackgroundScanning();
 
-        channel.assign(TYPE);
-        channel.setChannelId(getChannelId(deviceType, transType));
-        channel.setRfFrequency(frequency);
-        channel.setPeriod(period);
-    }
+        LibConfig libConfig = new LibConfig();
+        libConfig.setEnableChannelIdOutput(true);
 
-    //
-    // The following methods return specific channel parameter values by accessing
-    // the SharedPreferences object.
-    //
+        try {
+            channel.assign(ChannelType.SLAVE_RECEIVE_ONLY, extendedAssignment);
+            channel.setChannelId(getChannelId(config.getDeviceType(), config.getTransmissionType()));
+            channel.setRfFrequency(config.getFrequency());
+            channel.setPeriod(config.getPeriod());
+            channel.setAdapterWideLibConfig(libConfig);
+        } catch (RadioChannelException e) {
+            throw new ChannelInitializationException(e.getMessage(), e);
+        }
+    }
 
-    private int getDeviceTypeFromPreferences(SharedPreferences sharedPrefs, Resources res) {
-        String deviceType = sharedPrefs.getString(res.getString(R.string.pref_device_type_key), null);
-        return Integer.valueOf(deviceType);
+    /**
+     * Restores the adapter wide configuration that initializeScanningChannel() changed, so that the
+     * other channels of the ANT adapter no longer get the channel ID with every message. Must be
+     * called before the scanning channel is released. The ANT API can not read the adapter wide
+     * configuration, and it is only changed by initializeScanningChannel(), so the previous
+     * configuration is the default one.
+     * @param channel the background scanning RadioChannel.
+     * @throws ChannelInitializationException if an error occurs.
+     */
+    public void resetScanningChannel(RadioChannel channel) throws ChannelInitializationException {
+        try {
+            channel.setAdapterWideLibConfig(new LibConfig());
+        } catch (RadioChannelException e) {
+            throw new ChannelInitializationException(e.getMessage(), e);
+        }
     }
 
-    private int getTransmissionTypeFromPreferences(SharedPreferences sharedPrefs, Resources res) {
-        String transType = sharedPrefs.getString(res.getString(R.string.pref_transmission_type_key), null);
-        return Integer.valueOf(transType);
+    /**
+     * Directs an initialized (but not yet opened) channel to one ANT master, so that it only
+     * connects to the master with the given device number and transmission type. The device type
+     * is the one of the primary profile.
+     * @param channel the initialized RadioChannel.
+     * @param deviceNumber the device number of the master.
+     * @param transmissionType the transmission type of the master.
+     * @throws ChannelInitializationException if an error occurs.
+     */
+    public void setDirectedChannelId(RadioChannel channel, int deviceNumber, int transmissionType)
+            throws ChannelInitializationException {
+        setDirectedChannelId(channel, getChannelConfig(), deviceNumber, transmissionType);
     }
 
-    private int getFrequencyFromPreferences(SharedPreferences sharedPrefs, Resources res) {
-        String frequency = sharedPrefs.getString(res.getString(R.string.pref_frequency_key), null);
-        return Integer.valueOf(frequency);
+    /**
+     * Directs an initialized (but not yet opened) channel to one ANT master, with the device type
+     * of the given profile. See setDirectedChannelId(RadioChannel, int, int).
+     * @param channel the initialized RadioChannel.
+     * @param profile the profile of the master.
+     * @param deviceNumber the device number of the master.
+     * @param transmissionType the transmission type of the master.
+     * @throws ChannelInitializationException if an error occurs.
+     */
+    public void setDirectedChannelId(RadioChannel channel, ChannelConfig profile, int deviceNumber,
+                                     int transmissionType) throws ChannelInitializationException {
+        int deviceType = profile.getDeviceType();
+
+        try {
+            channel.setChannelId(new ChannelId(deviceNumber, deviceType, transmissionType));
+        } catch (RadioChannelException e) {
+            throw new ChannelInitializationException(e.getMessage(), e);
+        }
     }
 
-    private int getPeriodFromPreferences(SharedPreferences sharedPrefs, Resources res) {
-        String period = sharedPrefs.getString(res.getString(R.string.pref_period_key), null);
-        return Integer.valueOf(period);
+    //
+    // Sets channel parameters for a channel.
+    //
+    private void setChannelParameters(RadioChannel channel, ChannelConfig config)
+            throws RadioChannelException {
+        channel.assign(TYPE);
+        channel.setChannelId(getChannelId(config.getDeviceType(), config.getTransmissionType()));
+        channel.setRfFrequency(config.getFrequency());
+        channel.setPeriod(config.getPeriod());
     }
 
     //
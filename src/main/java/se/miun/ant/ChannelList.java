@@ -1,34 +1,93 @@
 package se.miun.ant;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ChannelList implements ListItemState.ListItemStateListener  {
 
+    /**
+     * Shows the lights of the list. Implemented by ChannelAdapter.
+     */
+    public interface SnapshotView {
+        /**
+         * Called on the UI thread when the lights of the list have changed.
+         * @param snapshot the lights to show.
+         */
+        public void showSnapshot(ChannelStateStore.Snapshot snapshot);
+    }
+
     public interface ChannelListener {
         public void onChannelSelected(ChannelWrapper channelWrapper, int lightIntensity);
-        public void onLightIntensityDataUpdated(int[] intensityValues);
+
+        /**
+         * Called on the UI thread, at most once per display frame, when the light intensity of
+         * one or more channels has changed. The changed channels are the ListItemStates for which
+         * clearIntensityDirty() returns true.
+         */
+        public void onLightIntensityDataUpdated();
     }
 
+    // The minimum time between two onLightIntensityDataUpdated() calls (about one display frame).
+    private static final long INTENSITY_UPDATE_INTERVAL_MS = 16;
+
     private ChannelListener channelListener;
 
-    private List<ListItemState> listItemStates;
+    // The states of the connected lights, keyed by light identity.
+    private ChannelStateStore channelStates;
 
     private ChannelAdapter channelAdapter;
+    private SnapshotView snapshotView;
+
+    // Runs the list and intensity updates on the UI thread.
+    private ChannelExecutors.DelayedExecutor mainThreadExecutor;
+
+    // Set while an intensity update is posted to the UI thread but has not yet run. Light intensity
+    // changes that arrive in the meantime are included in that update.
+    private AtomicBoolean intensityUpdatePending;
+
+    // Shows the latest snapshot of channelStates in the list. Posted to the UI thread.
+    private Runnable showLatestSnapshotRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            snapshotView.showSnapshot(channelStates.getSnapshot());
+        }
+    };
+
+    private Runnable intensityUpdateRunnable = new Runnable() {
 
-    private Handler uiThreadHandler;
+        @Override
+        public void run() {
+            intensityUpdatePending.set(false);
+            if (channelListener != null) channelListener.onLightIntensityDataUpdated();
+        }
+    };
 
     public ChannelList(Context context) {
 
-        listItemStates = new ArrayList<ListItemState>();
-        channelAdapter = new ChannelAdapter(context, listItemStates);
+        channelStates = new ChannelStateStore();
+        channelAdapter = new ChannelAdapter(context, channelStates.getSnapshot());
+        snapshotView = channelAdapter;
+
+        mainThreadExecutor = ChannelExecutors.getMainThreadExecutor();
+        intensityUpdatePending = new AtomicBoolean(false);
+    }
 
-        uiThreadHandler = new Handler(Looper.getMainLooper());
+    /**
+     * Constructor for a list that is not shown in a ListView, for example in a load test. There is
+     * no ChannelAdapter (see getChannelAdapter()).
+     * @param snapshotView shows the lights.
+     * @param uiExecutor runs the updates of the view, in place of the UI thread.
+     */
+    ChannelList(SnapshotView snapshotView, ChannelExecutors.DelayedExecutor uiExecutor) {
+        channelStates = new ChannelStateStore();
+        this.snapshotView = snapshotView;
+
+        mainThreadExecutor = uiExecutor;
+        intensityUpdatePending = new AtomicBoolean(false);
     }
 
     public ChannelAdapter getChannelAdapter() {
@@ -39,62 +98,114 @@ public class ChannelList implements ListItemState.ListItemStateListener  {
         channelListener = listener;
     }
 
-    public void addChannelWrapper(ChannelWrapper wrapper) {
-        if (wrapper.isChannelAlive()) {
-            listItemStates.add(new ListItemState(wrapper, this));
-            // Note: we do not call notifyDataSetChanged() here because the ListItemState might
-            // not yet have received any intensity data. See onLightIntensityChanged().
+    /**
+     * Returns the current list item states. The returned list can not be modified.
+     * Can be called from any thread.
+     * @return the list item states.
+     */
+    public List<ListItemState> getListItemStates() {
+        return channelStates.getSnapshot().getStates();
+    }
+
+    /**
+     * Returns the state of a light.
+     * @param deviceNumber the device number of the light's ANT master.
+     * @param transmissionType the transmission type of the light's ANT master.
+     * @return the state, or null if the light is not connected.
+     */
+    public ListItemState findListItemState(int deviceNumber, int transmissionType) {
+        return channelStates.getSnapshot().find(ChannelStateStore.makeKey(deviceNumber, transmissionType));
+    }
+
+    /**
+     * Adds a connected channel to the list. The channel ID of the channel is requested to identify
+     * the light, which is a binder call, so this method should not be called on the UI thread.
+     * If the light is already in the list (the search found it on a second channel), the new
+     * channel is released. Can be called from any thread.
+     * @param wrapper the connected channel.
+     * @return true if the channel was added, false if it was released because it is not alive or
+     *         its light is already in the list.
+     */
+    public boolean addChannelWrapper(ChannelWrapper wrapper) {
+        if (!wrapper.isChannelAlive()) return false;
+
+        ListItemState state = new ListItemState(wrapper, this);
+        ListItemState existing = channelStates.putIfAbsent(getChannelKey(wrapper), state);
+
+        if (existing != null) {
+            wrapper.removeChannelDataListener(state);
+            wrapper.releaseChannel();
+            return false;
+        }
+        // Note: the list is not updated here because the ListItemState might not yet have received
+        // any intensity data. See onHasReceivedLightIntensityData().
+        return true;
+    }
+
+    private long getChannelKey(ChannelWrapper wrapper) {
+        int deviceNumber = wrapper.getDeviceNumber();
+        int transmissionType = wrapper.getTransmissionType();
+
+        if (deviceNumber == ChannelWrapper.DEVICE_NUMBER_UNKNOWN ||
+            transmissionType == ChannelWrapper.TRANSMISSION_TYPE_UNKNOWN) {
+            return ChannelStateStore.makeUnidentifiedKey();
         }
+        return ChannelStateStore.makeKey(deviceNumber, transmissionType);
     }
 
     public void validateChannels() {
-        Iterator<ListItemState> iterator = listItemStates.iterator();
-
-        while (iterator.hasNext()) {
-            ListItemState state = iterator.next();
-            if (!state.channelWrapper.isChannelAlive()) {
-                iterator.remove();
-                notifyDataSetChanged();
-            }
+        List<ListItemState> closedStates = new ArrayList<ListItemState>();
+
+        for (ListItemState state : channelStates.getSnapshot().getStates()) {
+            if (!state.channelWrapper.isChannelAlive()) closedStates.add(state);
         }
+
+        if (channelStates.removeAll(closedStates)) showLatestSnapshot();
     }
 
     public void closeChannels() {
-        for (ListItemState state : listItemStates) {
+        for (ListItemState state : channelStates.getSnapshot().getStates()) {
             state.channelWrapper.closeChannel();
         }
     }
 
     public void openChannels() {
-        for (ListItemState state : listItemStates) {
+        for (ListItemState state : channelStates.getSnapshot().getStates()) {
             state.channelWrapper.openChannel();
         }
     }
 
-    private void notifyDataSetChanged() {
-        uiThreadHandler.post(new Runnable() {
-
-            @Override
-            public void run() {
-                channelAdapter.notifyDataSetChanged();
-            }
-        });
+    //
+    // The list is only updated on the UI thread, from the latest snapshot at that time.
+    //
+    private void showLatestSnapshot() {
+        mainThreadExecutor.execute(showLatestSnapshotRunnable);
     }
 
+    //
+    // Called on the channel actor.
+    //
     @Override
     public void onChannelConnectionClosed(ListItemState listItemState) {
-        listItemStates.remove(listItemState);
-        notifyDataSetChanged();
+        if (channelStates.remove(listItemState)) showLatestSnapshot();
     }
 
+    //
+    // Called on the channel actor. Marks the channel as changed and posts an intensity update to the
+    // UI thread unless one is already pending.
+    //
     @Override
-    public void onLightIntensityChanged(int lightIntensity) {
-        channelListener.onLightIntensityDataUpdated(getIntensityValues());
+    public void onLightIntensityChanged(ListItemState listItemState) {
+        listItemState.markIntensityDirty();
+
+        if (intensityUpdatePending.compareAndSet(false, true)) {
+            mainThreadExecutor.executeDelayed(intensityUpdateRunnable, INTENSITY_UPDATE_INTERVAL_MS);
+        }
     }
 
     @Override
     public void onHasReceivedLightIntensityData() {
-        notifyDataSetChanged();
+        showLatestSnapshot();
     }
 
     @Override
@@ -102,15 +213,4 @@ public class ChannelList implements ListItemState.ListItemStateListener  {
         channelListener.onChannelSelected(listItemState.channelWrapper,
                                           listItemState.lightIntensity);
     }
-
-
-    private int[] getIntensityValues() {
-        int[] intensityValues = new int[listItemStates.size()];
-
-        for (int i = 0; i < listItemStates.size(); i++) {
-            intensityValues[i] = listItemStates.get(i).lightIntensity;
-        }
-
-        return intensityValues;
-    }
 }
@@ -3,9 +3,7 @@ package se.miun.ant;
 import android.app.Activity;
 import android.os.Bundle;
 import android.support.v4.app.ListFragment;
-import android.view.View;
 import android.widget.ListView;
-import android.widget.TextView;
 
 /**
  * The ChannelListFragment class extends ListFragment in order to display the list of channels
@@ -100,48 +98,25 @@ public class ChannelListFragment extends ListFragment implements ChannelList.Cha
     }
 
     /**
-     * This method is called when an ANT channel receives new light intensity data and the
-     * light intensity number for that channel in the channel list needs to be updated. For simplicity
-     * the ChannelList will pass in the current intensity values for all channels in an array, and
-     * it is up to this method to make sure that the current values or correctly shown in the ListView.
+     * This method is called on the UI thread when one or more ANT channels have received new light
+     * intensity data and the light intensity numbers for those channels in the channel list need
+     * to be updated. The ChannelList calls this at most once per display frame, no matter how many
+     * channels changed in between, and only the visible rows whose channel has changed are updated.
+     * Rows that are not visible get the current value when they are next rendered by the adapter.
      *
      * Another way to accomplish this is to call the notifyDataSetChanged method on the ListAdapter,
      * which will then automatically update the ListView. The reason this is not used is that it will
      * cause a re-rendering of the ListView which in turn causes the SeekBars to loose focus, which would
      * make them unusable because this method is called quite often.
-     * @param intensityValues the current light intensity values for all channels.
      */
     @Override
-    public void onLightIntensityDataUpdated(final int[] intensityValues) {
-        getActivity().runOnUiThread(new Runnable() {
-
-            @Override
-            public void run() {
-                int firstVisible = listView.getFirstVisiblePosition();
-
-                for (int childIndex = 0; childIndex < listView.getChildCount(); childIndex++) {
-                    int intensityIndex = firstVisible + childIndex;
-
-                    // This can happen if a channel is added to the list view after the start of
-                    // this method but before the start of the for loop.
-                    if (intensityIndex >= intensityValues.length) {
-                        return;
-                    }
-
-                    View row = listView.getChildAt(childIndex);
-                    TextView intensityView = (TextView)row.findViewById(R.id.channel_intensity_view);
-                    int lightIntensity = intensityValues[intensityIndex];
-                    intensityView.setText(String.valueOf(lightIntensity));
-                }
-            }
-        });
-    }
+    public void onLightIntensityDataUpdated() {
+        if (listView == null) return;
 
-    /**
-     * Adds a ChannelWrapper object to the ChannelList.
-     * @param channelWrapper the ChannelWrapper to add to the ChannelList.
-     */
-    public void addChannelWrapper(ChannelWrapper channelWrapper) {
-        channelList.addChannelWrapper(channelWrapper);
+        ChannelAdapter adapter = channelList.getChannelAdapter();
+
+        for (int childIndex = 0; childIndex < listView.getChildCount(); childIndex++) {
+            adapter.updateChangedIntensityView(listView.getChildAt(childIndex));
+        }
     }
 }
@@ -0,0 +1,375 @@
+package se.miun.ant;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ChannelMetrics counts what happens on one ANT channel (see ChannelWrapper): received broadcasts,
+ * RX_FAIL and CHANNEL_CLOSED events, broadcasts that were never delivered because a newer one
+ * arrived first (coalesced) or that carried the same data as the previous one (duplicates),
+ * acknowledged transfers and their outcome, burst transfers and their throughput, the time it
+ * takes to call the channel's listeners, and the time between two updates of the light (about one
+ * channel period on a channel of its own, and the time between two visits for a light that shares
+ * its channel, see ChannelMultiplexer).
+ *
+ * The latency of an acknowledged transfer is split in three, so that a slow response can be traced
+ * to the app, the ANT radio service or the RF link:
+ *
+ * 1) queue delay: from the command being submitted until it is sent (see IntensityCommandQueue),
+ * 2) call time: the startSendAcknowledgedData() binder call to the ANT radio service,
+ * 3) ack latency: from the call returning until TRANSFER_TX_COMPLETED or TRANSFER_TX_FAILED.
+ *
+ * Every counter is an AtomicLong and the histogram buckets are an AtomicLongArray, so recording is
+ * a single atomic increment that never locks or allocates. Recording is done on the ANT binder
+ * threads, the channel actor and the radio pool, and the values can be read from any thread
+ * (see ChannelMetricsRegistry). The values of one snapshot are read one by one, so a snapshot taken
+ * while the channel is busy may be off by a message or two between counters.
+ *
+ * The rates are measured on a Clock, which is the JVM's monotonic clock in the app. A replayed
+ * message trace (see MessageTraceReplay) measures them on the clock of the trace instead, so that
+ * the rates are the ones of the recording and not of the replay.
+ */
+public class ChannelMetrics {
+
+    /**
+     * The time base of the metrics.
+     */
+    public interface Clock {
+        /**
+         * Returns the current time. Can be called from any thread.
+         * @return the current time in milliseconds.
+         */
+        public long now();
+    }
+
+    /** The monotonic clock of the JVM (System.nanoTime()), which is also available off Android. */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+
+        @Override
+        public long now() {
+            return System.nanoTime() / 1000000L;
+        }
+    };
+
+    /**
+     * A histogram of durations with power of two buckets: bucket 0 counts durations below 1 us,
+     * and bucket i counts durations from 2^(i-1) us up to 2^i us. The last bucket also counts all
+     * longer durations.
+     */
+    public static final class Histogram {
+
+        private static final int BUCKETS = 32;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        /**
+         * Records a duration. Can be called from any thread.
+         * @param nanos the duration in nanoseconds.
+         */
+        public void record(long nanos) {
+            long micros = Math.max(0, nanos) / 1000;
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Returns the mean duration.
+         * @return the mean duration in microseconds, or 0 if nothing has been recorded.
+         */
+        public long getMeanMicros() {
+            long n = count.get();
+            return n == 0 ? 0 : totalNanos.get() / n / 1000;
+        }
+
+        public long getMaxMicros() {
+            return maxNanos.get() / 1000;
+        }
+
+        /**
+         * Returns an upper bound of a percentile, the upper limit of the bucket it falls in.
+         * @param percentile the percentile (0 - 100).
+         * @return the upper bound in microseconds, or 0 if nothing has been recorded.
+         */
+        public long getPercentileMicros(int percentile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) return 0;
+
+            long rank = (total * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(1, rank)) return Math.min(1L << i, getMaxMicros());
+            }
+            return getMaxMicros();
+        }
+    }
+
+    private final Clock clock;
+    private final long createdTime;
+    private volatile String label;
+    private volatile long releasedTime;
+
+    private final AtomicLong rxMessages = new AtomicLong();
+    private final AtomicLong rxCoalesced = new AtomicLong();
+    private final AtomicLong rxDuplicates = new AtomicLong();
+    private final AtomicLong rxFails = new AtomicLong();
+    private final AtomicLong channelClosed = new AtomicLong();
+
+    private final AtomicLong txAttempts = new AtomicLong();
+    private final AtomicLong txSendErrors = new AtomicLong();
+    private final AtomicLong txCompleted = new AtomicLong();
+    private final AtomicLong txFailed = new AtomicLong();
+
+    private final AtomicLong burstsCompleted = new AtomicLong();
+    private final AtomicLong burstsFailed = new AtomicLong();
+    private final AtomicLong burstChunks = new AtomicLong();
+    private final AtomicLong burstChunksFailed = new AtomicLong();
+    private final AtomicLong burstBytes = new AtomicLong();
+    private final AtomicLong burstNanos = new AtomicLong();
+
+    private final Histogram dispatchTime = new Histogram();
+    private final Histogram txQueueDelay = new Histogram();
+    private final Histogram txCallTime = new Histogram();
+    private final Histogram txAckLatency = new Histogram();
+    private final Histogram updateInterval = new Histogram();
+
+    /**
+     * Constructor.
+     * @param label the name of the channel in the diagnostics, until setLabel() is called.
+     */
+    public ChannelMetrics(String label) {
+        this(label, SYSTEM_CLOCK);
+    }
+
+    /**
+     * Constructor.
+     * @param label the name of the channel in the diagnostics, until setLabel() is called.
+     * @param clock the clock that the uptime and rates are measured on.
+     */
+    public ChannelMetrics(String label, Clock clock) {
+        this.label = label;
+        this.clock = clock;
+        createdTime = clock.now();
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Sets the name of the channel in the diagnostics, for example when its device number is known.
+     * @param label the new name.
+     */
+    public void setLabel(String label) {
+        this.label = label;
+    }
+
+    // The following methods record events. They can be called from any thread.
+
+    public void recordRxMessage() {
+        rxMessages.incrementAndGet();
+    }
+
+    public void recordRxCoalesced() {
+        rxCoalesced.incrementAndGet();
+    }
+
+    public void recordRxDuplicate() {
+        rxDuplicates.incrementAndGet();
+    }
+
+    public void recordRxFail() {
+        rxFails.incrementAndGet();
+    }
+
+    public void recordChannelClosed() {
+        channelClosed.incrementAndGet();
+    }
+
+    public void recordTxAttempt() {
+        txAttempts.incrementAndGet();
+    }
+
+    public void recordTxSendError() {
+        txSendErrors.incrementAndGet();
+    }
+
+    public void recordTxCompleted() {
+        txCompleted.incrementAndGet();
+    }
+
+    public void recordTxFailed() {
+        txFailed.incrementAndGet();
+    }
+
+    public void recordBurstCompleted() {
+        burstsCompleted.incrementAndGet();
+    }
+
+    public void recordBurstFailed() {
+        burstsFailed.incrementAndGet();
+    }
+
+    /**
+     * Records a chunk of a burst transfer that the master has received.
+     * @param bytes the size of the chunk.
+     * @param nanos the time from sending the chunk until TRANSFER_TX_COMPLETED, in nanoseconds.
+     */
+    public void recordBurstChunk(int bytes, long nanos) {
+        burstChunks.incrementAndGet();
+        burstBytes.addAndGet(bytes);
+        burstNanos.addAndGet(nanos);
+    }
+
+    public void recordBurstChunkFailed() {
+        burstChunksFailed.incrementAndGet();
+    }
+
+    /**
+     * Records the time it took to call the listeners of the channel with one message.
+     * @param nanos the dispatch time in nanoseconds.
+     */
+    public void recordDispatchTime(long nanos) {
+        dispatchTime.record(nanos);
+    }
+
+    /**
+     * Records the time an acknowledged message waited in the command queue before it was sent.
+     * @param nanos the queue delay in nanoseconds.
+     */
+    public void recordTxQueueDelay(long nanos) {
+        txQueueDelay.record(nanos);
+    }
+
+    /**
+     * Records the duration of a startSendAcknowledgedData() call.
+     * @param nanos the call time in nanoseconds.
+     */
+    public void recordTxCallTime(long nanos) {
+        txCallTime.record(nanos);
+    }
+
+    /**
+     * Records the time from a startSendAcknowledgedData() call returning until the transfer
+     * completed or failed.
+     * @param nanos the ack latency in nanoseconds.
+     */
+    public void recordTxAckLatency(long nanos) {
+        txAckLatency.record(nanos);
+    }
+
+    /**
+     * Records the time between two broadcasts that were delivered to the listeners.
+     * @param nanos the update interval in nanoseconds.
+     */
+    public void recordUpdateInterval(long nanos) {
+        updateInterval.record(nanos);
+    }
+
+    /**
+     * Marks the channel as released. The metrics are kept in the registry for a while after this,
+     * so that the history of a lost light can still be seen.
+     */
+    public void markReleased() {
+        if (releasedTime == 0) releasedTime = clock.now();
+    }
+
+    // The following methods read the metrics. They can be called from any thread.
+
+    public boolean isReleased() {
+        return releasedTime != 0;
+    }
+
+    /**
+     * Returns the time the channel was released, in the time base of the metrics' Clock.
+     * @return the release time, or 0 if the channel has not been released.
+     */
+    public long getReleasedTime() {
+        return releasedTime;
+    }
+
+    /**
+     * Returns the time since the channel was released.
+     * @return the time since release in milliseconds, or 0 if the channel has not been released.
+     */
+    public long getTimeSinceReleaseMs() {
+        return releasedTime != 0 ? clock.now() - releasedTime : 0;
+    }
+
+    /**
+     * Returns the time the metrics have been recorded for.
+     * @return the time since the metrics were created (until release), in milliseconds.
+     */
+    public long getUptimeMs() {
+        long end = releasedTime != 0 ? releasedTime : clock.now();
+        return Math.max(1, end - createdTime);
+    }
+
+    /**
+     * Returns the average broadcast rate over the lifetime of the channel.
+     * @return the received broadcasts per second.
+     */
+    public double getRxRate() {
+        return rxMessages.get() * 1000.0 / getUptimeMs();
+    }
+
+    public long getRxMessages() { return rxMessages.get(); }
+    public long getRxCoalesced() { return rxCoalesced.get(); }
+    public long getRxDuplicates() { return rxDuplicates.get(); }
+    public long getRxFails() { return rxFails.get(); }
+    public long getChannelClosed() { return channelClosed.get(); }
+    public long getTxAttempts() { return txAttempts.get(); }
+    public long getTxSendErrors() { return txSendErrors.get(); }
+    public long getTxCompleted() { return txCompleted.get(); }
+    public long getTxFailed() { return txFailed.get(); }
+    public long getBurstsCompleted() { return burstsCompleted.get(); }
+    public long getBurstsFailed() { return burstsFailed.get(); }
+    public long getBurstChunks() { return burstChunks.get(); }
+    public long getBurstChunksFailed() { return burstChunksFailed.get(); }
+    public long getBurstBytes() { return burstBytes.get(); }
+    public Histogram getDispatchTime() { return dispatchTime; }
+    public Histogram getTxQueueDelay() { return txQueueDelay; }
+    public Histogram getTxCallTime() { return txCallTime; }
+    public Histogram getTxAckLatency() { return txAckLatency; }
+    public Histogram getUpdateInterval() { return updateInterval; }
+
+    /**
+     * Returns the share of the finished acknowledged transfers that failed.
+     * @return the failure ratio (0 - 1), or 0 if no transfer has finished.
+     */
+    public double getTxFailureRatio() {
+        long failed = txFailed.get();
+        long finished = failed + txCompleted.get();
+        return finished == 0 ? 0 : (double)failed / finished;
+    }
+
+    /**
+     * Returns the burst throughput: the bytes of the received chunks divided by the time the chunks
+     * took to send. The time between chunks (retry delays) is not included.
+     * @return the throughput in bytes per second, or 0 if no chunk has been received.
+     */
+    public long getBurstThroughput() {
+        long nanos = burstNanos.get();
+        return nanos == 0 ? 0 : burstBytes.get() * 1000000000L / nanos;
+    }
+}
@@ -0,0 +1,158 @@
+package se.miun.ant;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * ChannelMetricsRegistry keeps the ChannelMetrics of every channel that has been connected, and
+ * dumps them as text (for the diagnostics screen and the log) or as JSON (for sharing).
+ *
+ * Channels are registered when they connect (see LightControllerActivity.onChannelConnected()).
+ * A released channel stays in the registry for RELEASED_RETENTION_MS, so that the metrics of a
+ * light that was lost can still be looked at, and is then dropped the next time the registry is read.
+ */
+public class ChannelMetricsRegistry {
+
+    // The time that the metrics of a released channel are kept.
+    private static final long RELEASED_RETENTION_MS = 1000 * 60 * 5;
+
+    // Registrations are rare and reads are only made by the diagnostics, so copying on write is fine.
+    private final CopyOnWriteArrayList<ChannelMetrics> channelMetrics;
+
+    public ChannelMetricsRegistry() {
+        channelMetrics = new CopyOnWriteArrayList<ChannelMetrics>();
+    }
+
+    /**
+     * Adds the metrics of a channel. Can be called from any thread.
+     * @param metrics the metrics to add.
+     */
+    public void register(ChannelMetrics metrics) {
+        channelMetrics.addIfAbsent(metrics);
+    }
+
+    /**
+     * Returns the metrics of the channels, in the order they were registered. Metrics of channels
+     * that were released more than RELEASED_RETENTION_MS ago are dropped first.
+     * Can be called from any thread.
+     * @return the metrics.
+     */
+    public List<ChannelMetrics> getChannelMetrics() {
+        List<ChannelMetrics> expired = new ArrayList<ChannelMetrics>();
+
+        for (ChannelMetrics metrics : channelMetrics) {
+            if (metrics.getTimeSinceReleaseMs() > RELEASED_RETENTION_MS) expired.add(metrics);
+        }
+        if (!expired.isEmpty()) channelMetrics.removeAll(expired);
+
+        return new ArrayList<ChannelMetrics>(channelMetrics);
+    }
+
+    /**
+     * Returns a human readable dump of the metrics, one block per channel.
+     * @return the text dump.
+     */
+    public String dumpText() {
+        StringBuilder builder = new StringBuilder();
+
+        for (ChannelMetrics metrics : getChannelMetrics()) {
+            builder.append(metrics.getLabel());
+            if (metrics.isReleased()) builder.append(" (released)");
+            builder.append('\n');
+            builder.append(String.format(Locale.US, "  rx: %d msgs (%.1f/s), %d coalesced, %d duplicates\n",
+                    metrics.getRxMessages(), metrics.getRxRate(),
+                    metrics.getRxCoalesced(), metrics.getRxDuplicates()));
+            builder.append(String.format(Locale.US, "  link: %d rx fails, %d closed\n",
+                    metrics.getRxFails(), metrics.getChannelClosed()));
+            builder.append(String.format(Locale.US, "  tx: %d attempts, %d acked, %d failed (%.1f%%), %d send errors\n",
+                    metrics.getTxAttempts(), metrics.getTxCompleted(), metrics.getTxFailed(),
+                    metrics.getTxFailureRatio() * 100, metrics.getTxSendErrors()));
+            builder.append(String.format(Locale.US, "  burst: %d completed, %d failed, %d bytes in %d chunks (%d failed), %d bytes/s\n",
+                    metrics.getBurstsCompleted(), metrics.getBurstsFailed(), metrics.getBurstBytes(),
+                    metrics.getBurstChunks(), metrics.getBurstChunksFailed(), metrics.getBurstThroughput()));
+            appendHistogramText(builder, "tx queue", metrics.getTxQueueDelay());
+            appendHistogramText(builder, "tx call", metrics.getTxCallTime());
+            appendHistogramText(builder, "tx ack", metrics.getTxAckLatency());
+            appendHistogramText(builder, "dispatch", metrics.getDispatchTime());
+            appendHistogramText(builder, "update", metrics.getUpdateInterval());
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Returns the metrics as a JSON array with one object per channel.
+     * @return the JSON dump.
+     */
+    public String dumpJson() {
+        StringBuilder builder = new StringBuilder("[");
+        boolean first = true;
+
+        for (ChannelMetrics metrics : getChannelMetrics()) {
+            if (!first) builder.append(',');
+            first = false;
+
+            builder.append("{\"label\":\"").append(escapeJson(metrics.getLabel())).append('"');
+            builder.append(",\"released\":").append(metrics.isReleased());
+            builder.append(",\"uptimeMs\":").append(metrics.getUptimeMs());
+            builder.append(",\"rxMessages\":").append(metrics.getRxMessages());
+            builder.append(",\"rxRate\":").append(String.format(Locale.US, "%.2f", metrics.getRxRate()));
+            builder.append(",\"rxCoalesced\":").append(metrics.getRxCoalesced());
+            builder.append(",\"rxDuplicates\":").append(metrics.getRxDuplicates());
+            builder.append(",\"rxFails\":").append(metrics.getRxFails());
+            builder.append(",\"channelClosed\":").append(metrics.getChannelClosed());
+            builder.append(",\"txAttempts\":").append(metrics.getTxAttempts());
+            builder.append(",\"txCompleted\":").append(metrics.getTxCompleted());
+            builder.append(",\"txFailed\":").append(metrics.getTxFailed());
+            builder.append(",\"txSendErrors\":").append(metrics.getTxSendErrors());
+            builder.append(",\"txFailureRatio\":").append(String.format(Locale.US, "%.4f", metrics.getTxFailureRatio()));
+            builder.append(",\"burstsCompleted\":").append(metrics.getBurstsCompleted());
+            builder.append(",\"burstsFailed\":").append(metrics.getBurstsFailed());
+            builder.append(",\"burstBytes\":").append(metrics.getBurstBytes());
+            builder.append(",\"burstChunks\":").append(metrics.getBurstChunks());
+            builder.append(",\"burstChunksFailed\":").append(metrics.getBurstChunksFailed());
+            builder.append(",\"burstBytesPerSecond\":").append(metrics.getBurstThroughput());
+            appendHistogramJson(builder, "txQueueUs", metrics.getTxQueueDelay());
+            appendHistogramJson(builder, "txCallUs", metrics.getTxCallTime());
+            appendHistogramJson(builder, "txAckUs", metrics.getTxAckLatency());
+            appendHistogramJson(builder, "dispatchUs", metrics.getDispatchTime());
+            appendHistogramJson(builder, "updateUs", metrics.getUpdateInterval());
+            builder.append('}');
+        }
+
+        return builder.append(']').toString();
+    }
+
+    private static void appendHistogramText(StringBuilder builder, String name, ChannelMetrics.Histogram histogram) {
+        builder.append(String.format(Locale.US, "  %s: n=%d mean=%d us p50<=%d us p99<=%d us max=%d us\n",
+                name, histogram.getCount(), histogram.getMeanMicros(), histogram.getPercentileMicros(50),
+                histogram.getPercentileMicros(99), histogram.getMaxMicros()));
+    }
+
+    private static void appendHistogramJson(StringBuilder builder, String name, ChannelMetrics.Histogram histogram) {
+        builder.append(",\"").append(name).append("\":{\"count\":").append(histogram.getCount());
+        builder.append(",\"mean\":").append(histogram.getMeanMicros());
+        builder.append(",\"p50\":").append(histogram.getPercentileMicros(50));
+        builder.append(",\"p99\":").append(histogram.getPercentileMicros(99));
+        builder.append(",\"max\":").append(histogram.getMaxMicros());
+        builder.append('}');
+    }
+
+    private static String escapeJson(String text) {
+        StringBuilder builder = new StringBuilder(text.length());
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format(Locale.US, "\\u%04x", (int)c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+}
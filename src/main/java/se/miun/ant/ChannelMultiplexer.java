@@ -0,0 +1,848 @@
+package se.miun.ant;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.dsi.ant.channel.ExtendedAssignment;
+import com.dsi.ant.message.ChannelId;
+import com.dsi.ant.message.ChannelState;
+import com.dsi.ant.message.ChannelType;
+import com.dsi.ant.message.EventCode;
+import com.dsi.ant.message.LibConfig;
+import com.dsi.ant.message.fromant.MessageFromAntType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import se.miun.ant.ChannelInitializer.ChannelInitializationException;
+import se.miun.ant.ChannelRetriever.ChannelRetrieveException;
+import se.miun.ant.RadioChannel.RadioChannelException;
+
+/**
+ * ChannelMultiplexer controls more lights than the ANT radio has channels, by rotating a few
+ * physical channels over a larger set of lights. When a search finds more known masters than it has
+ * channels for, ChannelSearcher hands some of its channels and the remaining masters to the
+ * multiplexer. Every multiplexed light gets a RadioChannel of its own (a LightChannel), which is
+ * reported to the search listener like any connected channel, so it is wrapped in a ChannelWrapper
+ * and shown in the ChannelList, faded and saved in scenes like every other light.
+ *
+ * A physical channel visits one light at a time:
+ *
+ * open (directed to the light) -> first broadcast (delivered to the light's channel) -> send the
+ * light's pending acknowledged message, if any -> close -> visit the next light.
+ *
+ * A channel only closes when another light is waiting for a visit. While no light is waiting it
+ * stays on its light and keeps delivering its broadcasts. Between visits a light keeps its last
+ * known state in its ListItemState, so the list shows slightly stale but recent values for every
+ * light. The time between two updates of a light is measured as the update interval of its
+ * ChannelMetrics, and the time until a command was acknowledged as its tx ack latency.
+ *
+ * The next light to visit is chosen in this order:
+ *
+ * 1) lights with a pending acknowledged message, oldest message first,
+ * 2) lights that have not been updated for maxStalenessMs (the fairness bound), most stale first,
+ * 3) pinned lights (the light shown in an open ChannelViewFragment), most stale first,
+ * 4) all other lights, most stale first (round robin).
+ *
+ * A smaller maxStalenessMs (see setMaxStalenessMs()) gives a fairer rotation, at the cost of slower
+ * updates for the pinned lights. Only the latest acknowledged message of a light is sent; a message
+ * that is replaced before it was sent has already been ended as failed by the ChannelWrapper.
+ *
+ * A light that has not been found in MAX_MISSED_VISITS visits in a row is reported to its
+ * ChannelWrapper as a closed channel, and the wrapper reconnects it as usual by reopening its
+ * channel, which puts the light back in the rotation. A light that was never found is dropped, so
+ * that a later search can try it again.
+ *
+ * The physical channels are taken from the ChannelRetriever when they are handed to the
+ * multiplexer, and given back while no light is open. All state is owned by the multiplexer actor,
+ * which runs on the radio pool since most of its tasks are blocking calls (see ChannelExecutors).
+ * The events of the physical channels and the calls of the ChannelWrappers are handed to the actor.
+ */
+public class ChannelMultiplexer {
+
+    /** The default fairness bound (see the class comment). */
+    public static final int DEFAULT_MAX_STALENESS_MS = 1000 * 10;
+
+    // The time a physical channel searches for a light, or waits for its close event, before the
+    // visit is given up.
+    private static final int VISIT_TIMEOUT_MS = 1000 * 2;
+
+    // The number of visits in a row in which a light is not found before it is reported as closed.
+    private static final int MAX_MISSED_VISITS = 3;
+
+    // The time before physical channels that could not be retrieved are requested again.
+    private static final int RETRIEVE_RETRY_MS = 1000 * 5;
+
+    private final ChannelRetriever channelRetriever;
+    private final ScheduledExecutorService workers;
+    private final SerialExecutor multiplexerActor;
+    private volatile int maxStalenessMs;
+
+    // The lights, keyed by light (see ChannelStateStore.makeKey()). Read from any thread by
+    // isMultiplexed(); only changed on the multiplexer actor.
+    private final ConcurrentHashMap<Long, LightChannel> lights;
+
+    // The physical channels, and the number of channels that have been handed to the multiplexer.
+    // Only accessed on the multiplexer actor, except for the count, which ChannelSearcher reads.
+    private final List<Slot> slots;
+    private volatile int wantedChannels;
+    private long nextRetrieveTime;
+
+    /**
+     * Constructor.
+     * @param channelRetriever provides the physical channels.
+     */
+    public ChannelMultiplexer(ChannelRetriever channelRetriever) {
+        this.channelRetriever = channelRetriever;
+        workers = ChannelExecutors.getWorkerExecutor();
+        multiplexerActor = ChannelExecutors.newRadioSerialExecutor();
+        maxStalenessMs = DEFAULT_MAX_STALENESS_MS;
+        lights = new ConcurrentHashMap<Long, LightChannel>();
+        slots = new ArrayList<Slot>();
+    }
+
+    /**
+     * Sets the fairness bound (see the class comment). Can be called from any thread.
+     * @param maxStalenessMs the time after which a light is visited before the pinned lights.
+     */
+    public void setMaxStalenessMs(int maxStalenessMs) {
+        this.maxStalenessMs = maxStalenessMs;
+    }
+
+    /**
+     * Returns the number of physical channels that have been handed to the multiplexer. Can be called
+     * from any thread.
+     * @return the number of physical channels.
+     */
+    public int getChannelCount() {
+        return wantedChannels;
+    }
+
+    /**
+     * Returns whether a light is in the rotation, so that a search does not open a channel of its
+     * own to it. Can be called from any thread.
+     * @param lightKey the key of the light (see ChannelStateStore.makeKey()).
+     * @return true if the light is multiplexed and its channel is open.
+     */
+    public boolean isMultiplexed(long lightKey) {
+        LightChannel light = lights.get(lightKey);
+        return light != null && light.open;
+    }
+
+    /**
+     * Hands physical channels to the multiplexer. The channels are retrieved from the ChannelRetriever
+     * on the multiplexer actor. This method does not block and can be called from any thread.
+     * @param count the number of channels to add.
+     */
+    public void addChannels(final int count) {
+        multiplexerActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                wantedChannels += count;
+                nextRetrieveTime = 0;
+                scheduleVisits();
+            }
+        });
+    }
+
+    /**
+     * Adds a light to the rotation. The light's channel is reported to the listener the first time
+     * the light is found. A light that is already in the rotation is left as it is. This method does
+     * not block and can be called from any thread.
+     * @param lightKey the key of the light (see ChannelStateStore.makeKey()).
+     * @param profileNumber the number of the channel profile that the light was last found with.
+     * @param profile the channel profile that the light was last found with.
+     * @param listener notified when the light has been found.
+     */
+    public void addLight(long lightKey, int profileNumber, ChannelConfig profile,
+                         ChannelSearcher.OnChannelSearchStatusListener listener) {
+        final LightChannel light = new LightChannel(lightKey, profileNumber, profile, listener);
+
+        multiplexerActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                onLightAdded(light);
+            }
+        });
+    }
+
+    /**
+     * Pins or unpins a light. Pinned lights are visited before other lights, within the fairness
+     * bound. Lights that are not multiplexed are ignored. This method does not block and can be
+     * called from any thread.
+     * @param deviceNumber the device number of the light's master.
+     * @param transmissionType the transmission type of the light's master.
+     * @param pinned true to pin the light, false to unpin it.
+     */
+    public void setPinned(int deviceNumber, int transmissionType, final boolean pinned) {
+        final long key = ChannelStateStore.makeKey(deviceNumber, transmissionType);
+
+        multiplexerActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                LightChannel light = lights.get(key);
+                if (light == null) return;
+
+                light.pinned = pinned;
+                scheduleVisits();
+            }
+        });
+    }
+
+    // The following methods, up to the inner classes, are called on the multiplexer actor.
+
+    //
+    // A light whose channel was closed for good (the ChannelWrapper gave up reconnecting) is replaced,
+    // since the search only hands over lights that are not in the ChannelList.
+    //
+    private void onLightAdded(LightChannel light) {
+        LightChannel existing = lights.get(light.key);
+        if (existing != null && existing.open) return;
+        if (existing != null) existing.release();
+
+        lights.put(light.key, light);
+        scheduleVisits();
+    }
+
+    private void onLightOpened(LightChannel light) {
+        if (light.released) return;
+
+        light.missedVisits = 0;
+        scheduleVisits();
+    }
+
+    //
+    // The channel of a light was closed by its ChannelWrapper, which is told with a CHANNEL_CLOSED
+    // event as it would be by the radio.
+    //
+    private void onLightClosed(LightChannel light) {
+        light.pendingCommand = null;
+        if (light.visitingSlot != null) light.visitingSlot.close();
+        light.deliverEvent(EventCode.CHANNEL_CLOSED);
+        scheduleVisits();
+    }
+
+    private void onLightReleased(LightChannel light) {
+        lights.remove(light.key, light);
+        light.pendingCommand = null;
+        if (light.visitingSlot != null) light.visitingSlot.close();
+        scheduleVisits();
+    }
+
+    //
+    // A message that replaces one that has not been sent yet keeps the time of the first one, so that
+    // a light whose slider is being dragged does not lose its place.
+    //
+    private void onCommand(LightChannel light, byte[] payload) {
+        if (!light.open) {
+            light.deliverEvent(EventCode.TRANSFER_TX_FAILED);
+            return;
+        }
+
+        if (light.pendingCommand == null) light.commandTime = now();
+        light.pendingCommand = payload;
+
+        if (light.visitingSlot != null) {
+            light.visitingSlot.onCommandPending();
+        } else {
+            scheduleVisits();
+        }
+    }
+
+    //
+    // Starts a visit on every idle channel, as long as there are lights waiting for a visit. If
+    // lights are still waiting after that, the channels that stay on their light are closed, so
+    // that they can visit the waiting lights. While no light is open, the idle channels are given
+    // back to the radio.
+    //
+    private void scheduleVisits() {
+        if (!hasOpenLights()) {
+            releaseIdleSlots();
+            return;
+        }
+        retrieveMissingChannels();
+
+        for (int i = 0; i < slots.size(); i++) {
+            Slot slot = slots.get(i);
+            if (slot.state != Slot.IDLE) continue;
+
+            LightChannel light = pickNextLight();
+            if (light == null) return;
+            slot.startVisit(light);
+        }
+
+        int waitingLights = countWaitingLights();
+        for (int i = 0; i < slots.size() && waitingLights > 0; i++) {
+            Slot slot = slots.get(i);
+            if (slot.state == Slot.TRACKING) {
+                slot.close();
+                waitingLights--;
+            }
+        }
+    }
+
+    private boolean hasOpenLights() {
+        for (LightChannel light : lights.values()) {
+            if (light.open) return true;
+        }
+        return false;
+    }
+
+    private int countWaitingLights() {
+        int waitingLights = 0;
+        for (LightChannel light : lights.values()) {
+            if (light.open && light.visitingSlot == null) waitingLights++;
+        }
+        return waitingLights;
+    }
+
+    private LightChannel pickNextLight() {
+        long now = now();
+        LightChannel best = null;
+        int bestRank = Integer.MAX_VALUE;
+        long bestTime = Long.MAX_VALUE;
+
+        for (LightChannel light : lights.values()) {
+            if (!light.open || light.visitingSlot != null) continue;
+
+            int rank;
+            long time;
+            if (light.pendingCommand != null) {
+                rank = 0;
+                time = light.commandTime;
+            } else if (now - light.lastUpdateTime >= maxStalenessMs) {
+                rank = 1;
+                time = light.lastUpdateTime;
+            } else if (light.pinned) {
+                rank = 2;
+                time = light.lastUpdateTime;
+            } else {
+                rank = 3;
+                time = light.lastUpdateTime;
+            }
+
+            if (rank < bestRank || (rank == bestRank && time < bestTime)) {
+                best = light;
+                bestRank = rank;
+                bestTime = time;
+            }
+        }
+
+        return best;
+    }
+
+    //
+    // Retrieving a channel is a binder call. If the radio has no free channel, the multiplexer
+    // makes do with the channels it has and tries again after RETRIEVE_RETRY_MS.
+    //
+    private void retrieveMissingChannels() {
+        if (slots.size() >= wantedChannels || now() < nextRetrieveTime) return;
+
+        try {
+            while (slots.size() < wantedChannels) {
+                slots.add(new Slot(channelRetriever.getInitializedChannel()));
+            }
+        } catch (ChannelRetrieveException e) {
+            onRetrieveFailed(e);
+        } catch (ChannelInitializationException e) {
+            onRetrieveFailed(e);
+        }
+    }
+
+    private void onRetrieveFailed(Exception e) {
+        Log.e(GlobalState.LOG_TAG, "Multiplexer: unable to retrieve channel: " + e.getMessage());
+        nextRetrieveTime = now() + RETRIEVE_RETRY_MS;
+    }
+
+    private void releaseIdleSlots() {
+        for (int i = slots.size() - 1; i >= 0; i--) {
+            if (slots.get(i).state == Slot.IDLE) removeSlot(slots.get(i));
+        }
+    }
+
+    private void removeSlot(Slot slot) {
+        slots.remove(slot);
+        slot.channel.release();
+    }
+
+    //
+    // The multiplexer also runs on a plain JVM (see MultiplexerLoadTest), where the SystemClock of
+    // the harness counts from the start of the JVM.
+    //
+    private static long now() {
+        return SystemClock.uptimeMillis();
+    }
+
+
+    //
+    // The channel of one multiplexed light, which its ChannelWrapper uses as if it were a physical
+    // channel. The calls of the wrapper are handed to the multiplexer actor, and the messages of the
+    // physical channel that visits the light are delivered to the wrapper's event handler. The
+    // channel parameters are set on the physical channel when the light is visited.
+    //
+    private class LightChannel implements RadioChannel {
+
+        final long key;
+        final int profileNumber;
+        final ChannelConfig profile;
+        final ChannelSearcher.OnChannelSearchStatusListener listener;
+
+        private volatile EventHandler eventHandler;
+        // Set when a CHANNEL_CLOSED event could not be delivered because the handler was cleared
+        // (see ChannelWrapper.closeChannel()), so that it is delivered when the handler is set again.
+        private volatile boolean closeEventPending;
+
+        volatile boolean open = true;
+        volatile boolean released;
+        volatile ChannelId channelId;
+        volatile int frequency;
+        volatile int period;
+
+        // Only accessed on the multiplexer actor.
+        boolean connected;
+        boolean pinned;
+        byte[] pendingCommand;
+        long commandTime;
+        long lastUpdateTime = Long.MIN_VALUE / 2;
+        int missedVisits;
+        Slot visitingSlot;
+
+        LightChannel(long key, int profileNumber, ChannelConfig profile,
+                     ChannelSearcher.OnChannelSearchStatusListener listener) {
+            this.key = key;
+            this.profileNumber = profileNumber;
+            this.profile = profile;
+            this.listener = listener;
+            channelId = new ChannelId(ChannelStateStore.getDeviceNumber(key), profile.getDeviceType(),
+                                      ChannelStateStore.getTransmissionType(key));
+            frequency = profile.getFrequency();
+            period = profile.getPeriod();
+        }
+
+        // The physical channels are assigned by the multiplexer.
+        @Override
+        public void assign(ChannelType channelType) {}
+
+        @Override
+        public void assign(ChannelType channelType, ExtendedAssignment extendedAssignment)
+                throws RadioChannelException {
+            throw new RadioChannelException("assign: extended assignment is not multiplexed");
+        }
+
+        @Override
+        public void setChannelId(ChannelId channelId) throws RadioChannelException {
+            checkNotReleased("setChannelId");
+            this.channelId = channelId;
+        }
+
+        @Override
+        public void setRfFrequency(int frequency) throws RadioChannelException {
+            checkNotReleased("setRfFrequency");
+            this.frequency = frequency;
+        }
+
+        @Override
+        public void setPeriod(int period) throws RadioChannelException {
+            checkNotReleased("setPeriod");
+            this.period = period;
+        }
+
+        @Override
+        public void setAdapterWideLibConfig(LibConfig libConfig) throws RadioChannelException {
+            throw new RadioChannelException("setAdapterWideLibConfig: not multiplexed");
+        }
+
+        @Override
+        public void open() throws RadioChannelException {
+            checkNotReleased("open");
+            open = true;
+
+            multiplexerActor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    onLightOpened(LightChannel.this);
+                }
+            });
+        }
+
+        @Override
+        public void close() throws RadioChannelException {
+            checkNotReleased("close");
+            if (!open) throw new RadioChannelException("close: channel is not open");
+            open = false;
+
+            multiplexerActor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    onLightClosed(LightChannel.this);
+                }
+            });
+        }
+
+        @Override
+        public void release() {
+            if (released) return;
+            released = true;
+            open = false;
+            eventHandler = null;
+
+            multiplexerActor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    onLightReleased(LightChannel.this);
+                }
+            });
+        }
+
+        @Override
+        public void setEventHandler(EventHandler eventHandler) throws RadioChannelException {
+            checkNotReleased("setEventHandler");
+            this.eventHandler = eventHandler;
+
+            if (closeEventPending) {
+                multiplexerActor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (closeEventPending) deliverEvent(EventCode.CHANNEL_CLOSED);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void clearEventHandler() {
+            eventHandler = null;
+        }
+
+        // A slave's broadcast data is only sent back to the master as a reply, which the lights
+        // ignore, so it is not kept between visits.
+        @Override
+        public void setBroadcastData(byte[] data) throws RadioChannelException {
+            checkNotReleased("setBroadcastData");
+        }
+
+        @Override
+        public void startSendAcknowledgedData(byte[] data) throws RadioChannelException {
+            if (data == null) throw new NullPointerException("data must not be null");
+            checkNotReleased("startSendAcknowledgedData");
+            if (!open) throw new RadioChannelException("startSendAcknowledgedData: channel is not open");
+
+            final byte[] payload = data.clone();
+            multiplexerActor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    onCommand(LightChannel.this, payload);
+                }
+            });
+        }
+
+        @Override
+        public void burstTransfer(byte[] data) throws RadioChannelException {
+            throw new RadioChannelException("burstTransfer: not supported on a multiplexed channel");
+        }
+
+        @Override
+        public ChannelId requestChannelId() throws RadioChannelException {
+            checkNotReleased("requestChannelId");
+            return channelId;
+        }
+
+        @Override
+        public ChannelState requestChannelState() {
+            if (released) return ChannelState.INVALID;
+            return open ? ChannelState.TRACKING : ChannelState.ASSIGNED;
+        }
+
+        //
+        // Called on the multiplexer actor when the light's physical channel has received its
+        // broadcast. The first time, the light's channel is reported as connected.
+        //
+        void onBroadcast(byte[] content) {
+            long now = now();
+            lastUpdateTime = now;
+            missedVisits = 0;
+
+            if (!connected) {
+                connected = true;
+                listener.onChannelConnected(this, profileNumber, profile);
+            }
+            deliver(MessageFromAntType.BROADCAST_DATA, AntProtocolHelper.MESSAGE_ID_BROADCAST_DATA, content);
+        }
+
+        //
+        // Called on the multiplexer actor at the end of a visit in which the light was not found.
+        //
+        void onMissedVisit() {
+            if (++missedVisits < MAX_MISSED_VISITS) return;
+
+            if (connected) {
+                Log.i(GlobalState.LOG_TAG, "Multiplexer: light " + ChannelStateStore.getDeviceNumber(key) +
+                                           " not found in " + missedVisits + " visits");
+                open = false;
+                pendingCommand = null;
+                deliverEvent(EventCode.CHANNEL_CLOSED);
+            } else {
+                release();
+            }
+        }
+
+        // Called on the multiplexer actor.
+        void deliverEvent(EventCode code) {
+            if (code == EventCode.CHANNEL_CLOSED) closeEventPending = eventHandler == null;
+
+            byte[] content = new byte[] { 0, 1, (byte)code.getRawValue() };
+            deliver(MessageFromAntType.CHANNEL_EVENT, AntProtocolHelper.MESSAGE_ID_CHANNEL_EVENT, content);
+        }
+
+        void deliver(MessageFromAntType messageType, int messageId, byte[] content) {
+            EventHandler handler = eventHandler;
+            if (handler != null) handler.onReceiveMessage(messageType, messageId, content);
+        }
+
+        private void checkNotReleased(String command) throws RadioChannelException {
+            if (released) throw new RadioChannelException(command + ": channel released");
+        }
+    }
+
+
+    //
+    // One physical channel and the visit it is making. Only accessed on the multiplexer actor,
+    // except for the event handler methods, which hand the events to the actor.
+    //
+    private class Slot implements RadioChannel.EventHandler {
+
+        static final int IDLE = 0;        // Closed, not visiting a light.
+        static final int SEARCHING = 1;   // Opened, waiting for the first broadcast of the light.
+        static final int TRACKING = 2;    // Receiving the light's broadcasts.
+        static final int SENDING = 3;     // Waiting for an acknowledged transfer to end.
+        static final int CLOSING = 4;     // Closing, waiting for the channel to close.
+
+        final RadioChannel channel;
+        int state = IDLE;
+        LightChannel light;
+        byte[] sentCommand;
+        boolean lightFound;
+
+        // The parameters that were last set on the channel.
+        int frequency;
+        int period;
+
+        // Increased for every timeout that is scheduled, so that only the latest one is acted on.
+        int timeoutNumber;
+
+        // The newest broadcast that has not been handed to the light yet. The ANT service delivers
+        // a new content array with every message, so the array itself is handed over, and a
+        // broadcast that arrives before the previous one was handled replaces it.
+        private final AtomicReference<byte[]> pendingBroadcast = new AtomicReference<byte[]>();
+
+        private final SerialExecutor.Task broadcastTask = new SerialExecutor.Task() {
+
+            @Override
+            public void run() {
+                onBroadcast(pendingBroadcast.getAndSet(null));
+            }
+        };
+
+        Slot(RadioChannel channel) {
+            this.channel = channel;
+
+            // Unknown, so that the first visit sets them.
+            frequency = -1;
+            period = -1;
+            try {
+                channel.setEventHandler(this);
+            } catch (RadioChannelException e) {
+                Log.e(GlobalState.LOG_TAG, "Unable to set ANT channel event handler: " + e.getMessage());
+            }
+        }
+
+        void startVisit(LightChannel light) {
+            this.light = light;
+            light.visitingSlot = this;
+            lightFound = false;
+            sentCommand = null;
+
+            try {
+                if (light.frequency != frequency) {
+                    channel.setRfFrequency(light.frequency);
+                    frequency = light.frequency;
+                }
+                if (light.period != period) {
+                    channel.setPeriod(light.period);
+                    period = light.period;
+                }
+                channel.setChannelId(light.channelId);
+                channel.open();
+                state = SEARCHING;
+            } catch (RadioChannelException e) {
+                // The channel is left closing until the visit times out, so that a broken channel
+                // does not spin through the lights.
+                Log.e(GlobalState.LOG_TAG, "Multiplexer: unable to open channel: " + e.getMessage());
+                frequency = -1;
+                period = -1;
+                state = CLOSING;
+            }
+            scheduleTimeout();
+        }
+
+        void onBroadcast(byte[] content) {
+            if (content == null) return;
+            if (state != SEARCHING && state != TRACKING && state != SENDING) return;
+
+            lightFound = true;
+            light.onBroadcast(content);
+
+            if (state == SEARCHING) {
+                state = TRACKING;
+                sendOrMoveOn();
+            }
+        }
+
+        void onCommandPending() {
+            if (state == TRACKING) sendOrMoveOn();
+        }
+
+        //
+        // Sends the pending message of the light, if any. Otherwise the visit ends if another light
+        // is waiting, or the channel stays on the light if none is.
+        //
+        void sendOrMoveOn() {
+            if (light.pendingCommand != null) {
+                sentCommand = light.pendingCommand;
+                try {
+                    channel.startSendAcknowledgedData(sentCommand);
+                    state = SENDING;
+                } catch (RadioChannelException e) {
+                    // The message stays pending for the next visit.
+                    close();
+                }
+            } else if (pickNextLight() != null) {
+                close();
+            }
+        }
+
+        //
+        // Only the end of the light's latest message is delivered. The wrapper has already ended an
+        // older message as failed when it started the newer one, which is sent next.
+        //
+        void onTransferEnded(byte[] content) {
+            if (state != SENDING) return;
+            state = TRACKING;
+
+            if (light.pendingCommand == sentCommand) {
+                light.pendingCommand = null;
+                light.deliver(MessageFromAntType.CHANNEL_EVENT, AntProtocolHelper.MESSAGE_ID_CHANNEL_EVENT,
+                              content);
+            } else {
+                light.commandTime = now();
+            }
+            sendOrMoveOn();
+        }
+
+        void close() {
+            if (state == CLOSING || state == IDLE) return;
+            state = CLOSING;
+            scheduleTimeout();
+
+            try {
+                channel.close();
+            } catch (RadioChannelException e) {
+                // The channel was already closed by the radio.
+                onClosed();
+            }
+        }
+
+        void onClosed() {
+            if (state == IDLE) return;
+            state = IDLE;
+
+            LightChannel visited = light;
+            visited.visitingSlot = null;
+            light = null;
+            if (!lightFound && visited.open) visited.onMissedVisit();
+
+            scheduleVisits();
+        }
+
+        void onDeath() {
+            if (light != null) light.visitingSlot = null;
+            light = null;
+            state = IDLE;
+            removeSlot(this);
+            scheduleVisits();
+        }
+
+        private void scheduleTimeout() {
+            final int timeout = ++timeoutNumber;
+
+            workers.schedule(ChannelExecutors.onActor(multiplexerActor, new Runnable() {
+
+                @Override
+                public void run() {
+                    if (timeout != timeoutNumber) return;
+
+                    if (state == SEARCHING) {
+                        close();
+                    } else if (state == CLOSING) {
+                        onClosed();
+                    }
+                }
+            }), VISIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        //
+        // Called on an ANT binder thread. RX_FAIL is not passed on: the light's wrapper is told
+        // about a lost light by onMissedVisit(), and RX_FAIL while visiting says nothing about the
+        // lights that are not visited.
+        //
+        @Override
+        public void onReceiveMessage(MessageFromAntType messageType, int messageId, final byte[] content) {
+            if (messageType == MessageFromAntType.BROADCAST_DATA) {
+                if (pendingBroadcast.getAndSet(content) == null) multiplexerActor.execute(broadcastTask);
+            } else if (messageType == MessageFromAntType.CHANNEL_EVENT) {
+                EventCode code = AntProtocolHelper.getEventCode(content);
+
+                if (code == EventCode.TRANSFER_TX_COMPLETED || code == EventCode.TRANSFER_TX_FAILED) {
+                    multiplexerActor.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            onTransferEnded(content);
+                        }
+                    });
+                } else if (code == EventCode.CHANNEL_CLOSED) {
+                    multiplexerActor.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            onClosed();
+                        }
+                    });
+                }
+            }
+        }
+
+        @Override
+        public void onChannelDeath() {
+            multiplexerActor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    onDeath();
+                }
+            });
+        }
+    }
+}
@@ -8,26 +8,53 @@ import android.os.RemoteException;
 import android.util.Log;
 
 import com.dsi.ant.AntService;
-import com.dsi.ant.channel.AntChannel;
-import com.dsi.ant.channel.AntChannelProvider;
-import com.dsi.ant.channel.ChannelNotAvailableException;
-import com.dsi.ant.channel.ChannelNotAvailableReason;
-import com.dsi.ant.channel.PredefinedNetwork;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.miun.ant.ChannelInitializer.ChannelInitializationException;
+import se.miun.ant.RadioChannel.RadioChannelException;
+import se.miun.ant.RadioChannelProvider.NoChannelAvailableException;
 
 /**
  * The ChannelRetriever class is responsible for connecting to the ANT service and it provides
  * uninitialized (no channel parameters set) channels to its clients via the getChannel() method.
+ * The channels come from a RadioChannelProvider, which is the ANT service's channel provider in the
+ * app and a SimulatedAntRadio in the load tests.
  *
  * The instance of this class lives inside of GlobalState. This is because we only want to connect
  * to the ANT service once for the duration of the application process. We connect to the ANT
  * service in the constructor of this class.
+ *
+ * To keep the latency of a channel search down, ChannelRetriever also keeps a pool of "warm"
+ * channels. As soon as the ANT service is connected, channels are acquired and initialized (with
+ * the ChannelInitializer parameters) in the background, so that a search can get channels that are
+ * ready to be opened with getInitializedChannel() without any binder calls. The pooled channels are
+ * initialized with the primary profile (see ChannelConfig). The pool is emptied and refilled when the
+ * channel parameters change (see ChannelConfigStore).
+ *
+ * The ANT radio has only a few channels, which are shared by all applications on the device, so the
+ * pool holds at most MAX_POOLED_CHANNELS channels, and only while the application is in the
+ * foreground: pausePooling() gives the pooled channels back and resumePooling() refills the pool.
+ * The pool is also emptied while a background scanning channel is held (see LightScanner), since the
+ * scan could otherwise fail because the pool holds the last free channels.
+ *
+ * The pool is only changed on its actor (a SerialExecutor on the radio pool), and a channel that is
+ * being acquired for the pool when pooling is paused or a scan starts is given back instead of added.
  */
-public class ChannelRetriever implements ServiceConnection {
+public class ChannelRetriever implements ServiceConnection,
+                                         ChannelConfigStore.OnChannelConfigChangedListener {
 
     interface OnChannelProviderAvailableListener {
         /**
          * This method is called when the ANT service has been successfully connected to
-         * and the AntChannelProvider object has been initialized (which means its now OK to call
+         * and the RadioChannelProvider object has been initialized (which means its now OK to call
          * getChannel()).
          * */
         public void onChannelProviderAvailable();
@@ -39,20 +66,60 @@ public class ChannelRetriever implements ServiceConnection {
         public ChannelRetrieveException(String message, Throwable cause) { super(message, cause); }
     }
 
+    // The maximum number of initialized channels that are kept in the pool. Enough for the first
+    // channels of a search to skip the binder calls, without keeping channels from other applications.
+    private static final int MAX_POOLED_CHANNELS = 2;
+
     private Context context;
     private AntService antService;
-    private AntChannelProvider channelProvider;
+    private volatile RadioChannelProvider channelProvider;
     private OnChannelProviderAvailableListener listener;
 
+    private ChannelInitializer channelInitializer;
+
+    // The initialized channels that are ready to be opened. Only added to and released on the
+    // channel pool actor; getInitializedChannel() takes channels from any thread.
+    private Queue<RadioChannel> channelPool;
+    // The actor that acquires and initializes the pooled channels, one task at a time.
+    private Executor channelPoolExecutor;
+    // True while the application is in the background. Only accessed on the channel pool actor.
+    private boolean poolingPaused;
+    // The number of background scanning channels that have been retrieved and not yet released.
+    private final AtomicInteger scanningChannelsHeld;
+
     /**
      * Constructor.
      * @param context the context required to bind to the ANT service.
+     * @param configStore holds the parameters that the pooled channels are initialized with.
      */
-    public ChannelRetriever(Context context) {
+    public ChannelRetriever(Context context, ChannelConfigStore configStore) {
+        this(configStore);
         this.context = context.getApplicationContext();
+
         AntService.bindService(context, this);
     }
 
+    /**
+     * Constructor for a radio that is not the ANT service, for example a SimulatedAntRadio. The
+     * channel provider is available right away.
+     * @param channelProvider provides the channels.
+     * @param configStore holds the parameters that the pooled channels are initialized with.
+     */
+    ChannelRetriever(RadioChannelProvider channelProvider, ChannelConfigStore configStore) {
+        this(configStore);
+        this.channelProvider = channelProvider;
+        refillChannelPool();
+    }
+
+    private ChannelRetriever(ChannelConfigStore configStore) {
+        channelInitializer = new ChannelInitializer(configStore);
+        channelPool = new ConcurrentLinkedQueue<RadioChannel>();
+        channelPoolExecutor = ChannelExecutors.newRadioSerialExecutor();
+        scanningChannelsHeld = new AtomicInteger(0);
+
+        configStore.addOnChannelConfigChangedListener(this);
+    }
+
     /**
      * Sets the listener that will listen for the OnChannelProviderAvailable event.
      * @param listener the event listener.
@@ -63,80 +130,319 @@ public class ChannelRetriever implements ServiceConnection {
     }
 
     /**
-     * Retrieves a new AntChannel object form the AntChannelProvider.
-     * @return an uninitialized AntChannel.
-     * @throws ChannelRetrieveException if an AntChannel could not be retrieved.
+     * Retrieves a new RadioChannel object form the RadioChannelProvider.
+     * @return an uninitialized RadioChannel.
+     * @throws ChannelRetrieveException if a RadioChannel could not be retrieved.
      */
-    public AntChannel getChannel() throws ChannelRetrieveException {
+    public RadioChannel getChannel() throws ChannelRetrieveException {
         checkChannelProviderInitialized();
 
         try {
-            return channelProvider.acquireChannel(context, PredefinedNetwork.ANT_PLUS);
-        } catch (ChannelNotAvailableException e) {
+            return channelProvider.acquireChannel(false);
+        } catch (RadioChannelException e) {
             throw new ChannelRetrieveException(e.getMessage(), e);
-        } catch (RemoteException e) {
+        }
+    }
+
+    /**
+     * Retrieves a new RadioChannel that supports background scanning (see LightScanner). The pooled
+     * channels are released first, and the pool is not refilled until the channel has been given
+     * back with releaseBackgroundScanningChannel(). Blocks until the pool has been released, so it
+     * should be called on the radio pool.
+     * @return an uninitialized RadioChannel with the background scanning capability.
+     * @throws ChannelRetrieveException if a RadioChannel could not be retrieved, for example
+     *         because the ANT radio does not support background scanning.
+     */
+    public RadioChannel getBackgroundScanningChannel() throws ChannelRetrieveException {
+        checkChannelProviderInitialized();
+
+        // A fill of the pool that is running sees the held scanning channel before it adds its next
+        // channel, and the release waits for that fill on the pool actor.
+        scanningChannelsHeld.incrementAndGet();
+        try {
+            callOnChannelPoolActor(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    releaseChannelPool();
+                    return null;
+                }
+            });
+        } catch (ChannelRetrieveException e) {
+            onScanningChannelReleased();
+            throw e;
+        } catch (ChannelInitializationException e) {
+            onScanningChannelReleased();
             throw new ChannelRetrieveException(e.getMessage(), e);
         }
+
+        try {
+            return channelProvider.acquireChannel(true);
+        } catch (RadioChannelException e) {
+            onScanningChannelReleased();
+            throw new ChannelRetrieveException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Releases a channel retrieved with getBackgroundScanningChannel(), and refills the pool if no
+     * other scanning channel is held.
+     * @param channel the background scanning channel.
+     */
+    public void releaseBackgroundScanningChannel(RadioChannel channel) {
+        channel.release();
+        onScanningChannelReleased();
+    }
+
+    private void onScanningChannelReleased() {
+        if (scanningChannelsHeld.decrementAndGet() == 0) refillChannelPool();
     }
 
     /**
-     * Returns the number of ANT channels currently available on the ANT device.
-     * @return the number of ANT channels currently available on the ANT device.
+     * Returns an initialized RadioChannel that is ready to be opened. If there is a channel in the
+     * pool it is returned right away, otherwise a new channel is retrieved and initialized.
+     * @return an initialized RadioChannel.
+     * @throws ChannelRetrieveException if a RadioChannel could not be retrieved.
+     * @throws ChannelInitializationException if the RadioChannel could not be initialized.
+     */
+    public RadioChannel getInitializedChannel() throws ChannelRetrieveException,
+                                                     ChannelInitializationException {
+        RadioChannel channel = channelPool.poll();
+        if (channel != null) return channel;
+
+        return newInitializedChannel();
+    }
+
+    /**
+     * Returns an initialized RadioChannel with the parameters of a profile, ready to be opened. A
+     * channel from the pool is given the parameters of the profile unless it is the primary profile.
+     * @param profile the channel profile.
+     * @return an initialized RadioChannel.
+     * @throws ChannelRetrieveException if a RadioChannel could not be retrieved.
+     * @throws ChannelInitializationException if the RadioChannel could not be initialized.
+     */
+    public RadioChannel getInitializedChannel(ChannelConfig profile) throws ChannelRetrieveException,
+                                                                          ChannelInitializationException {
+        ChannelConfig primary = channelInitializer.getChannelConfig();
+        RadioChannel channel = getInitializedChannel();
+        if (profile.equals(primary)) return channel;
+
+        try {
+            channelInitializer.applyProfile(channel, profile);
+            return channel;
+        } catch (ChannelInitializationException e) {
+            channel.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of ANT channels currently available, which includes the channels in
+     * the pool. May wait for the channel pool actor, so it should be called on the radio pool.
+     * @return the number of ANT channels currently available.
      * @throws ChannelRetrieveException if an error occurred.
      */
     public int getNumberOfChannelsAvailable() throws ChannelRetrieveException {
-        // Note: the implementation of this method is somewhat convoluted because the
-        // getNumChannelsAvailable() method in AntChannelProvider is stupid and returns
-        // 0 both when there are no more channels available and when an error occurred.
+        // Note: the getNumChannelsAvailable() method of the ANT service returns 0 both when
+        // there are no more channels available and when an error occurred. If the pool is empty
+        // as well we tell the two apart by trying to fill the pool, which either gives us channels
+        // (that will be used by the search) or fails with the reason that no channels are left.
 
         checkChannelProviderInitialized();
 
         try {
-            int availableChannels = channelProvider.getNumChannelsAvailable();
+            int availableChannels = channelPool.size() + channelProvider.getNumChannelsAvailable();
 
             if (availableChannels == 0) {
-                return returnZeroAvailableChannelsUnlessException();
+                return fillChannelPoolUnlessNoChannelsLeft();
             } else {
                 return availableChannels;
             }
-        } catch (RemoteException e) {
+        } catch (RadioChannelException e) {
+            throw new ChannelRetrieveException(e.getMessage(), e);
+        }
+    }
+
+    //
+    // Acquires a channel on the pool actor, and adds it to the pool if pooling is allowed, or gives it
+    // back right away otherwise. Returns the number of channels that are known to be available.
+    //
+    private int fillChannelPoolUnlessNoChannelsLeft() throws ChannelRetrieveException {
+        try {
+            return callOnChannelPoolActor(new Callable<Integer>() {
+
+                @Override
+                public Integer call() throws ChannelRetrieveException, ChannelInitializationException {
+                    return poolChannel(newInitializedChannel()) ? channelPool.size() : 1;
+                }
+            });
+        } catch (ChannelRetrieveException e) {
+            if (isNoMoreChannelsAvailableException((Exception)e.getCause())) {
+                return 0;
+            } else {
+                throw e;
+            }
+        } catch (ChannelInitializationException e) {
             throw new ChannelRetrieveException(e.getMessage(), e);
         }
     }
 
-    private int returnZeroAvailableChannelsUnlessException() throws ChannelRetrieveException {
-        Exception exception = getChannelOpenException();
+    /**
+     * Acquires and initializes channels in the background until the pool is full or there are
+     * no more channels available. Should be called when channels have been given back to the ANT
+     * service, for example when a channel search has finished.
+     */
+    public void refillChannelPool() {
+        channelPoolExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                fillChannelPool();
+            }
+        });
+    }
+
+    /**
+     * Releases the pooled channels and stops refilling the pool until resumePooling() is called, so
+     * that the application does not hold on to channels while it is in the background. This method
+     * does not block.
+     */
+    public void pausePooling() {
+        channelPoolExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                poolingPaused = true;
+                releaseChannelPool();
+            }
+        });
+    }
+
+    /**
+     * Refills the pool after pausePooling(). This method does not block.
+     */
+    public void resumePooling() {
+        channelPoolExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                poolingPaused = false;
+                fillChannelPool();
+            }
+        });
+    }
+
+    //
+    // Called on the channel pool actor.
+    //
+    private void fillChannelPool() {
+        while (canPoolChannel()) {
+            try {
+                if (!poolChannel(newInitializedChannel())) return;
+            } catch (ChannelRetrieveException e) {
+                if (!isNoMoreChannelsAvailableException((Exception)e.getCause())) {
+                    Log.e(GlobalState.LOG_TAG, "Unable to fill channel pool: " + e.getMessage());
+                }
+                return;
+            } catch (ChannelInitializationException e) {
+                Log.e(GlobalState.LOG_TAG, "Unable to fill channel pool: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    //
+    // Called on the channel pool actor. A scan may start at any time, so this is checked again for
+    // every channel once it has been acquired, right before it is added.
+    //
+    private boolean canPoolChannel() {
+        return channelProvider != null && !poolingPaused && scanningChannelsHeld.get() == 0 &&
+               channelPool.size() < MAX_POOLED_CHANNELS;
+    }
 
-        if (isNoMoreChannelsAvailableException(exception)) {
-            return 0;
-        } else {
-            throw new ChannelRetrieveException(exception.getMessage(), exception);
+    //
+    // Called on the channel pool actor. Adds the channel to the pool, or gives it back if pooling is
+    // not allowed. Returns true if the channel was added.
+    //
+    private boolean poolChannel(RadioChannel channel) {
+        if (!canPoolChannel()) {
+            channel.release();
+            return false;
         }
+
+        channelPool.add(channel);
+        return true;
     }
 
-    private Exception getChannelOpenException() {
-        AntChannel channel = null;
+    private RadioChannel newInitializedChannel() throws ChannelRetrieveException,
+                                                        ChannelInitializationException {
+        RadioChannel channel = getChannel();
 
         try {
-            channel = getChannel();
-            return null;
-        } catch (ChannelRetrieveException e) {
-            return (Exception)e.getCause();
-        } finally {
-            if (channel != null) channel.release();
+            channelInitializer.initializeChannel(channel);
+            return channel;
+        } catch (ChannelInitializationException e) {
+            channel.release();
+            throw e;
         }
     }
 
-    private boolean isNoMoreChannelsAvailableException(Exception exception) {
+    //
+    // Releases all channels in the pool. Called on the channel pool actor.
+    //
+    private void releaseChannelPool() {
+        RadioChannel channel;
+
+        while ((channel = channelPool.poll()) != null) {
+            channel.release();
+        }
+    }
+
+    //
+    // Runs a task on the channel pool actor and waits for its result. The actor runs on the radio
+    // pool, on another thread than the caller.
+    //
+    private <T> T callOnChannelPoolActor(Callable<T> task) throws ChannelRetrieveException,
+                                                                  ChannelInitializationException {
+        FutureTask<T> future = new FutureTask<T>(task);
+        channelPoolExecutor.execute(future);
 
         try {
-            ChannelNotAvailableException nae = (ChannelNotAvailableException)exception;
-            return nae.reasonCode == ChannelNotAvailableReason.ALL_CHANNELS_IN_USE;
-        } catch (ClassCastException e) {
-            return false;
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ChannelRetrieveException("Interrupted while waiting for the channel pool", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ChannelRetrieveException) throw (ChannelRetrieveException)cause;
+            if (cause instanceof ChannelInitializationException) throw (ChannelInitializationException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw new ChannelRetrieveException(cause.getMessage(), cause);
         }
     }
 
+    /**
+     * Called when the channel parameters have changed. The pooled channels were initialized
+     * with the old channel parameters, so they are released and the pool is refilled.
+     * @param profiles the new channel profiles.
+     */
+    @Override
+    public void onChannelConfigChanged(List<ChannelConfig> profiles) {
+        channelPoolExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                releaseChannelPool();
+                fillChannelPool();
+            }
+        });
+    }
+
+    private boolean isNoMoreChannelsAvailableException(Exception exception) {
+        return exception instanceof NoChannelAvailableException &&
+               ((NoChannelAvailableException)exception).isAllChannelsInUse();
+    }
+
     /**
      * This method will be called when we have successfully bound with the ANT service.
      * The passed in IBinder object is used to construct the AntService object.
@@ -148,15 +454,30 @@ public class ChannelRetriever implements ServiceConnection {
         antService = new AntService(binder);
 
         try {
-            channelProvider = antService.getChannelProvider();
+            channelProvider = new AntRadioChannelProvider(context, antService.getChannelProvider());
+            refillChannelPool();
             notifyListenerIfProviderAvailable();
         } catch (RemoteException e) {
             Log.e(GlobalState.LOG_TAG, e.getMessage());
         }
     }
 
-    @Override // TODO: does this need to be implemented?
-    public void onServiceDisconnected(ComponentName componentName) {}
+    /**
+     * This method will be called when the connection to the ANT service has been lost. The
+     * pooled channels are no longer usable, so they are dropped.
+     * @param componentName the component name.
+     */
+    @Override
+    public void onServiceDisconnected(ComponentName componentName) {
+        channelProvider = null;
+        channelPoolExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                releaseChannelPool();
+            }
+        });
+    }
 
     private void notifyListenerIfProviderAvailable() {
         if (listener != null && channelProvider != null) {
@@ -0,0 +1,209 @@
+package se.miun.ant;
+
+import android.util.Log;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChannelRetuner applies changed channel parameters (see ChannelConfigStore) to the channels of the
+ * lights that are already connected, so that a new period or frequency does not require a new search.
+ * Each channel is retuned to the new parameters of its own profile (see
+ * ChannelWrapper.getProfileNumber()), and only if they have changed. Profiles are matched by number,
+ * so a channel whose profile has been removed keeps its parameters.
+ *
+ * The channels are retuned in stages (see ChannelWrapper.retune()): at most a quarter of them (and
+ * at least one) is retuned at a time, and the next channel is only retuned when a retuned channel
+ * has found its master again, or after RETUNE_TIMEOUT_MS. The other lights can be controlled as
+ * usual while a pass is running.
+ *
+ * The channels do not receive any events while the light list is paused (see
+ * ChannelList.closeChannels()), which is the case while the SettingsActivity is shown. A change that
+ * is made while paused is therefore applied when the channels are opened again. If the parameters
+ * change again during a pass, the pass starts over with the new parameters.
+ *
+ * All state is owned by the retune actor (see ChannelExecutors).
+ */
+public class ChannelRetuner implements ChannelConfigStore.OnChannelConfigChangedListener {
+
+    // The time that a retuned channel gets to find its master before the next channel is retuned.
+    // The channel itself keeps searching (and reconnecting) after this time.
+    private static final int RETUNE_TIMEOUT_MS = 4000;
+
+    // The part of the channels that may be retuned at the same time.
+    private static final int RETUNE_FRACTION = 4;
+
+    private final ChannelList channelList;
+    private final SerialExecutor retuneActor;
+
+    // Only accessed on the retune actor.
+    private boolean paused;
+    private List<ChannelConfig> pendingProfiles;    // Changed while paused, or not yet applied.
+    private List<ChannelConfig> passProfiles;       // The profiles of the running pass, or null.
+    private int passNumber;
+    private Queue<ChannelWrapper> waitingChannels;
+    private int channelsInProgress;
+    private int maxChannelsInProgress;
+    private int channelsReacquired;
+    private int channelsRetuned;
+    private long passStartTime;
+
+    /**
+     * Constructor.
+     * @param channelList the list of connected lights whose channels are retuned.
+     */
+    public ChannelRetuner(ChannelList channelList) {
+        this.channelList = channelList;
+        retuneActor = ChannelExecutors.newSerialExecutor();
+        waitingChannels = new LinkedList<ChannelWrapper>();
+    }
+
+    /**
+     * Called when the channel parameters have changed. Starts a retune pass, or waits until the
+     * channels are opened again if they are paused.
+     * @param profiles the new channel profiles.
+     */
+    @Override
+    public void onChannelConfigChanged(final List<ChannelConfig> profiles) {
+        retuneActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                pendingProfiles = profiles;
+                if (!paused) startPass();
+            }
+        });
+    }
+
+    /**
+     * Stops retuning channels until resume() is called. The retunes in progress run to completion.
+     * Can be called from any thread.
+     */
+    public void pause() {
+        retuneActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                paused = true;
+            }
+        });
+    }
+
+    /**
+     * Retunes the channels again, starting with a new pass if the parameters changed while paused.
+     * Can be called from any thread.
+     */
+    public void resume() {
+        retuneActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                paused = false;
+                if (pendingProfiles != null) startPass();
+                else retuneNextChannels();
+            }
+        });
+    }
+
+    //
+    // The following methods are called on the retune actor.
+    //
+
+    private void startPass() {
+        passProfiles = pendingProfiles;
+        pendingProfiles = null;
+        passNumber++;
+
+        List<ListItemState> states = channelList.getListItemStates();
+        waitingChannels.clear();
+        for (ListItemState state : states) {
+            if (getRetunedProfile(state.channelWrapper) != null) waitingChannels.add(state.channelWrapper);
+        }
+
+        channelsInProgress = 0;
+        channelsReacquired = 0;
+        channelsRetuned = 0;
+        maxChannelsInProgress = Math.max(1, states.size() / RETUNE_FRACTION);
+        passStartTime = System.nanoTime();
+
+        Log.i(GlobalState.LOG_TAG, "Retuning " + waitingChannels.size() + " of " + states.size() +
+                                   " channels, " + maxChannelsInProgress + " at a time");
+        retuneNextChannels();
+    }
+
+    private void retuneNextChannels() {
+        while (!paused && passProfiles != null && channelsInProgress < maxChannelsInProgress &&
+               !waitingChannels.isEmpty()) {
+            ChannelWrapper channel = waitingChannels.poll();
+            RetuneTask task = new RetuneTask(passNumber);
+            channelsInProgress++;
+            channel.retune(passProfiles.get(channel.getProfileNumber()), task);
+            ChannelExecutors.getWorkerExecutor().schedule(ChannelExecutors.onActor(retuneActor, task),
+                                                          RETUNE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        if (passProfiles != null && channelsInProgress == 0 && waitingChannels.isEmpty()) {
+            Log.i(GlobalState.LOG_TAG, "Retuned " + channelsRetuned + " channels in " +
+                                       (System.nanoTime() - passStartTime) / 1000000L + " ms, " +
+                                       channelsReacquired + " found their lights again");
+            passProfiles = null;
+        }
+    }
+
+    //
+    // Returns the new parameters of the channel's profile, or null if the channel does not need to
+    // be retuned.
+    //
+    private ChannelConfig getRetunedProfile(ChannelWrapper channel) {
+        int profileNumber = channel.getProfileNumber();
+        if (profileNumber >= passProfiles.size()) return null;
+
+        ChannelConfig profile = passProfiles.get(profileNumber);
+        return profile.equals(channel.getProfile()) ? null : profile;
+    }
+
+    private void onChannelRetuned(RetuneTask task, boolean reacquired) {
+        if (task.done || task.passNumber != passNumber) return;
+
+        task.done = true;
+        channelsInProgress--;
+        channelsRetuned++;
+        if (reacquired) channelsReacquired++;
+        retuneNextChannels();
+    }
+
+    //
+    // The retune of one channel. Ends when the channel reports the outcome, or when the timeout
+    // runs (on the retune actor), whichever comes first.
+    //
+    private class RetuneTask implements ChannelWrapper.OnRetuneCompletedListener, Runnable {
+        private final int passNumber;
+
+        // Only accessed on the retune actor.
+        private boolean done;
+
+        public RetuneTask(int passNumber) {
+            this.passNumber = passNumber;
+        }
+
+        // Called on the channel's actor.
+        @Override
+        public void onRetuneCompleted(ChannelWrapper channelWrapper, final boolean reacquired) {
+            retuneActor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    onChannelRetuned(RetuneTask.this, reacquired);
+                }
+            });
+        }
+
+        // The timeout.
+        @Override
+        public void run() {
+            onChannelRetuned(this, false);
+        }
+    }
+}
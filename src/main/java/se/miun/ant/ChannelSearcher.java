@@ -1,32 +1,47 @@
 package se.miun.ant;
 
-import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
-import android.widget.Toast;
 
-import com.dsi.ant.channel.AntChannel;
-import com.dsi.ant.channel.AntCommandFailedException;
-import com.dsi.ant.channel.IAntChannelEventHandler;
+import com.dsi.ant.message.EventCode;
 import com.dsi.ant.message.fromant.MessageFromAntType;
-import com.dsi.ant.message.ipc.AntMessageParcel;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import se.miun.ant.ChannelConfig.InvalidChannelConfigException;
 import se.miun.ant.ChannelInitializer.ChannelInitializationException;
 import se.miun.ant.ChannelRetriever.ChannelRetrieveException;
+import se.miun.ant.RadioChannel.RadioChannelException;
 
 /**
  * ChannelSearcher is used to open ANT channels that will try to connect to an available
- * master channel. If the connection is made, the AntChannel object is passed to an observer.
+ * master channel. If the connection is made, the RadioChannel object is passed to an observer.
  * A search can be initiated by calling startChannelSearch() on an instance of this class.
- * The search will continue to create and connect (sequentially) new ANT channels until
- * a channel times out and then it will stop.
+ * The search retrieves, initializes and opens all available ANT channels in parallel on the
+ * shared radio pool (see ChannelExecutors), and then waits for the channels to connect.
+ *
+ * Channels are first directed to the known masters (see PairedDeviceCache) that are not already
+ * connected, most recently connected first, since a directed channel connects much faster than a
+ * wildcard one. The remaining channels, and always at least one channel when more than one is
+ * available, are opened as wildcard channels so that new masters are still found.
+ *
+ * When there are more known masters than channels for them, MULTIPLEXED_CHANNELS of the directed
+ * channels are handed to the ChannelMultiplexer together with the masters that are left over, and
+ * the multiplexer reports each of those lights as a connected channel when it has found it.
+ *
+ * A search can also be limited to a chosen set of lights with connectToLights(), for example the
+ * lights the user picked from a LightScanner scan. Such a search only opens one directed channel
+ * per chosen light, and no wildcard channels.
+ *
+ * A search covers every channel profile (see ChannelConfig) at once. A directed channel is opened
+ * with the profile that its master was last found with, and the wildcard channels are spread over
+ * the profiles, at least one per profile when there are enough channels. Each connected channel is
+ * reported together with its profile.
  */
 public class ChannelSearcher implements ChannelRetriever.OnChannelProviderAvailableListener {
 
@@ -44,9 +59,11 @@ public class ChannelSearcher implements ChannelRetriever.OnChannelProviderAvaila
 
         /**
          * Called when an ANT channel has been successfully created, opened and connected.
-         * @param antChannel the connected ANT channel.
+         * @param channel the connected ANT channel.
+         * @param profileNumber the number of the channel profile the channel was opened with.
+         * @param profile the channel parameters the channel was opened with.
          */
-        public void onChannelConnected(AntChannel antChannel);
+        public void onChannelConnected(RadioChannel channel, int profileNumber, ChannelConfig profile);
 
         /**
          * Called when a channel search has been started.
@@ -61,50 +78,86 @@ public class ChannelSearcher implements ChannelRetriever.OnChannelProviderAvaila
          * Called when there are no free channels available to open.
          */
         public void onNoChannelsAvailable();
+
+        /**
+         * Called on a background thread when a search could not open any channel, or could not be
+         * started because the channel parameters are invalid.
+         * @param e the cause.
+         */
+        public void onChannelSearchFailed(Exception e);
     }
 
-    private static final int CHANNEL_TIMER_TIMEOUT_MS = 1000 * 15;
+    // The upper bound of a search. A search normally finishes as soon as every opened channel has
+    // either connected or timed out, but if the ANT radio never reports back for a channel the
+    // search is finished (and the unconnected channels released) after this time.
+    private static final int SEARCH_DEADLINE_MS = 1000 * 15;
+
+    // The target of a channel that is not directed to a known master.
+    private static final long WILDCARD_TARGET = -1;
+
+    // The number of channels that the ChannelMultiplexer is given when there are more known masters
+    // than channels.
+    private static final int MULTIPLEXED_CHANNELS = 2;
 
-    private Context context;                        // Context used for Toast.
     private OnChannelSearchStatusListener listener; // Is notified when a channel has connected.
     private ChannelRetriever channelRetriever;      // Used to get channels from the ANT system.
     private ChannelInitializer channelInitializer;  // Used to set default channel parameters.
-    private Handler uiThreadHandler;                // Used to post runnables on the UI thread.
-
-    private List<AntChannelEventHandler> channelEventHandlers;
-
-    // Set to true when a search is in progress, otherwise set to false.
-    // A search is in progress from the moment a channel search is initialized until there
-    // is a channel timeout (meaning no master channel to connect to) on one of the opened channels.
-    private boolean searchInProgress;
+    private PairedDeviceCache pairedDeviceCache;    // The masters that channels can be directed to.
+    private ChannelConfigStore channelConfigStore;  // The profiles that the channels are opened with.
+    private ChannelList channelList;                // The lights that are already connected.
+    private ChannelMultiplexer multiplexer;         // Shares channels between the left over masters.
+
+    // The blocking work of a search (retrieving, initializing and opening channels) runs on the
+    // shared radio pool, and the search deadline is scheduled on the worker pool. The state of the
+    // search is only accessed on the search actor, which also runs on the radio pool, so no locking
+    // is needed and no thread is created for a search.
+    private ScheduledExecutorService workers;
+    private Executor radio;
+    private SerialExecutor searchActor;
+
+    // The search in progress, or null if there is none. Only accessed on the search actor.
+    private ChannelSearch currentSearch;
 
     /**
-     * Constructor.
-     * @param context the Activity that is needed for Toast notifications.
+     * Constructor. The channels are retrieved from the ChannelRetriever of GlobalState.
+     * @param listener this object will be notified when an ANT slave channel has been
+     *                 successfully created, opened and connected.
      */
-    public ChannelSearcher(Context context) {
-        this.context = context;
-        uiThreadHandler = new Handler(Looper.getMainLooper());
-
-        channelRetriever = GlobalState.getInstance().getChannelRetriever();
-        channelRetriever.setOnChannelProviderAvailableListener(this);
-
-        channelInitializer = new ChannelInitializer(context);
-
-        channelEventHandlers = new ArrayList<AntChannelEventHandler>();
-
-        searchInProgress = false;
+    public ChannelSearcher(OnChannelSearchStatusListener listener) {
+        this(GlobalState.getInstance().getChannelRetriever(),
+             GlobalState.getInstance().getChannelConfigStore(),
+             GlobalState.getInstance().getPairedDeviceCache(),
+             GlobalState.getInstance().getChannelList(),
+             GlobalState.getInstance().getChannelMultiplexer(),
+             listener);
     }
 
     /**
      * Constructor.
-     * @param context the Activity that is needed for Toast notifications.
+     * @param channelRetriever provides the channels.
+     * @param channelConfigStore holds the channel profiles.
+     * @param pairedDeviceCache the masters that channels are directed to.
+     * @param channelList the lights that are already connected, which are not searched for.
+     * @param multiplexer shares channels between the masters that there are no channels for.
      * @param listener this object will be notified when an ANT slave channel has been
      *                 successfully created, opened and connected.
      */
-    public ChannelSearcher(Context context, OnChannelSearchStatusListener listener) {
-        this(context);
-        setOnChannelConnectedListener(listener);
+    ChannelSearcher(ChannelRetriever channelRetriever, ChannelConfigStore channelConfigStore,
+                    PairedDeviceCache pairedDeviceCache, ChannelList channelList,
+                    ChannelMultiplexer multiplexer, OnChannelSearchStatusListener listener) {
+        this.listener = listener;
+        this.channelRetriever = channelRetriever;
+        this.channelConfigStore = channelConfigStore;
+        this.pairedDeviceCache = pairedDeviceCache;
+        this.channelList = channelList;
+        this.multiplexer = multiplexer;
+        channelInitializer = new ChannelInitializer(channelConfigStore);
+
+        workers = ChannelExecutors.getWorkerExecutor();
+        radio = ChannelExecutors.getRadioExecutor();
+        searchActor = ChannelExecutors.newRadioSerialExecutor();
+
+        channelRetriever.setOnChannelProviderAvailableListener(this);
     }
 
     /**
@@ -127,43 +180,213 @@ public class ChannelSearcher implements ChannelRetriever.OnChannelProviderAvaila
     /**
      * This method requests that a channel search should be started. If a channel search is
      * already in progress and this method is called it will not do anything.
+     * This method does not block and can be called from any thread.
      */
     public void startChannelSearch() {
-        if (!searchInProgress) {
-            searchInProgress = true;
-            listener.onChannelSearchStarted();
-            startChannelSearchThread();
+        searchActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                if (currentSearch == null) {
+                    startNewSearch(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Requests that a channel search is started that only opens directed channels to the given
+     * lights. Lights that are already connected are skipped. If a channel search is already in
+     * progress this method does nothing. This method does not block and can be called from any thread.
+     * @param lightKeys the keys of the lights to connect to (see ChannelStateStore.makeKey()).
+     */
+    public void connectToLights(long[] lightKeys) {
+        final long[] requestedLights = new long[lightKeys.length];
+        System.arraycopy(lightKeys, 0, requestedLights, 0, lightKeys.length);
+
+        searchActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                if (currentSearch == null) {
+                    startNewSearch(requestedLights);
+                }
+            }
+        });
+    }
+
+    // All of the following methods, up to the inner classes, are called on the search actor.
+
+    //
+    // Starts a new search. The number of available channels is requested on a radio thread, which
+    // then hands out one ChannelOpenTask per available channel to the radio pool. If requestedLights is
+    // not null, only directed channels to those lights are opened.
+    //
+    private void startNewSearch(long[] requestedLights) {
+        final ChannelSearch search = new ChannelSearch(requestedLights);
+        currentSearch = search;
+        listener.onChannelSearchStarted();
+
+        search.deadline = workers.schedule(ChannelExecutors.onActor(searchActor, new Runnable() {
+
+            @Override
+            public void run() {
+                finishChannelSearch(search);
+            }
+        }), SEARCH_DEADLINE_MS, TimeUnit.MILLISECONDS);
+
+        radio.execute(new ChannelSearchRunner(search));
+    }
+
+    private void onAvailableChannelsCounted(ChannelSearch search, int availableChannels,
+                                            List<ChannelConfig> profiles, long[] directedTargets,
+                                            int[] targetProfiles) {
+        if (availableChannels <= 0) {
+            if (availableChannels == 0) listener.onNoChannelsAvailable();
+            onChannelResolved(search);
+            return;
+        }
+
+        int channelsToOpen;
+        int directedChannels;
+
+        if (search.requestedLights != null) {
+            channelsToOpen = Math.min(directedTargets.length, availableChannels);
+            directedChannels = channelsToOpen;
+        } else {
+            // One channel per profile is kept for the wildcard search, but at least one channel is
+            // directed when there are known masters.
+            channelsToOpen = availableChannels;
+            int wildcardChannels = availableChannels > 1 ? Math.min(profiles.size(), availableChannels - 1) : 0;
+            directedChannels = Math.min(directedTargets.length, availableChannels - wildcardChannels);
+        }
+
+        if (directedTargets.length > directedChannels) {
+            int multiplexedChannels = Math.min(MULTIPLEXED_CHANNELS - multiplexer.getChannelCount(),
+                                               directedChannels);
+            multiplexedChannels = Math.max(0, multiplexedChannels);
+            channelsToOpen -= multiplexedChannels;
+            directedChannels -= multiplexedChannels;
+            multiplexLeftOverTargets(multiplexedChannels, profiles, directedTargets, targetProfiles,
+                                     directedChannels);
+        }
+
+        if (channelsToOpen == 0) {
+            onChannelResolved(search);
+            return;
+        }
+
+        search.channelsToOpen = channelsToOpen;
+        search.unopenedChannels = channelsToOpen;
+        Log.i(GlobalState.LOG_TAG, "Channel search: opening " + directedChannels + " directed and " +
+                                   (channelsToOpen - directedChannels) + " wildcard channels over " +
+                                   profiles.size() + " profiles");
+
+        for (int i = 0; i < channelsToOpen; i++) {
+            long target;
+            int profileNumber;
+
+            if (i < directedChannels) {
+                target = directedTargets[i];
+                profileNumber = targetProfiles[i] < profiles.size() ? targetProfiles[i] : 0;
+            } else {
+                target = WILDCARD_TARGET;
+                profileNumber = (i - directedChannels) % profiles.size();
+            }
+            radio.execute(new ChannelOpenTask(search, profileNumber, profiles.get(profileNumber), target));
         }
     }
 
     //
-    // Starts the thread that runs a channel search. The thread will retrieve, initialize and open
-    // all available ANT channels and then exit.
+    // Hands the targets from firstTarget on, and the given number of channels, to the multiplexer,
+    // unless it would have no channel at all.
     //
-    private void startChannelSearchThread() {
-        new Thread(new ChannelSearchRunner()).start();
+    private void multiplexLeftOverTargets(int channels, List<ChannelConfig> profiles, long[] targets,
+                                          int[] targetProfiles, int firstTarget) {
+        if (channels + multiplexer.getChannelCount() == 0) return;
+
+        Log.i(GlobalState.LOG_TAG, "Channel search: multiplexing " + (targets.length - firstTarget) +
+                                   " lights over " + (channels + multiplexer.getChannelCount()) + " channels");
+        if (channels > 0) multiplexer.addChannels(channels);
+
+        for (int i = firstTarget; i < targets.length; i++) {
+            int profileNumber = targetProfiles[i] < profiles.size() ? targetProfiles[i] : 0;
+            multiplexer.addLight(targets[i], profileNumber, profiles.get(profileNumber), listener);
+        }
     }
 
-    // Note two different threads are calling two methods:
-    // 1) The thread created by startChannelSearchThread()
-    // 2) The thread created by the TimerTask in the AntChannelEventHandler.
-    // However, these threads do not run at the same time, so the synchronized is a precaution only.
+    private void onChannelOpenFinished(ChannelSearch search, boolean opened, Exception error) {
+        if (opened) {
+            search.openedChannels++;
+        } else {
+            search.openError = error;
+        }
 
-    private synchronized void stopChannelSearch() {
-        searchInProgress = false;
+        if (--search.unopenedChannels > 0) return;
+
+        long elapsed = SystemClock.elapsedRealtime() - search.startTime;
+        Log.i(GlobalState.LOG_TAG, "Channel search: opened " + search.openedChannels + " of " +
+                                   search.channelsToOpen + " channels in " + elapsed + " ms");
+
+        if (search.openedChannels == 0) {
+            // Every channel failed. The failures have been logged by the tasks, but the user
+            // is only notified once.
+            notifyUserChannelError(search.openError);
+        }
+
+        // The opening phase itself is resolved.
+        onChannelResolved(search);
+    }
+
+    private void addChannelEventHandler(ChannelSearch search, AntChannelEventHandler handler) {
+        search.channelEventHandlers.add(handler);
+        search.unresolvedChannels++;
+    }
+
+    //
+    // Called once for every channel of a search when it has connected or timed out, and once
+    // when all channels of the search have been opened. When the last of these calls has been
+    // made the search is finished.
+    //
+    private void onChannelResolved(ChannelSearch search) {
+        if (--search.unresolvedChannels == 0) {
+            finishChannelSearch(search);
+        }
+    }
+
+    private void finishChannelSearch(ChannelSearch search) {
+        if (search != currentSearch) return;
+
+        search.deadline.cancel(false);
+        cleanupChannelHandlers(search);
+        currentSearch = null;
         listener.onChannelSearchFinished();
+        channelRetriever.refillChannelPool();
+
+        long elapsed = SystemClock.elapsedRealtime() - search.startTime;
+        Log.i(GlobalState.LOG_TAG, "Channel search: finished after " + elapsed + " ms");
     }
 
-    private synchronized void cleanupChannelHandlers() {
-        for (AntChannelEventHandler handler : channelEventHandlers) {
-            if (!handler.isChannelConnected()) {
+    private void cleanupChannelHandlers(ChannelSearch search) {
+        for (AntChannelEventHandler handler : search.channelEventHandlers) {
+            if (!handler.isResolved) {
+                handler.isResolved = true;
+                handler.clearEventHandler();
                 releaseChannel(handler.channel);
             }
         }
-        channelEventHandlers.clear();
+        search.channelEventHandlers.clear();
     }
 
-    private synchronized void releaseChannel(AntChannel channel) {
+    private void reportChannelConnected(ChannelSearch search) {
+        if (!search.firstConnectReported) {
+            search.firstConnectReported = true;
+            long elapsed = SystemClock.elapsedRealtime() - search.startTime;
+            Log.i(GlobalState.LOG_TAG, "Channel search: first channel connected after " + elapsed + " ms");
+        }
+    }
+
+    private void releaseChannel(RadioChannel channel) {
         if (channel != null) {
             channel.release();
         }
@@ -174,59 +397,110 @@ public class ChannelSearcher implements ChannelRetriever.OnChannelProviderAvaila
         notifyUserChannelError(e);
     }
 
-    private void notifyUserChannelError(final Exception e) {
-        uiThreadHandler.post(new Runnable() {
-
-            @Override
-            public void run() {
-                Toast.makeText(context,
-                        "Error opening ANT channel: " + e.getMessage() + "\nPlease try again.",
-                        Toast.LENGTH_LONG).show();
-            }
-        });
+    private void notifyUserChannelError(Exception e) {
+        listener.onChannelSearchFailed(e);
     }
 
-    private void startChannelTimeoutTimer() {
-        new Timer().schedule(new TimerTask() {
 
-            @Override
-            public void run() {
-                stopChannelSearch();
-                cleanupChannelHandlers();
-            }
+    //
+    // The state of one channel search. Only accessed on the search actor. A new ChannelSearch is
+    // created for every search, so late events from the channels of an earlier search can never
+    // affect the current one.
+    //
+    private static class ChannelSearch {
+        final long startTime = SystemClock.elapsedRealtime();
+        final List<AntChannelEventHandler> channelEventHandlers = new ArrayList<AntChannelEventHandler>();
+
+        // The lights that the search is limited to, or null for a full search.
+        final long[] requestedLights;
+
+        // The number of channels (plus one for the opening phase) that have not yet connected or
+        // timed out.
+        int unresolvedChannels = 1;
+
+        int channelsToOpen;
+        int unopenedChannels;
+        int openedChannels;
+        Exception openError;
 
-        }, CHANNEL_TIMER_TIMEOUT_MS);
+        boolean firstConnectReported;
+        ScheduledFuture<?> deadline;
+
+        ChannelSearch(long[] requestedLights) {
+            this.requestedLights = requestedLights;
+        }
     }
 
 
     //
-    // This class is handles the channel search process and is run on a worker thread.
+    // Requests the number of available channels. Run on a radio thread, because the request is a
+    // binder call.
     //
     private class ChannelSearchRunner implements Runnable {
 
+        private ChannelSearch search;
+
+        public ChannelSearchRunner(ChannelSearch search) {
+            this.search = search;
+        }
+
         @Override
         public void run() {
-            int availableChannels = getAvailableChannels();
-
-            if (availableChannels == -1) {
-                stopChannelSearch();
-                return;
-            } else if (availableChannels == 0) {
-                stopChannelSearch();
-                listener.onNoChannelsAvailable();
-                return;
-            }
+            // Invalid channel parameters are reported before any channel is retrieved.
+            final List<ChannelConfig> profiles = getChannelProfiles();
+            final int availableChannels = profiles != null ? getAvailableChannels() : -1;
+            final long[] directedTargets = getDirectedTargets();
+            final int[] targetProfiles = getTargetProfiles(directedTargets);
 
-            for (int i = 0; i < availableChannels; i++) {
+            searchActor.execute(new Runnable() {
 
-                if (!openAntChannel()) {
-                    stopChannelSearch();
-                    cleanupChannelHandlers();
-                    return;
+                @Override
+                public void run() {
+                    onAvailableChannelsCounted(search, availableChannels, profiles, directedTargets,
+                                               targetProfiles);
                 }
+            });
+        }
+
+        //
+        // Returns the keys of the requested lights, or of the known masters (most recently connected
+        // first), that are neither connected nor being looked for by the multiplexer. Reading the
+        // cache may read its file, which is why this is done on the radio thread.
+        //
+        private long[] getDirectedTargets() {
+            long[] knownDevices = search.requestedLights != null ? search.requestedLights
+                                                                 : pairedDeviceCache.getDeviceKeys();
+            long[] targets = new long[knownDevices.length];
+            int targetCount = 0;
+            for (long key : knownDevices) {
+                ListItemState connected = channelList.findListItemState(ChannelStateStore.getDeviceNumber(key),
+                                                                        ChannelStateStore.getTransmissionType(key));
+                if (connected == null && !multiplexer.isMultiplexed(key)) targets[targetCount++] = key;
+            }
+
+            long[] result = new long[targetCount];
+            System.arraycopy(targets, 0, result, 0, targetCount);
+            return result;
+        }
+
+        //
+        // Returns the profiles that the masters were last found with.
+        //
+        private int[] getTargetProfiles(long[] targets) {
+            int[] profileNumbers = new int[targets.length];
+            for (int i = 0; i < targets.length; i++) {
+                profileNumbers[i] = pairedDeviceCache.getProfileNumber(targets[i]);
             }
+            return profileNumbers;
+        }
 
-            startChannelTimeoutTimer();
+        private List<ChannelConfig> getChannelProfiles() {
+            try {
+                return channelConfigStore.getChannelProfiles();
+            } catch (InvalidChannelConfigException e) {
+                logErrorAndNotifyUser("Invalid channel parameters: " + e.getMessage(), e);
+                return null;
+            }
         }
 
         private int getAvailableChannels() {
@@ -237,94 +511,214 @@ public class ChannelSearcher implements ChannelRetriever.OnChannelProviderAvaila
                 return -1;
             }
         }
+    }
+
+
+    //
+    // Retrieves, initializes and opens one ANT channel, directed to a known master or as a wildcard
+    // channel. Run on a radio thread. A failure only affects the channel of this task; the other channels
+    // of the search are opened as usual.
+    //
+    private class ChannelOpenTask implements Runnable {
+
+        private ChannelSearch search;
+        private int profileNumber;
+        private ChannelConfig profile;
+        private long target;
+
+        public ChannelOpenTask(ChannelSearch search, int profileNumber, ChannelConfig profile, long target) {
+            this.search = search;
+            this.profileNumber = profileNumber;
+            this.profile = profile;
+            this.target = target;
+        }
+
+        @Override
+        public void run() {
+            RadioChannel channel = null;
+            AntChannelEventHandler handler = null;
+            Exception error = null;
 
-        private boolean openAntChannel() {
             try {
-                AntChannel channel = channelRetriever.getChannel();
-                channelInitializer.initializeChannel(channel);
+                channel = channelRetriever.getInitializedChannel(profile);
+
+                // Channels are initialized as wildcard channels (see ChannelInitializer), so a
+                // directed channel only needs its channel ID changed before it is opened.
+                if (target != WILDCARD_TARGET) {
+                    channelInitializer.setDirectedChannelId(channel, profile,
+                                                            ChannelStateStore.getDeviceNumber(target),
+                                                            ChannelStateStore.getTransmissionType(target));
+                }
+
+                // The handler is registered with the search before the channel is opened, so the
+                // registration reaches the search actor before any event of the channel does.
+                handler = new AntChannelEventHandler(channel, profileNumber, profile, search);
+                registerHandler(handler);
+
                 channel.open();
-                channelEventHandlers.add(new AntChannelEventHandler(channel));
-                return true;
 
             } catch (ChannelRetrieveException e) {
-                logErrorAndNotifyUser("Unable to retrieve channel: " + e.getMessage(), e);
-                return false;
+                error = logOpenError("Unable to retrieve channel: " + e.getMessage(), e);
             } catch (ChannelInitializationException e) {
-                logErrorAndNotifyUser("Unable to initialize channel: " + e.getMessage(), e);
-                return false;
-            } catch (RemoteException e) {
-                logErrorAndNotifyUser("Unable to initialize channel: " + e.getMessage(), e);
-                return false;
-            } catch (AntCommandFailedException e) {
-                logErrorAndNotifyUser("Unable to open channel: " + e.getMessage(), e);
-                return false;
+                error = logOpenError("Unable to initialize channel: " + e.getMessage(), e);
+            } catch (RadioChannelException e) {
+                error = logOpenError("Unable to open channel: " + e.getMessage(), e);
             }
+
+            if (error != null) {
+                if (handler != null) {
+                    handler.onChannelClosedOrTimedOut();
+                } else {
+                    releaseChannel(channel);
+                }
+            }
+
+            reportOpenFinished(error);
+        }
+
+        private void registerHandler(final AntChannelEventHandler handler) {
+            searchActor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    addChannelEventHandler(search, handler);
+                }
+            });
+        }
+
+        private void reportOpenFinished(final Exception error) {
+            searchActor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    onChannelOpenFinished(search, error == null, error);
+                }
+            });
+        }
+
+        private Exception logOpenError(String message, Exception e) {
+            Log.e(GlobalState.LOG_TAG, message);
+            return e;
         }
     }
 
 
     //
     // This class is used to listen for data received on a newly opened channel in order
-    // to know whether the channel connected successfully or not.
+    // to know whether the channel connected successfully or not. The ANT events arrive on binder
+    // threads and are handed to the search actor. A channel is resolved exactly once: either it
+    // receives broadcast data (connected), or it times out or is closed before that (in which case
+    // it is released right away), or the search finishes first.
     //
-    private class AntChannelEventHandler implements IAntChannelEventHandler {
+    private class AntChannelEventHandler implements RadioChannel.EventHandler {
 
-        private AntChannel channel;
-        private boolean isChannelConnected;
+        private RadioChannel channel;
+        private int profileNumber;
+        private ChannelConfig profile;
+        private ChannelSearch search;
 
-        public boolean isChannelConnected() {
-            return isChannelConnected;
-        }
+        // Only accessed on the search actor.
+        private boolean isResolved;
 
         /**
          * Constructor.
          * @param channel the ANT channel that this object will listen for messages from.
+         * @param profileNumber the number of the channel profile the channel was opened with.
+         * @param profile the channel parameters the channel was opened with.
+         * @param search the search the channel belongs to.
          */
-        public AntChannelEventHandler(AntChannel channel) {
+        public AntChannelEventHandler(RadioChannel channel, int profileNumber, ChannelConfig profile,
+                                      ChannelSearch search) {
             this.channel = channel;
-            isChannelConnected = false;
+            this.profileNumber = profileNumber;
+            this.profile = profile;
+            this.search = search;
+            isResolved = false;
 
             try {
-                channel.setChannelEventHandler(this);
-            } catch (RemoteException e) {
+                channel.setEventHandler(this);
+            } catch (RadioChannelException e) {
                 Log.e(GlobalState.LOG_TAG, "Unable to set ANT Channel event handler: " + e.getMessage());
             }
         }
 
         /**
          * Checks if a message is received and if it is a broadcast data message. If so, the
-         * channel has successfully connected, and a new channel search is started.
+         * channel has successfully connected and is passed on to the listener. If the channel
+         * instead times out or is closed it is released.
          * @param messageType the ANT message type.
-         * @param messageParcel used to construct an object that can read the message contents.
+         * @param messageId the ANT message ID.
+         * @param content the message content.
          */
-        // TODO: cleanup
         @Override
-        public void onReceiveMessage(MessageFromAntType messageType, AntMessageParcel messageParcel) {
+        public void onReceiveMessage(MessageFromAntType messageType, int messageId, byte[] content) {
+            MessageTraceRecorder recorder = MessageTraceRecorder.getActive();
+            if (recorder != null) {
+                recorder.record(MessageTraceRecorder.SOURCE_SEARCH, messageId, content);
+            }
 
             if (messageType == MessageFromAntType.BROADCAST_DATA) {
-
-                try {
-                    channel.clearChannelEventHandler();
-                } catch (RemoteException e) {
-                    Log.e(GlobalState.LOG_TAG, "Unable to clear ANT channel event handler: " + e.getMessage());
+                searchActor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        onChannelConnected();
+                    }
+                });
+            } else if (messageType == MessageFromAntType.CHANNEL_EVENT) {
+                EventCode code = AntProtocolHelper.getEventCode(content);
+
+                if (code == EventCode.RX_SEARCH_TIMEOUT || code == EventCode.CHANNEL_CLOSED) {
+                    onChannelClosedOrTimedOut();
                 }
-
-                isChannelConnected = true;
-                listener.onChannelConnected(channel);
             }
         }
 
-        // TODO: This is a debug implementation. Change later.
-        @Override public void onChannelDeath() {
-            uiThreadHandler.post(new Runnable() {
+        /**
+         * Releases the channel unless it has already been resolved. Can be called from any thread.
+         */
+        public void onChannelClosedOrTimedOut() {
+            searchActor.execute(new Runnable() {
 
                 @Override
                 public void run() {
-                    Toast.makeText(context,
-                                   "onChannelDeath() called",
-                                   Toast.LENGTH_LONG).show();
+                    releaseUnconnectedChannel();
                 }
             });
         }
+
+        // Called on the search actor.
+        private void onChannelConnected() {
+            if (isResolved) return;
+            isResolved = true;
+
+            clearEventHandler();
+            reportChannelConnected(search);
+            listener.onChannelConnected(channel, profileNumber, profile);
+            onChannelResolved(search);
+        }
+
+        // Called on the search actor.
+        private void releaseUnconnectedChannel() {
+            if (isResolved) return;
+            isResolved = true;
+
+            clearEventHandler();
+            releaseChannel(channel);
+            onChannelResolved(search);
+        }
+
+        public void clearEventHandler() {
+            try {
+                channel.clearEventHandler();
+            } catch (RadioChannelException e) {
+                Log.e(GlobalState.LOG_TAG, "Unable to clear ANT channel event handler: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onChannelDeath() {
+            Log.i(GlobalState.LOG_TAG, "onChannelDeath called from ChannelSearcher");
+        }
     }
 }
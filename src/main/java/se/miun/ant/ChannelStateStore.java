@@ -0,0 +1,196 @@
+package se.miun.ant;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ChannelStateStore holds the ListItemStates of the connected lights, keyed by the identity of the
+ * light: the device number and transmission type of its ANT master (see makeKey()).
+ *
+ * Readers never lock: getSnapshot() returns an immutable Snapshot of the whole store, which can be
+ * read, looked up by key in O(1) or by position, and kept for as long as needed without ever
+ * changing under the reader. Every change builds a new Snapshot with a higher version and swaps it
+ * in atomically with compareAndSet(), retrying if another writer got there first. Changes only
+ * happen when lights connect or disconnect, so copying the (at most a few hundred) entries on each
+ * change is cheap compared to the reads it makes lock-free.
+ */
+public class ChannelStateStore {
+
+    /**
+     * An immutable, versioned view of the store.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final Map<Long, ListItemState> statesByKey;
+        private final List<ListItemState> states;
+
+        private Snapshot(long version, Map<Long, ListItemState> statesByKey, List<ListItemState> states) {
+            this.version = version;
+            this.statesByKey = statesByKey;
+            this.states = states;
+        }
+
+        /**
+         * Returns the version of the snapshot. A later snapshot always has a higher version.
+         * @return the version.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Returns the number of lights.
+         * @return the number of lights.
+         */
+        public int size() {
+            return states.size();
+        }
+
+        /**
+         * Returns the state at a position. The lights are kept in the order they were added.
+         * @param position the position, between 0 and size() - 1.
+         * @return the state at the position.
+         */
+        public ListItemState get(int position) {
+            return states.get(position);
+        }
+
+        /**
+         * Returns the state of a light.
+         * @param key the key of the light (see makeKey()).
+         * @return the state, or null if the light is not in the snapshot.
+         */
+        public ListItemState find(long key) {
+            return statesByKey.get(key);
+        }
+
+        /**
+         * Returns all states, in the order they were added. The list can not be modified.
+         * @return the states.
+         */
+        public List<ListItemState> getStates() {
+            return states;
+        }
+    }
+
+    // Keys for lights whose channel ID could not be requested. They are negative, so they can never
+    // be the same as the key of an identified light.
+    private static final AtomicInteger unidentifiedKeys = new AtomicInteger(0);
+
+    private final AtomicReference<Snapshot> snapshot;
+
+    public ChannelStateStore() {
+        List<ListItemState> noStates = Collections.emptyList();
+        Map<Long, ListItemState> noKeys = Collections.emptyMap();
+        snapshot = new AtomicReference<Snapshot>(new Snapshot(0, noKeys, noStates));
+    }
+
+    /**
+     * Makes the key of a light.
+     * @param deviceNumber the device number of the light's ANT master (0 to 65535).
+     * @param transmissionType the transmission type of the light's ANT master (0 to 255).
+     * @return the key.
+     */
+    public static long makeKey(int deviceNumber, int transmissionType) {
+        return ((long)(transmissionType & 0xFF) << 16) | (deviceNumber & 0xFFFF);
+    }
+
+    /**
+     * Returns the device number of a key made by makeKey().
+     * @param key the key.
+     * @return the device number.
+     */
+    public static int getDeviceNumber(long key) {
+        return (int)(key & 0xFFFF);
+    }
+
+    /**
+     * Returns the transmission type of a key made by makeKey().
+     * @param key the key.
+     * @return the transmission type.
+     */
+    public static int getTransmissionType(long key) {
+        return (int)((key >> 16) & 0xFF);
+    }
+
+    /**
+     * Makes a unique key for a light whose identity is not known.
+     * @return the key.
+     */
+    public static long makeUnidentifiedKey() {
+        return -1L - unidentifiedKeys.getAndIncrement();
+    }
+
+    /**
+     * Returns the current snapshot. Never blocks.
+     * @return the current snapshot.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Adds the state of a light, unless the store already has a state for the same light.
+     * Can be called from any thread.
+     * @param key the key of the light (see makeKey()).
+     * @param state the state to add.
+     * @return null if the state was added, otherwise the state that is already in the store.
+     */
+    public ListItemState putIfAbsent(long key, ListItemState state) {
+        while (true) {
+            Snapshot current = snapshot.get();
+            ListItemState existing = current.find(key);
+            if (existing != null) return existing;
+
+            Map<Long, ListItemState> statesByKey = new HashMap<Long, ListItemState>(current.statesByKey);
+            statesByKey.put(key, state);
+            List<ListItemState> states = new ArrayList<ListItemState>(current.states.size() + 1);
+            states.addAll(current.states);
+            states.add(state);
+
+            if (swap(current, statesByKey, states)) return null;
+        }
+    }
+
+    /**
+     * Removes the given state. Can be called from any thread.
+     * @param state the state to remove.
+     * @return true if the state was removed, false if it was not in the store.
+     */
+    public boolean remove(ListItemState state) {
+        return removeAll(Collections.singleton(state));
+    }
+
+    /**
+     * Removes all the given states. Can be called from any thread.
+     * @param removedStates the states to remove.
+     * @return true if any state was removed, otherwise false.
+     */
+    public boolean removeAll(Collection<ListItemState> removedStates) {
+        while (true) {
+            Snapshot current = snapshot.get();
+
+            Map<Long, ListItemState> statesByKey = new HashMap<Long, ListItemState>(current.statesByKey);
+            statesByKey.values().removeAll(removedStates);
+            if (statesByKey.size() == current.statesByKey.size()) return false;
+
+            List<ListItemState> states = new ArrayList<ListItemState>(current.states);
+            states.removeAll(removedStates);
+
+            if (swap(current, statesByKey, states)) return true;
+        }
+    }
+
+    private boolean swap(Snapshot current, Map<Long, ListItemState> statesByKey, List<ListItemState> states) {
+        Snapshot updated = new Snapshot(current.version + 1,
+                                        Collections.unmodifiableMap(statesByKey),
+                                        Collections.unmodifiableList(states));
+        return snapshot.compareAndSet(current, updated);
+    }
+}
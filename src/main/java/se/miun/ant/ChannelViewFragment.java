@@ -1,5 +1,6 @@
 package se.miun.ant;
 
+import android.content.Context;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.util.Log;
@@ -23,15 +24,57 @@ public class ChannelViewFragment extends Fragment implements ChannelWrapper.Chan
     private Button channelCloseButton;
     private SeekBar intensitySlider;
 
+    // Reused for every update so that no Runnable is allocated per received message.
+    private final Runnable updateIntensityViewRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            intensityTextView.setText(String.valueOf(lightIntensity));
+        }
+    };
+
+    // Receives the pages decoded from the payloads. Called on the channel's actor.
+    private final DataPageCodecs.DataPageHandler dataPageHandler = new DataPageCodecs.DataPageHandler() {
+
+        @Override
+        public void onAudioUpdate(int volume) {
+            if (volume == DataPageCodecs.VOLUME_UNKNOWN) {
+                Log.e(GlobalState.LOG_TAG, "Error: Volume value unknown");
+                return;
+            }
+
+            if (volume != lightIntensity) {
+                lightIntensity = volume;
+                updateLightIntensityView();
+            }
+        }
+    };
+
     public ChannelViewFragment(ChannelWrapper channelWrapper, int lightIntensity) {
         this.channelWrapper = channelWrapper;
         this.lightIntensity = lightIntensity;
     }
 
+    // A light that shares its channel (see ChannelMultiplexer) is visited more often while its
+    // details are shown. The channel ID was requested when the light was added to the list, so
+    // getDeviceNumber() does not make a binder call here.
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         channelWrapper.addChannelDataListener(this);
+        setLightPinned(true);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        setLightPinned(false);
+    }
+
+    private void setLightPinned(boolean pinned) {
+        GlobalState.getInstance().getChannelMultiplexer().setPinned(channelWrapper.getDeviceNumber(),
+                                                                   channelWrapper.getTransmissionType(),
+                                                                   pinned);
     }
 
     @Override
@@ -67,29 +110,21 @@ public class ChannelViewFragment extends Fragment implements ChannelWrapper.Chan
     }
 
     @Override
-    public void onChannelDataReceived(byte[] data, ChannelWrapper channelWrapper) {
-
-        if (AntProtocolHelper.isAudioUpdatePayload(data)) {
-            try {
-                lightIntensity = AntProtocolHelper.decodeVolumeValue(data);
-                updateLightIntensityView();
-            } catch (AntProtocolHelper.VolumeValueUnknownException e) {
-                Log.e(GlobalState.LOG_TAG, "Error: Volume value unknown");
-            }
-        }
-
+    public void onChannelDataReceived(long payload, ChannelWrapper channelWrapper) {
+        DataPageCodecs.decode(payload, dataPageHandler);
     }
 
     private void updateLightIntensityView() {
-        getActivity().runOnUiThread(new Runnable() {
-
-            @Override
-            public void run() {
-                intensityTextView.setText(String.valueOf(lightIntensity));
-            }
-        });
+        ChannelExecutors.getMainThreadExecutor().execute(updateIntensityViewRunnable);
     }
 
+    // The details screen keeps showing the last known intensity while the channel reconnects.
+    @Override
+    public void onChannelConnectionLost() {}
+
+    @Override
+    public void onChannelReconnected() {}
+
     @Override
     public void onChannelConnectionClosed() {
         showConnectionClosedToast();
@@ -102,11 +137,13 @@ public class ChannelViewFragment extends Fragment implements ChannelWrapper.Chan
     }
 
     private void showConnectionClosedToast() {
-        getActivity().runOnUiThread(new Runnable() {
+        // The fragment is detached by the time the Toast is shown, so the activity is kept here.
+        final Context context = getActivity();
+        ChannelExecutors.getMainThreadExecutor().execute(new Runnable() {
 
             @Override
             public void run() {
-                Toast.makeText(getActivity(),
+                Toast.makeText(context,
                                R.string.connection_closed_toast,
                                Toast.LENGTH_LONG).show();
             }
@@ -116,22 +153,16 @@ public class ChannelViewFragment extends Fragment implements ChannelWrapper.Chan
     @Override
     public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
         if (fromUser) {
-            byte[] payload = AntProtocolHelper.makeIntensityPayload(progress);
-            sendAcknowledgedData(payload);
+            channelWrapper.sendIntensity(progress);
         }
     }
 
     @Override
-    public void onStartTrackingTouch(SeekBar seekBar) {}
+    public void onStartTrackingTouch(SeekBar seekBar) {
+        // The user takes over the light, so a running fade must not overwrite the new intensity.
+        GlobalState.getInstance().getFadeEngine().cancelFade(channelWrapper);
+    }
 
     @Override
     public void onStopTrackingTouch(SeekBar seekBar) {}
-
-    private void sendAcknowledgedData(byte[] payload) {
-        try {
-            channelWrapper.sendAcknowledgedData(payload);
-        } catch (ChannelWrapper.ChannelDataSendException e) {
-            Log.e(GlobalState.LOG_TAG, e.getMessage());
-        }
-    }
 }
@@ -1,29 +1,110 @@
 package se.miun.ant;
 
-import android.os.RemoteException;
 import android.util.Log;
 
-import com.dsi.ant.channel.AntChannel;
-import com.dsi.ant.channel.AntCommandFailedException;
-import com.dsi.ant.channel.IAntChannelEventHandler;
+import com.dsi.ant.message.ChannelId;
 import com.dsi.ant.message.ChannelState;
 import com.dsi.ant.message.EventCode;
-import com.dsi.ant.message.fromant.BroadcastDataMessage;
-import com.dsi.ant.message.fromant.ChannelEventMessage;
-import com.dsi.ant.message.fromant.ChannelStatusMessage;
 import com.dsi.ant.message.fromant.MessageFromAntType;
-import com.dsi.ant.message.ipc.AntMessageParcel;
-
-import java.util.ArrayList;
-import java.util.List;
-
-public class ChannelWrapper implements IAntChannelEventHandler {
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import se.miun.ant.RadioChannel.RadioChannelException;
+
+/**
+ * ChannelWrapper wraps a connected RadioChannel. Each ChannelWrapper is an actor (see ChannelExecutors):
+ * the ANT service delivers the channel's messages on its binder threads, and they are handed to the
+ * channel's SerialExecutor, which calls the ChannelDataListeners one message at a time and in order.
+ * Listeners can be added and removed from any thread (see ListenerRegistry).
+ *
+ * Broadcast data is coalesced: if new broadcast data arrives before the previous broadcast has been
+ * handed to the listeners, only the newest payload is delivered.
+ *
+ * When the connection to the master is lost (RX_FAILS_ALLOWED_IN_ROW failed receptions in a row, or
+ * the channel is closed) the channel is kept and the listeners are told that the light is
+ * reconnecting. The ANT radio first searches for the master by itself. If that search times out, the
+ * channel is reopened, directed to the same master, after a delay that doubles for every attempt
+ * (RECONNECT_INITIAL_DELAY_MS up to RECONNECT_MAX_DELAY_MS). As soon as broadcast data is received
+ * again the listeners are told that the light has reconnected. Only after MAX_RECONNECT_ATTEMPTS
+ * failed attempts are the listeners told that the connection is closed.
+ *
+ * What happens on the channel is counted in its ChannelMetrics (see getMetrics()).
+ *
+ * Acknowledged transfers are traced: every send is timestamped and matched to the
+ * TRANSFER_TX_COMPLETED or TRANSFER_TX_FAILED event that ends it, and the caller can be told about
+ * the outcome (see OnTransferCompletedListener). The ANT radio runs at most one acknowledged transfer
+ * per channel at a time and its events do not say which transfer they belong to, so the event is
+ * matched to the one transfer in flight. If a new transfer is started before the previous one has
+ * ended, the previous one is considered failed.
+ *
+ * Payloads that are larger than 8 bytes are sent as burst transfers (see sendBurst() and
+ * BurstTransfer). While a burst transfer is running, the transfer events of the channel belong to it,
+ * so no acknowledged transfer can be started until it has ended.
+ *
+ * An open channel can be retuned to new channel parameters without losing the light (see retune()):
+ * the channel is closed, given the new parameters, directed to the same master and reopened. If the
+ * master is found again the listeners never notice; otherwise the channel reconnects as usual.
+ */
+public class ChannelWrapper implements RadioChannel.EventHandler {
+
+    /**
+     * The methods of a ChannelDataListener are called on the channel's actor, never on the UI thread.
+     */
     public interface ChannelDataListener {
-        public void onChannelDataReceived(byte[] data, ChannelWrapper channelWrapper);
+        /**
+         * Called when broadcast data has been received on the channel.
+         * @param payload the 8 byte data payload packed into a long (see AntProtocolHelper.packPayload()).
+         * @param channelWrapper the ChannelWrapper that received the data.
+         */
+        public void onChannelDataReceived(long payload, ChannelWrapper channelWrapper);
+
+        /**
+         * Called when the connection to the master has been lost and the channel is reconnecting.
+         */
+        public void onChannelConnectionLost();
+
+        /**
+         * Called when the channel has reconnected to the master after the connection was lost.
+         */
+        public void onChannelReconnected();
+
+        /**
+         * Called when the connection to the master is closed and the channel will not reconnect.
+         */
         public void onChannelConnectionClosed();
     }
 
+    /**
+     * Listens for the outcome of one acknowledged transfer.
+     */
+    public interface OnTransferCompletedListener {
+        /**
+         * Called on a background thread when the transfer has ended.
+         * @param success true if the master acknowledged the data, false if the transfer failed,
+         *                could not be started, or was ended by the channel closing.
+         * @param latencyNanos the time from the send until the transfer ended, in nanoseconds.
+         */
+        public void onTransferCompleted(boolean success, long latencyNanos);
+    }
+
+    /**
+     * Listens for the outcome of a retune (see retune()).
+     */
+    public interface OnRetuneCompletedListener {
+        /**
+         * Called on the channel's actor when the retuned channel has received broadcast data from
+         * its master again, or when the retune failed or the master was lost.
+         * @param channelWrapper the retuned channel.
+         * @param reacquired true if the master was found with the new channel parameters.
+         */
+        public void onRetuneCompleted(ChannelWrapper channelWrapper, boolean reacquired);
+    }
+
     public class ChannelDataSendException extends Exception {
 
         public ChannelDataSendException(String message, Throwable cause) {
@@ -33,41 +114,390 @@ public class ChannelWrapper implements IAntChannelEventHandler {
 
     public static final String TAG = "ANTLightController";
 
+    /** Returned by getDeviceNumber() when the device number of the master could not be requested. */
+    public static final int DEVICE_NUMBER_UNKNOWN = -1;
+
+    /** Returned by getTransmissionType() when the channel ID of the master could not be requested. */
+    public static final int TRANSMISSION_TYPE_UNKNOWN = -1;
+
     private static final int RX_FAILS_ALLOWED_IN_ROW = 5;
 
+    // The delay before the first attempt to reopen the channel, and the longest delay between two
+    // attempts.
+    private static final int RECONNECT_INITIAL_DELAY_MS = 500;
+    private static final int RECONNECT_MAX_DELAY_MS = 1000 * 16;
+
+    // The number of times the channel is reopened before the connection is considered closed.
+    private static final int MAX_RECONNECT_ATTEMPTS = 8;
+
+    // The connection states of the channel.
+    private static final int STATE_CONNECTED = 0;   // Receiving data from the master.
+    private static final int STATE_SEARCHING = 1;   // Lost; the radio is searching for the master.
+    private static final int STATE_WAITING = 2;     // Closed; waiting to reopen the channel.
+    private static final int STATE_CLOSED = 3;      // Given up; the channel will not reconnect.
+
+    // The index of the first payload byte in the content of a broadcast data message
+    // (the first byte is the channel number).
+    private static final int BROADCAST_PAYLOAD_OFFSET = 1;
+
+    // Only accessed on the channel actor.
     private int rx_fails = 0;
+    private int connectionState = STATE_CONNECTED;
+    private int reconnectAttempts = 0;
+    private OnRetuneCompletedListener retuneListener;
+    // The number of CHANNEL_CLOSED events that were caused by retune() and are not a lost connection.
+    private int retuneCloseEvents = 0;
+    // The time (System.nanoTime()) the last broadcast was delivered to the listeners, or 0.
+    private long lastDeliveryTime = 0;
+
+    // Volatile because the channel is used from worker threads (see IntensityCommandQueue).
+    private volatile RadioChannel antChannel;
+
+    private final ListenerRegistry<ChannelDataListener> listeners;
+
+    // Runs the event handling and listener calls of this channel, one at a time.
+    private final SerialExecutor channelActor;
+
+    // The newest received payload, and whether it is waiting to be delivered to the listeners.
+    private final AtomicLong pendingPayload;
+    private final AtomicBoolean broadcastPending;
+
+    private final ChannelMetrics metrics;
+
+    // The acknowledged transfer that has been started and has not yet ended, or null.
+    private final AtomicReference<AckedTransfer> transferInFlight;
+
+    // The burst transfer that has been started and has not yet ended, or null.
+    private final AtomicReference<BurstTransfer> burstInFlight;
 
-    private AntChannel antChannel;
-    private List<ChannelDataListener> listeners;
+    // Delivers the newest payload on the channel actor. A SerialExecutor.Task, so that handing it to
+    // the actor does not allocate; broadcastPending keeps it from being submitted twice.
+    private final SerialExecutor.Task deliverBroadcastTask = new SerialExecutor.Task() {
 
-    public ChannelWrapper(AntChannel antChannel) {
-        listeners = new ArrayList<ChannelDataListener>();
+        @Override
+        public void run() {
+            broadcastPending.set(false);
+            rx_fails = 0;
+            if (connectionState == STATE_SEARCHING || connectionState == STATE_WAITING) onReconnected();
+            if (retuneListener != null) completeRetune(true);
+
+            long start = System.nanoTime();
+            if (lastDeliveryTime != 0) metrics.recordUpdateInterval(start - lastDeliveryTime);
+            lastDeliveryTime = start;
+
+            notifyBroadcastData(pendingPayload.get());
+            metrics.recordDispatchTime(System.nanoTime() - start);
+        }
+    };
+
+    // Reopens the channel. Scheduled on the worker pool, run on the channel actor.
+    private final Runnable reconnectTask;
+
+    private IntensityCommandQueue intensityCommandQueue;
+    // The channel profile (see ChannelConfig) that the master was found with. The parameters are
+    // changed by retune().
+    private final int profileNumber;
+    private volatile ChannelConfig profile;
+
+    // The channel ID of the master, requested the first time it is needed.
+    private volatile ChannelId channelId;
+
+    // The FadeEngine that has faded this light, or null. Its fade of the light is cancelled when the
+    // channel is closed or released, so that it does not keep sending steps to a lost light.
+    private volatile FadeEngine fadeEngine;
+
+    /**
+     * Constructor.
+     * @param antChannel the connected RadioChannel.
+     * @param profileNumber the number of the channel profile that the channel was opened with.
+     * @param profile the channel parameters that the channel was opened with.
+     */
+    public ChannelWrapper(RadioChannel antChannel, int profileNumber, ChannelConfig profile) {
+        this(antChannel, profileNumber, profile, ChannelMetrics.SYSTEM_CLOCK);
+    }
+
+    /**
+     * Constructor for a channel whose metrics are measured on another clock, for example the clock
+     * of a replayed message trace (see ChannelMetrics).
+     * @param antChannel the connected RadioChannel.
+     * @param profileNumber the number of the channel profile that the channel was opened with.
+     * @param profile the channel parameters that the channel was opened with.
+     * @param metricsClock the clock of the channel's metrics.
+     */
+    ChannelWrapper(RadioChannel antChannel, int profileNumber, ChannelConfig profile,
+                   ChannelMetrics.Clock metricsClock) {
+        listeners = new ListenerRegistry<ChannelDataListener>(new ChannelDataListener[0]);
+        channelActor = ChannelExecutors.newSerialExecutor();
+        pendingPayload = new AtomicLong();
+        broadcastPending = new AtomicBoolean(false);
+        metrics = new ChannelMetrics("Channel@" + Integer.toHexString(hashCode()), metricsClock);
+        transferInFlight = new AtomicReference<AckedTransfer>();
+        burstInFlight = new AtomicReference<BurstTransfer>();
+        reconnectTask = new Runnable() {
+
+            @Override
+            public void run() {
+                channelActor.executeBlocking(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        reconnect();
+                    }
+                });
+            }
+        };
+        intensityCommandQueue = new IntensityCommandQueue(this, profile.getPeriod());
+        this.profileNumber = profileNumber;
+        this.profile = profile;
         this.antChannel = antChannel;
         try {
-            antChannel.setChannelEventHandler(this);
-        } catch (RemoteException e) {
+            antChannel.setEventHandler(this);
+        } catch (RadioChannelException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Returns the channel period that the channel was opened (or last retuned) with.
+     * @return the channel period, in units of 1/32768 s.
+     */
+    public int getChannelPeriod() {
+        return profile.getPeriod();
+    }
+
+    /**
+     * Returns the number of the channel profile that the channel was opened with (0 for the
+     * primary profile).
+     * @return the profile number.
+     */
+    public int getProfileNumber() {
+        return profileNumber;
+    }
+
+    /**
+     * Returns the channel parameters that the channel was opened (or last retuned) with.
+     * @return the channel parameters.
+     */
+    public ChannelConfig getProfile() {
+        return profile;
+    }
+
+    /**
+     * Returns the metrics of the channel, which can be read from any thread.
+     * @return the metrics.
+     */
+    public ChannelMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Requests that the light intensity is sent to the master as an acknowledged message. Only the
+     * latest requested intensity is sent, at most once per channel period (see IntensityCommandQueue).
+     * This method does not block and is safe to call on every SeekBar change.
+     * @param lightIntensity the light intensity (volume percent) to send.
+     */
+    public void sendIntensity(int lightIntensity) {
+        intensityCommandQueue.submit(lightIntensity);
+    }
+
+    /**
+     * Requests that an intensity payload (see AntProtocolHelper.makeIntensityPayload()) is sent
+     * to the master, in the same way as sendIntensity().
+     * @param payload the intensity payload to send.
+     * @param listener notified when the payload has been sent, or null.
+     */
+    public void sendIntensityPayload(byte[] payload,
+                                     IntensityCommandQueue.OnCommandSentListener listener) {
+        intensityCommandQueue.submit(payload, listener);
+    }
+
+    /**
+     * Returns the device number of the master that the channel is connected to. The slave opens
+     * the channel with a wildcard device number, so the first call (of this method or of
+     * getTransmissionType()) requests the actual channel ID from the ANT radio. This is a binder
+     * call, so this method should not be called on the UI thread.
+     * @return the device number, or DEVICE_NUMBER_UNKNOWN if it could not be requested.
+     */
+    public int getDeviceNumber() {
+        ChannelId id = getChannelId();
+        return id != null ? id.getDeviceNumber() : DEVICE_NUMBER_UNKNOWN;
+    }
+
+    /**
+     * Returns the transmission type of the master that the channel is connected to.
+     * See getDeviceNumber().
+     * @return the transmission type, or TRANSMISSION_TYPE_UNKNOWN if it could not be requested.
+     */
+    public int getTransmissionType() {
+        ChannelId id = getChannelId();
+        return id != null ? id.getTransmissionType() : TRANSMISSION_TYPE_UNKNOWN;
+    }
+
+    private ChannelId getChannelId() {
+        if (channelId == null) {
+            channelId = requestChannelId();
+        }
+        return channelId;
+    }
+
+    private ChannelId requestChannelId() {
+        RadioChannel channel = antChannel;
+        if (channel == null) return null;
+
+        try {
+            return channel.requestChannelId();
+        } catch (RadioChannelException e) {
+            Log.e(TAG, "Error requesting channel ID: " + e.getMessage());
+        }
+        return null;
+    }
+
     public void sendAcknowledgedData(byte[] data) throws ChannelDataSendException {
+        sendAcknowledgedData(data, null);
+    }
+
+    /**
+     * Starts an acknowledged transfer to the master. The transfer is traced (see the class comment)
+     * and the listener is told when it has ended. If this method throws, the listener is not called.
+     * This is a binder call, so this method should not be called on the UI thread.
+     * @param data the 8 byte payload.
+     * @param listener notified when the transfer has ended, or null.
+     * @throws ChannelDataSendException if the transfer could not be started.
+     */
+    public void sendAcknowledgedData(byte[] data, OnTransferCompletedListener listener)
+            throws ChannelDataSendException {
         if (data == null) throw new NullPointerException("data must not be null");
 
+        RadioChannel channel = antChannel;
+        if (channel == null) {
+            throw new ChannelDataSendException("Error sending data over the ANT channel: " +
+                                               "the channel has been released", null);
+        }
+
+        if (burstInFlight.get() != null) {
+            throw new ChannelDataSendException("Error sending data over the ANT channel: " +
+                                               "a burst transfer is in progress", null);
+        }
+
+        AckedTransfer transfer = new AckedTransfer(listener);
+        AckedTransfer superseded = transferInFlight.getAndSet(transfer);
+        if (superseded != null) superseded.end(false);
+
+        metrics.recordTxAttempt();
         try {
-            antChannel.startSendAcknowledgedData(data);
-        } catch (RemoteException e) {
+            channel.startSendAcknowledgedData(data);
+            transfer.callReturnTime = System.nanoTime();
+            metrics.recordTxCallTime(transfer.callReturnTime - transfer.startTime);
+        } catch (RadioChannelException e) {
+            onTransferNotStarted(transfer);
             throwChannelDataSendException(e);
-        } catch (AntCommandFailedException e) {
+        }
+    }
+
+    private void onTransferNotStarted(AckedTransfer transfer) {
+        metrics.recordTxSendError();
+        transferInFlight.compareAndSet(transfer, null);
+    }
+
+    //
+    // Ends the transfer in flight, if any. Called on an ANT binder thread when the transfer event
+    // arrives, or on the thread that closes or releases the channel.
+    //
+    private void endTransferInFlight(boolean success) {
+        AckedTransfer transfer = transferInFlight.getAndSet(null);
+        if (transfer != null) transfer.end(success);
+    }
+
+    /**
+     * Starts a burst transfer of a payload to the master, with the default chunk size. See
+     * sendBurst(InputStream, int, int, BurstTransfer.OnBurstProgressListener).
+     * @param data the payload.
+     * @param listener notified of the progress of the transfer, or null.
+     * @return the started transfer.
+     * @throws ChannelDataSendException if a burst transfer is already in progress on the channel.
+     */
+    public BurstTransfer sendBurst(byte[] data, BurstTransfer.OnBurstProgressListener listener)
+            throws ChannelDataSendException {
+        if (data == null) throw new NullPointerException("data must not be null");
+        return sendBurst(new ByteArrayInputStream(data), data.length, BurstTransfer.DEFAULT_CHUNK_SIZE,
+                         listener);
+    }
+
+    /**
+     * Starts a burst transfer of a payload to the master. The payload is read from the stream and
+     * sent one chunk at a time (see BurstTransfer). Only one burst transfer can run on a channel at
+     * a time, and an acknowledged transfer that is still running is considered failed. This method
+     * does not block and can be called from any thread.
+     * @param data the payload. It is read on a background thread, and is not closed.
+     * @param length the number of bytes to read from the stream and send.
+     * @param chunkSize the largest number of bytes sent in one burst.
+     * @param listener notified of the progress of the transfer, or null.
+     * @return the started transfer.
+     * @throws ChannelDataSendException if a burst transfer is already in progress on the channel.
+     */
+    public BurstTransfer sendBurst(InputStream data, int length, int chunkSize,
+                                   BurstTransfer.OnBurstProgressListener listener)
+            throws ChannelDataSendException {
+        if (data == null) throw new NullPointerException("data must not be null");
+
+        BurstTransfer transfer = new BurstTransfer(this, data, length, chunkSize, listener);
+        if (!burstInFlight.compareAndSet(null, transfer)) {
+            throw new ChannelDataSendException("Error sending data over the ANT channel: " +
+                                               "a burst transfer is already in progress", null);
+        }
+
+        endTransferInFlight(false);
+        transfer.start();
+        return transfer;
+    }
+
+    //
+    // Sends one chunk of the burst transfer in flight. Called on the transfer's actor.
+    //
+    void startBurstChunk(byte[] chunk) throws ChannelDataSendException {
+        RadioChannel channel = antChannel;
+        if (channel == null) {
+            throw new ChannelDataSendException("Error sending data over the ANT channel: " +
+                                               "the channel has been released", null);
+        }
+
+        try {
+            channel.burstTransfer(chunk);
+        } catch (RadioChannelException e) {
             throwChannelDataSendException(e);
         }
     }
 
+    //
+    // Called by the FadeEngine when it starts fading this light.
+    //
+    void setFadeEngine(FadeEngine fadeEngine) {
+        this.fadeEngine = fadeEngine;
+    }
+
+    private void cancelFade() {
+        FadeEngine engine = fadeEngine;
+        if (engine != null) engine.cancelFade(this);
+    }
+
+    //
+    // Called on the transfer's actor when the burst transfer has ended and no chunk is in flight.
+    //
+    void onBurstFinished(BurstTransfer transfer, boolean success) {
+        burstInFlight.compareAndSet(transfer, null);
+        if (success) {
+            metrics.recordBurstCompleted();
+        } else {
+            metrics.recordBurstFailed();
+        }
+    }
+
     public void setBroadcastData(byte[] data) throws ChannelDataSendException {
         if (data == null) throw new NullPointerException("data must not be null");
 
         try {
             antChannel.setBroadcastData(data);
-        } catch (RemoteException e) {
+        } catch (RadioChannelException e) {
             throwChannelDataSendException(e);
         }
     }
@@ -81,15 +511,11 @@ public class ChannelWrapper implements IAntChannelEventHandler {
         if (antChannel == null) return false;
 
         try {
-            ChannelStatusMessage status = antChannel.requestChannelStatus();
-            ChannelState state = status.getChannelState();
+            ChannelState state = antChannel.requestChannelState();
 
             return state != ChannelState.INVALID && state != ChannelState.UNASSIGNED;
 
-        } catch (RemoteException e) {
-            Log.e(TAG, "Error getting channel status message: " + e.getMessage());
-            return false;
-        } catch (AntCommandFailedException e) {
+        } catch (RadioChannelException e) {
             Log.e(TAG, "Error getting channel status message: " + e.getMessage());
             return false;
         }
@@ -100,87 +526,343 @@ public class ChannelWrapper implements IAntChannelEventHandler {
         /*
         try {
             antChannel.close();
-        } catch (RemoteException e) {
-            Log.e(GlobalState.LOG_TAG, "Could not close channel: " + e.getMessage());
-        } catch (AntCommandFailedException e) {
+        } catch (RadioChannelException e) {
             Log.e(GlobalState.LOG_TAG, "Could not close channel: " + e.getMessage());
         }
         */
 
         try {
-            antChannel.clearChannelEventHandler();
-        } catch (RemoteException e) {
+            antChannel.clearEventHandler();
+        } catch (RadioChannelException e) {
             Log.e(GlobalState.LOG_TAG, "Could not clear channel event handler: " + e.getMessage());
         }
     }
 
     public void openChannel() {
+        // Events that were sent while the handler was cleared are lost, so the close events of a
+        // retune that was interrupted will never arrive.
+        channelActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                retuneCloseEvents = 0;
+            }
+        });
+
         /*
         try {
             antChannel.open();
-        } catch (RemoteException e) {
-            Log.e(GlobalState.LOG_TAG, "Could not open channel: " + e.getMessage());
-        } catch (AntCommandFailedException e) {
+        } catch (RadioChannelException e) {
             Log.e(GlobalState.LOG_TAG, "Could not open channel: " + e.getMessage());
         }
         */
 
         try {
-            antChannel.setChannelEventHandler(this);
-        } catch (RemoteException e) {
+            antChannel.setEventHandler(this);
+        } catch (RadioChannelException e) {
             Log.e(GlobalState.LOG_TAG, "Could not set channel event handler: " + e.getMessage());
         }
     }
 
     public void releaseChannel() {
+        cancelFade();
+        intensityCommandQueue.clear();
+        endTransferInFlight(false);
+        BurstTransfer burst = burstInFlight.get();
+        if (burst != null) burst.cancel();
+        metrics.markReleased();
         if (antChannel == null) return;
 
         antChannel.release();
         antChannel = null;
     }
 
+    /**
+     * Retunes the channel to new channel parameters, directed to the master that it is connected
+     * to. The channel is closed, its channel ID (with the new device type), frequency and period
+     * are set, and it is reopened. This method does not block; the retune is done on the channel's
+     * actor (as a blocking task, see SerialExecutor.executeBlocking()), and the listener is told
+     * when the master has been found again, or not.
+     * @param config the new channel parameters.
+     * @param listener notified when the retune has completed.
+     */
+    public void retune(final ChannelConfig config, final OnRetuneCompletedListener listener) {
+        channelActor.executeBlocking(new Runnable() {
+
+            @Override
+            public void run() {
+                performRetune(config, listener);
+            }
+        });
+    }
+
+    /**
+     * Adds a listener. The listener receives every message that is delivered after this method
+     * has returned. Can be called from any thread.
+     * @param listener the listener to add.
+     */
     public void addChannelDataListener(ChannelDataListener listener) {
         listeners.add(listener);
     }
 
+    /**
+     * Removes a listener. The listener may still receive a message that was being delivered while
+     * this method was called. Can be called from any thread.
+     * @param listener the listener to remove.
+     */
     public void removeChannelDataListener(ChannelDataListener listener) {
         listeners.remove(listener);
     }
 
-    @Override // TODO: cleanup
-    public void onReceiveMessage(MessageFromAntType messageType, AntMessageParcel messageParcel) {
-        if (listeners.isEmpty()) return;
+    //
+    // Called on an ANT binder thread. Only extracts what is needed from the message and hands it
+    // to the channel actor, so that the binder thread is released right away.
+    //
+    @Override
+    public void onReceiveMessage(MessageFromAntType messageType, int messageId, byte[] content) {
+        MessageTraceRecorder recorder = MessageTraceRecorder.getActive();
+        if (recorder != null) {
+            recorder.record(MessageTraceRecorder.SOURCE_CHANNEL, messageId, content);
+        }
 
         if (messageType == MessageFromAntType.BROADCAST_DATA) {
-            rx_fails = 0;
-            BroadcastDataMessage message = new BroadcastDataMessage(messageParcel);
-            byte[] broadcastMessageData = message.getPayload();
-            if (broadcastMessageData != null) notifyBroadcastData(broadcastMessageData);
+            // The payload is read straight from the message content instead of through a
+            // BroadcastDataMessage, which would allocate a new object and payload array for
+            // every received message.
+            if (isBroadcastContentValid(content)) {
+                metrics.recordRxMessage();
+                pendingPayload.set(AntProtocolHelper.packPayload(content, BROADCAST_PAYLOAD_OFFSET));
+                if (broadcastPending.compareAndSet(false, true)) {
+                    channelActor.execute(deliverBroadcastTask);
+                } else {
+                    metrics.recordRxCoalesced();
+                }
+            }
         }
 
         if (messageType == MessageFromAntType.CHANNEL_EVENT) {
-            ChannelEventMessage eventMessage = new ChannelEventMessage(messageParcel);
-            EventCode code = eventMessage.getEventCode();
+            final EventCode code = AntProtocolHelper.getEventCode(content);
+            BurstTransfer burst = burstInFlight.get();
+
+            if (burst != null && (code == EventCode.TRANSFER_TX_START ||
+                                  code == EventCode.TRANSFER_TX_COMPLETED ||
+                                  code == EventCode.TRANSFER_TX_FAILED ||
+                                  code == EventCode.CHANNEL_CLOSED)) {
+                burst.onTransferEvent(code);
+            }
 
-            if (code == EventCode.CHANNEL_CLOSED ) {
-                notifyOnChannelConnectionClosed();
+            // While a burst transfer is running, the transfer events are counted by the burst transfer.
+            if (burst == null && code == EventCode.TRANSFER_TX_COMPLETED) {
+                metrics.recordTxCompleted();
+                endTransferInFlight(true);
+            } else if (burst == null && code == EventCode.TRANSFER_TX_FAILED) {
+                metrics.recordTxFailed();
+                endTransferInFlight(false);
             } else if (code == EventCode.RX_FAIL) {
-                Log.i(TAG, "RX_FAIL");
-                rx_fails += 1;
-                if (rx_fails >= RX_FAILS_ALLOWED_IN_ROW) notifyOnChannelConnectionClosed();
+                metrics.recordRxFail();
+            } else if (code == EventCode.CHANNEL_CLOSED) {
+                metrics.recordChannelClosed();
+                endTransferInFlight(false);
             }
+
+            if (code == EventCode.CHANNEL_CLOSED || code == EventCode.RX_FAIL) {
+                channelActor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        onChannelEvent(code);
+                    }
+                });
+            }
+        }
+    }
+
+    //
+    // Called on the channel actor.
+    //
+    private void onChannelEvent(EventCode code) {
+        if (code == EventCode.CHANNEL_CLOSED && retuneCloseEvents > 0) {
+            retuneCloseEvents--;
+        } else if (code == EventCode.CHANNEL_CLOSED) {
+            cancelFade();
+            if (connectionState == STATE_CONNECTED) onConnectionLost();
+            if (connectionState == STATE_SEARCHING) scheduleReconnect();
+        } else if (code == EventCode.RX_FAIL && connectionState == STATE_CONNECTED) {
+            Log.i(TAG, "RX_FAIL");
+            rx_fails += 1;
+            if (rx_fails >= RX_FAILS_ALLOWED_IN_ROW) onConnectionLost();
+        }
+    }
+
+    //
+    // The following methods are called on the channel actor. They make up the reconnect state
+    // machine described in the class comment.
+    //
+
+    private void onConnectionLost() {
+        Log.i(TAG, "Connection lost, reconnecting");
+        connectionState = STATE_SEARCHING;
+        reconnectAttempts = 0;
+        if (retuneListener != null) completeRetune(false);
+        notifyOnChannelConnectionLost();
+    }
+
+    private void onReconnected() {
+        Log.i(TAG, "Reconnected after " + reconnectAttempts + " reopen attempts");
+        connectionState = STATE_CONNECTED;
+        reconnectAttempts = 0;
+        notifyOnChannelReconnected();
+    }
+
+    //
+    // Waits before reopening the channel. Runs on the worker pool, so the channel ID is not requested
+    // here (see reconnect()).
+    //
+    private void scheduleReconnect() {
+        if (reconnectAttempts >= MAX_RECONNECT_ATTEMPTS || antChannel == null) {
+            giveUpReconnecting();
+            return;
         }
+
+        long delay = Math.min((long)RECONNECT_INITIAL_DELAY_MS << reconnectAttempts, RECONNECT_MAX_DELAY_MS);
+        reconnectAttempts++;
+        connectionState = STATE_WAITING;
+        ChannelExecutors.getWorkerExecutor().schedule(reconnectTask, delay, TimeUnit.MILLISECONDS);
     }
 
-    private void notifyBroadcastData(byte[] broadcastMessageData) {
-        for (ChannelDataListener listener : listeners) {
-            listener.onChannelDataReceived(broadcastMessageData, this);
+    //
+    // Runs as a blocking task of the actor. The channel can only be directed to the same master if
+    // its channel ID is known; otherwise a reopened channel could connect to another light. If the
+    // ID request failed when the channel was added, it is requested again here.
+    //
+    private void reconnect() {
+        RadioChannel channel = antChannel;
+        if (connectionState != STATE_WAITING || channel == null) return;
+
+        ChannelId id = getChannelId();
+        if (id == null) {
+            giveUpReconnecting();
+            return;
+        }
+
+        try {
+            channel.setChannelId(id);
+            channel.open();
+            connectionState = STATE_SEARCHING;
+        } catch (RadioChannelException e) {
+            Log.e(TAG, "Could not reopen channel: " + e.getMessage());
+            scheduleReconnect();
+        }
+    }
+
+    private void giveUpReconnecting() {
+        Log.i(TAG, "Giving up reconnecting after " + reconnectAttempts + " reopen attempts");
+        connectionState = STATE_CLOSED;
+        if (retuneListener != null) completeRetune(false);
+        notifyOnChannelConnectionClosed();
+    }
+
+    //
+    // A channel that is tracking or searching for its master is closed first; a channel that is
+    // waiting to reconnect is already closed, and is reopened right away with the new parameters.
+    // The connection state is kept, so a connected light stays connected unless the master is not
+    // found again (the search times out and closes the channel, which starts a reconnect).
+    //
+    private void performRetune(ChannelConfig config, OnRetuneCompletedListener listener) {
+        RadioChannel channel = antChannel;
+        ChannelId id = getChannelId();
+        if (retuneListener != null) completeRetune(false);
+
+        if (channel == null || id == null || connectionState == STATE_CLOSED) {
+            listener.onRetuneCompleted(this, false);
+            return;
+        }
+        retuneListener = listener;
+
+        ChannelId retunedId = new ChannelId(id.getDeviceNumber(), config.getDeviceType(),
+                                            id.getTransmissionType());
+        try {
+            if (connectionState != STATE_WAITING) closeForRetune(channel);
+
+            channel.setChannelId(retunedId);
+            channel.setRfFrequency(config.getFrequency());
+            channel.setPeriod(config.getPeriod());
+            channelId = retunedId;
+            profile = config;
+            intensityCommandQueue.setChannelPeriod(config.getPeriod());
+
+            channel.open();
+            if (connectionState == STATE_WAITING) connectionState = STATE_SEARCHING;
+            Log.i(TAG, "Retuned channel: " + config);
+        } catch (RadioChannelException e) {
+            onRetuneFailed(e);
+        }
+    }
+
+    //
+    // The close event of the channel is still delivered, and must not be taken for a lost connection.
+    // If the channel can not be closed it has already been closed by the radio, and the close event
+    // that comes with that is handled as usual. If the call failed because the radio is gone, the
+    // calls that follow fail as well and the retune fails.
+    //
+    private void closeForRetune(RadioChannel channel) {
+        try {
+            channel.close();
+            retuneCloseEvents++;
+        } catch (RadioChannelException e) {
+            Log.i(TAG, "Channel already closed before retune: " + e.getMessage());
+        }
+    }
+
+    //
+    // The channel is closed, possibly with some of the new parameters set, so it is reconnected
+    // like a channel whose search timed out.
+    //
+    private void onRetuneFailed(Exception e) {
+        Log.e(TAG, "Could not retune channel: " + e.getMessage());
+        if (connectionState == STATE_CONNECTED) onConnectionLost();
+        if (retuneListener != null) completeRetune(false);
+        if (connectionState != STATE_WAITING) scheduleReconnect();
+    }
+
+    private void completeRetune(boolean reacquired) {
+        OnRetuneCompletedListener listener = retuneListener;
+        retuneListener = null;
+        listener.onRetuneCompleted(this, reacquired);
+    }
+
+    private boolean isBroadcastContentValid(byte[] content) {
+        return content != null &&
+               content.length >= BROADCAST_PAYLOAD_OFFSET + AntProtocolHelper.PAYLOAD_LENGTH;
+    }
+
+    // The listeners are read once into a local snapshot, so adding or removing listeners from
+    // other threads during the loop neither blocks it nor affects it.
+    private void notifyBroadcastData(long payload) {
+        ChannelDataListener[] snapshot = listeners.getListeners();
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i].onChannelDataReceived(payload, this);
+        }
+    }
+
+    private void notifyOnChannelConnectionLost() {
+        ChannelDataListener[] snapshot = listeners.getListeners();
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i].onChannelConnectionLost();
+        }
+    }
+
+    private void notifyOnChannelReconnected() {
+        ChannelDataListener[] snapshot = listeners.getListeners();
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i].onChannelReconnected();
         }
     }
 
     private void notifyOnChannelConnectionClosed() {
-        for (ChannelDataListener listener : listeners) {
-            listener.onChannelConnectionClosed();
+        ChannelDataListener[] snapshot = listeners.getListeners();
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i].onChannelConnectionClosed();
         }
     }
 
@@ -188,6 +870,30 @@ public class ChannelWrapper implements IAntChannelEventHandler {
     public void onChannelDeath() {
         Log.i(GlobalState.LOG_TAG, "onChannelDeath called from ChannelWrapper#" + hashCode());
     }
+
+    //
+    // One traced acknowledged transfer. The transfer event can arrive on a binder thread before
+    // startSendAcknowledgedData() has returned, in which case callReturnTime is still 0 and the
+    // whole latency is counted as ack latency.
+    //
+    private class AckedTransfer {
+        private final OnTransferCompletedListener listener;
+        private final long startTime;
+        private volatile long callReturnTime;
+
+        public AckedTransfer(OnTransferCompletedListener listener) {
+            this.listener = listener;
+            startTime = System.nanoTime();
+        }
+
+        public void end(boolean success) {
+            long endTime = System.nanoTime();
+            long callEnd = callReturnTime != 0 ? callReturnTime : startTime;
+            metrics.recordTxAckLatency(endTime - callEnd);
+
+            if (listener != null) listener.onTransferCompleted(success, endTime - startTime);
+        }
+    }
 }
 
 
@@ -0,0 +1,211 @@
+package se.miun.ant;
+
+/**
+ * DataPageCodecs decodes the data pages of the payloads that the lights send. The codecs are kept
+ * in a table indexed by data page number, so finding the codec of a payload is a single array read,
+ * and the codecs read their fields straight out of the packed payload (see
+ * AntProtocolHelper.packPayload()) and hand them to a DataPageHandler as primitives. Decoding a
+ * payload therefore never allocates, which matters since it is done for every received message.
+ *
+ * The supported pages are:
+ * - 1: ANT+ audio update (the intensity of the light, as the volume)
+ * - 16: ANT+ audio command (the custom intensity command, see AntProtocolHelper.makeIntensityPayload())
+ * - 80: ANT+ common page, manufacturer's identification
+ * - 81: ANT+ common page, product information
+ * - 82: ANT+ common page, battery status
+ *
+ * A new fixture capability is supported by adding a DataPageCodec for its page to makeCodecs() and
+ * a method for its fields to DataPageHandler.
+ */
+public final class DataPageCodecs {
+
+    /**
+     * Receives the fields of decoded data pages. Only the method of the decoded page is called, on
+     * the thread that called decode(). The methods do nothing, so a handler only overrides the
+     * methods of the pages it is interested in.
+     */
+    public static abstract class DataPageHandler {
+        /**
+         * @param volume the volume (the intensity of the light, between 0 and 100), or VOLUME_UNKNOWN.
+         */
+        public void onAudioUpdate(int volume) {}
+
+        /**
+         * @param commandNumber the command number.
+         * @param volume the volume sent with the command, or VOLUME_UNKNOWN.
+         */
+        public void onAudioCommand(int commandNumber, int volume) {}
+
+        /**
+         * @param hardwareRevision the hardware revision of the device.
+         * @param manufacturerId the ANT+ manufacturer ID.
+         * @param modelNumber the model number of the device.
+         */
+        public void onManufacturerInfo(int hardwareRevision, int manufacturerId, int modelNumber) {}
+
+        /**
+         * @param softwareRevision the main software revision of the device.
+         * @param softwareRevisionSupplemental the supplemental software revision, or
+         *                                     SOFTWARE_REVISION_SUPPLEMENTAL_UNKNOWN.
+         * @param serialNumber the serial number of the device, or SERIAL_NUMBER_UNKNOWN.
+         */
+        public void onProductInfo(int softwareRevision, int softwareRevisionSupplemental,
+                                  long serialNumber) {}
+
+        /**
+         * @param batteryId the identifier of the battery, or BATTERY_ID_UNKNOWN if the device has
+         *                  only one.
+         * @param operatingTimeSeconds the cumulative operating time of the battery, in seconds.
+         * @param voltageMillivolts the voltage of the battery, or BATTERY_VOLTAGE_UNKNOWN.
+         * @param status one of the BATTERY_STATUS constants.
+         */
+        public void onBatteryStatus(int batteryId, long operatingTimeSeconds, int voltageMillivolts,
+                                    int status) {}
+    }
+
+    /**
+     * Decodes the fields of one data page.
+     */
+    public interface DataPageCodec {
+        /**
+         * @param payload the packed payload (see AntProtocolHelper.packPayload()).
+         * @param handler receives the decoded fields.
+         */
+        public void decode(long payload, DataPageHandler handler);
+    }
+
+    public static final int PAGE_AUDIO_UPDATE = 1;
+    public static final int PAGE_AUDIO_COMMAND = 16;
+    public static final int PAGE_MANUFACTURER_INFO = 80;
+    public static final int PAGE_PRODUCT_INFO = 81;
+    public static final int PAGE_BATTERY_STATUS = 82;
+
+    public static final int VOLUME_UNKNOWN = 0xFF;
+    public static final int SOFTWARE_REVISION_SUPPLEMENTAL_UNKNOWN = 0xFF;
+    public static final long SERIAL_NUMBER_UNKNOWN = 0xFFFFFFFFL;
+    public static final int BATTERY_ID_UNKNOWN = 0xFF;
+    public static final int BATTERY_VOLTAGE_UNKNOWN = -1;
+
+    public static final int BATTERY_STATUS_NEW = 1;
+    public static final int BATTERY_STATUS_GOOD = 2;
+    public static final int BATTERY_STATUS_OK = 3;
+    public static final int BATTERY_STATUS_LOW = 4;
+    public static final int BATTERY_STATUS_CRITICAL = 5;
+    public static final int BATTERY_STATUS_INVALID = 7;
+
+    // The number of possible data page numbers.
+    private static final int PAGE_COUNT = 256;
+
+    private static final DataPageCodec[] CODECS = makeCodecs();
+
+    private DataPageCodecs() {}
+
+    /**
+     * Decodes a payload with the codec of its data page. Can be called from any thread.
+     * @param payload the packed payload (see AntProtocolHelper.packPayload()).
+     * @param handler receives the decoded fields.
+     * @return true if the page was decoded, false if the page is not supported.
+     */
+    public static boolean decode(long payload, DataPageHandler handler) {
+        DataPageCodec codec = CODECS[AntProtocolHelper.getDataPage(payload)];
+        if (codec == null) return false;
+
+        codec.decode(payload, handler);
+        return true;
+    }
+
+    /**
+     * Checks if a data page can be decoded.
+     * @param page the data page number.
+     * @return true or false.
+     */
+    public static boolean isSupported(int page) {
+        return page >= 0 && page < PAGE_COUNT && CODECS[page] != null;
+    }
+
+    private static DataPageCodec[] makeCodecs() {
+        DataPageCodec[] codecs = new DataPageCodec[PAGE_COUNT];
+        codecs[PAGE_AUDIO_UPDATE] = new AudioUpdateCodec();
+        codecs[PAGE_AUDIO_COMMAND] = new AudioCommandCodec();
+        codecs[PAGE_MANUFACTURER_INFO] = new ManufacturerInfoCodec();
+        codecs[PAGE_PRODUCT_INFO] = new ProductInfoCodec();
+        codecs[PAGE_BATTERY_STATUS] = new BatteryStatusCodec();
+        return codecs;
+    }
+
+    //
+    // Byte 1: volume.
+    //
+    private static class AudioUpdateCodec implements DataPageCodec {
+
+        @Override
+        public void decode(long payload, DataPageHandler handler) {
+            handler.onAudioUpdate(AntProtocolHelper.getPayloadByte(payload, 1));
+        }
+    }
+
+    //
+    // Byte 6: volume, byte 7: command number.
+    //
+    private static class AudioCommandCodec implements DataPageCodec {
+
+        @Override
+        public void decode(long payload, DataPageHandler handler) {
+            handler.onAudioCommand(AntProtocolHelper.getPayloadByte(payload, 7),
+                                   AntProtocolHelper.getPayloadByte(payload, 6));
+        }
+    }
+
+    //
+    // Byte 3: hardware revision, bytes 4-5: manufacturer ID, bytes 6-7: model number.
+    //
+    private static class ManufacturerInfoCodec implements DataPageCodec {
+
+        @Override
+        public void decode(long payload, DataPageHandler handler) {
+            handler.onManufacturerInfo(AntProtocolHelper.getPayloadByte(payload, 3),
+                                       (int)AntProtocolHelper.getPayloadField(payload, 4, 2),
+                                       (int)AntProtocolHelper.getPayloadField(payload, 6, 2));
+        }
+    }
+
+    //
+    // Byte 2: supplemental software revision, byte 3: main software revision, bytes 4-7: serial
+    // number.
+    //
+    private static class ProductInfoCodec implements DataPageCodec {
+
+        @Override
+        public void decode(long payload, DataPageHandler handler) {
+            handler.onProductInfo(AntProtocolHelper.getPayloadByte(payload, 3),
+                                  AntProtocolHelper.getPayloadByte(payload, 2),
+                                  AntProtocolHelper.getPayloadField(payload, 4, 4));
+        }
+    }
+
+    //
+    // Byte 2: battery identifier, bytes 3-5: cumulative operating time, byte 6: fractional battery
+    // voltage (1/256 V), byte 7: coarse battery voltage (bits 0-3, 0xF if invalid), battery status
+    // (bits 4-6) and operating time resolution (bit 7: 2 s if set, otherwise 16 s).
+    //
+    private static class BatteryStatusCodec implements DataPageCodec {
+        private static final int COARSE_VOLTAGE_INVALID = 0x0F;
+
+        @Override
+        public void decode(long payload, DataPageHandler handler) {
+            int descriptor = AntProtocolHelper.getPayloadByte(payload, 7);
+            int coarseVoltage = descriptor & 0x0F;
+            int status = (descriptor >> 4) & 0x07;
+            int resolutionSeconds = (descriptor & 0x80) != 0 ? 2 : 16;
+
+            int voltage = BATTERY_VOLTAGE_UNKNOWN;
+            if (coarseVoltage != COARSE_VOLTAGE_INVALID) {
+                voltage = coarseVoltage * 1000 + AntProtocolHelper.getPayloadByte(payload, 6) * 1000 / 256;
+            }
+
+            handler.onBatteryStatus(AntProtocolHelper.getPayloadByte(payload, 2),
+                                    AntProtocolHelper.getPayloadField(payload, 3, 3) * resolutionSeconds,
+                                    voltage, status);
+        }
+    }
+}
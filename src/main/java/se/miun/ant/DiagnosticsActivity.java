@@ -0,0 +1,146 @@
+package se.miun.ant;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Environment;
+import android.support.v7.app.ActionBarActivity;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * DiagnosticsActivity shows the metrics of the connected (and recently released) channels, as
+ * kept by the ChannelMetricsRegistry. The text is refreshed once every REFRESH_INTERVAL_MS while
+ * the activity is shown. The metrics can also be shared as JSON, in which case the text dump is
+ * written to the log as well.
+ *
+ * Recording of a message trace (see MessageTraceRecorder) is also started and stopped from here.
+ * The traces are written to TRACE_DIRECTORY on the external storage, where they can be copied off
+ * the phone and replayed (see MessageTraceReplay).
+ */
+public class DiagnosticsActivity extends ActionBarActivity {
+
+    private static final long REFRESH_INTERVAL_MS = 1000;
+
+    private static final String TRACE_DIRECTORY = "ANTLightController/traces";
+
+    private TextView diagnosticsText;
+    private ChannelExecutors.DelayedExecutor mainThreadExecutor;
+
+    private final Runnable refreshRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            showMetrics();
+            mainThreadExecutor.executeDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+
+        diagnosticsText = (TextView)findViewById(R.id.diagnostics_text);
+        mainThreadExecutor = ChannelExecutors.getMainThreadExecutor();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mainThreadExecutor.execute(refreshRunnable);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mainThreadExecutor.cancel(refreshRunnable);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        MenuInflater inflater = getMenuInflater();
+        inflater.inflate(R.menu.diagnostics, menu);
+        showTraceRecordingState(menu.findItem(R.id.action_trace_recording));
+        return super.onCreateOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_share_metrics) {
+            shareMetrics();
+            return true;
+        } else if (item.getItemId() == R.id.action_trace_recording) {
+            toggleTraceRecording();
+            showTraceRecordingState(item);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void showMetrics() {
+        String text = getRegistry().dumpText();
+        if (text.length() == 0) {
+            diagnosticsText.setText(R.string.diagnostics_empty_text);
+        } else {
+            diagnosticsText.setText(text);
+        }
+    }
+
+    //
+    // Hands the JSON dump to any app that accepts text (mail, notes, and so on).
+    //
+    private void shareMetrics() {
+        ChannelMetricsRegistry registry = getRegistry();
+        Log.i(GlobalState.LOG_TAG, "Channel metrics:\n" + registry.dumpText());
+
+        Intent shareIntent = new Intent(Intent.ACTION_SEND);
+        shareIntent.setType("application/json");
+        shareIntent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.diagnostics_label));
+        shareIntent.putExtra(Intent.EXTRA_TEXT, registry.dumpJson());
+        startActivity(Intent.createChooser(shareIntent, getString(R.string.action_share_metrics)));
+    }
+
+    private void toggleTraceRecording() {
+        MessageTraceRecorder stopped = MessageTraceRecorder.stop();
+
+        if (stopped != null) {
+            IOException failure = stopped.getFailure();
+            String message = failure == null ?
+                    getString(R.string.trace_saved_toast, stopped.getFile().getPath()) :
+                    getString(R.string.trace_failed_toast, failure.getMessage());
+            Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        try {
+            File directory = new File(Environment.getExternalStorageDirectory(), TRACE_DIRECTORY);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory.getPath());
+            }
+            String name = "trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".bin";
+            MessageTraceRecorder.start(new File(directory, name));
+        } catch (IOException e) {
+            Log.e(GlobalState.LOG_TAG, "Could not start trace recording: " + e.getMessage());
+            Toast.makeText(this, getString(R.string.trace_failed_toast, e.getMessage()), Toast.LENGTH_LONG).show();
+        }
+    }
+
+    private void showTraceRecordingState(MenuItem item) {
+        boolean recording = MessageTraceRecorder.getActive() != null;
+        item.setTitle(recording ? R.string.action_stop_trace : R.string.action_start_trace);
+    }
+
+    private ChannelMetricsRegistry getRegistry() {
+        return GlobalState.getInstance().getChannelMetricsRegistry();
+    }
+}
@@ -0,0 +1,268 @@
+package se.miun.ant;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FadeEngine fades the light intensity of one or more lights from one value to another over a
+ * given time, for example from 20 to 80 percent over 3 seconds.
+ *
+ * All fades are run by one actor on the shared actor pool (see ChannelExecutors), so only one
+ * thread at a time computes fade steps. The actor wakes up when the next fade step is due,
+ * computes the intensity of every fade that has a step due at that time and submits it to the
+ * light's ChannelWrapper. A light gets at most one step per channel period, which is the rate at
+ * which the ANT radio can deliver acknowledged messages to the master.
+ *
+ * The intensity of a step is computed from the current time, not from the time the step was due,
+ * so when the scheduler or the radio falls behind the missed steps are dropped instead of being sent
+ * late. A step that has not yet been sent when the next one is submitted is replaced by it in the
+ * IntensityCommandQueue of the light, so the radio never has a backlog of old steps.
+ *
+ * Starting a fade on a light replaces any fade that is already running on it. The fade of a light
+ * is cancelled when its channel is closed or released (see ChannelWrapper).
+ */
+public class FadeEngine {
+
+    public interface OnFadeFinishedListener {
+        /**
+         * Called on the fade actor when a fade has finished.
+         * @param channelWrapper the light that was faded.
+         * @param completed true if the fade reached its target intensity, false if it was cancelled
+         *                  or replaced by another fade.
+         */
+        public void onFadeFinished(ChannelWrapper channelWrapper, boolean completed);
+    }
+
+    private static final int MAX_INTENSITY = 100;
+
+    // The intensity payloads for 0 to 100 percent, made once so that a fade step does not allocate.
+    private static final byte[][] INTENSITY_PAYLOADS = makeIntensityPayloads();
+
+    private final SerialExecutor fadeActor;
+
+    // The running fades, keyed by light. Only accessed on the fade actor.
+    private final Map<ChannelWrapper, Fade> fades;
+
+    // The last scheduled run of stepFades(), or null. It is cancelled whenever stepFades() runs,
+    // so that only one run is ever scheduled. Only accessed on the fade actor.
+    private ScheduledFuture<?> scheduledStep;
+
+    private final Runnable stepTask = new Runnable() {
+
+        @Override
+        public void run() {
+            stepFades();
+        }
+    };
+
+    // Hands stepTask to the fade actor when it is scheduled on the worker pool.
+    private final Runnable scheduledStepTask;
+
+    public FadeEngine() {
+        fades = new HashMap<ChannelWrapper, Fade>();
+        fadeActor = ChannelExecutors.newSerialExecutor();
+        scheduledStepTask = ChannelExecutors.onActor(fadeActor, stepTask);
+    }
+
+    /**
+     * Starts fading a light. This method does not block and can be called from any thread.
+     * @param channelWrapper the light to fade.
+     * @param fromIntensity the light intensity (volume percent) to start from.
+     * @param toIntensity the light intensity (volume percent) to end at.
+     * @param durationMs the duration of the fade in milliseconds.
+     * @param listener notified when the fade has finished, or null.
+     */
+    public void fade(ChannelWrapper channelWrapper, int fromIntensity, int toIntensity, long durationMs,
+                     OnFadeFinishedListener listener) {
+        List<ChannelWrapper> channelWrappers = new ArrayList<ChannelWrapper>(1);
+        channelWrappers.add(channelWrapper);
+        fade(channelWrappers, fromIntensity, toIntensity, durationMs, listener);
+    }
+
+    /**
+     * Starts fading a group of lights. All lights of the group start at the same time.
+     * This method does not block and can be called from any thread.
+     * @param channelWrappers the lights to fade.
+     * @param fromIntensity the light intensity (volume percent) to start from.
+     * @param toIntensity the light intensity (volume percent) to end at.
+     * @param durationMs the duration of the fade in milliseconds.
+     * @param listener notified once for every light when its fade has finished, or null.
+     */
+    public void fade(Collection<ChannelWrapper> channelWrappers, int fromIntensity, int toIntensity,
+                     long durationMs, final OnFadeFinishedListener listener) {
+        final long startTime = SystemClock.uptimeMillis();
+        final int from = clampIntensity(fromIntensity);
+        final int to = clampIntensity(toIntensity);
+        final long duration = Math.max(0, durationMs);
+        final List<ChannelWrapper> targets = new ArrayList<ChannelWrapper>(channelWrappers);
+
+        for (ChannelWrapper channelWrapper : targets) {
+            channelWrapper.setFadeEngine(this);
+        }
+
+        fadeActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                for (ChannelWrapper channelWrapper : targets) {
+                    Fade fade = new Fade(channelWrapper, from, to, startTime, duration, listener);
+                    Fade replaced = fades.put(channelWrapper, fade);
+                    if (replaced != null) replaced.notifyFinished(false);
+                }
+                stepFades();
+            }
+        });
+    }
+
+    /**
+     * Cancels the fade of a light, if any. The light keeps the intensity of the last sent step.
+     * This method does not block and can be called from any thread.
+     * @param channelWrapper the light.
+     */
+    public void cancelFade(final ChannelWrapper channelWrapper) {
+        fadeActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                Fade cancelled = fades.remove(channelWrapper);
+                if (cancelled != null) cancelled.notifyFinished(false);
+            }
+        });
+    }
+
+    /**
+     * Cancels all running fades. This method does not block and can be called from any thread.
+     */
+    public void cancelAllFades() {
+        fadeActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                for (Fade fade : fades.values()) {
+                    fade.notifyFinished(false);
+                }
+                fades.clear();
+            }
+        });
+    }
+
+    //
+    // Called on the fade actor. Sends a step for every fade that is due and schedules the
+    // next run for when the next step is due.
+    //
+    private void stepFades() {
+        long now = SystemClock.uptimeMillis();
+        long nextStepTime = Long.MAX_VALUE;
+
+        Iterator<Fade> iterator = fades.values().iterator();
+        while (iterator.hasNext()) {
+            Fade fade = iterator.next();
+
+            if (fade.nextStepTime <= now && fade.step(now)) {
+                iterator.remove();
+                fade.notifyFinished(true);
+            } else {
+                nextStepTime = Math.min(nextStepTime, fade.nextStepTime);
+            }
+        }
+
+        if (scheduledStep != null) {
+            scheduledStep.cancel(false);
+            scheduledStep = null;
+        }
+
+        if (nextStepTime != Long.MAX_VALUE) {
+            scheduledStep = ChannelExecutors.getWorkerExecutor().schedule(scheduledStepTask,
+                                                                          nextStepTime - now,
+                                                                          TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static int clampIntensity(int intensity) {
+        return Math.max(0, Math.min(MAX_INTENSITY, intensity));
+    }
+
+    private static byte[][] makeIntensityPayloads() {
+        byte[][] payloads = new byte[MAX_INTENSITY + 1][];
+
+        for (int intensity = 0; intensity <= MAX_INTENSITY; intensity++) {
+            payloads[intensity] = AntProtocolHelper.makeIntensityPayload(intensity);
+        }
+
+        return payloads;
+    }
+
+
+    //
+    // One running fade of one light. Only accessed on the fade actor.
+    //
+    private static class Fade {
+        private static final int NOTHING_SENT = -1;
+
+        private final ChannelWrapper channelWrapper;
+        private final int fromIntensity;
+        private final int toIntensity;
+        private final long startTime;
+        private final long endTime;
+        private final long stepIntervalMs;
+        private final OnFadeFinishedListener listener;
+
+        private long nextStepTime;
+        private int lastSentIntensity = NOTHING_SENT;
+
+        public Fade(ChannelWrapper channelWrapper, int fromIntensity, int toIntensity, long startTime,
+                    long durationMs, OnFadeFinishedListener listener) {
+            this.channelWrapper = channelWrapper;
+            this.fromIntensity = fromIntensity;
+            this.toIntensity = toIntensity;
+            this.startTime = startTime;
+            this.listener = listener;
+            endTime = startTime + durationMs;
+            stepIntervalMs = Math.max(1, AntProtocolHelper.periodToMilliseconds(channelWrapper.getChannelPeriod()));
+            nextStepTime = startTime;
+        }
+
+        //
+        // Sends the intensity for the given time, unless it was already sent by the previous step.
+        // Returns true when the target intensity has been sent and the fade is finished.
+        //
+        public boolean step(long now) {
+            int intensity = getIntensityAt(now);
+
+            if (intensity != lastSentIntensity) {
+                channelWrapper.sendIntensityPayload(INTENSITY_PAYLOADS[intensity], null);
+                lastSentIntensity = intensity;
+            }
+
+            if (now >= endTime) return true;
+
+            // Step again one period later. If the steps in between were missed they are dropped,
+            // and the last step is moved to the end of the fade so that it ends on time.
+            nextStepTime += stepIntervalMs;
+            if (nextStepTime <= now) nextStepTime = now + stepIntervalMs;
+            nextStepTime = Math.min(nextStepTime, endTime);
+
+            return false;
+        }
+
+        public void notifyFinished(boolean completed) {
+            if (listener != null) listener.onFadeFinished(channelWrapper, completed);
+        }
+
+        private int getIntensityAt(long time) {
+            if (time >= endTime) return toIntensity;
+
+            long elapsed = Math.max(0, time - startTime);
+            long duration = endTime - startTime;
+            return fromIntensity + Math.round((float)(toIntensity - fromIntensity) * elapsed / duration);
+        }
+    }
+}
@@ -1,8 +1,6 @@
 package se.miun.ant;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
 import android.widget.Toast;
 
 /**
@@ -33,8 +31,16 @@ public class GlobalState {
     private static GlobalState instance;
 
     // These objects must only be created once for the app process.
+    private ChannelConfigStore channelConfigStore;
     private ChannelRetriever channelRetriever;
     private ChannelList channelList;
+    private ChannelRetuner channelRetuner;
+    private SceneController sceneController;
+    private FadeEngine fadeEngine;
+    private PairedDeviceCache pairedDeviceCache;
+    private LightScanner lightScanner;
+    private ChannelMetricsRegistry channelMetricsRegistry;
+    private ChannelMultiplexer channelMultiplexer;
 
     /**
      * Returns the singleton instance of this class.
@@ -45,6 +51,14 @@ public class GlobalState {
         return instance;
     }
 
+    /**
+     * Returns the ChannelConfigStore instance.
+     * @return the ChannelConfigStore instance.
+     */
+    public ChannelConfigStore getChannelConfigStore() {
+        return channelConfigStore;
+    }
+
     /**
      * Returns the ChannelRetriever instance.
      * @return the ChannelRetriever instance.
@@ -61,26 +75,97 @@ public class GlobalState {
         return channelList;
     }
 
+    /**
+     * Returns the ChannelRetuner instance.
+     * @return the ChannelRetuner instance.
+     */
+    public ChannelRetuner getChannelRetuner() {
+        return channelRetuner;
+    }
+
+    /**
+     * Returns the SceneController instance.
+     * @return the SceneController instance.
+     */
+    public SceneController getSceneController() {
+        return sceneController;
+    }
+
+    /**
+     * Returns the FadeEngine instance.
+     * @return the FadeEngine instance.
+     */
+    public FadeEngine getFadeEngine() {
+        return fadeEngine;
+    }
+
+    /**
+     * Returns the PairedDeviceCache instance.
+     * @return the PairedDeviceCache instance.
+     */
+    public PairedDeviceCache getPairedDeviceCache() {
+        return pairedDeviceCache;
+    }
+
+    /**
+     * Returns the LightScanner instance.
+     * @return the LightScanner instance.
+     */
+    public LightScanner getLightScanner() {
+        return lightScanner;
+    }
+
+    /**
+     * Returns the ChannelMetricsRegistry instance.
+     * @return the ChannelMetricsRegistry instance.
+     */
+    public ChannelMetricsRegistry getChannelMetricsRegistry() {
+        return channelMetricsRegistry;
+    }
+
+    /**
+     * Returns the ChannelMultiplexer instance.
+     * @return the ChannelMultiplexer instance.
+     */
+    public ChannelMultiplexer getChannelMultiplexer() {
+        return channelMultiplexer;
+    }
+
     //
     // Private constructor. Only called when creating the singleton instance the first time.
     //
     private GlobalState() {
-        channelRetriever = new ChannelRetriever(applicationContext);
+        channelConfigStore = new ChannelConfigStore(applicationContext);
+        channelRetriever = new ChannelRetriever(applicationContext, channelConfigStore);
         channelList = new ChannelList(applicationContext);
+        channelRetuner = new ChannelRetuner(channelList);
+        channelConfigStore.addOnChannelConfigChangedListener(channelRetuner);
+        fadeEngine = new FadeEngine();
+        sceneController = new SceneController(applicationContext, fadeEngine);
+        pairedDeviceCache = new PairedDeviceCache(applicationContext);
+        lightScanner = new LightScanner(channelConfigStore, channelRetriever);
+        channelMetricsRegistry = new ChannelMetricsRegistry();
+        channelMultiplexer = new ChannelMultiplexer(channelRetriever);
     }
 
     //
-    // Sends the closeChannels() message to the channelList.
+    // Stops the running fades, sends the closeChannels() message to the channelList, and gives the
+    // pooled channels back to the ANT service.
     //
     public void closeChannels() {
+        fadeEngine.cancelAllFades();
+        channelRetuner.pause();
         channelList.closeChannels();
+        channelRetriever.pausePooling();
     }
 
     //
-    // Sends the openChannels() message to the channelList.
+    // Sends the openChannels() message to the channelList, and refills the channel pool.
     //
     public void openChannels() {
         channelList.openChannels();
+        channelRetuner.resume();
+        channelRetriever.resumePooling();
     }
 
     /**
@@ -88,7 +173,7 @@ public class GlobalState {
      * @param text the text to show as a Toast.
      */
     public static void DEBUG(final String text) {
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
+        ChannelExecutors.getMainThreadExecutor().execute(new Runnable() {
 
             @Override
             public void run() {
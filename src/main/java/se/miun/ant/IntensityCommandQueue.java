@@ -0,0 +1,207 @@
+package se.miun.ant;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * IntensityCommandQueue is the command pipeline that sits between the UI (the SeekBars in
+ * ListItemState and ChannelViewFragment, or an applied Scene) and a ChannelWrapper. The UI can
+ * submit a new light intensity as often as it likes (for example on every SeekBar tick) without
+ * blocking, and the queue makes sure that:
+ *
+ * 1) only the latest submitted intensity is sent (older pending values are simply overwritten), and
+ * 2) at most one acknowledged message is sent per channel period, which is the rate at which the
+ *    ANT radio is actually able to deliver acknowledged messages to the master.
+ *
+ * The sends are timed on the shared worker pool and the messages are sent from the radio pool (see
+ * ChannelExecutors), so that the messages of different channels are sent in parallel. The messages
+ * of one channel are always sent one at a time.
+ */
+public class IntensityCommandQueue {
+
+    /**
+     * Listens for the outcome of a submitted command.
+     */
+    public interface OnCommandSentListener {
+        /**
+         * Called on a background thread when the master has acknowledged the command, when the
+         * transfer failed or could not be started, or when the command was replaced by a newer
+         * command before it was sent (see ChannelWrapper.OnTransferCompletedListener).
+         * @param success true if the master acknowledged the command, otherwise false.
+         */
+        public void onCommandSent(boolean success);
+    }
+
+    // The sends are timed on the shared worker pool and run on the radio pool. Sending an
+    // acknowledged message is a blocking binder call, so it must never be done on the UI thread or
+    // on a worker thread.
+    private static final ScheduledExecutorService timer = ChannelExecutors.getWorkerExecutor();
+    private static final Executor sender = ChannelExecutors.getRadioExecutor();
+
+    private final ChannelWrapper channelWrapper;
+    private volatile long periodMs;
+
+    // The command waiting to be sent, or null.
+    private final AtomicReference<PendingCommand> pendingCommand;
+    private final AtomicBoolean sendScheduled;
+
+    // The time (in SystemClock.uptimeMillis()) when the last message was sent.
+    private volatile long lastSendTime;
+
+    private final Runnable sendTask = new Runnable() {
+
+        @Override
+        public void run() {
+            sendPendingCommand();
+        }
+    };
+
+    // Run on the worker pool when the delay has passed, and hands the send to the radio pool.
+    private final Runnable timedSendTask = new Runnable() {
+
+        @Override
+        public void run() {
+            sender.execute(sendTask);
+        }
+    };
+
+    /**
+     * Constructor.
+     * @param channelWrapper the ChannelWrapper that the intensity commands are sent on.
+     * @param channelPeriod the channel period (in units of 1/32768 s) of the ANT channel.
+     */
+    public IntensityCommandQueue(ChannelWrapper channelWrapper, int channelPeriod) {
+        this.channelWrapper = channelWrapper;
+        periodMs = AntProtocolHelper.periodToMilliseconds(channelPeriod);
+
+        pendingCommand = new AtomicReference<PendingCommand>();
+        sendScheduled = new AtomicBoolean(false);
+        lastSendTime = 0;
+    }
+
+    /**
+     * Sets the channel period, after the channel has been retuned (see ChannelWrapper.retune()).
+     * @param channelPeriod the new channel period (in units of 1/32768 s).
+     */
+    public void setChannelPeriod(int channelPeriod) {
+        periodMs = AntProtocolHelper.periodToMilliseconds(channelPeriod);
+    }
+
+    /**
+     * Submits a new light intensity to be sent. If an intensity is already waiting to be sent it is
+     * replaced by this one. This method never blocks and can be called from any thread.
+     * @param lightIntensity the light intensity (volume percent) to send.
+     */
+    public void submit(int lightIntensity) {
+        submit(AntProtocolHelper.makeIntensityPayload(lightIntensity), null);
+    }
+
+    /**
+     * Submits an intensity payload (see AntProtocolHelper.makeIntensityPayload()) to be sent.
+     * If a payload is already waiting to be sent it is replaced by this one.
+     * This method never blocks and can be called from any thread.
+     * @param payload the intensity payload to send.
+     * @param listener notified when the payload has been sent, or null.
+     */
+    public void submit(byte[] payload, OnCommandSentListener listener) {
+        PendingCommand replaced = pendingCommand.getAndSet(new PendingCommand(payload, listener));
+        if (replaced != null) replaced.notifySent(false);
+
+        scheduleSendIfNeeded();
+    }
+
+    /**
+     * Drops the intensity that is waiting to be sent, if any.
+     */
+    public void clear() {
+        PendingCommand dropped = pendingCommand.getAndSet(null);
+        if (dropped != null) dropped.notifySent(false);
+    }
+
+    //
+    // Schedules the send task unless it is already scheduled. The task is delayed so that at least
+    // one channel period passes between two messages.
+    //
+    private void scheduleSendIfNeeded() {
+        if (sendScheduled.compareAndSet(false, true)) {
+            long elapsed = SystemClock.uptimeMillis() - lastSendTime;
+            long delay = Math.max(0, periodMs - elapsed);
+            if (delay == 0) {
+                sender.execute(sendTask);
+            } else {
+                timer.schedule(timedSendTask, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    //
+    // Called on a radio thread. Sends the latest pending command and then reschedules itself
+    // if a new command was submitted while sending.
+    //
+    private void sendPendingCommand() {
+        PendingCommand command = pendingCommand.getAndSet(null);
+
+        try {
+            if (command != null) {
+                lastSendTime = SystemClock.uptimeMillis();
+                channelWrapper.getMetrics().recordTxQueueDelay(System.nanoTime() - command.submitTime);
+                if (!sendAcknowledgedData(command)) command.notifySent(false);
+            }
+        } finally {
+            // Cleared even if the send or a listener threw, otherwise no command would ever be
+            // sent on this channel again.
+            sendScheduled.set(false);
+
+            // A command may have been submitted after getAndSet() above but before the flag was
+            // cleared, in which case submit() did not schedule a new send.
+            if (pendingCommand.get() != null) {
+                scheduleSendIfNeeded();
+            }
+        }
+    }
+
+    private boolean sendAcknowledgedData(PendingCommand command) {
+        try {
+            channelWrapper.sendAcknowledgedData(command.payload, command.getTransferListener());
+            return true;
+        } catch (ChannelWrapper.ChannelDataSendException e) {
+            Log.e(GlobalState.LOG_TAG, e.getMessage());
+            return false;
+        }
+    }
+
+    private static class PendingCommand {
+        private final byte[] payload;
+        private final OnCommandSentListener listener;
+        private final long submitTime;
+
+        public PendingCommand(byte[] payload, OnCommandSentListener listener) {
+            this.payload = payload;
+            this.listener = listener;
+            submitTime = System.nanoTime();
+        }
+
+        public void notifySent(boolean success) {
+            if (listener != null) listener.onCommandSent(success);
+        }
+
+        // Only commands with a listener need to hear about the end of their transfer.
+        public ChannelWrapper.OnTransferCompletedListener getTransferListener() {
+            if (listener == null) return null;
+
+            return new ChannelWrapper.OnTransferCompletedListener() {
+
+                @Override
+                public void onTransferCompleted(boolean success, long latencyNanos) {
+                    notifySent(success);
+                }
+            };
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package se.miun.ant;
 
+import android.app.AlertDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
@@ -8,16 +10,20 @@ import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.ActionBarActivity;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.Toast;
 
-import com.dsi.ant.channel.AntChannel;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This is the main Android activity class for the application. It extends ActionBarActivity
@@ -33,8 +39,8 @@ import com.dsi.ant.channel.AntChannel;
  * When the user clicks the "refresh" action bar button in order to initiate a channel search,
  * this class sends a message to the ChannelSearcher object that tells it to start a channel search.
  * As channels are created and connected by the ChannelSearcher, they are posted back to this class,
- * which in turn forwards the channels to the ChannelListFragment object, which puts the channels
- * in a list which is shown to the user.
+ * which in turn adds the channels to the ChannelList, whose channels the ChannelListFragment object
+ * shows to the user in a list.
  */
 public class LightControllerActivity extends ActionBarActivity
                                      implements ChannelListFragment.ChannelSelectedListener,
@@ -51,6 +57,31 @@ public class LightControllerActivity extends ActionBarActivity
     // The refresh action bar item. We need the reference in order to start/stop the refresh animation.
     private MenuItem refreshMenuItem;
 
+    // The discovery dialog while it is shown, otherwise null. Only accessed on the UI thread.
+    private AlertDialog discoveryDialog;
+
+    // Updates the discovery dialog with the number of lights in range, and reports scan failures.
+    private LightScanner.OnScanResultsChangedListener scanListener = new LightScanner.OnScanResultsChangedListener() {
+
+        @Override
+        public void onScanResultsChanged(final List<LightScanner.ScannedLight> scannedLights) {
+            ChannelExecutors.getMainThreadExecutor().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (discoveryDialog == null) return;
+                    int foundLights = getUnconnectedLights(scannedLights).size();
+                    discoveryDialog.setTitle(getString(R.string.discovery_dialog_title, foundLights));
+                }
+            });
+        }
+
+        @Override
+        public void onScanFailed(Exception e) {
+            showToast(getString(R.string.discovery_failed_toast, e.getMessage()));
+        }
+    };
+
     /**
      * Sets the layout for the activity and does state initialization.
      * @param savedInstanceState the saved instance state or null if none.
@@ -96,7 +127,7 @@ public class LightControllerActivity extends ActionBarActivity
     }
 
     private void initializeComponents() {
-        channelSearcher = new ChannelSearcher(this, this);
+        channelSearcher = new ChannelSearcher(this);
     }
 
     /**
@@ -120,6 +151,12 @@ public class LightControllerActivity extends ActionBarActivity
     public void onPause() {
         super.onPause();
         GlobalState.getInstance().closeChannels();
+
+        // The scan uses a channel of its own, so it is not left running in the background.
+        if (discoveryDialog != null) {
+            discoveryDialog.dismiss();
+            stopDiscovery();
+        }
     }
 
     /**
@@ -147,7 +184,7 @@ public class LightControllerActivity extends ActionBarActivity
      */
     @Override
     public void onChannelSearchStarted() {
-        runOnUiThread(new Runnable() {
+        ChannelExecutors.getMainThreadExecutor().execute(new Runnable() {
 
             @Override
             public void run() {
@@ -172,7 +209,7 @@ public class LightControllerActivity extends ActionBarActivity
      */
     @Override
     public void onChannelSearchFinished() {
-        runOnUiThread(new Runnable() {
+        ChannelExecutors.getMainThreadExecutor().execute(new Runnable() {
 
             @Override
             public void run() {
@@ -182,13 +219,23 @@ public class LightControllerActivity extends ActionBarActivity
         });
     }
 
+    /**
+     * This method is called when a channel search could not open any channel, or could not be
+     * started because the channel parameters are invalid.
+     * @param e the cause.
+     */
+    @Override
+    public void onChannelSearchFailed(Exception e) {
+        showToast(getString(R.string.channel_search_failed_toast, e.getMessage()));
+    }
+
     /**
      * This method is called when the channel searcher attempted to start a search but all
      * ANT channels were already in use.
      */
     @Override
     public void onNoChannelsAvailable() {
-        runOnUiThread(new Runnable() {
+        ChannelExecutors.getMainThreadExecutor().execute(new Runnable() {
 
             @Override
             public void run() {
@@ -201,24 +248,32 @@ public class LightControllerActivity extends ActionBarActivity
 
     /**
      * When a channel is successfully created and matched with an ANT master channel, the channel
-     * searcher calls this method. When we get the channel we need get a hold of the
-     * ChannelListFragment object, so we can send the channel (as a ChannelWrapper object) to it.
-     * @param antChannel the connected ANT channel.
+     * searcher calls this method (on a background thread). The channel is wrapped in a ChannelWrapper and
+     * added to the ChannelList, which the ChannelListFragment displays. This is done on the calling
+     * thread, because adding the channel requests its channel ID from the ANT radio. If the list keeps
+     * the channel, its channel ID and profile are then remembered in the PairedDeviceCache, so that
+     * later searches open a directed channel to the same master, and its metrics are added to the
+     * ChannelMetricsRegistry.
+     * @param channel the connected ANT channel.
+     * @param profileNumber the number of the channel profile the channel was opened with.
+     * @param profile the channel parameters the channel was opened with.
      */
     @Override
-    public void onChannelConnected(final AntChannel antChannel) {
-        runOnUiThread(new Runnable() {
-
-            @Override
-            public void run() {
-                FragmentManager fm = getSupportFragmentManager();
-                ChannelListFragment channelListFragment =
-                        (ChannelListFragment)fm.findFragmentByTag(CHANNEL_LIST_FRAGMENT_TAG);
-
-                ChannelWrapper wrapper = new ChannelWrapper(antChannel);
-                channelListFragment.addChannelWrapper(wrapper);
-            }
-        });
+    public void onChannelConnected(RadioChannel channel, int profileNumber, ChannelConfig profile) {
+        ChannelWrapper wrapper = new ChannelWrapper(channel, profileNumber, profile);
+        // A channel that is not alive, or that found a light which is already in the list, has
+        // been released by the list and is neither remembered nor shown on the diagnostics screen.
+        if (!GlobalState.getInstance().getChannelList().addChannelWrapper(wrapper)) return;
+
+        // The channel ID was requested by the channel list, so this does not make another request.
+        GlobalState.getInstance().getPairedDeviceCache().addDevice(wrapper.getDeviceNumber(),
+                                                                   wrapper.getTransmissionType(),
+                                                                   profileNumber);
+
+        ChannelMetrics metrics = wrapper.getMetrics();
+        metrics.setLabel(getString(R.string.diagnostics_channel_label, wrapper.getDeviceNumber(),
+                                   wrapper.getTransmissionType(), profileNumber));
+        GlobalState.getInstance().getChannelMetricsRegistry().register(metrics);
     }
 
     /**
@@ -249,6 +304,15 @@ public class LightControllerActivity extends ActionBarActivity
             case R.id.action_refresh:
                 refreshAntChannels();
                 return true;
+            case R.id.action_discover:
+                showDiscoveryDialog();
+                return true;
+            case R.id.action_scenes:
+                showScenesDialog();
+                return true;
+            case R.id.action_diagnostics:
+                openDiagnostics();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -279,6 +343,14 @@ public class LightControllerActivity extends ActionBarActivity
         startActivity(settingsIntent);
     }
 
+    //
+    // Starts the diagnostics activity, which shows the metrics of the channels.
+    //
+    private void openDiagnostics() {
+        Intent diagnosticsIntent = new Intent(this, DiagnosticsActivity.class);
+        startActivity(diagnosticsIntent);
+    }
+
     //
     // Tells the ChannelSearcher to start a new channel search. This method is called when the
     // user clicks the "refresh" icon in the action bar.
@@ -286,4 +358,211 @@ public class LightControllerActivity extends ActionBarActivity
     private void refreshAntChannels() {
         channelSearcher.startChannelSearch();
     }
+
+    //
+    // Shows the lights found by the LightScanner that are not connected yet, and opens control
+    // channels to the lights the user checks. The scan keeps running while the dialog is shown and
+    // the title shows how many lights are in range; "refresh" shows the latest lights.
+    //
+    private void showDiscoveryDialog() {
+        LightScanner lightScanner = GlobalState.getInstance().getLightScanner();
+        lightScanner.startScan(scanListener);
+
+        final List<LightScanner.ScannedLight> lights = getUnconnectedLights(lightScanner.getScanResults());
+        final boolean[] checkedLights = new boolean[lights.size()];
+
+        discoveryDialog = new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.discovery_dialog_title, lights.size()))
+                .setMultiChoiceItems(getLightLabels(lights), checkedLights,
+                                     new DialogInterface.OnMultiChoiceClickListener() {
+
+                                         @Override
+                                         public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+                                             checkedLights[which] = isChecked;
+                                         }
+                                     })
+                .setPositiveButton(R.string.discovery_connect, new DialogInterface.OnClickListener() {
+
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        stopDiscovery();
+                        connectToLights(lights, checkedLights);
+                    }
+                })
+                .setNeutralButton(R.string.discovery_refresh, new DialogInterface.OnClickListener() {
+
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        showDiscoveryDialog();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
+
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        stopDiscovery();
+                    }
+                })
+                .setOnCancelListener(new DialogInterface.OnCancelListener() {
+
+                    @Override
+                    public void onCancel(DialogInterface dialog) {
+                        stopDiscovery();
+                    }
+                })
+                .show();
+    }
+
+    private void stopDiscovery() {
+        discoveryDialog = null;
+        GlobalState.getInstance().getLightScanner().stopScan();
+    }
+
+    private void connectToLights(List<LightScanner.ScannedLight> lights, boolean[] checkedLights) {
+        List<Long> chosenKeys = new ArrayList<Long>();
+        for (int i = 0; i < lights.size(); i++) {
+            if (checkedLights[i]) chosenKeys.add(lights.get(i).getKey());
+        }
+        if (chosenKeys.isEmpty()) return;
+
+        long[] lightKeys = new long[chosenKeys.size()];
+        for (int i = 0; i < lightKeys.length; i++) lightKeys[i] = chosenKeys.get(i);
+        channelSearcher.connectToLights(lightKeys);
+    }
+
+    private List<LightScanner.ScannedLight> getUnconnectedLights(List<LightScanner.ScannedLight> scannedLights) {
+        ChannelList channelList = GlobalState.getInstance().getChannelList();
+        List<LightScanner.ScannedLight> unconnectedLights = new ArrayList<LightScanner.ScannedLight>();
+
+        for (LightScanner.ScannedLight light : scannedLights) {
+            if (channelList.findListItemState(light.getDeviceNumber(), light.getTransmissionType()) == null) {
+                unconnectedLights.add(light);
+            }
+        }
+        return unconnectedLights;
+    }
+
+    private String[] getLightLabels(List<LightScanner.ScannedLight> lights) {
+        String[] labels = new String[lights.size()];
+
+        for (int i = 0; i < labels.length; i++) {
+            LightScanner.ScannedLight light = lights.get(i);
+            int intensity = light.getLightIntensity();
+
+            labels[i] = intensity == LightScanner.ScannedLight.INTENSITY_UNKNOWN
+                      ? getString(R.string.discovered_light_item_no_intensity, light.getDeviceNumber())
+                      : getString(R.string.discovered_light_item, light.getDeviceNumber(), intensity);
+        }
+        return labels;
+    }
+
+    //
+    // Shows the stored scenes. Clicking a scene applies it to the connected lights, and the
+    // "save current" button saves the current light intensities as a new scene.
+    //
+    private void showScenesDialog() {
+        final List<String> sceneNames = GlobalState.getInstance().getSceneController().getSceneNames();
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.scenes_dialog_title)
+                .setItems(sceneNames.toArray(new String[sceneNames.size()]),
+                          new DialogInterface.OnClickListener() {
+
+                              @Override
+                              public void onClick(DialogInterface dialog, int which) {
+                                  applyScene(sceneNames.get(which));
+                              }
+                          })
+                .setPositiveButton(R.string.scenes_save_current, new DialogInterface.OnClickListener() {
+
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        showSaveSceneDialog();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    //
+    // Asks the user for a scene name and saves the current light intensities under that name.
+    //
+    private void showSaveSceneDialog() {
+        final EditText nameInput = new EditText(this);
+        nameInput.setSingleLine();
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.scene_name_dialog_title)
+                .setView(nameInput)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String name = nameInput.getText().toString().trim();
+                        if (name.length() > 0) saveScene(name);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void saveScene(String name) {
+        GlobalState globalState = GlobalState.getInstance();
+        List<ListItemState> lights = globalState.getChannelList().getListItemStates();
+
+        globalState.getSceneController().saveScene(name, lights, new SceneController.OnSceneSavedListener() {
+
+            @Override
+            public void onSceneSaved(Scene scene) {
+                showToast(getString(R.string.scene_saved_toast, scene.getName(), scene.getLightCount()));
+            }
+        });
+    }
+
+    private void applyScene(String name) {
+        GlobalState globalState = GlobalState.getInstance();
+        List<ListItemState> lights = globalState.getChannelList().getListItemStates();
+
+        globalState.getSceneController().applyScene(name, lights, getSceneFadeDuration(),
+                                                    new SceneController.OnSceneAppliedListener() {
+
+            @Override
+            public void onLightApplied(int deviceNumber, boolean success) {
+                // The channel list shows the new intensity when the light reports it.
+            }
+
+            @Override
+            public void onSceneApplied(Scene scene, int appliedLights, int sceneLights) {
+                showToast(getString(R.string.scene_applied_toast, scene.getName(), appliedLights, sceneLights));
+            }
+        });
+    }
+
+    //
+    // Returns the scene fade time from the settings, or 0 (no fade) if it is not a valid number.
+    //
+    private long getSceneFadeDuration() {
+        String value = PreferenceManager.getDefaultSharedPreferences(this).getString(
+                getString(R.string.pref_scene_fade_key), getString(R.string.pref_scene_fade_default));
+
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            Log.e(GlobalState.LOG_TAG, "Invalid scene fade time: " + value);
+            return 0;
+        }
+    }
+
+    //
+    // Shows a toast. Can be called from any thread.
+    //
+    private void showToast(final String text) {
+        ChannelExecutors.getMainThreadExecutor().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                Toast.makeText(LightControllerActivity.this, text, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
 }
@@ -0,0 +1,372 @@
+package se.miun.ant;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.dsi.ant.message.EventCode;
+import com.dsi.ant.message.fromant.MessageFromAntType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import se.miun.ant.ChannelInitializer.ChannelInitializationException;
+import se.miun.ant.ChannelRetriever.ChannelRetrieveException;
+import se.miun.ant.RadioChannel.RadioChannelException;
+
+/**
+ * LightScanner finds the lights in range with a single ANT background scanning channel, instead
+ * of opening every free channel as a channel search does (see ChannelSearcher). A background
+ * scanning channel receives the broadcasts of every matching master in range, each one together
+ * with the channel ID of its sender, so one channel is enough to build a live table of the nearby
+ * lights and their device numbers. Control channels can then be opened for only the lights the
+ * user chooses (see ChannelSearcher.connectToLights()).
+ *
+ * The table is updated on the ANT binder threads without locking. The scan itself is started,
+ * stopped and expired on the scan actor (see ChannelExecutors). A light that has not been heard
+ * from for SCAN_EXPIRY_MS is removed from the table.
+ */
+public class LightScanner implements RadioChannel.EventHandler {
+
+    public interface OnScanResultsChangedListener {
+        /**
+         * Called on a background thread when a light has been found or has gone out of range.
+         * @param scannedLights the lights in range, ordered by device number.
+         */
+        public void onScanResultsChanged(List<ScannedLight> scannedLights);
+
+        /**
+         * Called on a background thread when the scanning channel could not be opened.
+         * @param e the cause.
+         */
+        public void onScanFailed(Exception e);
+    }
+
+    /**
+     * A light that has been found by the scan. The last seen time and light intensity are updated
+     * for as long as the light is in range.
+     */
+    public static final class ScannedLight {
+
+        /** Returned by getLightIntensity() when the light has not reported its intensity. */
+        public static final int INTENSITY_UNKNOWN = -1;
+
+        private final long key;
+        private volatile int lightIntensity = INTENSITY_UNKNOWN;
+        private volatile long lastSeenTime;
+
+        // Receives the pages decoded from the light's payloads.
+        private final DataPageCodecs.DataPageHandler dataPageHandler = new DataPageCodecs.DataPageHandler() {
+
+            @Override
+            public void onAudioUpdate(int volume) {
+                if (volume != DataPageCodecs.VOLUME_UNKNOWN) lightIntensity = volume;
+            }
+        };
+
+        private ScannedLight(long key, long now) {
+            this.key = key;
+            lastSeenTime = now;
+        }
+
+        /**
+         * Returns the key of the light (see ChannelStateStore.makeKey()).
+         * @return the key of the light.
+         */
+        public long getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the device number of the light's ANT master.
+         * @return the device number.
+         */
+        public int getDeviceNumber() {
+            return ChannelStateStore.getDeviceNumber(key);
+        }
+
+        /**
+         * Returns the transmission type of the light's ANT master.
+         * @return the transmission type.
+         */
+        public int getTransmissionType() {
+            return ChannelStateStore.getTransmissionType(key);
+        }
+
+        /**
+         * Returns the last light intensity (volume percent) the light reported.
+         * @return the light intensity, or INTENSITY_UNKNOWN.
+         */
+        public int getLightIntensity() {
+            return lightIntensity;
+        }
+
+        /**
+         * Returns the time the light was last heard from, in SystemClock.elapsedRealtime() time.
+         * @return the last seen time.
+         */
+        public long getLastSeenTime() {
+            return lastSeenTime;
+        }
+
+        private void update(long payload, long now) {
+            lastSeenTime = now;
+            DataPageCodecs.decode(payload, dataPageHandler);
+        }
+    }
+
+    // A light that has not been heard from for this long is removed from the table.
+    private static final int SCAN_EXPIRY_MS = 1000 * 10;
+    private static final int EXPIRY_CHECK_INTERVAL_MS = 1000;
+
+    // The index of the first payload byte in the content of a broadcast data message.
+    private static final int BROADCAST_PAYLOAD_OFFSET = 1;
+
+    private static final Comparator<ScannedLight> BY_DEVICE_NUMBER = new Comparator<ScannedLight>() {
+
+        @Override
+        public int compare(ScannedLight a, ScannedLight b) {
+            return a.getDeviceNumber() - b.getDeviceNumber();
+        }
+    };
+
+    private ChannelRetriever channelRetriever;
+    private ChannelInitializer channelInitializer;
+    private SerialExecutor scanActor;
+
+    // The lights in range, keyed by light. Updated on the binder threads.
+    private final ConcurrentHashMap<Long, ScannedLight> scannedLights;
+
+    // The latest table handed to the listener. Immutable.
+    private volatile List<ScannedLight> scanResults;
+
+    // Set while a publication of the table is waiting to run on the scan actor.
+    private final AtomicBoolean publishPending;
+
+    private final Runnable publishTask = new Runnable() {
+
+        @Override
+        public void run() {
+            publishPending.set(false);
+            publishScanResults();
+        }
+    };
+
+    // Only accessed on the scan actor.
+    private RadioChannel scanningChannel;
+    private OnScanResultsChangedListener listener;
+    private ScheduledFuture<?> expiryCheck;
+
+    /**
+     * Constructor.
+     * @param configStore holds the channel parameters.
+     * @param channelRetriever used to get the scanning channel from the ANT service.
+     */
+    public LightScanner(ChannelConfigStore configStore, ChannelRetriever channelRetriever) {
+        this.channelRetriever = channelRetriever;
+        channelInitializer = new ChannelInitializer(configStore);
+        scanActor = ChannelExecutors.newRadioSerialExecutor();
+        scannedLights = new ConcurrentHashMap<Long, ScannedLight>();
+        scanResults = Collections.emptyList();
+        publishPending = new AtomicBoolean(false);
+    }
+
+    /**
+     * Starts scanning, unless a scan is already running, and sets the listener of the scan.
+     * This method does not block and can be called from any thread.
+     * @param listener notified when the table of lights changes.
+     */
+    public void startScan(final OnScanResultsChangedListener listener) {
+        scanActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                LightScanner.this.listener = listener;
+                if (scanningChannel == null) openScanningChannel();
+            }
+        });
+    }
+
+    /**
+     * Stops scanning and releases the scanning channel. The table of lights is cleared.
+     * This method does not block and can be called from any thread.
+     */
+    public void stopScan() {
+        scanActor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                listener = null;
+                closeScanningChannel();
+                scannedLights.clear();
+                scanResults = Collections.emptyList();
+            }
+        });
+    }
+
+    /**
+     * Returns the lights in range, ordered by device number. Never blocks.
+     * @return the lights in range. The list can not be modified.
+     */
+    public List<ScannedLight> getScanResults() {
+        return scanResults;
+    }
+
+    // The following methods, up to onReceiveMessage(), are called on the scan actor.
+
+    private void openScanningChannel() {
+        RadioChannel channel = null;
+
+        try {
+            channel = channelRetriever.getBackgroundScanningChannel();
+            channelInitializer.initializeScanningChannel(channel);
+            channel.setEventHandler(this);
+            channel.open();
+        } catch (ChannelRetrieveException e) {
+            onScanFailed(channel, "Unable to retrieve scanning channel: " + e.getMessage(), e);
+            return;
+        } catch (ChannelInitializationException e) {
+            onScanFailed(channel, "Unable to initialize scanning channel: " + e.getMessage(), e);
+            return;
+        } catch (RadioChannelException e) {
+            onScanFailed(channel, "Unable to open scanning channel: " + e.getMessage(), e);
+            return;
+        }
+
+        scanningChannel = channel;
+        expiryCheck = ChannelExecutors.getWorkerExecutor().scheduleAtFixedRate(
+                ChannelExecutors.onActor(scanActor, new Runnable() {
+
+                    @Override
+                    public void run() {
+                        expireLights();
+                    }
+                }), EXPIRY_CHECK_INTERVAL_MS, EXPIRY_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        Log.i(GlobalState.LOG_TAG, "Light scan started");
+    }
+
+    private void onScanFailed(RadioChannel channel, String message, Exception e) {
+        Log.e(GlobalState.LOG_TAG, message);
+        if (channel != null) releaseScanningChannel(channel);
+        if (listener != null) listener.onScanFailed(e);
+    }
+
+    private void closeScanningChannel() {
+        if (scanningChannel == null) return;
+
+        expiryCheck.cancel(false);
+        try {
+            scanningChannel.clearEventHandler();
+        } catch (RadioChannelException e) {
+            Log.e(GlobalState.LOG_TAG, "Unable to clear scanning channel event handler: " + e.getMessage());
+        }
+        releaseScanningChannel(scanningChannel);
+        scanningChannel = null;
+
+        Log.i(GlobalState.LOG_TAG, "Light scan stopped");
+    }
+
+    //
+    // Turns the channel ID output of the adapter off again and gives the channel back.
+    //
+    private void releaseScanningChannel(RadioChannel channel) {
+        try {
+            channelInitializer.resetScanningChannel(channel);
+        } catch (ChannelInitializationException e) {
+            Log.e(GlobalState.LOG_TAG, "Unable to reset scanning channel: " + e.getMessage());
+        }
+        channelRetriever.releaseBackgroundScanningChannel(channel);
+    }
+
+    //
+    // The background scanning channel does not time out, but the ANT radio may still close it.
+    // It is then reopened, since the scan is supposed to keep running until it is stopped.
+    //
+    private void reopenScanningChannel() {
+        if (scanningChannel == null) return;
+
+        try {
+            scanningChannel.open();
+        } catch (RadioChannelException e) {
+            Log.e(GlobalState.LOG_TAG, "Unable to reopen scanning channel: " + e.getMessage());
+        }
+    }
+
+    private void expireLights() {
+        long expiryTime = SystemClock.elapsedRealtime() - SCAN_EXPIRY_MS;
+        boolean expired = false;
+
+        Iterator<ScannedLight> iterator = scannedLights.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().lastSeenTime < expiryTime) {
+                iterator.remove();
+                expired = true;
+            }
+        }
+
+        if (expired) publishScanResults();
+    }
+
+    private void publishScanResults() {
+        List<ScannedLight> results = new ArrayList<ScannedLight>(scannedLights.values());
+        Collections.sort(results, BY_DEVICE_NUMBER);
+        scanResults = Collections.unmodifiableList(results);
+
+        if (listener != null) listener.onScanResultsChanged(scanResults);
+    }
+
+    //
+    // Called on an ANT binder thread. Known lights are updated in place; only a newly found light
+    // changes the table, in which case the new table is published on the scan actor.
+    //
+    @Override
+    public void onReceiveMessage(MessageFromAntType messageType, int messageId, byte[] content) {
+
+        if (messageType == MessageFromAntType.BROADCAST_DATA) {
+            if (content == null || content.length < BROADCAST_PAYLOAD_OFFSET + AntProtocolHelper.PAYLOAD_LENGTH) {
+                return;
+            }
+
+            long key = AntProtocolHelper.getExtendedChannelIdKey(content, BROADCAST_PAYLOAD_OFFSET);
+            if (key == AntProtocolHelper.NO_CHANNEL_ID) return;
+
+            long now = SystemClock.elapsedRealtime();
+            ScannedLight light = scannedLights.get(key);
+            if (light == null) {
+                ScannedLight newLight = new ScannedLight(key, now);
+                light = scannedLights.putIfAbsent(key, newLight);
+                if (light == null) {
+                    light = newLight;
+                    if (publishPending.compareAndSet(false, true)) scanActor.execute(publishTask);
+                }
+            }
+
+            light.update(AntProtocolHelper.packPayload(content, BROADCAST_PAYLOAD_OFFSET), now);
+
+        } else if (messageType == MessageFromAntType.CHANNEL_EVENT) {
+            EventCode code = AntProtocolHelper.getEventCode(content);
+
+            if (code == EventCode.CHANNEL_CLOSED) {
+                scanActor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        reopenScanningChannel();
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    public void onChannelDeath() {
+        Log.i(GlobalState.LOG_TAG, "onChannelDeath called from LightScanner");
+    }
+}
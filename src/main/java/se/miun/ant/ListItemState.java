@@ -5,7 +5,7 @@ import android.view.View;
 import android.widget.ImageButton;
 import android.widget.SeekBar;
 
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ListItemState implements ChannelWrapper.ChannelDataListener,
                                       SeekBar.OnSeekBarChangeListener,
@@ -14,23 +14,44 @@ public class ListItemState implements ChannelWrapper.ChannelDataListener,
     public interface ListItemStateListener {
         public void onChannelConnectionClosed(ListItemState listItemState);
         public void onChannelButtonClicked(ListItemState listItemState);
-        public void onLightIntensityChanged(int lightIntensity);
+        public void onLightIntensityChanged(ListItemState listItemState);
         public void onHasReceivedLightIntensityData();
     }
 
     public int lightIntensity;
     public ChannelWrapper channelWrapper;
 
+    // True while the channel is reconnecting to the master. The last known lightIntensity is kept.
+    public volatile boolean reconnecting;
+
     private ListItemStateListener stateListener;
 
     private SeekBar intensityBar;
     private ImageButton openButton;
 
-    private byte[] lastReceivedData;
+    private long lastReceivedPayload;
     private boolean hasNotifiedDataReceived;
 
+    // Set when lightIntensity has changed but the new value has not yet been shown in the list.
+    private AtomicBoolean intensityDirty;
+
+    // Receives the pages decoded from the payloads. Called on the channel's actor.
+    private final DataPageCodecs.DataPageHandler dataPageHandler = new DataPageCodecs.DataPageHandler() {
+
+        @Override
+        public void onAudioUpdate(int volume) {
+            if (volume != DataPageCodecs.VOLUME_UNKNOWN) {
+                lightIntensity = volume;
+                stateListener.onLightIntensityChanged(ListItemState.this);
+            } else {
+                Log.e(GlobalState.LOG_TAG, "Error: Volume value unknown");
+            }
+        }
+    };
+
     public ListItemState(ChannelWrapper channelWrapper, ListItemStateListener stateListener) {
         hasNotifiedDataReceived = false;
+        intensityDirty = new AtomicBoolean(false);
         this.channelWrapper = channelWrapper;
         this.channelWrapper.addChannelDataListener(this);
         this.stateListener = stateListener;
@@ -46,29 +67,34 @@ public class ListItemState implements ChannelWrapper.ChannelDataListener,
         this.openButton.setOnClickListener(this);
     }
 
+    /**
+     * Marks that the light intensity has changed and needs to be shown in the list.
+     */
+    public void markIntensityDirty() {
+        intensityDirty.set(true);
+    }
+
+    /**
+     * Clears the changed mark set by markIntensityDirty().
+     * @return true if the light intensity had changed since the last call, otherwise false.
+     */
+    public boolean clearIntensityDirty() {
+        return intensityDirty.getAndSet(false);
+    }
+
     //
     // ChannelWrapper.ChannelDataListener implementations
     //
 
     @Override
-    public void onChannelDataReceived(byte[] data, ChannelWrapper channelWrapper) {
+    public void onChannelDataReceived(long payload, ChannelWrapper channelWrapper) {
 
-        if (!Arrays.equals(data, lastReceivedData)) {
-            updateLightIntensityData(data);
+        if (payload != lastReceivedPayload || !hasNotifiedDataReceived) {
+            DataPageCodecs.decode(payload, dataPageHandler);
             notifyDataReceivedIfFirstTime();
-            lastReceivedData = data;
-        }
-    }
-
-    private void updateLightIntensityData(byte[] data) {
-
-        if (AntProtocolHelper.isAudioUpdatePayload(data)) {
-            try {
-                lightIntensity = AntProtocolHelper.decodeVolumeValue(data);
-                stateListener.onLightIntensityChanged(lightIntensity);
-            } catch (AntProtocolHelper.VolumeValueUnknownException e) {
-                Log.e(GlobalState.LOG_TAG, "Error: Volume value unknown");
-            }
+            lastReceivedPayload = payload;
+        } else {
+            channelWrapper.getMetrics().recordRxDuplicate();
         }
     }
 
@@ -79,6 +105,18 @@ public class ListItemState implements ChannelWrapper.ChannelDataListener,
         }
     }
 
+    @Override
+    public void onChannelConnectionLost() {
+        reconnecting = true;
+        stateListener.onLightIntensityChanged(this);
+    }
+
+    @Override
+    public void onChannelReconnected() {
+        reconnecting = false;
+        stateListener.onLightIntensityChanged(this);
+    }
+
     @Override
     public void onChannelConnectionClosed() {
         channelWrapper.releaseChannel();
@@ -92,21 +130,15 @@ public class ListItemState implements ChannelWrapper.ChannelDataListener,
     @Override
     public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
         if (fromUser) {
-            byte[] payload = AntProtocolHelper.makeIntensityPayload(progress);
-            sendAcknowledgedData(payload);
-        }
-    }
-
-    private void sendAcknowledgedData(byte[] payload) {
-        try {
-            channelWrapper.sendAcknowledgedData(payload);
-        } catch (ChannelWrapper.ChannelDataSendException e) {
-            Log.e(GlobalState.LOG_TAG, e.getMessage());
+            channelWrapper.sendIntensity(progress);
         }
     }
 
     @Override
-    public void onStartTrackingTouch(SeekBar seekBar) {}
+    public void onStartTrackingTouch(SeekBar seekBar) {
+        // The user takes over the light, so a running fade must not overwrite the new intensity.
+        GlobalState.getInstance().getFadeEngine().cancelFade(channelWrapper);
+    }
 
     @Override
     public void onStopTrackingTouch(SeekBar seekBar) {}
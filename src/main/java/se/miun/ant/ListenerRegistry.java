@@ -0,0 +1,102 @@
+package se.miun.ant;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A set of listeners that can be changed from any thread while it is being dispatched to.
+ *
+ * The listeners are kept in an array that is never modified: add() and remove() build a new array
+ * and swap it in with compareAndSet(), retrying if another thread changed the set in the meantime.
+ * Dispatching only reads the current array with getListeners() and loops over it, so it never takes
+ * a lock, never allocates, never waits for a writer and can never see a half-made change. A dispatch
+ * that has already read the array is not affected by later changes, so a removed listener may be
+ * called once more by a dispatch that was in progress when it was removed.
+ *
+ * Changes are rare compared to dispatches (listeners are added and removed when the UI changes,
+ * while messages arrive several times per second per channel), which is why copying on change pays off.
+ *
+ * @param <T> the listener type.
+ */
+public class ListenerRegistry<T> {
+
+    private final AtomicReference<T[]> listeners;
+
+    /**
+     * Constructor.
+     * @param emptyArray an empty array of the listener type, used as the initial set.
+     */
+    public ListenerRegistry(T[] emptyArray) {
+        if (emptyArray.length != 0) throw new IllegalArgumentException("emptyArray must be empty");
+        listeners = new AtomicReference<T[]>(emptyArray);
+    }
+
+    /**
+     * Adds a listener. Adding a listener that is already registered does nothing.
+     * Can be called from any thread.
+     * @param listener the listener to add.
+     */
+    public void add(T listener) {
+        if (listener == null) throw new NullPointerException("listener must not be null");
+
+        while (true) {
+            T[] current = listeners.get();
+            if (indexOf(current, listener) != -1) return;
+
+            T[] updated = newArray(current, current.length + 1);
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = listener;
+
+            if (listeners.compareAndSet(current, updated)) return;
+        }
+    }
+
+    /**
+     * Removes a listener. Removing a listener that is not registered does nothing.
+     * Can be called from any thread.
+     * @param listener the listener to remove.
+     */
+    public void remove(T listener) {
+        while (true) {
+            T[] current = listeners.get();
+            int index = indexOf(current, listener);
+            if (index == -1) return;
+
+            T[] updated = newArray(current, current.length - 1);
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+
+            if (listeners.compareAndSet(current, updated)) return;
+        }
+    }
+
+    /**
+     * Returns the registered listeners. The returned array is a snapshot that is never changed,
+     * and it must not be modified by the caller. Never blocks.
+     * @return the registered listeners.
+     */
+    public T[] getListeners() {
+        return listeners.get();
+    }
+
+    /**
+     * Returns true if no listener is registered.
+     * @return true if no listener is registered, otherwise false.
+     */
+    public boolean isEmpty() {
+        return listeners.get().length == 0;
+    }
+
+    // Note: Arrays.copyOf() is not used because it is not available before API level 9.
+    @SuppressWarnings("unchecked")
+    private static <T> T[] newArray(T[] template, int length) {
+        return (T[])Array.newInstance(template.getClass().getComponentType(), length);
+    }
+
+    private static int indexOf(Object[] array, Object listener) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == listener) return i;
+        }
+        return -1;
+    }
+}
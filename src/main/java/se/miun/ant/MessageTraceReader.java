@@ -0,0 +1,120 @@
+package se.miun.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * MessageTraceReader reads a trace file written by MessageTraceRecorder. Writers on different
+ * threads reserve their records in the order they reach the recorder, not in timestamp order, so
+ * readAll() sorts the records by time before they are replayed.
+ */
+public class MessageTraceReader {
+
+    /** Thrown when a file is not a trace file, or has a version that can not be read. */
+    public static class TraceFormatException extends IOException {
+        public TraceFormatException(String message) { super(message); }
+    }
+
+    /**
+     * One recorded message.
+     */
+    public static final class TraceRecord {
+
+        /** The time since the recording started, in nanoseconds. */
+        public final long timestampNanos;
+        /** MessageTraceRecorder.SOURCE_CHANNEL or SOURCE_SEARCH. */
+        public final int source;
+        /** The ANT message ID. */
+        public final int messageId;
+        /** The ANT channel number, the first byte of the content. */
+        public final int channelNumber;
+        /** The message content. */
+        public final byte[] content;
+
+        private TraceRecord(long timestampNanos, int source, int messageId, int channelNumber,
+                            byte[] content) {
+            this.timestampNanos = timestampNanos;
+            this.source = source;
+            this.messageId = messageId;
+            this.channelNumber = channelNumber;
+            this.content = content;
+        }
+    }
+
+    private static final Comparator<TraceRecord> BY_TIMESTAMP = new Comparator<TraceRecord>() {
+
+        @Override
+        public int compare(TraceRecord a, TraceRecord b) {
+            return a.timestampNanos < b.timestampNanos ? -1 : (a.timestampNanos > b.timestampNanos ? 1 : 0);
+        }
+    };
+
+    private MessageTraceReader() {}
+
+    /**
+     * Reads all records of a trace file.
+     * @param file the trace file.
+     * @return the records, ordered by timestamp.
+     * @throws IOException if the file could not be read or is not a trace file.
+     */
+    public static List<TraceRecord> readAll(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            List<TraceRecord> records = readRecords(buffer);
+            Collections.sort(records, BY_TIMESTAMP);
+            return records;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static List<TraceRecord> readRecords(MappedByteBuffer buffer) throws TraceFormatException {
+        if (buffer.limit() < MessageTraceRecorder.HEADER_SIZE ||
+            buffer.getInt(0) != MessageTraceRecorder.MAGIC) {
+            throw new TraceFormatException("Not a message trace file");
+        }
+        int version = buffer.getShort(4);
+        if (version != MessageTraceRecorder.VERSION) {
+            throw new TraceFormatException("Unsupported trace version " + version);
+        }
+        int segmentSize = buffer.getInt(8);
+
+        List<TraceRecord> records = new ArrayList<TraceRecord>();
+        int end = buffer.limit();
+        int segmentStart = MessageTraceRecorder.HEADER_SIZE;
+        int position = segmentStart;
+
+        while (position + MessageTraceRecorder.RECORD_HEADER_SIZE <= end) {
+            int messageId = buffer.get(position + 1) & 0xFF;
+            int length = buffer.get(position) & 0xFF;
+            int segmentEnd = segmentStart + segmentSize;
+
+            // The zeroed tail of a segment, or a record that was cut off: go on with the next segment.
+            if (messageId == 0 || position + MessageTraceRecorder.RECORD_HEADER_SIZE + length > Math.min(end, segmentEnd)) {
+                segmentStart = segmentEnd;
+                position = segmentStart;
+                continue;
+            }
+
+            byte[] content = new byte[length];
+            for (int i = 0; i < length; i++) {
+                content[i] = buffer.get(position + MessageTraceRecorder.RECORD_HEADER_SIZE + i);
+            }
+            records.add(new TraceRecord(buffer.getLong(position + 4), buffer.get(position + 3) & 0xFF,
+                                        messageId, buffer.get(position + 2) & 0xFF, content));
+
+            position += MessageTraceRecorder.RECORD_HEADER_SIZE + length;
+        }
+
+        return records;
+    }
+}
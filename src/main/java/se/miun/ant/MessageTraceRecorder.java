@@ -0,0 +1,225 @@
+package se.miun.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MessageTraceRecorder writes every ANT message that the app receives to a compact binary trace
+ * file, so that field traffic can be replayed later (see MessageTraceReader and MessageTraceReplay).
+ *
+ * The file is append-only and written through memory-mapped segments of SEGMENT_SIZE bytes. A
+ * writer reserves the bytes of its record with one atomic add on the current segment and then
+ * writes them with absolute puts, so recording never locks or allocates; only moving on to the
+ * next segment takes a lock. The ANT binder threads can therefore record every message without
+ * slowing down the receive path. A record never crosses a segment boundary, and the unused tail
+ * of a segment is left zeroed.
+ *
+ * File layout (big endian):
+ *
+ * header (HEADER_SIZE bytes): magic "ANTT", version (u16), reserved (u16), segment size (i32),
+ *                             reserved (i32), start wall clock time (i64 ms), reserved (i64)
+ * record: content length (u8), ANT message ID (u8), channel number (u8), source (u8),
+ *         time since the recording started (i64 ns), message content (length bytes)
+ *
+ * The channel number is the first byte of the message content, as in every ANT channel message.
+ * A message ID of 0 (which ANT never uses) marks the zeroed end of a segment.
+ *
+ * There is at most one active recorder per process, which the receive paths look up with a single
+ * volatile read (see getActive()). The recorder does not depend on Android classes, so traces can
+ * also be made and read on a plain JVM.
+ */
+public class MessageTraceRecorder {
+
+    /** The record was written by ChannelWrapper (a connected light). */
+    public static final int SOURCE_CHANNEL = 0;
+
+    /** The record was written while a channel was searching (see ChannelSearcher). */
+    public static final int SOURCE_SEARCH = 1;
+
+    static final int MAGIC = 0x414E5454;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_HEADER_SIZE = 12;
+    static final int SEGMENT_SIZE = 256 * 1024;
+
+    // The channel number recorded for a message without content.
+    private static final int NO_CHANNEL_NUMBER = 0xFF;
+
+    private static volatile MessageTraceRecorder activeRecorder;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final long startNanos;
+
+    private volatile Segment segment;
+
+    // The number of record() calls in progress. The file is only truncated when it is zero.
+    private final AtomicInteger writers;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    /**
+     * Starts recording to a new trace file and makes the recorder the active one. A recorder that
+     * is already active is stopped first.
+     * @param file the trace file. An existing file is overwritten.
+     * @return the new active recorder.
+     * @throws IOException if the file could not be created.
+     */
+    public static synchronized MessageTraceRecorder start(File file) throws IOException {
+        stop();
+        activeRecorder = new MessageTraceRecorder(file);
+        return activeRecorder;
+    }
+
+    /**
+     * Stops the active recorder, if any, and closes its file.
+     * @return the stopped recorder, or null if no recorder was active.
+     */
+    public static synchronized MessageTraceRecorder stop() {
+        MessageTraceRecorder recorder = activeRecorder;
+        activeRecorder = null;
+        if (recorder != null) recorder.close();
+        return recorder;
+    }
+
+    /**
+     * Returns the active recorder. Called for every received message, so it is a single volatile read.
+     * @return the active recorder, or null if no trace is being recorded.
+     */
+    public static MessageTraceRecorder getActive() {
+        return activeRecorder;
+    }
+
+    private MessageTraceRecorder(File file) throws IOException {
+        this.file = file;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        fileChannel = randomAccessFile.getChannel();
+        startNanos = System.nanoTime();
+        writers = new AtomicInteger();
+
+        MappedByteBuffer header = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putShort((short)VERSION);
+        header.putShort((short)0);
+        header.putInt(SEGMENT_SIZE);
+        header.putInt(0);
+        header.putLong(System.currentTimeMillis());
+        header.putLong(0);
+
+        segment = mapSegment(0);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the error that stopped the recording early, if any.
+     * @return the error, or null.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Records one received message. Can be called from any thread; never blocks, except for the
+     * short lock when a segment is full.
+     * @param source SOURCE_CHANNEL or SOURCE_SEARCH.
+     * @param messageId the ANT message ID (see AntMessageParcel.getMessageId()).
+     * @param content the message content, or null.
+     */
+    public void record(int source, int messageId, byte[] content) {
+        long timestamp = System.nanoTime() - startNanos;
+        int length = content != null ? Math.min(content.length, 0xFF) : 0;
+        int size = RECORD_HEADER_SIZE + length;
+
+        writers.incrementAndGet();
+        try {
+            if (closed) return;
+
+            Segment current = segment;
+            int position = current.position.getAndAdd(size);
+            while (position + size > SEGMENT_SIZE) {
+                current = nextSegment(current);
+                if (current == null) return;
+                position = current.position.getAndAdd(size);
+            }
+
+            MappedByteBuffer buffer = current.buffer;
+            buffer.put(position, (byte)length);
+            buffer.put(position + 1, (byte)messageId);
+            buffer.put(position + 2, (byte)(length > 0 ? content[0] : NO_CHANNEL_NUMBER));
+            buffer.put(position + 3, (byte)source);
+            buffer.putLong(position + 4, timestamp);
+            for (int i = 0; i < length; i++) {
+                buffer.put(position + RECORD_HEADER_SIZE + i, content[i]);
+            }
+        } finally {
+            writers.decrementAndGet();
+        }
+    }
+
+    //
+    // Maps the segment after the given one, unless another writer already has. Returns null if
+    // the recording has failed.
+    //
+    private synchronized Segment nextSegment(Segment full) {
+        if (failure != null) return null;
+
+        if (segment == full) {
+            try {
+                segment = mapSegment(full.index + 1);
+            } catch (IOException e) {
+                failure = e;
+                closed = true;
+                return null;
+            }
+        }
+        return segment;
+    }
+
+    private Segment mapSegment(int index) throws IOException {
+        long offset = HEADER_SIZE + (long)index * SEGMENT_SIZE;
+        return new Segment(index, fileChannel.map(FileChannel.MapMode.READ_WRITE, offset, SEGMENT_SIZE));
+    }
+
+    //
+    // Waits for the writers in progress, since writing to a mapped region after the file has been
+    // truncated crashes the process, and then cuts the zeroed tail of the last segment.
+    //
+    private synchronized void close() {
+        closed = true;
+        while (writers.get() != 0) {
+            Thread.yield();
+        }
+
+        Segment last = segment;
+        long end = HEADER_SIZE + (long)last.index * SEGMENT_SIZE +
+                   Math.min(last.position.get(), SEGMENT_SIZE);
+        try {
+            last.buffer.force();
+            fileChannel.truncate(end);
+            randomAccessFile.close();
+        } catch (IOException e) {
+            if (failure == null) failure = e;
+        }
+    }
+
+    private static class Segment {
+        private final int index;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger position;
+
+        public Segment(int index, MappedByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+            position = new AtomicInteger(0);
+        }
+    }
+}
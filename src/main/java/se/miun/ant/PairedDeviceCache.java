@@ -0,0 +1,222 @@
+package se.miun.ant;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * PairedDeviceCache remembers the identity (device number and transmission type) of every ANT
+ * master the controller has connected to, and the channel profile (see ChannelConfig) it was found
+ * with, so that later searches can open channels directly against those masters (see
+ * ChannelSearcher). A directed search locks on to its master much faster than a wildcard search,
+ * which makes reconnecting to a known set of lights quick.
+ *
+ * The devices are kept most recently connected first, and at most MAX_DEVICES are remembered.
+ * They are stored in a small file in the private files directory of the app, four bytes per
+ * device: the device number (two bytes), the transmission type (one byte) and the profile number
+ * (one byte). A file of the first version, without profile numbers, is read as if every device
+ * used the primary profile. The file is read the first time the cache is used, and whenever the
+ * cache changes a new version is written to a temporary file on the radio pool and renamed over
+ * the old one.
+ */
+public class PairedDeviceCache {
+
+    /** The maximum number of devices that are remembered. */
+    public static final int MAX_DEVICES = 64;
+
+    // The name of the private file the devices are stored in.
+    private static final String CACHE_FILE_NAME = "paired_devices";
+
+    // Appended to the name of the cache file for the file that a new version is written to.
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    // The version of the file format. Stored as the first byte of the file.
+    private static final int FILE_VERSION = 2;
+    private static final int FILE_VERSION_WITHOUT_PROFILES = 1;
+
+    private File file;
+    private Executor writeExecutor;
+
+    // The keys (see ChannelStateStore.makeKey()) and profile numbers of the remembered devices, most
+    // recently connected first. Guarded by this.
+    private long[] deviceKeys;
+    private int[] deviceProfiles;
+    private int deviceCount;
+    private boolean loaded;
+
+    /**
+     * Constructor.
+     * @param context the context needed to access the cache file.
+     */
+    public PairedDeviceCache(Context context) {
+        this(new File(context.getFilesDir(), CACHE_FILE_NAME));
+    }
+
+    /**
+     * Constructor.
+     * @param file the cache file.
+     */
+    PairedDeviceCache(File file) {
+        this.file = file;
+        deviceKeys = new long[MAX_DEVICES];
+        deviceProfiles = new int[MAX_DEVICES];
+        writeExecutor = ChannelExecutors.newRadioSerialExecutor();
+    }
+
+    /**
+     * Remembers a device as the most recently connected one. Unknown identities (see
+     * ChannelWrapper.DEVICE_NUMBER_UNKNOWN) are ignored. Can be called from any thread.
+     * @param deviceNumber the device number of the master.
+     * @param transmissionType the transmission type of the master.
+     * @param profileNumber the number of the channel profile the master was found with.
+     */
+    public void addDevice(int deviceNumber, int transmissionType, int profileNumber) {
+        if (deviceNumber == ChannelWrapper.DEVICE_NUMBER_UNKNOWN ||
+            transmissionType == ChannelWrapper.TRANSMISSION_TYPE_UNKNOWN) return;
+
+        long key = ChannelStateStore.makeKey(deviceNumber, transmissionType);
+        long[] keysToWrite;
+        int[] profilesToWrite;
+
+        synchronized (this) {
+            ensureLoaded();
+            if (deviceCount > 0 && deviceKeys[0] == key && deviceProfiles[0] == profileNumber) return;
+
+            int index = indexOf(key);
+            int shifted = index != -1 ? index : Math.min(deviceCount, MAX_DEVICES - 1);
+            System.arraycopy(deviceKeys, 0, deviceKeys, 1, shifted);
+            System.arraycopy(deviceProfiles, 0, deviceProfiles, 1, shifted);
+            deviceKeys[0] = key;
+            deviceProfiles[0] = profileNumber;
+            if (index == -1 && deviceCount < MAX_DEVICES) deviceCount++;
+
+            keysToWrite = getDeviceKeys();
+            profilesToWrite = new int[deviceCount];
+            System.arraycopy(deviceProfiles, 0, profilesToWrite, 0, deviceCount);
+        }
+
+        writeDevices(keysToWrite, profilesToWrite);
+    }
+
+    /**
+     * Returns the keys (see ChannelStateStore.makeKey()) of the remembered devices, most recently
+     * connected first. May read the cache file, so it should not be called on the UI thread.
+     * @return the keys of the remembered devices.
+     */
+    public synchronized long[] getDeviceKeys() {
+        ensureLoaded();
+        long[] keys = new long[deviceCount];
+        System.arraycopy(deviceKeys, 0, keys, 0, deviceCount);
+        return keys;
+    }
+
+    /**
+     * Returns the number of the channel profile that a device was last found with. May read the
+     * cache file, so it should not be called on the UI thread.
+     * @param key the key of the device (see ChannelStateStore.makeKey()).
+     * @return the profile number, or 0 (the primary profile) if the device is not remembered.
+     */
+    public synchronized int getProfileNumber(long key) {
+        ensureLoaded();
+        int index = indexOf(key);
+        return index != -1 ? deviceProfiles[index] : 0;
+    }
+
+    // Called with the lock held.
+    private void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int version = in.readUnsignedByte();
+            if (version != FILE_VERSION && version != FILE_VERSION_WITHOUT_PROFILES) return;
+
+            while (deviceCount < MAX_DEVICES) {
+                int deviceNumber = in.readUnsignedShort();
+                int transmissionType = in.readUnsignedByte();
+                int profileNumber = version == FILE_VERSION ? in.readUnsignedByte() : 0;
+                deviceKeys[deviceCount] = ChannelStateStore.makeKey(deviceNumber, transmissionType);
+                deviceProfiles[deviceCount++] = profileNumber;
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing has been cached yet.
+        } catch (EOFException e) {
+            // The end of the file.
+        } catch (IOException e) {
+            Log.e(GlobalState.LOG_TAG, "Could not read the paired devices: " + e.getMessage());
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private int indexOf(long key) {
+        for (int i = 0; i < deviceCount; i++) {
+            if (deviceKeys[i] == key) return i;
+        }
+        return -1;
+    }
+
+    //
+    // Writes the devices to the cache file on the write executor, which runs one write at a time,
+    // in the order the changes were made, on the radio pool because file writes block. The devices
+    // are written to a temporary file that is then renamed over the cache file, so that a write
+    // that is cut short leaves the previous cache file in place.
+    //
+    private void writeDevices(final long[] keys, final int[] profiles) {
+        writeExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                File tempFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
+                FileOutputStream fileOut = null;
+                DataOutputStream out = null;
+                boolean written = false;
+                try {
+                    fileOut = new FileOutputStream(tempFile);
+                    out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                    out.writeByte(FILE_VERSION);
+                    for (int i = 0; i < keys.length; i++) {
+                        out.writeShort(ChannelStateStore.getDeviceNumber(keys[i]));
+                        out.writeByte(ChannelStateStore.getTransmissionType(keys[i]));
+                        out.writeByte(profiles[i]);
+                    }
+                    out.flush();
+                    fileOut.getFD().sync();
+                    written = true;
+                } catch (IOException e) {
+                    Log.e(GlobalState.LOG_TAG, "Could not write the paired devices: " + e.getMessage());
+                } finally {
+                    closeQuietly(out != null ? out : fileOut);
+                }
+
+                if (!written || !tempFile.renameTo(file)) {
+                    if (written) Log.e(GlobalState.LOG_TAG, "Could not replace the paired devices file");
+                    tempFile.delete();
+                }
+            }
+        });
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(GlobalState.LOG_TAG, "Could not close the paired devices file: " + e.getMessage());
+        }
+    }
+}
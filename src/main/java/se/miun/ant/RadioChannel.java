@@ -0,0 +1,103 @@
+package se.miun.ant;
+
+import com.dsi.ant.channel.ExtendedAssignment;
+import com.dsi.ant.message.ChannelId;
+import com.dsi.ant.message.ChannelState;
+import com.dsi.ant.message.ChannelType;
+import com.dsi.ant.message.LibConfig;
+import com.dsi.ant.message.fromant.MessageFromAntType;
+
+/**
+ * RadioChannel is one channel of an ANT radio, with the AntChannel calls that the app makes. The
+ * channels of the ANT Radio Service are wrapped in an AntRadioChannel, and SimulatedAntRadio
+ * provides channels that run on a plain JVM, so that ChannelSearcher, ChannelWrapper, ChannelList
+ * and the rest of the channel code can be load tested without a phone (see RadioChannelProvider).
+ *
+ * Every method except release() may be a blocking call to the radio, so they must not be called on
+ * the UI thread (see ChannelExecutors).
+ */
+public interface RadioChannel {
+
+    /**
+     * Receives the messages of a channel, on a thread of the radio, one message at a time.
+     */
+    public interface EventHandler {
+        /**
+         * Called when a message has been received on the channel.
+         * @param messageType the type of the message.
+         * @param messageId the ANT message ID.
+         * @param content the content of the message, the channel number first.
+         */
+        public void onReceiveMessage(MessageFromAntType messageType, int messageId, byte[] content);
+
+        /**
+         * Called when the channel is no longer usable, for example because the radio was turned off.
+         */
+        public void onChannelDeath();
+    }
+
+    /** Thrown when a call to the radio failed, or the radio refused the command. */
+    public static class RadioChannelException extends Exception {
+        public RadioChannelException(String message) { super(message); }
+        public RadioChannelException(String message, Throwable cause) { super(message, cause); }
+    }
+
+    public void assign(ChannelType channelType) throws RadioChannelException;
+
+    public void assign(ChannelType channelType, ExtendedAssignment extendedAssignment)
+            throws RadioChannelException;
+
+    public void setChannelId(ChannelId channelId) throws RadioChannelException;
+
+    public void setRfFrequency(int frequency) throws RadioChannelException;
+
+    public void setPeriod(int period) throws RadioChannelException;
+
+    public void setAdapterWideLibConfig(LibConfig libConfig) throws RadioChannelException;
+
+    public void open() throws RadioChannelException;
+
+    public void close() throws RadioChannelException;
+
+    /**
+     * Gives the channel back to the radio. The channel can not be used after this call.
+     */
+    public void release();
+
+    public void setEventHandler(EventHandler eventHandler) throws RadioChannelException;
+
+    public void clearEventHandler() throws RadioChannelException;
+
+    public void setBroadcastData(byte[] data) throws RadioChannelException;
+
+    /**
+     * Starts an acknowledged transfer. The transfer ends with a TRANSFER_TX_COMPLETED or
+     * TRANSFER_TX_FAILED event.
+     * @param data the 8 byte payload.
+     * @throws RadioChannelException if the transfer could not be started.
+     */
+    public void startSendAcknowledgedData(byte[] data) throws RadioChannelException;
+
+    /**
+     * Sends data as a burst transfer. The transfer starts with a TRANSFER_TX_START event and ends
+     * with a TRANSFER_TX_COMPLETED or TRANSFER_TX_FAILED event.
+     * @param data the payload.
+     * @throws RadioChannelException if the transfer could not be started.
+     */
+    public void burstTransfer(byte[] data) throws RadioChannelException;
+
+    /**
+     * Returns the channel ID of the channel, which is the channel ID of the master once the channel
+     * has connected to it.
+     * @return the channel ID.
+     * @throws RadioChannelException if the request failed.
+     */
+    public ChannelId requestChannelId() throws RadioChannelException;
+
+    /**
+     * Returns the state of the channel.
+     * @return the channel state.
+     * @throws RadioChannelException if the request failed.
+     */
+    public ChannelState requestChannelState() throws RadioChannelException;
+}
@@ -0,0 +1,45 @@
+package se.miun.ant;
+
+/**
+ * RadioChannelProvider hands out the channels of an ANT radio (see RadioChannel). The ANT Radio
+ * Service is wrapped in an AntRadioChannelProvider, and a SimulatedAntRadio is a provider of its own.
+ * The methods are blocking calls to the radio, so they must not be called on the UI thread.
+ */
+public interface RadioChannelProvider {
+
+    /** Thrown when no channel could be acquired. */
+    public static class NoChannelAvailableException extends RadioChannel.RadioChannelException {
+        private final boolean allChannelsInUse;
+
+        public NoChannelAvailableException(String message, boolean allChannelsInUse, Throwable cause) {
+            super(message, cause);
+            this.allChannelsInUse = allChannelsInUse;
+        }
+
+        /**
+         * Returns true if the channel could not be acquired because every channel of the radio is
+         * in use, as opposed to an error or a missing capability.
+         * @return true or false.
+         */
+        public boolean isAllChannelsInUse() {
+            return allChannelsInUse;
+        }
+    }
+
+    /**
+     * Acquires a channel of the ANT+ network.
+     * @param backgroundScanning true if the channel must support background scanning.
+     * @return an unassigned channel.
+     * @throws RadioChannel.RadioChannelException if no channel could be acquired (see
+     *         NoChannelAvailableException) or the call failed.
+     */
+    public RadioChannel acquireChannel(boolean backgroundScanning) throws RadioChannel.RadioChannelException;
+
+    /**
+     * Returns the number of channels that can be acquired. The ANT Radio Service also returns 0
+     * when an error occurred.
+     * @return the number of free channels.
+     * @throws RadioChannel.RadioChannelException if the call failed.
+     */
+    public int getNumChannelsAvailable() throws RadioChannel.RadioChannelException;
+}
@@ -0,0 +1,160 @@
+package se.miun.ant;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Scene is a named set of light intensities, one for each light in the scene. A light is identified
+ * by the device number and transmission type of its ANT master (see ChannelStateStore.makeKey()),
+ * which stay the same between searches. The intensity payloads are made when the scene is created,
+ * so applying a scene only has to send them.
+ *
+ * Scenes saved before the transmission type was stored only know the device numbers of their lights.
+ * Such a light matches any light with the same device number, until the scene is saved again.
+ *
+ * Scenes are immutable and are stored by SceneController.
+ */
+public class Scene {
+
+    // Separators used by encode() and decode().
+    private static final String LIGHT_SEPARATOR = ";";
+    private static final String VALUE_SEPARATOR = ":";
+
+    private final String name;
+    private final Map<Long, Integer> intensities;
+    private final Map<Long, byte[]> payloads;
+
+    // The intensities of lights whose transmission type is not known, keyed by device number.
+    private final Map<Integer, Integer> legacyIntensities;
+    private final Map<Integer, byte[]> legacyPayloads;
+
+    /**
+     * Constructor.
+     * @param name the name of the scene.
+     * @param intensities the light intensity of each light, keyed by ChannelStateStore.makeKey().
+     */
+    public Scene(String name, Map<Long, Integer> intensities) {
+        this(name, intensities, Collections.<Integer, Integer>emptyMap());
+    }
+
+    private Scene(String name, Map<Long, Integer> intensities, Map<Integer, Integer> legacyIntensities) {
+        this.name = name;
+        this.intensities = Collections.unmodifiableMap(new HashMap<Long, Integer>(intensities));
+        this.legacyIntensities = new HashMap<Integer, Integer>(legacyIntensities);
+
+        payloads = new HashMap<Long, byte[]>();
+        for (Map.Entry<Long, Integer> entry : intensities.entrySet()) {
+            payloads.put(entry.getKey(), AntProtocolHelper.makeIntensityPayload(entry.getValue()));
+        }
+
+        legacyPayloads = new HashMap<Integer, byte[]>();
+        for (Map.Entry<Integer, Integer> entry : legacyIntensities.entrySet()) {
+            legacyPayloads.put(entry.getKey(), AntProtocolHelper.makeIntensityPayload(entry.getValue()));
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of lights in the scene.
+     * @return the number of lights.
+     */
+    public int getLightCount() {
+        return intensities.size() + legacyIntensities.size();
+    }
+
+    /**
+     * Returns the keys (see ChannelStateStore.makeKey()) of the lights in the scene whose
+     * transmission type is known.
+     * @return the light keys.
+     */
+    public Set<Long> getLightKeys() {
+        return intensities.keySet();
+    }
+
+    /**
+     * Returns the scene intensity of a light.
+     * @param deviceNumber the device number of the light.
+     * @param transmissionType the transmission type of the light.
+     * @return the light intensity, or null if the light is not in the scene.
+     */
+    public Integer getIntensity(int deviceNumber, int transmissionType) {
+        Integer intensity = intensities.get(ChannelStateStore.makeKey(deviceNumber, transmissionType));
+        return intensity != null ? intensity : legacyIntensities.get(deviceNumber);
+    }
+
+    /**
+     * Returns the intensity payload for a light (see AntProtocolHelper.makeIntensityPayload()).
+     * The returned array must not be modified.
+     * @param deviceNumber the device number of the light.
+     * @param transmissionType the transmission type of the light.
+     * @return the payload, or null if the light is not in the scene.
+     */
+    public byte[] getPayload(int deviceNumber, int transmissionType) {
+        byte[] payload = payloads.get(ChannelStateStore.makeKey(deviceNumber, transmissionType));
+        return payload != null ? payload : legacyPayloads.get(deviceNumber);
+    }
+
+    /**
+     * Encodes the light intensities of the scene as a string of device number, transmission type
+     * and intensity for each light, for example "12:1:40;7:5:100". A light whose transmission type
+     * is not known is encoded without it, for example "12:40".
+     * @return the encoded light intensities.
+     */
+    public String encode() {
+        StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<Long, Integer> entry : intensities.entrySet()) {
+            if (builder.length() > 0) builder.append(LIGHT_SEPARATOR);
+            long key = entry.getKey();
+            builder.append(ChannelStateStore.getDeviceNumber(key)).append(VALUE_SEPARATOR)
+                   .append(ChannelStateStore.getTransmissionType(key)).append(VALUE_SEPARATOR)
+                   .append(entry.getValue());
+        }
+
+        for (Map.Entry<Integer, Integer> entry : legacyIntensities.entrySet()) {
+            if (builder.length() > 0) builder.append(LIGHT_SEPARATOR);
+            builder.append(entry.getKey()).append(VALUE_SEPARATOR).append(entry.getValue());
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Creates a scene from light intensities encoded by encode(). Lights encoded without a
+     * transmission type, as by earlier versions, match any light with the same device number.
+     * @param name the name of the scene.
+     * @param encoded the encoded light intensities.
+     * @return the scene.
+     * @throws IllegalArgumentException if the encoded string is not valid.
+     */
+    public static Scene decode(String name, String encoded) {
+        Map<Long, Integer> intensities = new HashMap<Long, Integer>();
+        Map<Integer, Integer> legacyIntensities = new HashMap<Integer, Integer>();
+
+        if (encoded.length() > 0) {
+            for (String light : encoded.split(LIGHT_SEPARATOR)) {
+                String[] values = light.split(VALUE_SEPARATOR);
+                try {
+                    if (values.length == 3) {
+                        long key = ChannelStateStore.makeKey(Integer.parseInt(values[0]),
+                                                             Integer.parseInt(values[1]));
+                        intensities.put(key, Integer.valueOf(values[2]));
+                    } else if (values.length == 2) {
+                        legacyIntensities.put(Integer.valueOf(values[0]), Integer.valueOf(values[1]));
+                    } else {
+                        throw new IllegalArgumentException("Invalid scene light: " + light);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid scene light: " + light, e);
+                }
+            }
+        }
+
+        return new Scene(name, intensities, legacyIntensities);
+    }
+}
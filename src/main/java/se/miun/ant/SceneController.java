@@ -0,0 +1,246 @@
+package se.miun.ant;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SceneController stores the scenes (see Scene) and applies them to the connected lights.
+ *
+ * When a scene is applied, every light in the channel list that is part of the scene gets its
+ * scene intensity. The lights are handled in parallel: each one is handed to its ChannelWrapper's
+ * IntensityCommandQueue, which sends it within one channel period, and the listener is told when
+ * each light has acknowledged its intensity (or failed to) and when the whole scene has been applied.
+ *
+ * A scene can also be faded in: every light is then faded from its current intensity to its scene
+ * intensity by the FadeEngine, and a light counts as applied when its fade has reached the scene
+ * intensity.
+ *
+ * The scenes are stored in their own SharedPreferences file, keyed by scene name.
+ */
+public class SceneController {
+
+    public interface OnSceneAppliedListener {
+        /**
+         * Called when a light has acknowledged its scene intensity, or when the intensity could not
+         * be delivered. Called on a background thread.
+         * @param deviceNumber the device number of the light.
+         * @param success true if the light acknowledged the intensity, otherwise false.
+         */
+        public void onLightApplied(int deviceNumber, boolean success);
+
+        /**
+         * Called when all lights of the scene have been handled. Called on a background thread.
+         * @param scene the applied scene.
+         * @param appliedLights the number of lights that acknowledged their scene intensity.
+         * @param sceneLights the number of connected lights that are part of the scene.
+         */
+        public void onSceneApplied(Scene scene, int appliedLights, int sceneLights);
+    }
+
+    public interface OnSceneSavedListener {
+        /**
+         * Called on a background thread when a scene has been saved.
+         * @param scene the saved scene.
+         */
+        public void onSceneSaved(Scene scene);
+    }
+
+    // The name of the SharedPreferences file that the scenes are stored in.
+    private static final String SCENES_PREFERENCES_NAME = "scenes";
+
+    private SharedPreferences scenePreferences;
+    private Map<String, Scene> scenes;
+    private Executor sceneExecutor;
+    private FadeEngine fadeEngine;
+
+    /**
+     * Constructor.
+     * @param context the context needed to access the SharedPreferences.
+     * @param fadeEngine fades the lights when a scene is faded in.
+     */
+    public SceneController(Context context, FadeEngine fadeEngine) {
+        this.fadeEngine = fadeEngine;
+        scenePreferences = context.getSharedPreferences(SCENES_PREFERENCES_NAME, Context.MODE_PRIVATE);
+        scenes = new ConcurrentHashMap<String, Scene>();
+        sceneExecutor = ChannelExecutors.getRadioExecutor();
+
+        loadScenes();
+    }
+
+    private void loadScenes() {
+        for (Map.Entry<String, ?> entry : scenePreferences.getAll().entrySet()) {
+            try {
+                scenes.put(entry.getKey(), Scene.decode(entry.getKey(), String.valueOf(entry.getValue())));
+            } catch (IllegalArgumentException e) {
+                Log.e(GlobalState.LOG_TAG, "Could not load scene " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the stored scenes, sorted alphabetically.
+     * @return the scene names.
+     */
+    public List<String> getSceneNames() {
+        List<String> names = new ArrayList<String>(scenes.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Saves the current light intensities of the given lights as a scene. If a scene with the same
+     * name exists it is replaced.
+     * @param name the name of the scene.
+     * @param lights the lights to save, as given by ChannelList.getListItemStates().
+     * @param listener notified when the scene has been saved, or null.
+     */
+    public void saveScene(final String name, final List<ListItemState> lights,
+                          final OnSceneSavedListener listener) {
+        sceneExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                Map<Long, Integer> intensities = new HashMap<Long, Integer>();
+
+                for (ListItemState state : lights) {
+                    int deviceNumber = state.channelWrapper.getDeviceNumber();
+                    int transmissionType = state.channelWrapper.getTransmissionType();
+                    if (deviceNumber != ChannelWrapper.DEVICE_NUMBER_UNKNOWN &&
+                        transmissionType != ChannelWrapper.TRANSMISSION_TYPE_UNKNOWN) {
+                        intensities.put(ChannelStateStore.makeKey(deviceNumber, transmissionType),
+                                        state.lightIntensity);
+                    }
+                }
+
+                Scene scene = new Scene(name, intensities);
+                scenes.put(name, scene);
+                scenePreferences.edit().putString(name, scene.encode()).commit();
+
+                if (listener != null) listener.onSceneSaved(scene);
+            }
+        });
+    }
+
+    /**
+     * Applies a stored scene to the given lights. This method does not block.
+     * @param name the name of the scene.
+     * @param lights the connected lights, as given by ChannelList.getListItemStates().
+     * @param fadeDurationMs the time to fade the lights to the scene over, or 0 to set the scene
+     *                       intensities right away.
+     * @param listener notified about the progress, or null.
+     */
+    public void applyScene(String name, List<ListItemState> lights, long fadeDurationMs,
+                           OnSceneAppliedListener listener) {
+        Scene scene = scenes.get(name);
+        if (scene == null) return;
+
+        SceneApplication application = new SceneApplication(scene, lights.size(), fadeEngine,
+                                                            fadeDurationMs, listener);
+
+        for (ListItemState state : lights) {
+            sceneExecutor.execute(application.newLightTask(state.channelWrapper, state.lightIntensity));
+        }
+    }
+
+
+    //
+    // Keeps track of one application of a scene. Every light is first looked up (its device number
+    // and transmission type may have to be requested from the radio) and then either sent or faded to its scene intensity,
+    // or skipped.
+    //
+    private static class SceneApplication {
+
+        private Scene scene;
+        private FadeEngine fadeEngine;
+        private long fadeDurationMs;
+        private OnSceneAppliedListener listener;
+
+        // The number of lights that have not yet been sent or skipped.
+        private AtomicInteger remainingLights;
+        private AtomicInteger sceneLights;
+        private AtomicInteger appliedLights;
+
+        public SceneApplication(Scene scene, int lightCount, FadeEngine fadeEngine, long fadeDurationMs,
+                                OnSceneAppliedListener listener) {
+            this.scene = scene;
+            this.fadeEngine = fadeEngine;
+            this.fadeDurationMs = fadeDurationMs;
+            this.listener = listener;
+            remainingLights = new AtomicInteger(lightCount);
+            sceneLights = new AtomicInteger(0);
+            appliedLights = new AtomicInteger(0);
+
+            if (lightCount == 0) notifySceneApplied();
+        }
+
+        public Runnable newLightTask(final ChannelWrapper channelWrapper, final int currentIntensity) {
+            return new Runnable() {
+
+                @Override
+                public void run() {
+                    applyToLight(channelWrapper, currentIntensity);
+                }
+            };
+        }
+
+        private void applyToLight(ChannelWrapper channelWrapper, int currentIntensity) {
+            final int deviceNumber = channelWrapper.getDeviceNumber();
+            final int transmissionType = channelWrapper.getTransmissionType();
+            Integer sceneIntensity = scene.getIntensity(deviceNumber, transmissionType);
+
+            if (sceneIntensity == null) {
+                onLightDone();
+                return;
+            }
+
+            sceneLights.incrementAndGet();
+
+            if (fadeDurationMs > 0) {
+                fadeEngine.fade(channelWrapper, currentIntensity, sceneIntensity, fadeDurationMs,
+                                new FadeEngine.OnFadeFinishedListener() {
+
+                    @Override
+                    public void onFadeFinished(ChannelWrapper channelWrapper, boolean completed) {
+                        onLightApplied(deviceNumber, completed);
+                    }
+                });
+                return;
+            }
+
+            channelWrapper.sendIntensityPayload(scene.getPayload(deviceNumber, transmissionType),
+                                                new IntensityCommandQueue.OnCommandSentListener() {
+
+                @Override
+                public void onCommandSent(boolean success) {
+                    onLightApplied(deviceNumber, success);
+                }
+            });
+        }
+
+        private void onLightApplied(int deviceNumber, boolean success) {
+            if (success) appliedLights.incrementAndGet();
+            if (listener != null) listener.onLightApplied(deviceNumber, success);
+            onLightDone();
+        }
+
+        private void onLightDone() {
+            if (remainingLights.decrementAndGet() == 0) notifySceneApplied();
+        }
+
+        private void notifySceneApplied() {
+            if (listener != null) {
+                listener.onSceneApplied(scene, appliedLights.get(), sceneLights.get());
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package se.miun.ant;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An Executor that runs its tasks one at a time, in the order they were submitted, on a shared
+ * executor. It does not own a thread: while it has tasks it occupies one thread of the shared
+ * executor, and when its queue is empty it occupies none.
+ *
+ * A SerialExecutor is used as the mailbox of an actor (for example an ANT channel, see ChannelWrapper):
+ * every task that touches the actor's state is submitted to it, so the state is only ever accessed
+ * by one thread at a time and needs no locking, no matter which threads the tasks are submitted from.
+ *
+ * A task that makes blocking calls can be submitted with executeBlocking(). It is run in order with
+ * the other tasks, but on the blocking executor, so that it does not hold a thread of the shared
+ * executor while it waits.
+ *
+ * The mailbox is a linked queue whose links are stored in the tasks themselves. A task that is
+ * submitted for every message (for example the broadcast delivery of a ChannelWrapper) can extend
+ * Task, and is then queued without allocating. Other Runnables are wrapped in a new Task. The drain
+ * of the queue is a Task as well, so a shared executor that queues Tasks by their links (see
+ * ChannelExecutors.newSerialExecutor()) runs it without allocating either.
+ */
+public class SerialExecutor implements Executor {
+
+    /**
+     * A Runnable that holds its own link in the queue it is submitted to, so that it can be queued
+     * without allocating. A Task is in at most one queue at a time: it must not be submitted again
+     * before it has started running.
+     */
+    public static abstract class Task implements Runnable {
+        // The next task in the queue. Only used by the queue the task is in.
+        volatile Task next;
+    }
+
+    private final Executor executor;
+    private final Executor blockingExecutor;
+
+    // The task queue, a multiple producer, single consumer queue after Dmitry Vyukov: tasks are
+    // added at the head, by swapping it, and taken from the tail by the drain. The stub is put back
+    // in the queue when the queue would otherwise be left without a node, so that head and tail
+    // never become null.
+    private final AtomicReference<Task> head;
+    private volatile Task tail;
+    private final Task stub;
+
+    // Set while a drain of the task queue is submitted to the shared executor or running.
+    private final AtomicBoolean draining;
+
+    private final Task drainTask = new Task() {
+
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Constructor.
+     * @param executor the shared executor that the tasks are run on.
+     * @param blockingExecutor the shared executor that the blocking tasks are run on.
+     */
+    public SerialExecutor(Executor executor, Executor blockingExecutor) {
+        this.executor = executor;
+        this.blockingExecutor = blockingExecutor;
+        stub = new RunnableTask(null);
+        head = new AtomicReference<Task>(stub);
+        tail = stub;
+        draining = new AtomicBoolean(false);
+    }
+
+    /**
+     * Submits a task. This method never blocks and can be called from any thread. A Task is queued
+     * without allocating.
+     * @param task the task to run.
+     */
+    @Override
+    public void execute(Runnable task) {
+        push(task instanceof Task ? (Task)task : new RunnableTask(task));
+        scheduleDrainIfNeeded();
+    }
+
+    /**
+     * Submits a task that makes blocking calls. This method never blocks and can be called from
+     * any thread.
+     * @param task the task to run.
+     */
+    public void executeBlocking(Runnable task) {
+        execute(new BlockingTask(task));
+    }
+
+    private void scheduleDrainIfNeeded() {
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(drainTask);
+        }
+    }
+
+    //
+    // Adds a task at the head of the queue. Called from any thread.
+    //
+    private void push(Task task) {
+        task.next = null;
+        Task previous = head.getAndSet(task);
+        // Until this link is set the task can not be taken, see poll().
+        previous.next = task;
+    }
+
+    //
+    // Takes the task at the tail of the queue, or returns null if the queue is empty or the task
+    // that was added last has not been linked yet. Only called by the drain.
+    //
+    private Task poll() {
+        Task first = tail;
+        Task next = first.next;
+
+        if (first == stub) {
+            if (next == null) return null;
+            tail = next;
+            first = next;
+            next = next.next;
+        }
+        if (next != null) {
+            tail = next;
+            return first;
+        }
+        if (first != head.get()) return null;
+
+        // first is the last task in the queue. The stub is put behind it, so that it can be taken.
+        push(stub);
+        next = first.next;
+        if (next != null) {
+            tail = next;
+            return first;
+        }
+        return null;
+    }
+
+    private boolean isEmpty() {
+        return tail == stub && head.get() == stub;
+    }
+
+    //
+    // Runs the queued tasks. Called on a thread of the shared executor.
+    //
+    private void drain() {
+        Task task;
+        boolean handedOff = false;
+
+        try {
+            while ((task = poll()) != null) {
+                if (task instanceof BlockingTask) {
+                    // The drain goes on on the shared executor when the blocking task has run,
+                    // and until then no other task of this executor is run.
+                    handedOff = true;
+                    blockingExecutor.execute(task);
+                    return;
+                }
+                task.run();
+            }
+        } finally {
+            if (!handedOff) {
+                draining.set(false);
+
+                // A task may have been added after the queue was found empty but before the flag
+                // was cleared, in which case execute() did not schedule a new drain. This is also
+                // done if a task threw, so that the tasks after it still run.
+                if (!isEmpty()) {
+                    scheduleDrainIfNeeded();
+                }
+            }
+        }
+    }
+
+    //
+    // A Runnable that is not a Task, wrapped so that it can be queued. Also used by the actor pool
+    // of ChannelExecutors.
+    //
+    static class RunnableTask extends Task {
+        private final Runnable task;
+
+        public RunnableTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    //
+    // A task submitted with executeBlocking(). Run on the blocking executor while the drain of the
+    // task queue is paused.
+    //
+    private class BlockingTask extends Task {
+        private final Runnable task;
+
+        public BlockingTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                executor.execute(drainTask);
+            }
+        }
+    }
+}
@@ -78,9 +78,17 @@ public class SettingsActivity extends PreferenceActivity {
         EditTextPreference frequency = (EditTextPreference)findPreference(
                 res.getString(R.string.pref_frequency_key));
 
+        EditTextPreference extraProfiles = (EditTextPreference)findPreference(
+                res.getString(R.string.pref_extra_profiles_key));
+
+        EditTextPreference sceneFade = (EditTextPreference)findPreference(
+                res.getString(R.string.pref_scene_fade_key));
+
         deviceType.setText(res.getString(R.string.pref_device_type_default));
         transType.setText(res.getString(R.string.pref_transmission_type_default));
         period.setText(res.getString(R.string.pref_period_default));
         frequency.setText(res.getString(R.string.pref_frequency_default));
+        extraProfiles.setText(res.getString(R.string.pref_extra_profiles_default));
+        sceneFade.setText(res.getString(R.string.pref_scene_fade_default));
     }
 }